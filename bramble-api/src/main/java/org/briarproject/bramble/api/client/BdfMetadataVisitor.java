@@ -0,0 +1,22 @@
+package org.briarproject.bramble.api.client;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.MetadataVisitor;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+/**
+ * Receives the parsed metadata of messages one message at a time. See
+ * {@link MetadataVisitor}.
+ */
+@NotNullByDefault
+public interface BdfMetadataVisitor {
+
+	/**
+	 * Called with the metadata of each message that's read.
+	 */
+	void visit(MessageId m, BdfDictionary metadata) throws DbException,
+			FormatException;
+}
@@ -3,17 +3,24 @@ package org.briarproject.bramble.api.client;
 import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.data.BdfDictionary;
 import org.briarproject.bramble.api.data.BdfList;
+import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.properties.TransportProperties;
+import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
 
 import java.security.GeneralSecurityException;
+import java.util.Collection;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -27,6 +34,18 @@ public interface ClientHelper {
 	void addLocalMessage(Transaction txn, Message m, BdfDictionary metadata,
 			boolean shared) throws DbException, FormatException;
 
+	void addLocalMessages(Transaction txn, Collection<Message> messages,
+			Map<MessageId, BdfDictionary> metadata, boolean shared)
+			throws DbException, FormatException;
+
+	/**
+	 * Declares an indexed message metadata key for the given client.
+	 *
+	 * @see DatabaseComponent#addIndexedMetadataKey
+	 */
+	void addIndexedMetadataKey(Transaction txn, ClientId c, int majorVersion,
+			String key, IndexedMetadataType type) throws DbException;
+
 	Message createMessage(GroupId g, long timestamp, BdfList body)
 			throws FormatException;
 
@@ -71,6 +90,61 @@ public interface ClientHelper {
 			Transaction txn, GroupId g, BdfDictionary query) throws DbException,
 			FormatException;
 
+	/**
+	 * Returns the metadata for a range of the messages matching the given
+	 * query. The returned map iterates over the messages in the range's
+	 * order.
+	 *
+	 * @see DatabaseComponent#getMessageMetadata(Transaction, GroupId,
+	 * Metadata, MetadataRange)
+	 */
+	Map<MessageId, BdfDictionary> getMessageMetadataAsDictionary(
+			Transaction txn, GroupId g, BdfDictionary query,
+			MetadataRange range) throws DbException, FormatException;
+
+	/**
+	 * Returns the number of messages in a range of the messages matching
+	 * the given query.
+	 *
+	 * @see DatabaseComponent#countMessages(Transaction, GroupId, Metadata,
+	 * MetadataRange)
+	 */
+	int countMessages(Transaction txn, GroupId g, BdfDictionary query,
+			MetadataRange range) throws DbException, FormatException;
+
+	/**
+	 * Passes the parsed metadata for all delivered messages in the given
+	 * group to the given visitor, one message at a time.
+	 *
+	 * @see DatabaseComponent#visitMessageMetadata(Transaction, GroupId,
+	 * MetadataVisitor)
+	 */
+	void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfMetadataVisitor v) throws DbException, FormatException;
+
+	/**
+	 * Passes the parsed metadata for the messages matching the given query
+	 * to the given visitor, one message at a time.
+	 *
+	 * @see DatabaseComponent#visitMessageMetadata(Transaction, GroupId,
+	 * Metadata, MetadataVisitor)
+	 */
+	void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfDictionary query, BdfMetadataVisitor v) throws DbException,
+			FormatException;
+
+	/**
+	 * Passes the parsed metadata for a range of the messages matching the
+	 * given query to the given visitor, one message at a time, in the
+	 * range's order.
+	 *
+	 * @see DatabaseComponent#visitMessageMetadata(Transaction, GroupId,
+	 * Metadata, MetadataRange, MetadataVisitor)
+	 */
+	void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfDictionary query, MetadataRange range, BdfMetadataVisitor v)
+			throws DbException, FormatException;
+
 	void mergeGroupMetadata(GroupId g, BdfDictionary metadata)
 			throws DbException, FormatException;
 
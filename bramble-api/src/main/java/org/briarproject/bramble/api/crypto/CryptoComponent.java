@@ -120,6 +120,21 @@ public interface CryptoComponent {
 	@Nullable
 	byte[] decryptWithPassword(byte[] ciphertext, String password);
 
+	/**
+	 * Encrypts and authenticates the given plaintext so it can be written to
+	 * storage, using the given key. The ciphertext will be decryptable using
+	 * the same key after the app restarts.
+	 */
+	byte[] encryptWithKey(SecretKey key, byte[] plaintext);
+
+	/**
+	 * Decrypts and authenticates the given ciphertext that has been read from
+	 * storage, using the given key. Returns null if the ciphertext cannot be
+	 * decrypted and authenticated (for example, if the key is wrong).
+	 */
+	@Nullable
+	byte[] decryptWithKey(SecretKey key, byte[] ciphertext);
+
 	/**
 	 * Encrypts the given plaintext to the given public key.
 	 */
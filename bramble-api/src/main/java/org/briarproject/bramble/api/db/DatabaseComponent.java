@@ -53,6 +53,25 @@ public interface DatabaseComponent {
 	 */
 	void close() throws DbException;
 
+	/**
+	 * Logs the execution statistics and query plans of the database's
+	 * statements, if statement profiling is enabled by the
+	 * {@link DatabaseConfig}.
+	 */
+	void logStatementProfile();
+
+	/**
+	 * Returns the number of group metadata lookups that have been answered
+	 * from the group metadata cache since the database was opened.
+	 */
+	long getGroupMetadataCacheHitCount();
+
+	/**
+	 * Returns the number of group metadata lookups that have missed the
+	 * group metadata cache since the database was opened.
+	 */
+	long getGroupMetadataCacheMissCount();
+
 	/**
 	 * Starts a new transaction and returns an object representing it.
 	 * <p/>
@@ -63,6 +82,42 @@ public interface DatabaseComponent {
 	 */
 	Transaction startTransaction(boolean readOnly) throws DbException;
 
+	/**
+	 * Starts a new read-only transaction that does not acquire the database
+	 * lock, and returns an object representing it. The transaction can run
+	 * concurrently with any other transaction, including a write
+	 * transaction, so it's suitable for reads that shouldn't wait for long
+	 * writes, such as loading data for the UI.
+	 * <p/>
+	 * The transaction never sees uncommitted changes, and each query sees
+	 * a consistent snapshot of the data that was committed when the query
+	 * started. However, changes committed by other transactions while this
+	 * transaction is open may be seen by later queries in this transaction.
+	 * Callers must therefore tolerate data being added, changed or removed
+	 * between queries. For example, a message that was returned by one query
+	 * may not exist by the time its metadata is loaded by another query.
+	 */
+	Transaction startSnapshotTransaction() throws DbException;
+
+	/**
+	 * Starts a new transaction that can only access transport keys, and
+	 * returns an object representing it. The transaction acquires the
+	 * transport key lock rather than the main database lock, so it doesn't
+	 * wait for transactions that don't access transport keys, such as bulk
+	 * message writes. This keeps connection setup fast while a large sync is
+	 * in progress.
+	 * <p/>
+	 * Only the methods that read or write transport keys can be called with
+	 * the transaction. Other methods throw an {@link IllegalStateException}.
+	 * <p/>
+	 * This method acquires locks, so it must not be called while holding a
+	 * lock.
+	 *
+	 * @param readOnly true if the transaction will only be used for reading.
+	 */
+	Transaction startTransportKeyTransaction(boolean readOnly)
+			throws DbException;
+
 	/**
 	 * Commits a transaction to the database.
 	 */
@@ -72,10 +127,32 @@ public interface DatabaseComponent {
 	 * Ends a transaction. If the transaction has not been committed,
 	 * it will be aborted. If the transaction has been committed,
 	 * any events attached to the transaction are broadcast.
-	 * The database lock will be released in either case.
+	 * Any database locks held by the transaction will be released in either
+	 * case.
 	 */
 	void endTransaction(Transaction txn);
 
+	/**
+	 * Runs the given tasks in a single write transaction and commits it.
+	 * Each task runs in its own savepoint, so a task that fails is rolled
+	 * back and notified without affecting the other tasks. Events attached
+	 * by the successful tasks are broadcast after the commit.
+	 * <p/>
+	 * This method acquires locks, so it must not be called while holding a
+	 * lock.
+	 */
+	void runGroupCommit(Collection<GroupCommitTask> tasks);
+
+	/**
+	 * Returns true if the database can store data of the given length
+	 * without exceeding its storage quota. Incoming messages are not stored
+	 * or acknowledged while the quota is exceeded, so contacts will send
+	 * them again later.
+	 * <p/>
+	 * This method is cheap enough to be called for every incoming message.
+	 */
+	boolean hasFreeSpace(long length);
+
 	/**
 	 * Stores a contact associated with the given local and remote pseudonyms,
 	 * and returns an ID for the contact.
@@ -88,6 +165,20 @@ public interface DatabaseComponent {
 	 */
 	void addGroup(Transaction txn, Group g) throws DbException;
 
+	/**
+	 * Declares that the given key of the given client's message metadata
+	 * holds values of the given type, and should be indexed so that queries
+	 * on the key don't have to scan the metadata of every message in the
+	 * group. Any existing metadata for the key is indexed when the key is
+	 * first declared. Values of any other type are stored but not indexed.
+	 * <p/>
+	 * This method should be called at startup, before the client queries
+	 * its metadata. Declaring a key that has already been declared with the
+	 * same type has no effect.
+	 */
+	void addIndexedMetadataKey(Transaction txn, ClientId c, int majorVersion,
+			String key, IndexedMetadataType type) throws DbException;
+
 	/**
 	 * Stores a local pseudonym.
 	 */
@@ -99,6 +190,13 @@ public interface DatabaseComponent {
 	void addLocalMessage(Transaction txn, Message m, Metadata meta,
 			boolean shared) throws DbException;
 
+	/**
+	 * Stores the given local messages in a single batch. Metadata is merged
+	 * for each message that has an entry in the given map.
+	 */
+	void addLocalMessages(Transaction txn, Collection<Message> messages,
+			Map<MessageId, Metadata> meta, boolean shared) throws DbException;
+
 	/**
 	 * Stores a transport.
 	 */
@@ -130,6 +228,17 @@ public interface DatabaseComponent {
 	boolean containsLocalAuthor(Transaction txn, AuthorId local)
 			throws DbException;
 
+	/**
+	 * Returns the number of delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range. The range's limit is
+	 * ignored.
+	 * <p/>
+	 * Read-only.
+	 */
+	int countMessages(Transaction txn, GroupId g, Metadata query,
+			MetadataRange range) throws DbException;
+
 	/**
 	 * Deletes the message with the given ID. Unlike
 	 * {@link #removeMessage(Transaction, MessageId)}, the message ID,
@@ -225,6 +334,42 @@ public interface DatabaseComponent {
 	 */
 	Group getGroup(Transaction txn, GroupId g) throws DbException;
 
+	/**
+	 * Returns the message counts for the given group, or zero counts if no
+	 * messages have been tracked in the group.
+	 * <p/>
+	 * Read-only.
+	 */
+	GroupCounts getGroupCounts(Transaction txn, GroupId g) throws DbException;
+
+	/**
+	 * Returns the message counts for all groups belonging to the given client
+	 * in which messages have been tracked.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, GroupCounts> getGroupCounts(Transaction txn, ClientId c,
+			int majorVersion) throws DbException;
+
+	/**
+	 * Returns the total length in bytes of the messages stored in all groups
+	 * belonging to the given client, not including deleted messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	long getStorageUsage(Transaction txn, ClientId c, int majorVersion)
+			throws DbException;
+
+	/**
+	 * Returns the total length in bytes of the messages stored in each group
+	 * belonging to the given client, not including deleted messages. Groups
+	 * that have no stored messages are not included.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, Long> getGroupStorageUsage(Transaction txn, ClientId c,
+			int majorVersion) throws DbException;
+
 	/**
 	 * Returns the metadata for the given group.
 	 * <p/>
@@ -271,6 +416,16 @@ public interface DatabaseComponent {
 	Collection<MessageId> getMessageIds(Transaction txn, GroupId g)
 			throws DbException;
 
+	/**
+	 * Returns the timestamps of all delivered messages in the given group
+	 * that have not been deleted. The returned map iterates over the
+	 * messages in ascending order of timestamp.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Long> getMessageTimestamps(Transaction txn, GroupId g)
+			throws DbException;
+
 	/**
 	 * Returns the IDs of any messages that need to be validated.
 	 * <p/>
@@ -324,6 +479,50 @@ public interface DatabaseComponent {
 	Map<MessageId, Metadata> getMessageMetadata(Transaction txn, GroupId g,
 			Metadata query) throws DbException;
 
+	/**
+	 * Returns the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range. The returned map
+	 * iterates over the messages in the range's order, and contains at most
+	 * the range's limit of messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Metadata> getMessageMetadata(Transaction txn, GroupId g,
+			Metadata query, MetadataRange range) throws DbException;
+
+	/**
+	 * Passes the metadata for all delivered messages in the given group to
+	 * the given visitor, one message at a time, without holding the metadata
+	 * for the whole group in memory.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(Transaction txn, GroupId g, MetadataVisitor v)
+			throws DbException;
+
+	/**
+	 * Passes the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query to the given
+	 * visitor, one message at a time. If the query is empty, the metadata for
+	 * all delivered messages is visited.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(Transaction txn, GroupId g, Metadata query,
+			MetadataVisitor v) throws DbException;
+
+	/**
+	 * Passes the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range to the given visitor,
+	 * one message at a time, in the range's order.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(Transaction txn, GroupId g, Metadata query,
+			MetadataRange range, MetadataVisitor v) throws DbException;
+
 	/**
 	 * Returns the metadata for the given delivered message.
 	 * <p/>
@@ -438,6 +637,17 @@ public interface DatabaseComponent {
 	void mergeSettings(Transaction txn, Settings s, String namespace)
 			throws DbException;
 
+	/**
+	 * Purges part of the remaining state of a contact or group that has been
+	 * removed. Removed contacts and groups are hidden immediately, but their
+	 * messages and message statuses are purged in small chunks, each in its
+	 * own transaction, so the database lock isn't held for long.
+	 *
+	 * @return True if any state was purged, in which case more may remain.
+	 */
+	boolean purgeRemovedContactsAndGroups(Transaction txn)
+			throws DbException;
+
 	/**
 	 * Processes an ack from the given contact.
 	 */
@@ -449,6 +659,13 @@ public interface DatabaseComponent {
 	void receiveMessage(Transaction txn, ContactId c, Message m)
 			throws DbException;
 
+	/**
+	 * Processes the given messages from the given contact, storing any new
+	 * messages in a single batch.
+	 */
+	void receiveMessages(Transaction txn, ContactId c,
+			Collection<Message> messages) throws DbException;
+
 	/**
 	 * Processes an offer from the given contact.
 	 */
@@ -461,12 +678,16 @@ public interface DatabaseComponent {
 			throws DbException;
 
 	/**
-	 * Removes a contact (and all associated state) from the database.
+	 * Removes a contact (and all associated state) from the database. The
+	 * contact's message statuses are purged later by
+	 * {@link #purgeRemovedContactsAndGroups(Transaction)}.
 	 */
 	void removeContact(Transaction txn, ContactId c) throws DbException;
 
 	/**
-	 * Removes a group (and all associated state) from the database.
+	 * Removes a group (and all associated state) from the database. The
+	 * group's messages are purged later by
+	 * {@link #purgeRemovedContactsAndGroups(Transaction)}.
 	 */
 	void removeGroup(Transaction txn, Group g) throws DbException;
 
@@ -538,6 +759,15 @@ public interface DatabaseComponent {
 	void setTransportKeysActive(Transaction txn, TransportId t, KeySetId k)
 			throws DbException;
 
+	/**
+	 * Adds the given deltas to the message counts for the given group and
+	 * updates the latest message time if the given time is later.
+	 *
+	 * @throws DbException if either count would become negative.
+	 */
+	void updateGroupCounts(Transaction txn, GroupId g, int msgCountDelta,
+			int unreadCountDelta, long latestMsgTime) throws DbException;
+
 	/**
 	 * Stores the given transport keys, deleting any keys they have replaced.
 	 */
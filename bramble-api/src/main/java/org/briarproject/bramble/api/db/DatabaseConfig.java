@@ -12,4 +12,34 @@ public interface DatabaseConfig {
 	File getDatabaseKeyDirectory();
 
 	long getMaxSize();
+
+	/**
+	 * Returns true if raw messages should be stored in encrypted files under
+	 * the database directory rather than in the database itself. Once a
+	 * database has been opened with the blob store enabled, the blob store
+	 * must remain enabled for that database.
+	 */
+	boolean isBlobStoreEnabled();
+
+	/**
+	 * Returns true if raw messages should be compressed before they're
+	 * stored. Each message is only stored compressed if that saves enough
+	 * space, and messages stored while compression was enabled can still be
+	 * read after it has been disabled.
+	 */
+	boolean isCompressionEnabled();
+
+	/**
+	 * Returns true if the execution times and query plans of the database's
+	 * statements should be recorded. This adds overhead to every statement,
+	 * so it should only be enabled for diagnostics.
+	 */
+	boolean isStatementProfilingEnabled();
+
+	/**
+	 * Returns true if each transaction should cache the contacts, groups and
+	 * metadata it reads, so reading them again within the same transaction
+	 * doesn't reach the database.
+	 */
+	boolean isReadCacheEnabled();
 }
@@ -18,6 +18,10 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
  * submitted, tasks are not run concurrently, and submitting a task will never
  * block. Tasks must not run indefinitely. Tasks submitted during shutdown are
  * discarded.
+ * <p>
+ * Read-only tasks that don't need to be ordered with respect to other tasks
+ * can use the {@link DatabaseReadExecutor} instead, so they don't have to wait
+ * for writes to finish.
  */
 @Qualifier
 @Target({FIELD, METHOD, PARAMETER})
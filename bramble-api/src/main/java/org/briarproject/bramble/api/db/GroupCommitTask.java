@@ -0,0 +1,28 @@
+package org.briarproject.bramble.api.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+/**
+ * A small write task that can share a database transaction with other tasks.
+ * See {@link GroupCommitter}.
+ */
+@NotNullByDefault
+public interface GroupCommitTask {
+
+	/**
+	 * Performs the task's work in the given transaction. The task must not
+	 * commit or end the transaction. If this method throws an exception,
+	 * the task's changes will be rolled back without affecting any other
+	 * tasks in the group, and {@link #onFailure(DbException)} will be called.
+	 */
+	@DatabaseExecutor
+	void run(Transaction txn) throws DbException;
+
+	/**
+	 * Called if the task's changes could not be committed. If the task
+	 * threw an unchecked exception, the exception is wrapped in a
+	 * {@link DbException}.
+	 */
+	@DatabaseExecutor
+	void onFailure(DbException e);
+}
@@ -0,0 +1,23 @@
+package org.briarproject.bramble.api.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+/**
+ * Collects small write tasks and commits them in groups, so that many tasks
+ * can share the cost of a single commit.
+ * <p/>
+ * Tasks are run on the {@link DatabaseExecutor} in the order they were
+ * submitted. Any tasks submitted while the database executor is busy are
+ * committed together, up to a limit on the size of each group. Each task
+ * succeeds or fails independently, and the events attached by a task are
+ * only broadcast if the task's changes are committed.
+ */
+@NotNullByDefault
+public interface GroupCommitter {
+
+	/**
+	 * Submits a task to be run in the next group. This method does not
+	 * block.
+	 */
+	void submit(GroupCommitTask task);
+}
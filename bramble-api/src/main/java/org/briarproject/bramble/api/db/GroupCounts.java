@@ -0,0 +1,38 @@
+package org.briarproject.bramble.api.db;
+
+import javax.annotation.concurrent.Immutable;
+
+@Immutable
+public class GroupCounts {
+
+	private final int msgCount, unreadCount;
+	private final long latestMsgTime;
+
+	public GroupCounts(int msgCount, int unreadCount, long latestMsgTime) {
+		this.msgCount = msgCount;
+		this.unreadCount = unreadCount;
+		this.latestMsgTime = latestMsgTime;
+	}
+
+	/**
+	 * Returns the number of messages tracked in the group.
+	 */
+	public int getMsgCount() {
+		return msgCount;
+	}
+
+	/**
+	 * Returns the number of unread messages tracked in the group.
+	 */
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+
+	/**
+	 * Returns the timestamp of the latest message tracked in the group, or
+	 * zero if no messages have been tracked.
+	 */
+	public long getLatestMsgTime() {
+		return latestMsgTime;
+	}
+}
@@ -0,0 +1,39 @@
+package org.briarproject.bramble.api.db;
+
+/**
+ * The type of the values of an indexed message metadata key.
+ *
+ * @see DatabaseComponent#addIndexedMetadataKey
+ */
+public enum IndexedMetadataType {
+
+	/**
+	 * The values are integers.
+	 */
+	LONG(0),
+
+	/**
+	 * The values are booleans.
+	 */
+	BOOLEAN(1),
+
+	/**
+	 * The values are byte arrays, such as session IDs.
+	 */
+	BYTES(2);
+
+	private final int value;
+
+	IndexedMetadataType(int value) {
+		this.value = value;
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	public static IndexedMetadataType fromValue(int value) {
+		for (IndexedMetadataType t : values()) if (t.value == value) return t;
+		throw new IllegalArgumentException();
+	}
+}
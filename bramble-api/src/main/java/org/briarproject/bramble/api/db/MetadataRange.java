@@ -0,0 +1,129 @@
+package org.briarproject.bramble.api.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Selects the messages whose integer values for a metadata key lie within
+ * a range, ordered by those values, and optionally limits the selection to
+ * a page of messages.
+ * <p/>
+ * Messages with equal values are ordered by message ID, so the order is
+ * total and the next page can be selected by passing the value and ID of
+ * the last message of the previous page to {@link #after(long, MessageId)}.
+ * Messages without an integer value for the key aren't selected.
+ * <p/>
+ * Selecting a range is efficient if the key has been declared as an
+ * {@link IndexedMetadataType#LONG LONG} key with
+ * {@link DatabaseComponent#addIndexedMetadataKey}. Otherwise the matching
+ * messages are loaded and sorted.
+ */
+@Immutable
+@NotNullByDefault
+public class MetadataRange {
+
+	/**
+	 * The limit of a range that isn't limited to a page.
+	 */
+	public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+	private final String key;
+	private final boolean descending;
+	private final long minValue, maxValue;
+	@Nullable
+	private final Long afterValue;
+	@Nullable
+	private final MessageId afterMessageId;
+	private final int limit;
+
+	/**
+	 * Creates a range that selects up to the given number of messages with
+	 * any value for the given key.
+	 */
+	public MetadataRange(String key, boolean descending, int limit) {
+		this(key, descending, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+	}
+
+	/**
+	 * Creates a range that selects up to the given number of messages with
+	 * values for the given key between the given minimum and maximum
+	 * values, inclusive.
+	 */
+	public MetadataRange(String key, boolean descending, long minValue,
+			long maxValue, int limit) {
+		this(key, descending, minValue, maxValue, null, null, limit);
+	}
+
+	private MetadataRange(String key, boolean descending, long minValue,
+			long maxValue, @Nullable Long afterValue,
+			@Nullable MessageId afterMessageId, int limit) {
+		if (minValue > maxValue) throw new IllegalArgumentException();
+		if (limit < 1) throw new IllegalArgumentException();
+		this.key = key;
+		this.descending = descending;
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.afterValue = afterValue;
+		this.afterMessageId = afterMessageId;
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns a range that selects the next page of messages after the
+	 * message with the given value and ID, which is usually the last
+	 * message of the current page.
+	 */
+	public MetadataRange after(long value, MessageId m) {
+		return new MetadataRange(key, descending, minValue, maxValue, value,
+				m, limit);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns true if the messages are ordered by descending value, or false
+	 * if they're ordered by ascending value.
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public long getMinValue() {
+		return minValue;
+	}
+
+	public long getMaxValue() {
+		return maxValue;
+	}
+
+	/**
+	 * Returns the value of the message after which the selection starts, or
+	 * null if the selection starts at the beginning of the range.
+	 */
+	@Nullable
+	public Long getAfterValue() {
+		return afterValue;
+	}
+
+	/**
+	 * Returns the ID of the message after which the selection starts, or
+	 * null if the selection starts at the beginning of the range.
+	 */
+	@Nullable
+	public MessageId getAfterMessageId() {
+		return afterMessageId;
+	}
+
+	/**
+	 * Returns the maximum number of messages to select, or
+	 * {@link #NO_LIMIT} if the selection isn't limited.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+}
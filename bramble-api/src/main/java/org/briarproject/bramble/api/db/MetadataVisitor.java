@@ -0,0 +1,22 @@
+package org.briarproject.bramble.api.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+/**
+ * Receives the metadata of messages one message at a time, while the
+ * metadata is being read from the database, so the metadata of a large
+ * group doesn't need to be held in memory all at once.
+ * <p/>
+ * The visitor is called within the transaction that's reading the metadata.
+ * It may read from the database using the same transaction, but it must not
+ * modify the database.
+ */
+@NotNullByDefault
+public interface MetadataVisitor {
+
+	/**
+	 * Called with the metadata of each message that's read.
+	 */
+	void visit(MessageId m, Metadata metadata) throws DbException;
+}
@@ -15,14 +15,20 @@ import javax.annotation.concurrent.NotThreadSafe;
 public class Transaction {
 
 	private final Object txn;
-	private final boolean readOnly;
+	private final boolean readOnly, snapshot;
 
 	private List<Event> events = null;
 	private boolean committed = false;
 
 	public Transaction(Object txn, boolean readOnly) {
+		this(txn, readOnly, false);
+	}
+
+	public Transaction(Object txn, boolean readOnly, boolean snapshot) {
+		if (snapshot && !readOnly) throw new IllegalArgumentException();
 		this.txn = txn;
 		this.readOnly = readOnly;
+		this.snapshot = snapshot;
 	}
 
 	/**
@@ -40,6 +46,15 @@ public class Transaction {
 		return readOnly;
 	}
 
+	/**
+	 * Returns true if the transaction is a snapshot transaction, which does
+	 * not hold the database lock.
+	 * See {@link DatabaseComponent#startSnapshotTransaction()}.
+	 */
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
 	/**
 	 * Attaches an event to be broadcast when the transaction has been
 	 * committed.
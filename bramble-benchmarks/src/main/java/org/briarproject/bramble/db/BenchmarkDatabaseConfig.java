@@ -0,0 +1,61 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.io.File;
+
+@NotNullByDefault
+class BenchmarkDatabaseConfig implements DatabaseConfig {
+
+	private final File dbDir, keyDir;
+	private final long maxSize;
+	private final boolean compressionEnabled;
+
+	BenchmarkDatabaseConfig(File dir, long maxSize) {
+		this(dir, maxSize, false);
+	}
+
+	BenchmarkDatabaseConfig(File dir, long maxSize,
+			boolean compressionEnabled) {
+		dbDir = new File(dir, "db");
+		keyDir = new File(dir, "key");
+		this.maxSize = maxSize;
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	@Override
+	public File getDatabaseDirectory() {
+		return dbDir;
+	}
+
+	@Override
+	public File getDatabaseKeyDirectory() {
+		return keyDir;
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public boolean isBlobStoreEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	@Override
+	public boolean isStatementProfilingEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isReadCacheEnabled() {
+		return false;
+	}
+}
@@ -0,0 +1,447 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.identity.Author;
+import org.briarproject.bramble.api.identity.AuthorId;
+import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.util.IoUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.util.logging.Level.OFF;
+import static org.briarproject.bramble.api.identity.Author.FORMAT_VERSION;
+import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+
+/**
+ * A database populated with a synthetic dataset of a configurable size,
+ * shared by all the iterations of a benchmark.
+ * <p/>
+ * The dataset is generated from a fixed seed, so every implementation and
+ * every run sees the same contacts, groups, messages and metadata. The
+ * populated database is kept under the {@code benchmark.dataDir} directory
+ * (by default {@code build/benchmark-data}) and reused by later runs with
+ * the same parameters, so large datasets only need to be generated once.
+ * Benchmarks must not commit changes to the database.
+ */
+// Qualified to avoid a clash with ValidationManager.State
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@NotNullByDefault
+public class BenchmarkDataset {
+
+	private static final long MAX_SIZE = 1024L * 1024 * 1024 * 1024; // 1 TiB
+
+	/**
+	 * How many clients to simulate. Briar has nine: transport properties,
+	 * introductions, messaging, forums, forum sharing, blogs,
+	 * blog sharing, private groups, and private group sharing.
+	 */
+	private static final int CLIENTS = 10;
+	static final int MAJOR_VERSION = 123;
+
+	/**
+	 * How many local groups to simulate. Briar has three: transport
+	 * properties, introductions and RSS feeds.
+	 */
+	private static final int LOCAL_GROUPS = 5;
+
+	static final String SETTINGS_NAMESPACE = "benchmark";
+
+	private static final int SETTINGS = 20;
+	private static final int OFFERED_MESSAGES_PER_CONTACT = 100;
+	private static final int METADATA_KEY_LENGTH = 10;
+	private static final int METADATA_VALUE_LENGTH = 100;
+
+	/**
+	 * How many distinct values each metadata key takes, so that a metadata
+	 * query matches about this fraction of the messages in a group.
+	 */
+	private static final int METADATA_VALUES = 10;
+
+	/**
+	 * How many messages to store in each transaction while populating the
+	 * database.
+	 */
+	private static final int MESSAGES_PER_TRANSACTION = 1000;
+
+	private static final String COMPLETE_FILE = "complete";
+
+	@Param({"H2", "HyperSQL", "MVStore"})
+	public String implementation;
+
+	@Param({"20", "1000"})
+	public int contacts;
+
+	@Param({"10"})
+	public int groupsPerContact;
+
+	@Param({"20", "100"})
+	public int messagesPerGroup;
+
+	@Param({"5"})
+	public int metadataKeys;
+
+	@Param({"1024"})
+	public int maxBodyLength;
+
+	@Param({"0"})
+	public long seed;
+
+	Database<Object> db;
+	LocalAuthor localAuthor;
+	List<ClientId> clientIds;
+	List<Contact> contactList;
+	List<Group> groups;
+	List<MessageId> messages;
+	Map<ContactId, List<GroupId>> contactGroups;
+	Map<GroupId, List<MessageId>> groupMessages;
+
+	// Used for choosing contacts, groups and messages during the benchmark
+	private final Random random = new Random();
+
+	public BenchmarkDataset() {
+		// Disable logging
+		Logger.getLogger("").setLevel(OFF);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		File dir = new File(System.getProperty("benchmark.dataDir",
+				"build/benchmark-data"), getDatasetName());
+		if (!new File(dir, COMPLETE_FILE).exists()) {
+			IoUtils.deleteFileOrDir(dir);
+			db = openDatabase(dir);
+			populateDatabase();
+			db.close();
+			if (!new File(dir, COMPLETE_FILE).createNewFile())
+				throw new IOException();
+		}
+		// Reopen the database so the benchmark starts with a cold cache
+		db = openDatabase(dir);
+		loadDataset();
+		// Don't use the dataset's seed, which would recreate its message IDs
+		random.setSeed(seed + 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws DbException {
+		db.close();
+	}
+
+	/**
+	 * Runs the given task in a transaction and commits the transaction.
+	 */
+	<R> R read(ReadTask<R> task) throws DbException {
+		Object txn = db.startTransaction();
+		try {
+			R result = task.run(txn);
+			db.commitTransaction(txn);
+			return result;
+		} catch (DbException | RuntimeException e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the given task in a transaction and aborts the transaction, so the
+	 * dataset is unchanged.
+	 */
+	void write(WriteTask task) throws DbException {
+		Object txn = db.startTransaction();
+		try {
+			task.run(txn);
+		} finally {
+			db.abortTransaction(txn);
+		}
+	}
+
+	private String getDatasetName() {
+		return implementation + "-" + contacts + "-" + groupsPerContact + "-"
+				+ messagesPerGroup + "-" + metadataKeys + "-" + maxBodyLength
+				+ "-" + seed;
+	}
+
+	private Database<Object> openDatabase(File dir) throws DbException {
+		DatabaseConfig config = new BenchmarkDatabaseConfig(dir, MAX_SIZE);
+		Database<?> db;
+		if (implementation.equals("H2"))
+			db = new H2Database(config, new SystemClock());
+		else if (implementation.equals("HyperSQL"))
+			db = new HyperSqlDatabase(config, new SystemClock());
+		else if (implementation.equals("MVStore"))
+			db = new MVStoreDatabase(config, new SystemClock());
+		else throw new IllegalArgumentException(implementation);
+		Database<Object> objectDb = asObjectDatabase(db);
+		// The key is derived from the seed so the database can be reopened
+		Random keyRandom = new Random(seed);
+		objectDb.open(new SecretKey(getBytes(keyRandom, SecretKey.LENGTH)),
+				null);
+		return objectDb;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Database<Object> asObjectDatabase(Database<?> db) {
+		return (Database<Object>) db;
+	}
+
+	private void populateDatabase() throws DbException {
+		Random r = new Random(seed);
+		List<ClientId> ids = getClientIds();
+		long timestamp = 0;
+
+		Object txn = db.startTransaction();
+		LocalAuthor local = new LocalAuthor(new AuthorId(getId(r)),
+				FORMAT_VERSION, "local", getBytes(r, 32), getBytes(r, 32), 0);
+		db.addLocalAuthor(txn, local);
+		Settings settings = new Settings();
+		for (int i = 0; i < SETTINGS; i++) settings.put("setting" + i, "" + i);
+		db.mergeSettings(txn, settings, SETTINGS_NAMESPACE);
+		db.commitTransaction(txn);
+
+		for (int i = 0; i < contacts; i++) {
+			txn = db.startTransaction();
+			Author remote = new Author(new AuthorId(getId(r)), FORMAT_VERSION,
+					"contact" + i, getBytes(r, 32));
+			ContactId c = db.addContact(txn, remote, local.getId(),
+					r.nextBoolean(), true);
+			for (int j = 0; j < OFFERED_MESSAGES_PER_CONTACT; j++)
+				db.addOfferedMessage(txn, c, new MessageId(getId(r)));
+			db.commitTransaction(txn);
+			for (int j = 0; j < groupsPerContact; j++) {
+				ClientId clientId = ids.get(j % CLIENTS);
+				timestamp = populateGroup(r, clientId, c, timestamp);
+			}
+		}
+		for (int i = 0; i < LOCAL_GROUPS; i++) {
+			ClientId clientId = ids.get(i % CLIENTS);
+			timestamp = populateGroup(r, clientId, null, timestamp);
+		}
+	}
+
+	/**
+	 * Adds a group shared with the given contact, or a local group if the
+	 * contact is null, and fills it with messages.
+	 *
+	 * @return the timestamp of the next message
+	 */
+	private long populateGroup(Random r, ClientId clientId,
+			@Nullable ContactId c, long timestamp) throws DbException {
+		Group g = new Group(new GroupId(getId(r)), clientId, MAJOR_VERSION,
+				getBytes(r, 1 + r.nextInt(100)));
+		Object txn = db.startTransaction();
+		db.addGroup(txn, g);
+		if (c != null) db.addGroupVisibility(txn, c, g.getId(), true);
+		db.mergeGroupMetadata(txn, g.getId(), getMetadata(r));
+		List<MessageId> added = new ArrayList<>(messagesPerGroup);
+		for (int i = 0; i < messagesPerGroup; i++) {
+			if (i > 0 && i % MESSAGES_PER_TRANSACTION == 0) {
+				db.commitTransaction(txn);
+				txn = db.startTransaction();
+			}
+			byte[] raw = getBytes(r,
+					MESSAGE_HEADER_LENGTH + 1 + r.nextInt(maxBodyLength));
+			Message m = new Message(new MessageId(getId(r)), g.getId(),
+					timestamp++, raw);
+			State state;
+			boolean shared;
+			ContactId sender;
+			if (c == null) {
+				state = DELIVERED;
+				shared = false;
+				sender = null;
+			} else {
+				state = State.fromValue(r.nextInt(4));
+				shared = r.nextBoolean();
+				sender = r.nextBoolean() ? c : null;
+			}
+			db.addMessage(txn, m, state, shared, sender);
+			if (c != null && r.nextBoolean())
+				db.raiseRequestedFlag(txn, c, m.getId());
+			db.mergeMessageMetadata(txn, m.getId(), getMetadata(r));
+			if (i > 0) {
+				MessageId dependency = added.get(r.nextInt(added.size()));
+				db.addMessageDependency(txn, m, dependency, state);
+			}
+			added.add(m.getId());
+		}
+		db.commitTransaction(txn);
+		return timestamp;
+	}
+
+	/**
+	 * Loads the IDs of the contacts, groups and messages in the dataset
+	 * from the database.
+	 */
+	private void loadDataset() throws DbException {
+		clientIds = getClientIds();
+		groups = new ArrayList<>();
+		messages = new ArrayList<>();
+		contactGroups = new HashMap<>();
+		groupMessages = new HashMap<>();
+		Object txn = db.startTransaction();
+		localAuthor = db.getLocalAuthors(txn).iterator().next();
+		contactList = new ArrayList<>(db.getContacts(txn));
+		for (Contact c : contactList)
+			contactGroups.put(c.getId(), new ArrayList<>());
+		for (ClientId clientId : clientIds) {
+			for (Group g : db.getGroups(txn, clientId, MAJOR_VERSION)) {
+				groups.add(g);
+				List<MessageId> ids = new ArrayList<>(
+						db.getMessageIds(txn, g.getId()));
+				messages.addAll(ids);
+				groupMessages.put(g.getId(), ids);
+				Map<ContactId, Boolean> visibility =
+						db.getGroupVisibility(txn, g.getId());
+				for (Entry<ContactId, Boolean> e : visibility.entrySet())
+					contactGroups.get(e.getKey()).add(g.getId());
+			}
+		}
+		db.commitTransaction(txn);
+	}
+
+	private List<ClientId> getClientIds() {
+		List<ClientId> ids = new ArrayList<>(CLIENTS);
+		for (int i = 0; i < CLIENTS; i++)
+			ids.add(new ClientId("org.briarproject.benchmark.client" + i));
+		return ids;
+	}
+
+	/**
+	 * Returns metadata with the given number of keys. The value of each key
+	 * is one of a small number of values, so that queries can match it.
+	 */
+	private Metadata getMetadata(Random r) {
+		Metadata meta = new Metadata();
+		for (int i = 0; i < metadataKeys; i++)
+			meta.put(getMetadataKey(i), getMetadataValue(r.nextInt(
+					METADATA_VALUES)));
+		return meta;
+	}
+
+	String getMetadataKey(int index) {
+		StringBuilder s = new StringBuilder("key" + index);
+		while (s.length() < METADATA_KEY_LENGTH) s.append('_');
+		return s.toString();
+	}
+
+	/**
+	 * Returns one of the metadata values used in the dataset, or a value that
+	 * doesn't occur in the dataset if the index is out of range.
+	 */
+	byte[] getMetadataValue(int index) {
+		byte[] value = new byte[METADATA_VALUE_LENGTH];
+		value[0] = (byte) index;
+		return value;
+	}
+
+	/**
+	 * Returns a query that matches about one in {@link #METADATA_VALUES}
+	 * messages if {@code match} is true, or no messages if it's false.
+	 */
+	Metadata getMetadataQuery(boolean match) {
+		Metadata query = new Metadata();
+		int index = match ? random.nextInt(METADATA_VALUES) : METADATA_VALUES;
+		query.put(getMetadataKey(0), getMetadataValue(index));
+		return query;
+	}
+
+	/**
+	 * Returns random metadata like the metadata in the dataset.
+	 */
+	Metadata getMetadata() {
+		return getMetadata(random);
+	}
+
+	/**
+	 * Returns a new random message in the given group.
+	 */
+	Message createMessage(GroupId g) {
+		byte[] raw = getBytes(random,
+				MESSAGE_HEADER_LENGTH + 1 + random.nextInt(maxBodyLength));
+		return new Message(new MessageId(getId(random)), g,
+				System.currentTimeMillis(), raw);
+	}
+
+	private static byte[] getId(Random r) {
+		return getBytes(r, MessageId.LENGTH);
+	}
+
+	private static byte[] getBytes(Random r, int length) {
+		byte[] b = new byte[length];
+		r.nextBytes(b);
+		return b;
+	}
+
+	<T> T pickRandom(List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	Contact pickContact() {
+		return pickRandom(contactList);
+	}
+
+	Group pickGroup() {
+		return pickRandom(groups);
+	}
+
+	MessageId pickMessage() {
+		return pickRandom(messages);
+	}
+
+	/**
+	 * Returns a random group that's shared with the given contact.
+	 */
+	GroupId pickGroup(ContactId c) {
+		return pickRandom(contactGroups.get(c));
+	}
+
+	/**
+	 * Returns a random message from the given group, or a random message
+	 * from any group if the given group is empty.
+	 */
+	MessageId pickMessage(GroupId g) {
+		List<MessageId> ids = groupMessages.get(g);
+		if (ids.isEmpty()) return pickMessage();
+		return pickRandom(ids);
+	}
+
+	interface ReadTask<R> {
+
+		R run(Object txn) throws DbException;
+	}
+
+	interface WriteTask {
+
+		void run(Object txn) throws DbException;
+	}
+}
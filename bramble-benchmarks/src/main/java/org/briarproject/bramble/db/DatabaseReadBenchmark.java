@@ -0,0 +1,374 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.identity.AuthorId;
+import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.Group.Visibility;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.MessageStatus;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.db.BenchmarkDataset.MAJOR_VERSION;
+import static org.briarproject.bramble.db.BenchmarkDataset.SETTINGS_NAMESPACE;
+
+/**
+ * Benchmarks for the read-only methods of {@link Database}. Each iteration
+ * runs the method in its own transaction, with arguments chosen at random
+ * from the dataset.
+ * <p/>
+ * The benchmarks run in sample time mode, so JMH reports the distribution
+ * of durations, including the 50th, 90th, 99th and 99.9th percentiles,
+ * rather than just the mean.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DatabaseReadBenchmark {
+
+	@Benchmark
+	public boolean containsContactByAuthorId(BenchmarkDataset d)
+			throws DbException {
+		AuthorId remote = d.pickContact().getAuthor().getId();
+		return d.read(txn -> d.db.containsContact(txn, remote,
+				d.localAuthor.getId()));
+	}
+
+	@Benchmark
+	public boolean containsContactByContactId(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.containsContact(txn,
+				d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public boolean containsGroup(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.containsGroup(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public boolean containsLocalAuthor(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.containsLocalAuthor(txn,
+				d.localAuthor.getId()));
+	}
+
+	@Benchmark
+	public boolean containsMessage(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.containsMessage(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public boolean containsVisibleMessage(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.containsVisibleMessage(txn,
+				d.pickContact().getId(), d.pickMessage()));
+	}
+
+	@Benchmark
+	public int countOfferedMessages(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.countOfferedMessages(txn,
+				d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public Contact getContact(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getContact(txn, d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public Collection<Contact> getContacts(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getContacts(txn));
+	}
+
+	@Benchmark
+	public Collection<Contact> getContactsByAuthorId(BenchmarkDataset d)
+			throws DbException {
+		AuthorId remote = d.pickContact().getAuthor().getId();
+		return d.read(txn -> d.db.getContactsByAuthorId(txn, remote));
+	}
+
+	@Benchmark
+	public Collection<ContactId> getContactsByLocalAuthorId(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getContacts(txn, d.localAuthor.getId()));
+	}
+
+	@Benchmark
+	public Group getGroup(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getGroup(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public GroupCounts getGroupCounts(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getGroupCounts(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public Map<GroupId, GroupCounts> getGroupCountsByClient(BenchmarkDataset d)
+			throws DbException {
+		ClientId c = d.pickRandom(d.clientIds);
+		return d.read(txn -> d.db.getGroupCounts(txn, c, MAJOR_VERSION));
+	}
+
+	@Benchmark
+	public Metadata getGroupMetadata(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getGroupMetadata(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public Map<GroupId, Long> getGroupStorageUsage(BenchmarkDataset d)
+			throws DbException {
+		ClientId c = d.pickRandom(d.clientIds);
+		return d.read(txn -> d.db.getGroupStorageUsage(txn, c, MAJOR_VERSION));
+	}
+
+	@Benchmark
+	public Collection<Group> getGroups(BenchmarkDataset d) throws DbException {
+		ClientId c = d.pickRandom(d.clientIds);
+		return d.read(txn -> d.db.getGroups(txn, c, MAJOR_VERSION));
+	}
+
+	@Benchmark
+	public Map<ContactId, Boolean> getGroupVisibility(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getGroupVisibility(txn,
+				d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public Visibility getGroupVisibilityForContact(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getGroupVisibility(txn, c, d.pickGroup(c)));
+	}
+
+	@Benchmark
+	public LocalAuthor getLocalAuthor(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getLocalAuthor(txn, d.localAuthor.getId()));
+	}
+
+	@Benchmark
+	public Collection<LocalAuthor> getLocalAuthors(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getLocalAuthors(txn));
+	}
+
+	@Benchmark
+	public Map<MessageId, State> getMessageDependencies(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessageDependencies(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public Map<MessageId, State> getMessageDependents(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessageDependents(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessageIds(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessageIds(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessageIdsWithMatchingQuery(
+			BenchmarkDataset d) throws DbException {
+		Metadata query = d.getMetadataQuery(true);
+		return d.read(txn -> d.db.getMessageIds(txn, d.pickGroup().getId(),
+				query));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessageIdsWithNonMatchingQuery(
+			BenchmarkDataset d) throws DbException {
+		Metadata query = d.getMetadataQuery(false);
+		return d.read(txn -> d.db.getMessageIds(txn, d.pickGroup().getId(),
+				query));
+	}
+
+	@Benchmark
+	public Map<MessageId, Metadata> getMessageMetadataByGroup(
+			BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getMessageMetadata(txn,
+				d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public Map<MessageId, Metadata> getMessageMetadataByGroupWithQuery(
+			BenchmarkDataset d) throws DbException {
+		Metadata query = d.getMetadataQuery(true);
+		return d.read(txn -> d.db.getMessageMetadata(txn, d.pickGroup().getId(),
+				query));
+	}
+
+	@Benchmark
+	public Metadata getMessageMetadata(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getMessageMetadata(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public Metadata getMessageMetadataForValidator(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessageMetadataForValidator(txn,
+				d.pickMessage()));
+	}
+
+	@Benchmark
+	public State getMessageState(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getMessageState(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public Collection<MessageStatus> getMessageStatusByGroup(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getMessageStatus(txn, c, d.pickGroup(c)));
+	}
+
+	@Benchmark
+	public MessageStatus getMessageStatus(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		return d.read(txn -> d.db.getMessageStatus(txn, c, m));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToAck(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getMessagesToAck(txn, c, MAX_MESSAGE_IDS));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToOffer(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getMessagesToOffer(txn, c, MAX_MESSAGE_IDS));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToRequest(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getMessagesToRequest(txn, c,
+				MAX_MESSAGE_IDS));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToSend(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getMessagesToSend(txn, c,
+				MAX_RECORD_PAYLOAD_BYTES));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToShare(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessagesToShare(txn));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToValidate(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getMessagesToValidate(txn));
+	}
+
+	@Benchmark
+	public long getNextSendTime(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getNextSendTime(txn,
+				d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getPendingMessages(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getPendingMessages(txn));
+	}
+
+	@Benchmark
+	public byte[] getRawMessage(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getRawMessage(txn, d.pickMessage()));
+	}
+
+	/**
+	 * Loads a batch of messages to send the same way generateBatch() does,
+	 * without updating the expiry times.
+	 */
+	@Benchmark
+	public Map<MessageId, byte[]> loadBatch(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getRawMessages(txn,
+				d.db.getMessagesToSend(txn, c, MAX_RECORD_PAYLOAD_BYTES)));
+	}
+
+	/**
+	 * Loads a batch of requested messages the same way
+	 * generateRequestedBatch() does, without updating the expiry times.
+	 */
+	@Benchmark
+	public Map<MessageId, byte[]> loadRequestedBatch(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getRawMessages(txn,
+				d.db.getRequestedMessagesToSend(txn, c,
+						MAX_RECORD_PAYLOAD_BYTES)));
+	}
+
+	@Benchmark
+	public Collection<MessageId> getRequestedMessagesToSend(BenchmarkDataset d)
+			throws DbException {
+		ContactId c = d.pickContact().getId();
+		return d.read(txn -> d.db.getRequestedMessagesToSend(txn, c,
+				MAX_RECORD_PAYLOAD_BYTES));
+	}
+
+	@Benchmark
+	public Settings getSettings(BenchmarkDataset d) throws DbException {
+		return d.read(txn -> d.db.getSettings(txn, SETTINGS_NAMESPACE));
+	}
+
+	@Benchmark
+	public long getStorageUsage(BenchmarkDataset d) throws DbException {
+		ClientId c = d.pickRandom(d.clientIds);
+		return d.read(txn -> d.db.getStorageUsage(txn, c, MAJOR_VERSION));
+	}
+
+	@Benchmark
+	public Collection<SyncState> getSyncStatesByContact(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getSyncStates(txn, d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public Map<ContactId, SyncState> getSyncStatesByMessage(BenchmarkDataset d)
+			throws DbException {
+		return d.read(txn -> d.db.getSyncStates(txn, d.pickMessage()));
+	}
+}
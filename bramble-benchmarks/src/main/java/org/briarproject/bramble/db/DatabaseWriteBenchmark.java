@@ -0,0 +1,186 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.db.BenchmarkDataset.SETTINGS_NAMESPACE;
+
+/**
+ * Benchmarks for the methods of {@link Database} that modify the database.
+ * Each iteration runs the method in its own transaction, with arguments
+ * chosen at random from the dataset, and then aborts the transaction so the
+ * dataset is unchanged for the next iteration. The durations therefore
+ * include the cost of rolling back the changes, but not of committing them.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DatabaseWriteBenchmark {
+
+	/**
+	 * How many messages to store in each iteration of
+	 * {@link #addMessages(BenchmarkDataset)}.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	@Benchmark
+	public void addMessage(BenchmarkDataset d) throws DbException {
+		Message m = d.createMessage(d.pickGroup().getId());
+		d.write(txn -> d.db.addMessage(txn, m, DELIVERED, true, null));
+	}
+
+	@Benchmark
+	public void addMessages(BenchmarkDataset d) throws DbException {
+		GroupId g = d.pickGroup().getId();
+		List<Message> batch = new ArrayList<>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) batch.add(d.createMessage(g));
+		d.write(txn -> d.db.addMessages(txn, batch, DELIVERED, true, null));
+	}
+
+	@Benchmark
+	public void deleteMessage(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.deleteMessage(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public void deleteMessageMetadata(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.deleteMessageMetadata(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public void generateBatch(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		d.write(txn -> {
+			Collection<MessageId> ids = d.db.getMessagesToSend(txn, c,
+					MAX_RECORD_PAYLOAD_BYTES);
+			d.db.getRawMessages(txn, ids);
+			d.db.updateExpiryTimes(txn, c, ids, Integer.MAX_VALUE);
+			d.db.lowerRequestedFlag(txn, c, ids);
+		});
+	}
+
+	@Benchmark
+	public void lowerAckFlag(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		d.write(txn -> {
+			Collection<MessageId> ids =
+					d.db.getMessagesToAck(txn, c, MAX_MESSAGE_IDS);
+			d.db.lowerAckFlag(txn, c, ids);
+		});
+	}
+
+	@Benchmark
+	public void mergeGroupMetadata(BenchmarkDataset d) throws DbException {
+		Metadata meta = d.getMetadata();
+		d.write(txn -> d.db.mergeGroupMetadata(txn, d.pickGroup().getId(),
+				meta));
+	}
+
+	@Benchmark
+	public void mergeMessageMetadata(BenchmarkDataset d) throws DbException {
+		Metadata meta = d.getMetadata();
+		d.write(txn -> d.db.mergeMessageMetadata(txn, d.pickMessage(), meta));
+	}
+
+	@Benchmark
+	public void mergeSettings(BenchmarkDataset d) throws DbException {
+		Settings s = new Settings();
+		s.put("setting0", "changed");
+		d.write(txn -> d.db.mergeSettings(txn, s, SETTINGS_NAMESPACE));
+	}
+
+	@Benchmark
+	public void raiseAckFlag(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		d.write(txn -> d.db.raiseAckFlag(txn, c, m));
+	}
+
+	@Benchmark
+	public void raiseRequestedFlag(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		d.write(txn -> d.db.raiseRequestedFlag(txn, c, m));
+	}
+
+	@Benchmark
+	public void raiseSeenFlag(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		d.write(txn -> d.db.raiseSeenFlag(txn, c, m));
+	}
+
+	@Benchmark
+	public void removeContact(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.removeContact(txn, d.pickContact().getId()));
+	}
+
+	@Benchmark
+	public void removeGroup(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.removeGroup(txn, d.pickGroup().getId()));
+	}
+
+	@Benchmark
+	public void removeMessage(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.removeMessage(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public void resetExpiryTime(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		d.write(txn -> d.db.resetExpiryTime(txn, c, m));
+	}
+
+	@Benchmark
+	public void setGroupVisibility(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		d.write(txn -> d.db.setGroupVisibility(txn, c, d.pickGroup(c), false));
+	}
+
+	@Benchmark
+	public void setMessageShared(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.setMessageShared(txn, d.pickMessage()));
+	}
+
+	@Benchmark
+	public void setMessageState(BenchmarkDataset d) throws DbException {
+		d.write(txn -> d.db.setMessageState(txn, d.pickMessage(), DELIVERED));
+	}
+
+	@Benchmark
+	public void updateExpiryTime(BenchmarkDataset d) throws DbException {
+		ContactId c = d.pickContact().getId();
+		MessageId m = d.pickMessage(d.pickGroup(c));
+		d.write(txn -> d.db.updateExpiryTime(txn, c, m, Integer.MAX_VALUE));
+	}
+
+	@Benchmark
+	public void updateGroupCounts(BenchmarkDataset d) throws DbException {
+		long now = System.currentTimeMillis();
+		d.write(txn -> d.db.updateGroupCounts(txn, d.pickGroup().getId(), 1, 1,
+				now));
+	}
+}
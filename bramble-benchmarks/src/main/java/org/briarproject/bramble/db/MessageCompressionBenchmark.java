@@ -0,0 +1,318 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.identity.Author;
+import org.briarproject.bramble.api.identity.AuthorId;
+import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.util.IoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.bramble.api.identity.Author.FORMAT_VERSION;
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.util.StringUtils.toUtf8;
+
+/**
+ * Benchmarks for reading raw messages from a database holding a realistic
+ * corpus of forum and blog posts, with and without compression of the
+ * stored messages.
+ * <p/>
+ * The corpus is generated from a fixed seed. Posts are made of words drawn
+ * from a fixed vocabulary, with common words much more likely than rare
+ * ones, and some of the blog posts wrap an earlier post, repeating its text
+ * like the wrapped posts made by reblogging and RSS import. Each trial
+ * populates a new database and prints the size of the database directory,
+ * so the effect of compression on the size can be compared with its effect
+ * on read latency.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MessageCompressionBenchmark {
+
+	@Benchmark
+	public byte[] getRawMessage(Corpus c) throws DbException {
+		MessageId m = c.pickPost();
+		Object txn = c.db.startTransaction();
+		try {
+			byte[] raw = c.db.getRawMessage(txn, m);
+			c.db.commitTransaction(txn);
+			return raw;
+		} catch (DbException | RuntimeException e) {
+			c.db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@Benchmark
+	public Map<MessageId, byte[]> loadBatch(Corpus c) throws DbException {
+		Object txn = c.db.startTransaction();
+		try {
+			Map<MessageId, byte[]> raw = c.db.getRawMessages(txn,
+					c.db.getMessagesToSend(txn, c.contactId,
+							MAX_RECORD_PAYLOAD_BYTES));
+			c.db.commitTransaction(txn);
+			return raw;
+		} catch (DbException | RuntimeException e) {
+			c.db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	// Qualified to avoid a clash with ValidationManager.State
+	@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+	@NotNullByDefault
+	public static class Corpus {
+
+		private static final long MAX_SIZE = 1024L * 1024 * 1024 * 1024;
+
+		private static final ClientId FORUM_CLIENT =
+				new ClientId("org.briarproject.benchmark.forum");
+		private static final ClientId BLOG_CLIENT =
+				new ClientId("org.briarproject.benchmark.blog");
+
+		private static final int GROUPS_PER_CLIENT = 10;
+		private static final int VOCABULARY_SIZE = 5000;
+		private static final int MIN_FORUM_POST_LENGTH = 100;
+		private static final int MAX_FORUM_POST_LENGTH = 1500;
+		private static final int MIN_BLOG_POST_LENGTH = 500;
+		private static final int MAX_BLOG_POST_LENGTH = 5000;
+
+		/**
+		 * The fraction of blog posts that wrap an earlier blog post.
+		 */
+		private static final double WRAPPED_POST_FRACTION = 0.3;
+
+		@Param({"H2", "HyperSQL"})
+		public String implementation;
+
+		@Param({"false", "true"})
+		public boolean compression;
+
+		@Param({"10000"})
+		public int posts;
+
+		@Param({"0"})
+		public long seed;
+
+		Database<Object> db;
+		ContactId contactId;
+
+		private final List<MessageId> postIds = new ArrayList<>();
+		private final Random random = new Random();
+		private File dir;
+
+		public Corpus() {
+			// Disable logging
+			Logger.getLogger("").setLevel(OFF);
+		}
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			dir = new File(System.getProperty("benchmark.dataDir",
+					"build/benchmark-data"), "compression-" + implementation
+					+ "-" + compression + "-" + posts + "-" + seed);
+			IoUtils.deleteFileOrDir(dir);
+			db = openDatabase();
+			populateDatabase();
+			db.close();
+			System.out.println("Database size: " + getSize(dir) + " bytes");
+			// Reopen the database so the benchmark starts with a cold cache
+			db = openDatabase();
+			random.setSeed(seed + 1);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws DbException {
+			db.close();
+			IoUtils.deleteFileOrDir(dir);
+		}
+
+		MessageId pickPost() {
+			return postIds.get(random.nextInt(postIds.size()));
+		}
+
+		private Database<Object> openDatabase() throws DbException {
+			DatabaseConfig config =
+					new BenchmarkDatabaseConfig(dir, MAX_SIZE, compression);
+			Database<?> db;
+			if (implementation.equals("H2"))
+				db = new H2Database(config, new SystemClock());
+			else if (implementation.equals("HyperSQL"))
+				db = new HyperSqlDatabase(config, new SystemClock());
+			else throw new IllegalArgumentException(implementation);
+			Database<Object> objectDb = asObjectDatabase(db);
+			// The key is derived from the seed so the database can be reopened
+			Random keyRandom = new Random(seed);
+			objectDb.open(new SecretKey(getBytes(keyRandom, SecretKey.LENGTH)),
+					null);
+			return objectDb;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Database<Object> asObjectDatabase(Database<?> db) {
+			return (Database<Object>) db;
+		}
+
+		private void populateDatabase() throws DbException {
+			Random r = new Random(seed);
+			List<String> vocabulary = getVocabulary(r);
+			Object txn = db.startTransaction();
+			LocalAuthor local = new LocalAuthor(new AuthorId(getId(r)),
+					FORMAT_VERSION, "local", getBytes(r, 32), getBytes(r, 32),
+					0);
+			db.addLocalAuthor(txn, local);
+			Author remote = new Author(new AuthorId(getId(r)), FORMAT_VERSION,
+					"contact", getBytes(r, 32));
+			contactId = db.addContact(txn, remote, local.getId(), true, true);
+			// Share every group with the contact, so the posts can be sent
+			List<GroupId> forums = addGroups(txn, r, FORUM_CLIENT);
+			List<GroupId> blogs = addGroups(txn, r, BLOG_CLIENT);
+			List<String> blogPosts = new ArrayList<>();
+			long timestamp = 0;
+			for (int i = 0; i < posts; i++) {
+				GroupId g;
+				String body;
+				if (r.nextBoolean()) {
+					g = forums.get(r.nextInt(forums.size()));
+					body = getText(r, vocabulary, MIN_FORUM_POST_LENGTH,
+							MAX_FORUM_POST_LENGTH);
+				} else {
+					g = blogs.get(r.nextInt(blogs.size()));
+					body = getText(r, vocabulary, MIN_BLOG_POST_LENGTH,
+							MAX_BLOG_POST_LENGTH);
+					if (!blogPosts.isEmpty()
+							&& r.nextDouble() < WRAPPED_POST_FRACTION) {
+						String wrapped =
+								blogPosts.get(r.nextInt(blogPosts.size()));
+						body = body + "\n\n" + wrapped;
+					}
+					blogPosts.add(body);
+				}
+				Message m = createMessage(r, g, timestamp++, body);
+				db.addMessage(txn, m, DELIVERED, true, null);
+				postIds.add(m.getId());
+			}
+			db.commitTransaction(txn);
+		}
+
+		private List<GroupId> addGroups(Object txn, Random r, ClientId c)
+				throws DbException {
+			List<GroupId> ids = new ArrayList<>(GROUPS_PER_CLIENT);
+			for (int i = 0; i < GROUPS_PER_CLIENT; i++) {
+				Group g = new Group(new GroupId(getId(r)), c, 0,
+						getBytes(r, 1 + r.nextInt(100)));
+				db.addGroup(txn, g);
+				db.addGroupVisibility(txn, contactId, g.getId(), true);
+				ids.add(g.getId());
+			}
+			return ids;
+		}
+
+		/**
+		 * Returns a post whose header, like a real message's header, is
+		 * made of random bytes, followed by the given text.
+		 */
+		private Message createMessage(Random r, GroupId g, long timestamp,
+				String text) {
+			byte[] body = toUtf8(text);
+			byte[] raw = new byte[MESSAGE_HEADER_LENGTH + body.length];
+			byte[] header = getBytes(r, MESSAGE_HEADER_LENGTH);
+			System.arraycopy(header, 0, raw, 0, MESSAGE_HEADER_LENGTH);
+			System.arraycopy(body, 0, raw, MESSAGE_HEADER_LENGTH, body.length);
+			return new Message(new MessageId(getId(r)), g, timestamp, raw);
+		}
+
+		private static List<String> getVocabulary(Random r) {
+			List<String> vocabulary = new ArrayList<>(VOCABULARY_SIZE);
+			for (int i = 0; i < VOCABULARY_SIZE; i++) {
+				// Common words tend to be short
+				int length = 1 + r.nextInt(2 + i * 10 / VOCABULARY_SIZE);
+				StringBuilder word = new StringBuilder(length);
+				for (int j = 0; j < length; j++)
+					word.append((char) ('a' + r.nextInt(26)));
+				vocabulary.add(word.toString());
+			}
+			return vocabulary;
+		}
+
+		/**
+		 * Returns sentences of words from the given vocabulary, chosen so
+		 * that the frequency of each word falls off steeply with its rank.
+		 */
+		private static String getText(Random r, List<String> vocabulary,
+				int minLength, int maxLength) {
+			int length = minLength + r.nextInt(maxLength - minLength);
+			StringBuilder s = new StringBuilder(length);
+			int wordsInSentence = 0;
+			while (s.length() < length) {
+				double d = r.nextDouble();
+				String word = vocabulary.get((int) (d * d * d * d
+						* vocabulary.size()));
+				if (wordsInSentence == 0) {
+					s.append(Character.toUpperCase(word.charAt(0)));
+					s.append(word, 1, word.length());
+				} else {
+					s.append(' ').append(word);
+				}
+				if (++wordsInSentence > 5 + r.nextInt(15)) {
+					s.append(". ");
+					wordsInSentence = 0;
+				}
+			}
+			return s.toString();
+		}
+
+		private static long getSize(File f) {
+			if (f.isFile()) return f.length();
+			long size = 0;
+			File[] children = f.listFiles();
+			if (children != null) for (File child : children)
+				size += getSize(child);
+			return size;
+		}
+
+		private static byte[] getId(Random r) {
+			return getBytes(r, MessageId.LENGTH);
+		}
+
+		private static byte[] getBytes(Random r, int length) {
+			byte[] b = new byte[length];
+			r.nextBytes(b);
+			return b;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package org.briarproject.bramble;
 import org.briarproject.bramble.contact.ContactModule;
 import org.briarproject.bramble.crypto.CryptoExecutorModule;
 import org.briarproject.bramble.db.DatabaseExecutorModule;
+import org.briarproject.bramble.db.DatabaseModule;
 import org.briarproject.bramble.identity.IdentityModule;
 import org.briarproject.bramble.lifecycle.LifecycleModule;
 import org.briarproject.bramble.plugin.PluginModule;
@@ -21,6 +22,8 @@ public interface BrambleCoreEagerSingletons {
 
 	void inject(DatabaseExecutorModule.EagerSingletons init);
 
+	void inject(DatabaseModule.EagerSingletons init);
+
 	void inject(IdentityModule.EagerSingletons init);
 
 	void inject(LifecycleModule.EagerSingletons init);
@@ -55,6 +55,7 @@ public class BrambleCoreModule {
 		c.inject(new ContactModule.EagerSingletons());
 		c.inject(new CryptoExecutorModule.EagerSingletons());
 		c.inject(new DatabaseExecutorModule.EagerSingletons());
+		c.inject(new DatabaseModule.EagerSingletons());
 		c.inject(new IdentityModule.EagerSingletons());
 		c.inject(new LifecycleModule.EagerSingletons());
 		c.inject(new PluginModule.EagerSingletons());
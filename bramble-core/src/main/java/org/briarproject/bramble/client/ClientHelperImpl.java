@@ -1,6 +1,7 @@
 package org.briarproject.bramble.client;
 
 import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.client.BdfMetadataVisitor;
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.crypto.CryptoComponent;
 import org.briarproject.bramble.api.data.BdfDictionary;
@@ -13,13 +14,17 @@ import org.briarproject.bramble.api.data.MetadataEncoder;
 import org.briarproject.bramble.api.data.MetadataParser;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
 import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.AuthorFactory;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.properties.TransportProperties;
+import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageFactory;
@@ -29,7 +34,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -99,6 +106,23 @@ class ClientHelperImpl implements ClientHelper {
 		db.addLocalMessage(txn, m, metadataEncoder.encode(metadata), shared);
 	}
 
+	@Override
+	public void addLocalMessages(Transaction txn, Collection<Message> messages,
+			Map<MessageId, BdfDictionary> metadata, boolean shared)
+			throws DbException, FormatException {
+		Map<MessageId, Metadata> meta = new HashMap<>();
+		for (Entry<MessageId, BdfDictionary> e : metadata.entrySet())
+			meta.put(e.getKey(), metadataEncoder.encode(e.getValue()));
+		db.addLocalMessages(txn, messages, meta, shared);
+	}
+
+	@Override
+	public void addIndexedMetadataKey(Transaction txn, ClientId c,
+			int majorVersion, String key, IndexedMetadataType type)
+			throws DbException {
+		db.addIndexedMetadataKey(txn, c, majorVersion, key, type);
+	}
+
 	@Override
 	public Message createMessage(GroupId g, long timestamp, BdfList body)
 			throws FormatException {
@@ -248,6 +272,75 @@ class ClientHelperImpl implements ClientHelper {
 		return parsed;
 	}
 
+	@Override
+	public Map<MessageId, BdfDictionary> getMessageMetadataAsDictionary(
+			Transaction txn, GroupId g, BdfDictionary query,
+			MetadataRange range) throws DbException, FormatException {
+		Metadata metadata = metadataEncoder.encode(query);
+		Map<MessageId, Metadata> raw =
+				db.getMessageMetadata(txn, g, metadata, range);
+		// Preserve the order of the range
+		Map<MessageId, BdfDictionary> parsed = new LinkedHashMap<>(raw.size());
+		for (Entry<MessageId, Metadata> e : raw.entrySet())
+			parsed.put(e.getKey(), metadataParser.parse(e.getValue()));
+		return parsed;
+	}
+
+	@Override
+	public int countMessages(Transaction txn, GroupId g, BdfDictionary query,
+			MetadataRange range) throws DbException, FormatException {
+		return db.countMessages(txn, g, metadataEncoder.encode(query), range);
+	}
+
+	@Override
+	public void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfMetadataVisitor v) throws DbException, FormatException {
+		try {
+			db.visitMessageMetadata(txn, g, parse(v));
+		} catch (VisitorFormatException e) {
+			throw e.formatException;
+		}
+	}
+
+	@Override
+	public void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfDictionary query, BdfMetadataVisitor v) throws DbException,
+			FormatException {
+		Metadata metadata = metadataEncoder.encode(query);
+		try {
+			db.visitMessageMetadata(txn, g, metadata, parse(v));
+		} catch (VisitorFormatException e) {
+			throw e.formatException;
+		}
+	}
+
+	@Override
+	public void visitMessageMetadataAsDictionary(Transaction txn, GroupId g,
+			BdfDictionary query, MetadataRange range, BdfMetadataVisitor v)
+			throws DbException, FormatException {
+		Metadata metadata = metadataEncoder.encode(query);
+		try {
+			db.visitMessageMetadata(txn, g, metadata, range, parse(v));
+		} catch (VisitorFormatException e) {
+			throw e.formatException;
+		}
+	}
+
+	/**
+	 * Returns a visitor that parses each message's metadata and passes it to
+	 * the given visitor. A FormatException stops the visit and is rethrown
+	 * by the caller.
+	 */
+	private MetadataVisitor parse(BdfMetadataVisitor v) {
+		return (m, metadata) -> {
+			try {
+				v.visit(m, metadataParser.parse(metadata));
+			} catch (FormatException e) {
+				throw new VisitorFormatException(e);
+			}
+		};
+	}
+
 	@Override
 	public void mergeGroupMetadata(GroupId g, BdfDictionary metadata)
 			throws DbException, FormatException {
@@ -430,4 +523,16 @@ class ClientHelperImpl implements ClientHelper {
 		return tpMap;
 	}
 
+	/**
+	 * Carries a FormatException out of a {@link MetadataVisitor}, which can
+	 * only throw DbExceptions.
+	 */
+	private static class VisitorFormatException extends DbException {
+
+		private final FormatException formatException;
+
+		private VisitorFormatException(FormatException formatException) {
+			this.formatException = formatException;
+		}
+	}
 }
@@ -363,6 +363,53 @@ class CryptoComponentImpl implements CryptoComponent {
 		}
 	}
 
+	@Override
+	public byte[] encryptWithKey(SecretKey key, byte[] input) {
+		AuthenticatedCipher cipher = new XSalsa20Poly1305AuthenticatedCipher();
+		int macBytes = cipher.getMacBytes();
+		// Generate a random IV
+		byte[] iv = new byte[STORAGE_IV_BYTES];
+		secureRandom.nextBytes(iv);
+		// The output contains the IV, ciphertext and MAC
+		byte[] output = new byte[iv.length + input.length + macBytes];
+		System.arraycopy(iv, 0, output, 0, iv.length);
+		// Initialise the cipher and encrypt the plaintext
+		try {
+			cipher.init(true, key, iv);
+			cipher.process(input, 0, input.length, output, iv.length);
+			return output;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	@Nullable
+	public byte[] decryptWithKey(SecretKey key, byte[] input) {
+		AuthenticatedCipher cipher = new XSalsa20Poly1305AuthenticatedCipher();
+		int macBytes = cipher.getMacBytes();
+		// The input contains the IV, ciphertext and MAC
+		if (input.length < STORAGE_IV_BYTES + macBytes)
+			return null; // Invalid input
+		byte[] iv = new byte[STORAGE_IV_BYTES];
+		System.arraycopy(input, 0, iv, 0, iv.length);
+		// Initialise the cipher
+		try {
+			cipher.init(false, key, iv);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+		// Try to decrypt the ciphertext (may be invalid)
+		try {
+			int inputLen = input.length - iv.length;
+			byte[] output = new byte[inputLen - macBytes];
+			cipher.process(input, iv.length, inputLen, output, 0);
+			return output;
+		} catch (GeneralSecurityException e) {
+			return null; // Invalid ciphertext
+		}
+	}
+
 	@Override
 	public byte[] encryptToKey(PublicKey publicKey, byte[] plaintext) {
 		try {
@@ -0,0 +1,50 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.util.Collection;
+
+/**
+ * A store for raw messages that are kept outside the relational database.
+ * Each raw message is stored under its message ID, so a message ID always
+ * refers to the same content.
+ * <p/>
+ * The blob store is not transactional: the database is responsible for
+ * removing blobs only after the transaction that removed the corresponding
+ * messages has committed, and for removing any blobs that are no longer
+ * referenced when it opens.
+ */
+@NotNullByDefault
+interface BlobStore {
+
+	/**
+	 * Opens the blob store. The key used to encrypt the blobs is derived from
+	 * the given database key.
+	 */
+	void open(SecretKey key) throws DbException;
+
+	/**
+	 * Stores the given raw message, replacing any blob with the same ID.
+	 */
+	void addBlob(MessageId m, byte[] raw) throws DbException;
+
+	/**
+	 * Returns the raw message with the given ID.
+	 *
+	 * @throws DbException if the blob does not exist or cannot be decrypted
+	 */
+	byte[] getBlob(MessageId m) throws DbException;
+
+	/**
+	 * Returns the IDs of all blobs in the store.
+	 */
+	Collection<MessageId> getBlobIds() throws DbException;
+
+	/**
+	 * Removes the blob with the given ID, if it exists.
+	 */
+	void removeBlob(MessageId m) throws DbException;
+}
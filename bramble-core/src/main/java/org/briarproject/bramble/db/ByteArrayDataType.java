@@ -0,0 +1,65 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.DataType;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An MVStore data type for byte arrays that sorts them in unsigned
+ * lexicographic order, so a key sorts immediately before any keys that it
+ * is a prefix of.
+ */
+@Immutable
+@NotNullByDefault
+class ByteArrayDataType implements DataType {
+
+	private static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int aUnsigned = a[i] & 0xFF, bUnsigned = b[i] & 0xFF;
+			if (aUnsigned < bUnsigned) return -1;
+			if (aUnsigned > bUnsigned) return 1;
+		}
+		if (a.length < b.length) return -1;
+		if (a.length > b.length) return 1;
+		return 0;
+	}
+
+	@Override
+	public int compare(Object a, Object b) {
+		return compare((byte[]) a, (byte[]) b);
+	}
+
+	@Override
+	public int getMemory(Object o) {
+		return 24 + ((byte[]) o).length;
+	}
+
+	@Override
+	public void write(WriteBuffer buff, Object o) {
+		byte[] b = (byte[]) o;
+		buff.putVarInt(b.length).put(b);
+	}
+
+	@Override
+	public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+		for (int i = 0; i < len; i++) write(buff, obj[i]);
+	}
+
+	@Override
+	public Object read(ByteBuffer buff) {
+		byte[] b = new byte[DataUtils.readVarInt(buff)];
+		buff.get(b);
+		return b;
+	}
+
+	@Override
+	public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+		for (int i = 0; i < len; i++) obj[i] = read(buff);
+	}
+}
@@ -0,0 +1,315 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.UniqueId;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.db.ExponentialBackoff.calculateExpiry;
+
+/**
+ * An in-memory index of the messages that are waiting to be acked or sent
+ * to a contact, which answers the same queries as the statuses table
+ * without scanning it.
+ * <p/>
+ * The cost of each query depends on the number of messages it returns,
+ * rather than the number of messages waiting to be sent or the total
+ * number of messages. Messages that are due to be sent are kept in
+ * timestamp order, and the other messages are kept in expiry order so they
+ * can be moved into the due messages as their expiry times pass.
+ * <p/>
+ * Each change is recorded in an {@link UndoLog}, so the changes made by a
+ * transaction can be undone if it doesn't commit. Several transactions may
+ * call {@link #getMessagesToAck(int)} and {@link #getNextSendTime()} at
+ * once, but the other methods may only be called by the write transaction.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class ContactSyncState {
+
+	private static final Comparator<Unsent> TIMESTAMP_ORDER = (a, b) -> {
+		if (a.timestamp != b.timestamp)
+			return a.timestamp < b.timestamp ? -1 : 1;
+		return compareSequence(a, b);
+	};
+
+	private static final Comparator<Unsent> EXPIRY_ORDER = (a, b) -> {
+		if (a.expiry != b.expiry) return a.expiry < b.expiry ? -1 : 1;
+		return compareSequence(a, b);
+	};
+
+	// Used as a placeholder when searching for expiry times
+	private static final MessageId NO_MESSAGE =
+			new MessageId(new byte[UniqueId.LENGTH]);
+
+	private final UndoLog undoLog;
+
+	// Messages waiting to be acked, in the order the acks were raised
+	private final Set<MessageId> acks = new LinkedHashSet<>();
+	// Sendable messages that the contact hasn't seen, by ID
+	private final Map<MessageId, Unsent> unsent = new HashMap<>();
+	// The same messages, in expiry order
+	private final TreeSet<Unsent> byExpiry = new TreeSet<>(EXPIRY_ORDER);
+	// The messages with expiry times before dueBefore, in the order they
+	// should be sent
+	private final TreeSet<Unsent> due = new TreeSet<>(TIMESTAMP_ORDER);
+	// The requested messages with expiry times before dueBefore
+	private final TreeSet<Unsent> dueRequested =
+			new TreeSet<>(TIMESTAMP_ORDER);
+
+	private long dueBefore = Long.MIN_VALUE;
+	// Breaks ties between messages with the same timestamp or expiry time
+	private long nextSequence = 0;
+
+	/**
+	 * Creates an index from the given states, which should be in timestamp
+	 * order. Changes to the index are recorded in the given log.
+	 */
+	ContactSyncState(Collection<SyncState> states, UndoLog undoLog) {
+		this.undoLog = undoLog;
+		for (SyncState s : states) index(s);
+	}
+
+	/**
+	 * Replaces the indexed state of a message with the given state.
+	 */
+	void put(SyncState s) {
+		saveForUndo(s.getMessageId());
+		index(s);
+	}
+
+	/**
+	 * Removes a message from the index.
+	 */
+	void remove(MessageId m) {
+		Unsent u = unsent.get(m);
+		if (u == null && !acks.contains(m)) return;
+		saveForUndo(m);
+		acks.remove(m);
+		if (u != null) removeUnsent(u);
+	}
+
+	List<MessageId> getMessagesToAck(int maxMessages) {
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<MessageId> it = acks.iterator();
+				it.hasNext() && ids.size() < maxMessages; ) {
+			ids.add(it.next());
+		}
+		return ids;
+	}
+
+	List<MessageId> getMessagesToOffer(int maxMessages, long now) {
+		updateDueMessages(now);
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<Unsent> it = due.iterator();
+				it.hasNext() && ids.size() < maxMessages; ) {
+			Unsent u = it.next();
+			if (!u.requested) ids.add(u.messageId);
+		}
+		return ids;
+	}
+
+	List<MessageId> getMessagesToSend(int maxLength, long now,
+			boolean requestedOnly) {
+		updateDueMessages(now);
+		List<MessageId> ids = new ArrayList<>();
+		int total = 0;
+		for (Unsent u : requestedOnly ? dueRequested : due) {
+			if (total + u.length > maxLength) break;
+			ids.add(u.messageId);
+			total += u.length;
+		}
+		return ids;
+	}
+
+	long getNextSendTime() {
+		return byExpiry.isEmpty() ? Long.MAX_VALUE : byExpiry.first().expiry;
+	}
+
+	void raiseAckFlag(MessageId m) {
+		if (acks.contains(m)) return;
+		saveForUndo(m);
+		acks.add(m);
+	}
+
+	void lowerAckFlag(Collection<MessageId> acked) {
+		for (MessageId m : acked) {
+			if (!acks.contains(m)) continue;
+			saveForUndo(m);
+			acks.remove(m);
+		}
+	}
+
+	void raiseSeenFlag(MessageId m) {
+		Unsent u = unsent.get(m);
+		if (u == null) return;
+		saveForUndo(m);
+		removeUnsent(u);
+	}
+
+	void raiseRequestedFlag(MessageId m) {
+		setRequested(m, true);
+	}
+
+	void lowerRequestedFlag(Collection<MessageId> ids) {
+		for (MessageId m : ids) setRequested(m, false);
+	}
+
+	void resetExpiryTime(MessageId m) {
+		Unsent u = unsent.get(m);
+		if (u == null) return;
+		saveForUndo(m);
+		removeUnsent(u);
+		u.expiry = 0;
+		u.txCount = 0;
+		addUnsent(u);
+	}
+
+	void updateExpiryTimes(Collection<MessageId> ids, long now,
+			int maxLatency) {
+		for (MessageId m : ids) {
+			Unsent u = unsent.get(m);
+			if (u == null) continue;
+			saveForUndo(m);
+			removeUnsent(u);
+			u.expiry = calculateExpiry(now, maxLatency, u.txCount);
+			u.txCount++;
+			addUnsent(u);
+		}
+	}
+
+	private void index(SyncState s) {
+		MessageId m = s.getMessageId();
+		Unsent old = unsent.get(m);
+		if (old != null) removeUnsent(old);
+		if (s.isAck()) acks.add(m);
+		else acks.remove(m);
+		if (s.isSendable()) {
+			long sequence = old == null ? nextSequence++ : old.sequence;
+			addUnsent(new Unsent(m, s.getTimestamp(), sequence,
+					s.getLength(), s.isRequested(), s.getExpiry(),
+					s.getTxCount()));
+		}
+	}
+
+	private void setRequested(MessageId m, boolean requested) {
+		Unsent u = unsent.get(m);
+		if (u == null || u.requested == requested) return;
+		saveForUndo(m);
+		removeUnsent(u);
+		u.requested = requested;
+		addUnsent(u);
+	}
+
+	private void addUnsent(Unsent u) {
+		unsent.put(u.messageId, u);
+		byExpiry.add(u);
+		if (u.expiry < dueBefore) addDue(u);
+	}
+
+	// The message's expiry time must not have changed since it was added
+	private void removeUnsent(Unsent u) {
+		unsent.remove(u.messageId);
+		byExpiry.remove(u);
+		if (u.expiry < dueBefore) {
+			due.remove(u);
+			dueRequested.remove(u);
+		}
+	}
+
+	private void addDue(Unsent u) {
+		due.add(u);
+		if (u.requested) dueRequested.add(u);
+	}
+
+	/**
+	 * Moves the messages whose expiry times have passed into the due
+	 * messages. If the clock has gone backwards, moves any messages whose
+	 * expiry times haven't passed out of the due messages.
+	 */
+	private void updateDueMessages(long now) {
+		if (now > dueBefore) {
+			for (Unsent u : getExpiringBetween(dueBefore, now)) addDue(u);
+		} else if (now < dueBefore) {
+			for (Unsent u : getExpiringBetween(now, dueBefore)) {
+				due.remove(u);
+				dueRequested.remove(u);
+			}
+		}
+		dueBefore = now;
+	}
+
+	/**
+	 * Returns the messages with expiry times from the first given time,
+	 * inclusive, to the second given time, exclusive.
+	 */
+	private Set<Unsent> getExpiringBetween(long from, long to) {
+		// Sequence numbers are never negative, so the placeholders sort
+		// before any messages with the same expiry times
+		return byExpiry.subSet(new Unsent(NO_MESSAGE, 0, -1, 0, false, from,
+				0), new Unsent(NO_MESSAGE, 0, -1, 0, false, to, 0));
+	}
+
+	private void saveForUndo(MessageId m) {
+		Unsent u = unsent.get(m);
+		Unsent saved = u == null ? null : new Unsent(u);
+		boolean ack = acks.contains(m);
+		undoLog.add(() -> restore(m, saved, ack));
+	}
+
+	private void restore(MessageId m, @Nullable Unsent saved, boolean ack) {
+		Unsent u = unsent.get(m);
+		if (u != null) removeUnsent(u);
+		if (saved != null) addUnsent(saved);
+		if (ack) acks.add(m);
+		else acks.remove(m);
+	}
+
+	private static int compareSequence(Unsent a, Unsent b) {
+		if (a.sequence == b.sequence) return 0;
+		return a.sequence < b.sequence ? -1 : 1;
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private static class Unsent {
+
+		private final MessageId messageId;
+		private final long timestamp, sequence;
+		private final int length;
+
+		private boolean requested;
+		private long expiry;
+		private int txCount;
+
+		private Unsent(MessageId messageId, long timestamp, long sequence,
+				int length, boolean requested, long expiry, int txCount) {
+			this.messageId = messageId;
+			this.timestamp = timestamp;
+			this.sequence = sequence;
+			this.length = length;
+			this.requested = requested;
+			this.expiry = expiry;
+			this.txCount = txCount;
+		}
+
+		private Unsent(Unsent other) {
+			this(other.messageId, other.timestamp, other.sequence,
+					other.length, other.requested, other.expiry,
+					other.txCount);
+		}
+	}
+}
@@ -6,7 +6,11 @@ import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.DataTooNewException;
 import org.briarproject.bramble.api.db.DataTooOldException;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
 import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.MigrationListener;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.AuthorId;
@@ -37,6 +41,11 @@ import javax.annotation.Nullable;
  * obtained by calling {@link #startTransaction()}. Every transaction must be
  * terminated by calling either {@link #abortTransaction(Object) abortTransaction(T)} or
  * {@link #commitTransaction(Object) commitTransaction(T)}, even if an exception is thrown.
+ * <p/>
+ * Write transactions are serialised by the DatabaseComponent, but read-only
+ * transactions may run concurrently with a write transaction. Implementations
+ * must not let a read-only transaction see uncommitted changes or block while
+ * a write transaction is open.
  */
 @NotNullByDefault
 interface Database<T> {
@@ -58,6 +67,13 @@ interface Database<T> {
 	 */
 	void close() throws DbException;
 
+	/**
+	 * Logs the execution statistics and query plans of the SQL statements
+	 * executed since the database was opened, if statement profiling is
+	 * enabled. The statistics are also logged when the database is closed.
+	 */
+	void logStatementProfile();
+
 	/**
 	 * Starts a new transaction and returns an object representing it.
 	 */
@@ -75,6 +91,25 @@ interface Database<T> {
 	 */
 	void commitTransaction(T txn) throws DbException;
 
+	/**
+	 * Sets a savepoint in the given transaction. Only one savepoint may be
+	 * set at a time, and it must be released or rolled back before the
+	 * transaction is committed.
+	 */
+	void setSavepoint(T txn) throws DbException;
+
+	/**
+	 * Undoes any changes made in the given transaction since the savepoint
+	 * was set, and releases the savepoint.
+	 */
+	void rollbackToSavepoint(T txn) throws DbException;
+
+	/**
+	 * Releases the savepoint set in the given transaction, keeping any changes
+	 * made since the savepoint was set.
+	 */
+	void releaseSavepoint(T txn) throws DbException;
+
 	/**
 	 * Stores a contact associated with the given local and remote pseudonyms,
 	 * and returns an ID for the contact.
@@ -87,6 +122,15 @@ interface Database<T> {
 	 */
 	void addGroup(T txn, Group g) throws DbException;
 
+	/**
+	 * Declares that the given key of the given client's message metadata
+	 * holds values of the given type and should be indexed, and indexes any
+	 * existing metadata for the key if it hasn't already been declared with
+	 * the same type.
+	 */
+	void addIndexedMetadataKey(T txn, ClientId c, int majorVersion,
+			String key, IndexedMetadataType type) throws DbException;
+
 	/**
 	 * Sets the given group's visibility to the given contact to either
 	 * {@link Visibility VISIBLE} or {@link Visibility SHARED}.
@@ -108,6 +152,16 @@ interface Database<T> {
 	void addMessage(T txn, Message m, State state, boolean shared,
 			@Nullable ContactId sender) throws DbException;
 
+	/**
+	 * Stores the given messages, which must not already be stored, using
+	 * batched statements.
+	 *
+	 * @param sender the contact from whom the messages were received, or null
+	 * if the messages were created locally.
+	 */
+	void addMessages(T txn, Collection<Message> messages, State state,
+			boolean shared, @Nullable ContactId sender) throws DbException;
+
 	/**
 	 * Adds a dependency between two messages, where the dependent message is
 	 * in the given state.
@@ -194,6 +248,17 @@ interface Database<T> {
 	 */
 	int countOfferedMessages(T txn, ContactId c) throws DbException;
 
+	/**
+	 * Returns the number of delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range. The range's limit is
+	 * ignored.
+	 * <p/>
+	 * Read-only.
+	 */
+	int countMessages(T txn, GroupId g, Metadata query, MetadataRange range)
+			throws DbException;
+
 	/**
 	 * Deletes the message with the given ID. Unlike
 	 * {@link #removeMessage(Object, MessageId)}, the message ID and any other
@@ -240,8 +305,11 @@ interface Database<T> {
 	 * Returns the amount of free storage space available to the database, in
 	 * bytes. This is based on the minimum of the space available on the device
 	 * where the database is stored and the database's configured size.
+	 * <p/>
+	 * The disk usage is measured when the database is opened and then
+	 * updated incrementally, so this method is cheap to call.
 	 */
-	long getFreeSpace() throws DbException;
+	long getFreeSpace();
 
 	/**
 	 * Returns the group with the given ID.
@@ -250,6 +318,41 @@ interface Database<T> {
 	 */
 	Group getGroup(T txn, GroupId g) throws DbException;
 
+	/**
+	 * Returns the message counts for the given group, or zero counts if no
+	 * messages have been tracked in the group.
+	 * <p/>
+	 * Read-only.
+	 */
+	GroupCounts getGroupCounts(T txn, GroupId g) throws DbException;
+
+	/**
+	 * Returns the message counts for all groups belonging to the given client
+	 * in which messages have been tracked.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, GroupCounts> getGroupCounts(T txn, ClientId c,
+			int majorVersion) throws DbException;
+
+	/**
+	 * Returns the total length in bytes of the messages stored in all groups
+	 * belonging to the given client, not including deleted messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	long getStorageUsage(T txn, ClientId c, int majorVersion)
+			throws DbException;
+
+	/**
+	 * Returns the total length in bytes of the messages stored in each group
+	 * belonging to the given client, not including deleted messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, Long> getGroupStorageUsage(T txn, ClientId c,
+			int majorVersion) throws DbException;
+
 	/**
 	 * Returns the metadata for the given group.
 	 * <p/>
@@ -334,6 +437,16 @@ interface Database<T> {
 	Collection<MessageId> getMessageIds(T txn, GroupId g, Metadata query)
 			throws DbException;
 
+	/**
+	 * Returns the timestamps of all delivered messages in the given group
+	 * that have not been deleted. The returned map iterates over the
+	 * messages in ascending order of timestamp.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Long> getMessageTimestamps(T txn, GroupId g)
+			throws DbException;
+
 	/**
 	 * Returns the metadata for all delivered messages in the given group.
 	 * <p/>
@@ -352,6 +465,18 @@ interface Database<T> {
 	Map<MessageId, Metadata> getMessageMetadata(T txn, GroupId g,
 			Metadata query) throws DbException;
 
+	/**
+	 * Returns the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range. The returned map
+	 * iterates over the messages in the range's order, and contains at most
+	 * the range's limit of messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Metadata> getMessageMetadata(T txn, GroupId g,
+			Metadata query, MetadataRange range) throws DbException;
+
 	/**
 	 * Returns the metadata for the given delivered or pending message.
 	 * This is only meant to be used by the ValidationManager.
@@ -473,6 +598,31 @@ interface Database<T> {
 	@Nullable
 	byte[] getRawMessage(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Returns the messages with the given IDs, in serialised form, omitting
+	 * any messages that have been deleted.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, byte[]> getRawMessages(T txn, Collection<MessageId> ids)
+			throws DbException;
+
+	/**
+	 * Returns the IDs of any contacts that have been marked as removed but
+	 * not yet purged.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<ContactId> getRemovedContacts(T txn) throws DbException;
+
+	/**
+	 * Returns the IDs of any groups that have been marked as removed but not
+	 * yet purged.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<GroupId> getRemovedGroups(T txn) throws DbException;
+
 	/**
 	 * Returns the IDs of some messages that are eligible to be sent to the
 	 * given contact and have been requested by the contact, up to the given
@@ -490,6 +640,24 @@ interface Database<T> {
 	 */
 	Settings getSettings(T txn, String namespace) throws DbException;
 
+	/**
+	 * Returns the sync state of each message that is waiting to be acked or
+	 * sent to the given contact, in timestamp order.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<SyncState> getSyncStates(T txn, ContactId c)
+			throws DbException;
+
+	/**
+	 * Returns the sync state of the given message with respect to each
+	 * contact that can see it.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<ContactId, SyncState> getSyncStates(T txn, MessageId m)
+			throws DbException;
+
 	/**
 	 * Returns all transport keys for the given transport.
 	 * <p/>
@@ -518,6 +686,21 @@ interface Database<T> {
 	void lowerRequestedFlag(T txn, ContactId c, Collection<MessageId> requested)
 			throws DbException;
 
+	/**
+	 * Marks a contact as removed. The contact is immediately hidden and its
+	 * keys, group visibilities and offers are removed, while its message
+	 * status rows are left for {@link #purgeRemovedContact(Object,
+	 * ContactId, int)}.
+	 */
+	void markContactRemoved(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Marks a group as removed. The group is immediately hidden and its
+	 * visibilities, metadata and message counts are removed, while its
+	 * messages are left for {@link #purgeRemovedGroup(Object, GroupId, int)}.
+	 */
+	void markGroupRemoved(T txn, GroupId g) throws DbException;
+
 	/**
 	 * Merges the given metadata with the existing metadata for the given
 	 * group.
@@ -538,6 +721,26 @@ interface Database<T> {
 	 */
 	void mergeSettings(T txn, Settings s, String namespace) throws DbException;
 
+	/**
+	 * Removes up to the given number of message status rows belonging to a
+	 * contact that has been marked as removed, and removes the contact itself
+	 * once no rows remain.
+	 *
+	 * @return True if the contact has been removed completely.
+	 */
+	boolean purgeRemovedContact(T txn, ContactId c, int maxRows)
+			throws DbException;
+
+	/**
+	 * Removes up to the given number of messages (and all associated state)
+	 * belonging to a group that has been marked as removed, and removes the
+	 * group itself once no messages remain.
+	 *
+	 * @return True if the group has been removed completely.
+	 */
+	boolean purgeRemovedGroup(T txn, GroupId g, int maxMessages)
+			throws DbException;
+
 	/**
 	 * Marks a message as needing to be acknowledged to the given contact.
 	 */
@@ -653,8 +856,56 @@ interface Database<T> {
 	void updateExpiryTime(T txn, ContactId c, MessageId m, int maxLatency)
 			throws DbException;
 
+	/**
+	 * Updates the transmission counts and expiry times of the given messages
+	 * with respect to the given contact, using the latency of the transport
+	 * over which they were sent.
+	 */
+	void updateExpiryTimes(T txn, ContactId c, Collection<MessageId> ids,
+			int maxLatency) throws DbException;
+
+	/**
+	 * Adds the given deltas to the message counts for the given group and
+	 * updates the latest message time if the given time is later.
+	 *
+	 * @throws DbException if either count would become negative.
+	 */
+	void updateGroupCounts(T txn, GroupId g, int msgCountDelta,
+			int unreadCountDelta, long latestMsgTime) throws DbException;
+
 	/**
 	 * Updates the given transport keys following key rotation.
 	 */
 	void updateTransportKeys(T txn, KeySet ks) throws DbException;
+
+	/**
+	 * Passes the metadata for all delivered messages in the given group to
+	 * the given visitor, one message at a time.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(T txn, GroupId g, MetadataVisitor v)
+			throws DbException;
+
+	/**
+	 * Passes the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query to the given
+	 * visitor, one message at a time. If the query is empty, the metadata for
+	 * all delivered messages is visited.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(T txn, GroupId g, Metadata query,
+			MetadataVisitor v) throws DbException;
+
+	/**
+	 * Passes the metadata for any delivered messages in the given group with
+	 * metadata that matches all entries in the given query and a value for
+	 * the range's key that lies within the given range to the given visitor,
+	 * one message at a time, in the range's order.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageMetadata(T txn, GroupId g, Metadata query,
+			MetadataRange range, MetadataVisitor v) throws DbException;
 }
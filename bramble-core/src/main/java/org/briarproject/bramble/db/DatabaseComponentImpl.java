@@ -10,7 +10,12 @@ import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.ContactExistsException;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCommitTask;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
 import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.MigrationListener;
 import org.briarproject.bramble.api.db.NoSuchContactException;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
@@ -52,6 +57,7 @@ import org.briarproject.bramble.api.sync.event.MessageToAckEvent;
 import org.briarproject.bramble.api.sync.event.MessageToRequestEvent;
 import org.briarproject.bramble.api.sync.event.MessagesAckedEvent;
 import org.briarproject.bramble.api.sync.event.MessagesSentEvent;
+import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.transport.KeySet;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.TransportKeys;
@@ -59,9 +65,16 @@ import org.briarproject.bramble.api.transport.TransportKeys;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
@@ -69,15 +82,19 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.api.db.Metadata.REMOVE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
 import static org.briarproject.bramble.api.sync.ValidationManager.State.UNKNOWN;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_CACHED_GROUP_METADATA;
 import static org.briarproject.bramble.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
-import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_PURGE_CHUNK_SIZE;
+import static org.briarproject.bramble.db.DatabaseConstants.MIN_FREE_SPACE;
+import static org.briarproject.bramble.db.DatabaseConstants.SLOW_WRITE_LOCK_HOLD_TIME;
 import static org.briarproject.bramble.util.LogUtils.logException;
-import static org.briarproject.bramble.util.LogUtils.now;
 
 @ThreadSafe
 @NotNullByDefault
@@ -90,17 +107,52 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	private final Class<T> txnClass;
 	private final EventBus eventBus;
 	private final ShutdownManager shutdown;
+	private final Clock clock;
+	private final boolean readCacheEnabled;
 	private final AtomicBoolean closed = new AtomicBoolean(false);
 	private final ReentrantReadWriteLock lock =
 			new ReentrantReadWriteLock(true);
+	// The transport key lock is held by transport key transactions, and by
+	// other transactions when they first access transport keys. To avoid
+	// deadlocks it's always acquired after the main lock
+	private final ReentrantReadWriteLock keyLock =
+			new ReentrantReadWriteLock(true);
+	private final GroupMetadataCache groupMetadataCache =
+			new GroupMetadataCache(MAX_CACHED_GROUP_METADATA);
+	private final LockMonitor lockMonitor =
+			new LockMonitor("Main lock", SLOW_WRITE_LOCK_HOLD_TIME);
+	private final LockMonitor keyLockMonitor =
+			new LockMonitor("Transport key lock", SLOW_WRITE_LOCK_HOLD_TIME);
+	private final SyncStateIndex syncStateIndex = new SyncStateIndex();
+	private final AtomicLong readCacheHits = new AtomicLong();
+	private final AtomicLong readCacheMisses = new AtomicLong();
+
+	// The read caches of open transactions, if read caching is enabled. Each
+	// cache is only used by the thread running its transaction
+	private final Map<Transaction, TransactionReadCache> readCaches =
+			new ConcurrentHashMap<>();
+
+	// Changes to group metadata made by the current write transaction, which
+	// are published to the cache if the transaction commits. A null value
+	// means the cached metadata for the group must be dropped.
+	// Locking: lock.writeLock
+	private final Map<GroupId, Metadata> pendingGroupMetadata =
+			new HashMap<>();
+
+	// Changes to the indexed sync states made by the current write
+	// transaction, which are undone if the transaction doesn't commit.
+	// Locking: lock.writeLock
+	private final UndoLog syncStateUndoLog = new UndoLog();
 
 	@Inject
 	DatabaseComponentImpl(Database<T> db, Class<T> txnClass, EventBus eventBus,
-			ShutdownManager shutdown) {
+			ShutdownManager shutdown, Clock clock, boolean readCacheEnabled) {
 		this.db = db;
 		this.txnClass = txnClass;
 		this.eventBus = eventBus;
 		this.shutdown = shutdown;
+		this.clock = clock;
+		this.readCacheEnabled = readCacheEnabled;
 	}
 
 	@Override
@@ -120,27 +172,72 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	@Override
 	public void close() throws DbException {
 		if (closed.getAndSet(true)) return;
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Group metadata cache: "
+					+ groupMetadataCache.getHitCount() + " hits, "
+					+ groupMetadataCache.getMissCount() + " misses");
+		}
+		if (readCacheEnabled && LOG.isLoggable(INFO)) {
+			LOG.info("Transaction read caches: "
+					+ readCacheHits.get() + " hits, "
+					+ readCacheMisses.get() + " misses");
+		}
+		lockMonitor.logReport();
+		keyLockMonitor.logReport();
 		db.close();
 	}
 
+	@Override
+	public void logStatementProfile() {
+		db.logStatementProfile();
+	}
+
+	@Override
+	public long getGroupMetadataCacheHitCount() {
+		return groupMetadataCache.getHitCount();
+	}
+
+	@Override
+	public long getGroupMetadataCacheMissCount() {
+		return groupMetadataCache.getMissCount();
+	}
+
 	@Override
 	public Transaction startTransaction(boolean readOnly) throws DbException {
-		// Don't allow reentrant locking
-		if (lock.getReadHoldCount() > 0) throw new IllegalStateException();
-		if (lock.getWriteHoldCount() > 0) throw new IllegalStateException();
-		long start = now();
-		if (readOnly) {
-			lock.readLock().lock();
-			logDuration(LOG, "Waiting for read lock", start);
-		} else {
-			lock.writeLock().lock();
-			logDuration(LOG, "Waiting for write lock", start);
-		}
+		checkNoLocksHeld();
+		lockMonitor.waiting(!readOnly);
+		if (readOnly) lock.readLock().lock();
+		else lock.writeLock().lock();
+		lockMonitor.acquired();
 		try {
 			return new Transaction(db.startTransaction(), readOnly);
 		} catch (DbException | RuntimeException e) {
 			if (readOnly) lock.readLock().unlock();
 			else lock.writeLock().unlock();
+			lockMonitor.released();
+			throw e;
+		}
+	}
+
+	@Override
+	public Transaction startSnapshotTransaction() throws DbException {
+		return new Transaction(db.startTransaction(), true, true);
+	}
+
+	@Override
+	public Transaction startTransportKeyTransaction(boolean readOnly)
+			throws DbException {
+		checkNoLocksHeld();
+		keyLockMonitor.waiting(!readOnly);
+		if (readOnly) keyLock.readLock().lock();
+		else keyLock.writeLock().lock();
+		keyLockMonitor.acquired();
+		try {
+			return new Transaction(db.startTransaction(), readOnly);
+		} catch (DbException | RuntimeException e) {
+			if (readOnly) keyLock.readLock().unlock();
+			else keyLock.writeLock().unlock();
+			keyLockMonitor.released();
 			throw e;
 		}
 	}
@@ -150,27 +247,304 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = txnClass.cast(transaction.unbox());
 		if (transaction.isCommitted()) throw new IllegalStateException();
 		transaction.setCommitted();
-		db.commitTransaction(txn);
+		// Only writers holding the main lock change group metadata
+		if (transaction.isReadOnly() || !lock.isWriteLockedByCurrentThread()) {
+			db.commitTransaction(txn);
+		} else {
+			boolean committed = false;
+			try {
+				db.commitTransaction(txn);
+				committed = true;
+				publishPendingGroupMetadata();
+			} finally {
+				pendingGroupMetadata.clear();
+				if (committed) syncStateUndoLog.clear();
+				else syncStateUndoLog.rollback(0);
+			}
+		}
 	}
 
 	@Override
 	public void endTransaction(Transaction transaction) {
+		readCaches.remove(transaction);
+		// Snapshot transactions don't hold any locks, and transport key
+		// transactions don't hold the main lock
+		boolean main = !transaction.isSnapshot() && holdsMainLock();
 		try {
 			T txn = txnClass.cast(transaction.unbox());
-			if (!transaction.isCommitted()) db.abortTransaction(txn);
+			if (!transaction.isCommitted()) {
+				if (main && !transaction.isReadOnly()) {
+					pendingGroupMetadata.clear();
+					syncStateUndoLog.rollback(0);
+				}
+				db.abortTransaction(txn);
+			}
 		} finally {
-			if (transaction.isReadOnly()) lock.readLock().unlock();
-			else lock.writeLock().unlock();
+			if (!transaction.isSnapshot()) {
+				unlockTransportKeys(transaction.isReadOnly(), main);
+				if (main) {
+					if (transaction.isReadOnly()) lock.readLock().unlock();
+					else lock.writeLock().unlock();
+					lockMonitor.released();
+				}
+			}
 		}
 		if (transaction.isCommitted())
 			for (Event e : transaction.getEvents()) eventBus.broadcast(e);
 	}
 
+	@Override
+	public void runGroupCommit(Collection<GroupCommitTask> tasks) {
+		checkNoLocksHeld();
+		List<Transaction> succeeded = new ArrayList<>(tasks.size());
+		Map<GroupCommitTask, DbException> failed = new LinkedHashMap<>();
+		DbException groupFailure = null;
+		lockMonitor.waiting(true);
+		lock.writeLock().lock();
+		lockMonitor.acquired();
+		try {
+			T txn = db.startTransaction();
+			boolean committed = false;
+			try {
+				for (GroupCommitTask task : tasks) {
+					Transaction transaction = new Transaction(txn, false);
+					Map<GroupId, Metadata> savedGroupMetadata =
+							new HashMap<>(pendingGroupMetadata);
+					int savedSyncStates = syncStateUndoLog.size();
+					db.setSavepoint(txn);
+					try {
+						task.run(transaction);
+						db.releaseSavepoint(txn);
+						succeeded.add(transaction);
+					} catch (DbException | RuntimeException e) {
+						db.rollbackToSavepoint(txn);
+						pendingGroupMetadata.clear();
+						pendingGroupMetadata.putAll(savedGroupMetadata);
+						syncStateUndoLog.rollback(savedSyncStates);
+						// An unexpected exception only fails its own task
+						if (e instanceof DbException) {
+							failed.put(task, (DbException) e);
+						} else {
+							logException(LOG, WARNING, e);
+							failed.put(task, new DbException(e));
+						}
+					} finally {
+						readCaches.remove(transaction);
+					}
+				}
+				db.commitTransaction(txn);
+				committed = true;
+				publishPendingGroupMetadata();
+			} finally {
+				pendingGroupMetadata.clear();
+				if (committed) syncStateUndoLog.clear();
+				else syncStateUndoLog.rollback(0);
+				if (!committed) db.abortTransaction(txn);
+			}
+		} catch (DbException e) {
+			groupFailure = e;
+		} finally {
+			unlockTransportKeys(false, true);
+			lock.writeLock().unlock();
+			lockMonitor.released();
+		}
+		if (groupFailure == null) {
+			for (Transaction transaction : succeeded) {
+				transaction.setCommitted();
+				for (Event e : transaction.getEvents()) eventBus.broadcast(e);
+			}
+			for (Entry<GroupCommitTask, DbException> e : failed.entrySet())
+				e.getKey().onFailure(e.getValue());
+		} else {
+			for (GroupCommitTask task : tasks) task.onFailure(groupFailure);
+		}
+	}
+
+	@Override
+	public boolean hasFreeSpace(long length) {
+		return db.getFreeSpace() - length >= MIN_FREE_SPACE;
+	}
+
+	/**
+	 * Returns the read cache of the given transaction, creating it if
+	 * necessary, or null if read caching is disabled.
+	 */
+	@Nullable
+	private TransactionReadCache getReadCache(Transaction transaction) {
+		if (!readCacheEnabled) return null;
+		TransactionReadCache cache = readCaches.get(transaction);
+		if (cache == null) {
+			cache = new TransactionReadCache(readCacheHits, readCacheMisses);
+			readCaches.put(transaction, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the read cache of the given transaction, or null if the
+	 * transaction hasn't cached anything.
+	 */
+	@Nullable
+	private TransactionReadCache peekReadCache(Transaction transaction) {
+		return readCaches.get(transaction);
+	}
+
+	// Locking: lock.writeLock
+	private void publishPendingGroupMetadata() {
+		for (Entry<GroupId, Metadata> e : pendingGroupMetadata.entrySet()) {
+			if (e.getValue() == null) groupMetadataCache.remove(e.getKey());
+			else groupMetadataCache.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Returns the sync state of the given contact for reading, loading it
+	 * from the database if it's not indexed.
+	 */
+	private ContactSyncState getSyncState(Transaction transaction, T txn,
+			ContactId c) throws DbException {
+		// Snapshot transactions don't hold the lock, so a writer may be
+		// changing the indexed state
+		if (transaction.isSnapshot())
+			return new ContactSyncState(db.getSyncStates(txn, c),
+					new UndoLog());
+		ContactSyncState indexed = syncStateIndex.get(c);
+		if (indexed != null) return indexed;
+		ContactSyncState state = new ContactSyncState(db.getSyncStates(txn, c),
+				syncStateUndoLog);
+		if (transaction.isReadOnly()) {
+			// No other transaction can commit while we hold the lock, so
+			// this is the latest committed state
+			syncStateIndex.put(c, state);
+		} else {
+			// May include changes made by this transaction, so drop the
+			// state if the transaction doesn't commit
+			setIndexedSyncState(c, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the indexed sync state of the given contact for modifying, or
+	 * null if the state is not indexed and will be loaded from the database
+	 * when it's next read.
+	 */
+	// Locking: lock.writeLock
+	@Nullable
+	private ContactSyncState getIndexedSyncState(ContactId c) {
+		return syncStateIndex.get(c);
+	}
+
+	/**
+	 * Replaces or drops the indexed sync state of the given contact, and
+	 * records how to undo the change.
+	 */
+	// Locking: lock.writeLock
+	private void setIndexedSyncState(ContactId c,
+			@Nullable ContactSyncState state) {
+		ContactSyncState old = syncStateIndex.get(c);
+		if (old == null && state == null) return;
+		if (state == null) syncStateIndex.remove(c);
+		else syncStateIndex.put(c, state);
+		syncStateUndoLog.add(() -> {
+			if (old == null) syncStateIndex.remove(c);
+			else syncStateIndex.put(c, old);
+		});
+	}
+
+	/**
+	 * Updates the indexed sync states after the status of the given message
+	 * with respect to any contact has changed.
+	 */
+	// Locking: lock.writeLock
+	private void updateSyncStates(T txn, MessageId m) throws DbException {
+		// If no states are indexed there's nothing to update
+		if (syncStateIndex.isEmpty()) return;
+		for (Entry<ContactId, SyncState> e :
+				db.getSyncStates(txn, m).entrySet()) {
+			ContactSyncState state = getIndexedSyncState(e.getKey());
+			if (state != null) state.put(e.getValue());
+		}
+	}
+
+	/**
+	 * Removes the given message from the indexed sync states. This must be
+	 * called before the message is removed from the database.
+	 */
+	// Locking: lock.writeLock
+	private void removeFromSyncStates(T txn, MessageId m) throws DbException {
+		if (syncStateIndex.isEmpty()) return;
+		for (ContactId c : db.getSyncStates(txn, m).keySet()) {
+			ContactSyncState state = getIndexedSyncState(c);
+			if (state != null) state.remove(m);
+		}
+	}
+
+	/**
+	 * Drops the indexed sync state of the given contact, so it will be
+	 * reloaded from the database.
+	 */
+	// Locking: lock.writeLock
+	private void dropSyncState(ContactId c) {
+		setIndexedSyncState(c, null);
+	}
+
+	private void checkNoLocksHeld() {
+		// Don't allow reentrant locking
+		if (lock.getReadHoldCount() > 0) throw new IllegalStateException();
+		if (lock.getWriteHoldCount() > 0) throw new IllegalStateException();
+		if (keyLock.getReadHoldCount() > 0) throw new IllegalStateException();
+		if (keyLock.getWriteHoldCount() > 0) throw new IllegalStateException();
+	}
+
+	private boolean holdsMainLock() {
+		return lock.getReadHoldCount() > 0
+				|| lock.isWriteLockedByCurrentThread();
+	}
+
 	private T unbox(Transaction transaction) {
 		if (transaction.isCommitted()) throw new IllegalStateException();
+		// Transport key transactions can only access transport keys
+		if (!transaction.isSnapshot() && !holdsMainLock())
+			throw new IllegalStateException();
 		return txnClass.cast(transaction.unbox());
 	}
 
+	/**
+	 * Unboxes a transaction that accesses transport keys, first acquiring
+	 * the transport key lock if the transaction doesn't already hold it.
+	 */
+	private T unboxTransportKeys(Transaction transaction) {
+		if (transaction.isCommitted()) throw new IllegalStateException();
+		if (!transaction.isSnapshot()) lockTransportKeys(transaction);
+		return txnClass.cast(transaction.unbox());
+	}
+
+	private void lockTransportKeys(Transaction transaction) {
+		if (transaction.isReadOnly()) {
+			if (keyLock.getReadHoldCount() == 0) keyLock.readLock().lock();
+		} else if (!keyLock.isWriteLockedByCurrentThread()) {
+			keyLock.writeLock().lock();
+		}
+	}
+
+	/**
+	 * Releases the transport key lock if it's held by the current thread.
+	 *
+	 * @param main true if the lock was acquired by a transaction holding the
+	 * main lock, rather than by a transport key transaction
+	 */
+	private void unlockTransportKeys(boolean readOnly, boolean main) {
+		if (readOnly) {
+			if (keyLock.getReadHoldCount() == 0) return;
+			keyLock.readLock().unlock();
+		} else {
+			if (!keyLock.isWriteLockedByCurrentThread()) return;
+			keyLock.writeLock().unlock();
+		}
+		if (!main) keyLockMonitor.released();
+	}
+
 	@Override
 	public ContactId addContact(Transaction transaction, Author remote,
 			AuthorId local, boolean verified, boolean active)
@@ -194,11 +568,25 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
 		T txn = unbox(transaction);
 		if (!db.containsGroup(txn, g.getId())) {
+			// A removed group with the same ID must be purged first
+			if (db.getRemovedGroups(txn).contains(g.getId()))
+				db.purgeRemovedGroup(txn, g.getId(), Integer.MAX_VALUE);
 			db.addGroup(txn, g);
 			transaction.attach(new GroupAddedEvent(g));
+			TransactionReadCache cache = peekReadCache(transaction);
+			if (cache != null) cache.removeGroup(g.getId());
 		}
 	}
 
+	@Override
+	public void addIndexedMetadataKey(Transaction transaction, ClientId c,
+			int majorVersion, String key, IndexedMetadataType type)
+			throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		db.addIndexedMetadataKey(txn, c, majorVersion, key, type);
+	}
+
 	@Override
 	public void addLocalAuthor(Transaction transaction, LocalAuthor a)
 			throws DbException {
@@ -219,12 +607,47 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throw new NoSuchGroupException();
 		if (!db.containsMessage(txn, m.getId())) {
 			db.addMessage(txn, m, DELIVERED, shared, null);
+			updateSyncStates(txn, m.getId());
 			transaction.attach(new MessageAddedEvent(m, null));
 			transaction.attach(new MessageStateChangedEvent(m.getId(), true,
 					DELIVERED));
 			if (shared) transaction.attach(new MessageSharedEvent(m.getId()));
 		}
 		db.mergeMessageMetadata(txn, m.getId(), meta);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m.getId());
+	}
+
+	@Override
+	public void addLocalMessages(Transaction transaction,
+			Collection<Message> messages, Map<MessageId, Metadata> meta,
+			boolean shared) throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		Set<GroupId> groups = new HashSet<>();
+		Set<MessageId> ids = new HashSet<>();
+		List<Message> added = new ArrayList<>();
+		for (Message m : messages) {
+			if (groups.add(m.getGroupId())
+					&& !db.containsGroup(txn, m.getGroupId()))
+				throw new NoSuchGroupException();
+			if (ids.add(m.getId()) && !db.containsMessage(txn, m.getId()))
+				added.add(m);
+		}
+		if (!added.isEmpty())
+			db.addMessages(txn, added, DELIVERED, shared, null);
+		for (Message m : added) {
+			updateSyncStates(txn, m.getId());
+			transaction.attach(new MessageAddedEvent(m, null));
+			transaction.attach(new MessageStateChangedEvent(m.getId(), true,
+					DELIVERED));
+			if (shared) transaction.attach(new MessageSharedEvent(m.getId()));
+		}
+		for (Entry<MessageId, Metadata> e : meta.entrySet())
+			db.mergeMessageMetadata(txn, e.getKey(), e.getValue());
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null)
+			for (MessageId m : meta.keySet()) cache.removeMessageMetadata(m);
 	}
 
 	@Override
@@ -240,7 +663,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public KeySetId addTransportKeys(Transaction transaction, ContactId c,
 			TransportKeys k) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
 		if (!db.containsTransport(txn, k.getTransportId()))
@@ -271,6 +694,15 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.containsLocalAuthor(txn, local);
 	}
 
+	@Override
+	public int countMessages(Transaction transaction, GroupId g,
+			Metadata query, MetadataRange range) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.countMessages(txn, g, query, range);
+	}
+
 	@Override
 	public void deleteMessage(Transaction transaction, MessageId m)
 			throws DbException {
@@ -279,6 +711,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
 		db.deleteMessage(txn, m);
+		updateSyncStates(txn, m);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m);
 	}
 
 	@Override
@@ -289,6 +724,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
 		db.deleteMessageMetadata(txn, m);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m);
 	}
 
 	@Nullable
@@ -299,9 +736,12 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		Collection<MessageId> ids = db.getMessagesToAck(txn, c, maxMessages);
+		Collection<MessageId> ids =
+				getSyncState(transaction, txn, c).getMessagesToAck(maxMessages);
 		if (ids.isEmpty()) return null;
 		db.lowerAckFlag(txn, c, ids);
+		ContactSyncState state = getIndexedSyncState(c);
+		if (state != null) state.lowerAckFlag(ids);
 		return new Ack(ids);
 	}
 
@@ -313,16 +753,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		Collection<MessageId> ids = db.getMessagesToSend(txn, c, maxLength);
-		List<byte[]> messages = new ArrayList<>(ids.size());
-		for (MessageId m : ids) {
-			messages.add(db.getRawMessage(txn, m));
-			db.updateExpiryTime(txn, c, m, maxLatency);
-		}
-		if (ids.isEmpty()) return null;
-		db.lowerRequestedFlag(txn, c, ids);
-		transaction.attach(new MessagesSentEvent(c, ids));
-		return messages;
+		return generateBatch(transaction, txn, c, maxLength, maxLatency,
+				false);
 	}
 
 	@Nullable
@@ -333,9 +765,13 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		Collection<MessageId> ids = db.getMessagesToOffer(txn, c, maxMessages);
+		long now = clock.currentTimeMillis();
+		Collection<MessageId> ids = getSyncState(transaction, txn, c)
+				.getMessagesToOffer(maxMessages, now);
 		if (ids.isEmpty()) return null;
-		for (MessageId m : ids) db.updateExpiryTime(txn, c, m, maxLatency);
+		db.updateExpiryTimes(txn, c, ids, maxLatency);
+		ContactSyncState state = getIndexedSyncState(c);
+		if (state != null) state.updateExpiryTimes(ids, now, maxLatency);
 		return new Offer(ids);
 	}
 
@@ -362,15 +798,33 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		Collection<MessageId> ids = db.getRequestedMessagesToSend(txn, c,
-				maxLength);
+		return generateBatch(transaction, txn, c, maxLength, maxLatency,
+				true);
+	}
+
+	@Nullable
+	private Collection<byte[]> generateBatch(Transaction transaction, T txn,
+			ContactId c, int maxLength, int maxLatency, boolean requestedOnly)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		Collection<MessageId> ids = getSyncState(transaction, txn, c)
+				.getMessagesToSend(maxLength, now, requestedOnly);
+		if (ids.isEmpty()) return null;
+		Map<MessageId, byte[]> raw = db.getRawMessages(txn, ids);
 		List<byte[]> messages = new ArrayList<>(ids.size());
 		for (MessageId m : ids) {
-			messages.add(db.getRawMessage(txn, m));
-			db.updateExpiryTime(txn, c, m, maxLatency);
+			// The index only contains messages that haven't been deleted
+			byte[] message = raw.get(m);
+			if (message == null) throw new DbException();
+			messages.add(message);
 		}
-		if (ids.isEmpty()) return null;
+		db.updateExpiryTimes(txn, c, ids, maxLatency);
 		db.lowerRequestedFlag(txn, c, ids);
+		ContactSyncState state = getIndexedSyncState(c);
+		if (state != null) {
+			state.updateExpiryTimes(ids, now, maxLatency);
+			state.lowerRequestedFlag(ids);
+		}
 		transaction.attach(new MessagesSentEvent(c, ids));
 		return messages;
 	}
@@ -379,9 +833,16 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public Contact getContact(Transaction transaction, ContactId c)
 			throws DbException {
 		T txn = unbox(transaction);
+		TransactionReadCache cache = getReadCache(transaction);
+		if (cache != null) {
+			Contact cached = cache.getContact(c);
+			if (cached != null) return cached;
+		}
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		return db.getContact(txn, c);
+		Contact contact = db.getContact(txn, c);
+		if (cache != null) cache.putContact(contact);
+		return contact;
 	}
 
 	@Override
@@ -411,18 +872,91 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public Group getGroup(Transaction transaction, GroupId g)
 			throws DbException {
 		T txn = unbox(transaction);
+		TransactionReadCache cache = getReadCache(transaction);
+		if (cache != null) {
+			Group cached = cache.getGroup(g);
+			if (cached != null) return cached;
+		}
 		if (!db.containsGroup(txn, g))
 			throw new NoSuchGroupException();
-		return db.getGroup(txn, g);
+		Group group = db.getGroup(txn, g);
+		if (cache != null) cache.putGroup(group);
+		return group;
+	}
+
+	@Override
+	public GroupCounts getGroupCounts(Transaction transaction, GroupId g)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.getGroupCounts(txn, g);
+	}
+
+	@Override
+	public Map<GroupId, GroupCounts> getGroupCounts(Transaction transaction,
+			ClientId c, int majorVersion) throws DbException {
+		T txn = unbox(transaction);
+		return db.getGroupCounts(txn, c, majorVersion);
+	}
+
+	@Override
+	public long getStorageUsage(Transaction transaction, ClientId c,
+			int majorVersion) throws DbException {
+		T txn = unbox(transaction);
+		return db.getStorageUsage(txn, c, majorVersion);
+	}
+
+	@Override
+	public Map<GroupId, Long> getGroupStorageUsage(Transaction transaction,
+			ClientId c, int majorVersion) throws DbException {
+		T txn = unbox(transaction);
+		return db.getGroupStorageUsage(txn, c, majorVersion);
 	}
 
 	@Override
 	public Metadata getGroupMetadata(Transaction transaction, GroupId g)
 			throws DbException {
 		T txn = unbox(transaction);
+		TransactionReadCache cache = getReadCache(transaction);
+		if (cache != null) {
+			Metadata cached = cache.getGroupMetadata(g);
+			if (cached != null) return cached;
+		}
+		Metadata meta = loadGroupMetadata(transaction, txn, g);
+		if (cache != null) cache.putGroupMetadata(g, meta);
+		return meta;
+	}
+
+	private Metadata loadGroupMetadata(Transaction transaction, T txn,
+			GroupId g) throws DbException {
+		if (transaction.isSnapshot()) {
+			// A snapshot transaction doesn't hold the lock, so the cache may
+			// not have caught up with a write transaction that has committed
+			if (!db.containsGroup(txn, g))
+				throw new NoSuchGroupException();
+			return db.getGroupMetadata(txn, g);
+		}
+		if (transaction.isReadOnly() || !pendingGroupMetadata.containsKey(g)) {
+			Metadata cached = groupMetadataCache.get(g);
+			if (cached != null) return cached;
+		} else {
+			Metadata pending = pendingGroupMetadata.get(g);
+			if (pending != null) return GroupMetadataCache.copy(pending);
+		}
 		if (!db.containsGroup(txn, g))
 			throw new NoSuchGroupException();
-		return db.getGroupMetadata(txn, g);
+		Metadata meta = db.getGroupMetadata(txn, g);
+		if (!transaction.isReadOnly() && pendingGroupMetadata.containsKey(g)) {
+			// Includes changes made by this transaction, so don't publish
+			// them until the transaction commits
+			pendingGroupMetadata.put(g, GroupMetadataCache.copy(meta));
+		} else {
+			// No other transaction can commit while we hold the lock, so
+			// this is the latest committed metadata
+			groupMetadataCache.put(g, meta);
+		}
+		return meta;
 	}
 
 	@Override
@@ -466,6 +1000,15 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getMessageIds(txn, g);
 	}
 
+	@Override
+	public Map<MessageId, Long> getMessageTimestamps(Transaction transaction,
+			GroupId g) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.getMessageTimestamps(txn, g);
+	}
+
 	@Override
 	public Collection<MessageId> getMessagesToValidate(Transaction transaction)
 			throws DbException {
@@ -515,13 +1058,58 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getMessageMetadata(txn, g, query);
 	}
 
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(Transaction transaction,
+			GroupId g, Metadata query, MetadataRange range)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.getMessageMetadata(txn, g, query, range);
+	}
+
+	@Override
+	public void visitMessageMetadata(Transaction transaction, GroupId g,
+			MetadataVisitor v) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		db.visitMessageMetadata(txn, g, v);
+	}
+
+	@Override
+	public void visitMessageMetadata(Transaction transaction, GroupId g,
+			Metadata query, MetadataVisitor v) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		db.visitMessageMetadata(txn, g, query, v);
+	}
+
+	@Override
+	public void visitMessageMetadata(Transaction transaction, GroupId g,
+			Metadata query, MetadataRange range, MetadataVisitor v)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		db.visitMessageMetadata(txn, g, query, range, v);
+	}
+
 	@Override
 	public Metadata getMessageMetadata(Transaction transaction, MessageId m)
 			throws DbException {
 		T txn = unbox(transaction);
+		TransactionReadCache cache = getReadCache(transaction);
+		if (cache != null) {
+			Metadata cached = cache.getMessageMetadata(m);
+			if (cached != null) return cached;
+		}
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
-		return db.getMessageMetadata(txn, m);
+		Metadata meta = db.getMessageMetadata(txn, m);
+		if (cache != null) cache.putMessageMetadata(m, meta);
+		return meta;
 	}
 
 	@Override
@@ -596,7 +1184,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public long getNextSendTime(Transaction transaction, ContactId c)
 			throws DbException {
 		T txn = unbox(transaction);
-		return db.getNextSendTime(txn, c);
+		return getSyncState(transaction, txn, c).getNextSendTime();
 	}
 
 	@Override
@@ -609,7 +1197,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	@Override
 	public Collection<KeySet> getTransportKeys(Transaction transaction,
 			TransportId t) throws DbException {
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		return db.getTransportKeys(txn, t);
@@ -619,7 +1207,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public void incrementStreamCounter(Transaction transaction, TransportId t,
 			KeySetId k) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		db.incrementStreamCounter(txn, t, k);
@@ -633,6 +1221,24 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsGroup(txn, g))
 			throw new NoSuchGroupException();
 		db.mergeGroupMetadata(txn, g, meta);
+		// If we know the group's current metadata, apply the changes to it,
+		// otherwise drop the cached metadata when the transaction commits
+		Metadata current;
+		if (pendingGroupMetadata.containsKey(g))
+			current = pendingGroupMetadata.get(g);
+		else current = groupMetadataCache.peek(g);
+		if (current != null) {
+			Metadata merged = GroupMetadataCache.copy(current);
+			for (Entry<String, byte[]> e : meta.entrySet()) {
+				if (e.getValue() == REMOVE) merged.remove(e.getKey());
+				else merged.put(e.getKey(), e.getValue());
+			}
+			pendingGroupMetadata.put(g, merged);
+		} else {
+			pendingGroupMetadata.put(g, null);
+		}
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeGroupMetadata(g);
 	}
 
 	@Override
@@ -643,6 +1249,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
 		db.mergeMessageMetadata(txn, m, meta);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m);
 	}
 
 	@Override
@@ -660,6 +1268,28 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		}
 	}
 
+	@Override
+	public boolean purgeRemovedContactsAndGroups(Transaction transaction)
+			throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.clear();
+		Collection<ContactId> contacts = db.getRemovedContacts(txn);
+		if (!contacts.isEmpty()) {
+			db.purgeRemovedContact(txn, contacts.iterator().next(),
+					MAX_PURGE_CHUNK_SIZE);
+			return true;
+		}
+		Collection<GroupId> groups = db.getRemovedGroups(txn);
+		if (!groups.isEmpty()) {
+			db.purgeRemovedGroup(txn, groups.iterator().next(),
+					MAX_PURGE_CHUNK_SIZE);
+			return true;
+		}
+		return false;
+	}
+
 	@Override
 	public void receiveAck(Transaction transaction, ContactId c, Ack a)
 			throws DbException {
@@ -671,6 +1301,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		for (MessageId m : a.getMessageIds()) {
 			if (db.containsVisibleMessage(txn, c, m)) {
 				db.raiseSeenFlag(txn, c, m);
+				ContactSyncState state = getIndexedSyncState(c);
+				if (state != null) state.raiseSeenFlag(m);
 				acked.add(m);
 			}
 		}
@@ -688,16 +1320,66 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throw new NoSuchContactException();
 		if (db.getGroupVisibility(txn, c, m.getGroupId()) != INVISIBLE) {
 			if (db.containsMessage(txn, m.getId())) {
-				db.raiseSeenFlag(txn, c, m.getId());
-				db.raiseAckFlag(txn, c, m.getId());
-			} else {
+				raiseSeenAndAckFlags(txn, c, m.getId());
+			} else if (hasFreeSpace(m.getRaw().length)) {
 				db.addMessage(txn, m, UNKNOWN, false, c);
+				updateSyncStates(txn, m.getId());
 				transaction.attach(new MessageAddedEvent(m, c));
+			} else {
+				// Don't acknowledge the message so it will be sent again
+				LOG.warning("Storage quota exceeded, not storing message");
+				return;
 			}
 			transaction.attach(new MessageToAckEvent(c));
 		}
 	}
 
+	@Override
+	public void receiveMessages(Transaction transaction, ContactId c,
+			Collection<Message> messages) throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		if (!db.containsContact(txn, c))
+			throw new NoSuchContactException();
+		Map<GroupId, Visibility> visibilities = new HashMap<>();
+		Set<MessageId> ids = new HashSet<>();
+		List<Message> added = new ArrayList<>();
+		long addedLength = 0;
+		int refused = 0;
+		boolean ack = false;
+		for (Message m : messages) {
+			Visibility v = visibilities.get(m.getGroupId());
+			if (v == null) {
+				v = db.getGroupVisibility(txn, c, m.getGroupId());
+				visibilities.put(m.getGroupId(), v);
+			}
+			if (v == INVISIBLE) continue;
+			if (!ids.add(m.getId())) continue;
+			if (db.containsMessage(txn, m.getId())) {
+				raiseSeenAndAckFlags(txn, c, m.getId());
+				ack = true;
+			} else if (hasFreeSpace(addedLength + m.getRaw().length)) {
+				added.add(m);
+				addedLength += m.getRaw().length;
+				ack = true;
+			} else {
+				// Don't acknowledge the message so it will be sent again
+				refused++;
+			}
+		}
+		if (refused > 0 && LOG.isLoggable(WARNING)) {
+			LOG.warning("Storage quota exceeded, not storing "
+					+ refused + " messages");
+		}
+		if (!added.isEmpty())
+			db.addMessages(txn, added, UNKNOWN, false, c);
+		for (Message m : added) {
+			updateSyncStates(txn, m.getId());
+			transaction.attach(new MessageAddedEvent(m, c));
+		}
+		if (ack) transaction.attach(new MessageToAckEvent(c));
+	}
+
 	@Override
 	public void receiveOffer(Transaction transaction, ContactId c, Offer o)
 			throws DbException {
@@ -709,8 +1391,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		int count = db.countOfferedMessages(txn, c);
 		for (MessageId m : o.getMessageIds()) {
 			if (db.containsVisibleMessage(txn, c, m)) {
-				db.raiseSeenFlag(txn, c, m);
-				db.raiseAckFlag(txn, c, m);
+				raiseSeenAndAckFlags(txn, c, m);
 				ack = true;
 			} else if (count < MAX_OFFERED_MESSAGES) {
 				db.addOfferedMessage(txn, c, m);
@@ -722,6 +1403,18 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (request) transaction.attach(new MessageToRequestEvent(c));
 	}
 
+	// Locking: lock.writeLock
+	private void raiseSeenAndAckFlags(T txn, ContactId c, MessageId m)
+			throws DbException {
+		db.raiseSeenFlag(txn, c, m);
+		db.raiseAckFlag(txn, c, m);
+		ContactSyncState state = getIndexedSyncState(c);
+		if (state != null) {
+			state.raiseSeenFlag(m);
+			state.raiseAckFlag(m);
+		}
+	}
+
 	@Override
 	public void receiveRequest(Transaction transaction, ContactId c, Request r)
 			throws DbException {
@@ -734,6 +1427,11 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			if (db.containsVisibleMessage(txn, c, m)) {
 				db.raiseRequestedFlag(txn, c, m);
 				db.resetExpiryTime(txn, c, m);
+				ContactSyncState state = getIndexedSyncState(c);
+				if (state != null) {
+					state.raiseRequestedFlag(m);
+					state.resetExpiryTime(m);
+				}
 				requested = true;
 			}
 		}
@@ -745,9 +1443,14 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
 		T txn = unbox(transaction);
+		// Removing the contact also removes its transport keys
+		lockTransportKeys(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		db.removeContact(txn, c);
+		db.markContactRemoved(txn, c);
+		dropSyncState(c);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeContact(c);
 		transaction.attach(new ContactRemovedEvent(c));
 	}
 
@@ -761,7 +1464,12 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throw new NoSuchGroupException();
 		Collection<ContactId> affected =
 				db.getGroupVisibility(txn, id).keySet();
-		db.removeGroup(txn, id);
+		db.markGroupRemoved(txn, id);
+		// Drop the cached metadata when the group removal is committed
+		pendingGroupMetadata.put(id, null);
+		for (ContactId c : affected) dropSyncState(c);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeGroup(id);
 		transaction.attach(new GroupRemovedEvent(g));
 		transaction.attach(new GroupVisibilityUpdatedEvent(affected));
 	}
@@ -774,6 +1482,10 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsLocalAuthor(txn, a))
 			throw new NoSuchLocalAuthorException();
 		db.removeLocalAuthor(txn, a);
+		// Removing the local author also removes its contacts
+		for (ContactId c : syncStateIndex.getContactIds()) dropSyncState(c);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.clear();
 		transaction.attach(new LocalAuthorRemovedEvent(a));
 	}
 
@@ -785,7 +1497,10 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
 		// TODO: Don't allow messages with dependents to be removed
+		removeFromSyncStates(txn, m);
 		db.removeMessage(txn, m);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m);
 	}
 
 	@Override
@@ -793,6 +1508,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
 		T txn = unbox(transaction);
+		// Removing the transport also removes its transport keys
+		lockTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		db.removeTransport(txn, t);
@@ -802,7 +1519,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public void removeTransportKeys(Transaction transaction,
 			TransportId t, KeySetId k) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		db.removeTransportKeys(txn, t, k);
@@ -816,6 +1533,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
 		db.setContactVerified(txn, c);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeContact(c);
 		transaction.attach(new ContactVerifiedEvent(c));
 	}
 
@@ -827,6 +1546,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
 		db.setContactActive(txn, c, active);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeContact(c);
 		transaction.attach(new ContactStatusChangedEvent(c, active));
 	}
 
@@ -844,6 +1565,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (old == INVISIBLE) db.addGroupVisibility(txn, c, g, v == SHARED);
 		else if (v == INVISIBLE) db.removeGroupVisibility(txn, c, g);
 		else db.setGroupVisibility(txn, c, g, v == SHARED);
+		dropSyncState(c);
 		List<ContactId> affected = Collections.singletonList(c);
 		transaction.attach(new GroupVisibilityUpdatedEvent(affected));
 	}
@@ -858,6 +1580,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (db.getMessageState(txn, m) != DELIVERED)
 			throw new IllegalArgumentException("Shared undelivered message");
 		db.setMessageShared(txn, m);
+		updateSyncStates(txn, m);
 		transaction.attach(new MessageSharedEvent(m));
 	}
 
@@ -869,6 +1592,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		if (!db.containsMessage(txn, m))
 			throw new NoSuchMessageException();
 		db.setMessageState(txn, m, state);
+		updateSyncStates(txn, m);
+		TransactionReadCache cache = peekReadCache(transaction);
+		if (cache != null) cache.removeMessageMetadata(m);
 		transaction.attach(new MessageStateChangedEvent(m, false, state));
 	}
 
@@ -891,7 +1617,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			TransportId t, long rotationPeriod, long base, byte[] bitmap)
 			throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		db.setReorderingWindow(txn, k, t, rotationPeriod, base, bitmap);
@@ -901,17 +1627,29 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	public void setTransportKeysActive(Transaction transaction, TransportId t,
 			KeySetId k) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		if (!db.containsTransport(txn, t))
 			throw new NoSuchTransportException();
 		db.setTransportKeysActive(txn, t, k);
 	}
 
+	@Override
+	public void updateGroupCounts(Transaction transaction, GroupId g,
+			int msgCountDelta, int unreadCountDelta, long latestMsgTime)
+			throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		db.updateGroupCounts(txn, g, msgCountDelta, unreadCountDelta,
+				latestMsgTime);
+	}
+
 	@Override
 	public void updateTransportKeys(Transaction transaction,
 			Collection<KeySet> keys) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
+		T txn = unboxTransportKeys(transaction);
 		for (KeySet ks : keys) {
 			TransportId t = ks.getTransportKeys().getTransportId();
 			if (db.containsTransport(txn, t)) db.updateTransportKeys(txn, ks);
@@ -23,4 +23,69 @@ interface DatabaseConstants {
 	 */
 	String SCHEMA_VERSION_KEY = "schemaVersion";
 
+	/**
+	 * The maximum number of tasks that will be committed together by the
+	 * {@link GroupCommitterImpl}.
+	 */
+	int MAX_GROUP_COMMIT_TASKS = 100;
+
+	/**
+	 * The maximum number of groups whose metadata will be cached by the
+	 * {@link DatabaseComponentImpl}.
+	 */
+	int MAX_CACHED_GROUP_METADATA = 200;
+
+	/**
+	 * The maximum number of prepared statements that will be cached for each
+	 * database connection. This is larger than the number of fixed
+	 * statements, so only dynamically built statements are usually evicted.
+	 */
+	int MAX_CACHED_STATEMENTS = 300;
+
+	/**
+	 * The maximum number of raw messages that will be fetched by each query
+	 * when messages are fetched by ID.
+	 */
+	int MAX_RAW_MESSAGES_PER_QUERY = 64;
+
+	/**
+	 * How often, in milliseconds, the disk usage tracked by the database is
+	 * measured again to correct any drift in the incremental updates.
+	 */
+	long DISK_USAGE_RECONCILE_INTERVAL = 60 * 1000; // 1 minute
+
+	/**
+	 * The maximum number of messages or message statuses that will be
+	 * removed by each transaction that purges a removed group or contact.
+	 */
+	int MAX_PURGE_CHUNK_SIZE = 500;
+
+	/**
+	 * Raw messages shorter than this, in bytes, are always stored
+	 * uncompressed, as they're unlikely to shrink enough to be worth the
+	 * cost of decompressing them.
+	 */
+	int MIN_COMPRESSIBLE_MESSAGE_LENGTH = 256;
+
+	/**
+	 * The maximum size of a compressed raw message, as a percentage of its
+	 * uncompressed size. Messages that don't compress this well are stored
+	 * uncompressed.
+	 */
+	int MAX_COMPRESSED_PERCENTAGE = 90;
+
+	/**
+	 * The amount of free space, in bytes, that must remain after storing an
+	 * incoming message. Incoming messages are refused if they would use this
+	 * space, so it remains available for local data.
+	 */
+	long MIN_FREE_SPACE = 10 * 1024 * 1024; // 10 MiB
+
+	/**
+	 * Write transactions that hold the database lock for longer than this,
+	 * in milliseconds, are logged along with the component that started
+	 * them.
+	 */
+	long SLOW_WRITE_LOCK_HOLD_TIME = 1000; // 1 second
+
 }
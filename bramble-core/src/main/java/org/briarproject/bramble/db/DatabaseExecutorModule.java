@@ -2,6 +2,7 @@ package org.briarproject.bramble.db;
 
 import org.briarproject.bramble.TimeLoggingExecutor;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 
 import java.util.concurrent.BlockingQueue;
@@ -26,9 +27,22 @@ public class DatabaseExecutorModule {
 		@Inject
 		@DatabaseExecutor
 		ExecutorService executorService;
+
+		@Inject
+		@DatabaseReadExecutor
+		ExecutorService readExecutorService;
 	}
 
-	private final ExecutorService databaseExecutor;
+	/**
+	 * The number of threads used for read-only tasks.
+	 * <p>
+	 * The number of available processors can change during the lifetime of the
+	 * JVM, so this is just a reasonable guess.
+	 */
+	private static final int READ_EXECUTOR_THREADS =
+			Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private final ExecutorService databaseExecutor, databaseReadExecutor;
 
 	public DatabaseExecutorModule() {
 		// Use an unbounded queue
@@ -39,6 +53,15 @@ public class DatabaseExecutorModule {
 		// Use a single thread and keep it in the pool for 60 secs
 		databaseExecutor = new TimeLoggingExecutor("DatabaseExecutor", 0, 1,
 				60, SECONDS, queue, policy);
+		// The pool only grows beyond its core size when the queue is full,
+		// which never happens with an unbounded queue, so use a fixed number
+		// of core threads and let them time out after 60 secs
+		ThreadPoolExecutor readExecutor = new TimeLoggingExecutor(
+				"DatabaseReadExecutor", READ_EXECUTOR_THREADS,
+				READ_EXECUTOR_THREADS, 60, SECONDS,
+				new LinkedBlockingQueue<>(), policy);
+		readExecutor.allowCoreThreadTimeOut(true);
+		databaseReadExecutor = readExecutor;
 	}
 
 	@Provides
@@ -50,6 +73,15 @@ public class DatabaseExecutorModule {
 		return databaseExecutor;
 	}
 
+	@Provides
+	@Singleton
+	@DatabaseReadExecutor
+	ExecutorService provideDatabaseReadExecutorService(
+			LifecycleManager lifecycleManager) {
+		lifecycleManager.registerForShutdown(databaseReadExecutor);
+		return databaseReadExecutor;
+	}
+
 	@Provides
 	@Singleton
 	@DatabaseExecutor
@@ -57,4 +89,12 @@ public class DatabaseExecutorModule {
 			@DatabaseExecutor ExecutorService dbExecutor) {
 		return dbExecutor;
 	}
+
+	@Provides
+	@Singleton
+	@DatabaseReadExecutor
+	Executor provideDatabaseReadExecutor(
+			@DatabaseReadExecutor ExecutorService dbReadExecutor) {
+		return dbReadExecutor;
+	}
 }
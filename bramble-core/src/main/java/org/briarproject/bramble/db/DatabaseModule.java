@@ -1,13 +1,20 @@
 package org.briarproject.bramble.db;
 
+import org.briarproject.bramble.api.crypto.CryptoComponent;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.GroupCommitter;
 import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.lifecycle.ShutdownManager;
 import org.briarproject.bramble.api.system.Clock;
 
+import java.io.File;
 import java.sql.Connection;
+import java.util.concurrent.Executor;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import dagger.Module;
@@ -16,17 +23,47 @@ import dagger.Provides;
 @Module
 public class DatabaseModule {
 
+	public static class EagerSingletons {
+		@Inject
+		TombstonePurger tombstonePurger;
+	}
+
 	@Provides
 	@Singleton
-	Database<Connection> provideDatabase(DatabaseConfig config, Clock clock) {
-		return new H2Database(config, clock);
+	Database<Connection> provideDatabase(DatabaseConfig config,
+			CryptoComponent crypto, Clock clock) {
+		BlobStore blobStore = null;
+		if (config.isBlobStoreEnabled()) {
+			File dir = new File(config.getDatabaseDirectory(), "blobs");
+			blobStore = new FileBlobStore(dir, crypto);
+		}
+		return new H2Database(config, clock, blobStore);
 	}
 
 	@Provides
 	@Singleton
-	DatabaseComponent provideDatabaseComponent(Database<Connection> db,
-			EventBus eventBus, ShutdownManager shutdown) {
+	DatabaseComponent provideDatabaseComponent(DatabaseConfig config,
+			Database<Connection> db, EventBus eventBus,
+			ShutdownManager shutdown, Clock clock) {
 		return new DatabaseComponentImpl<>(db, Connection.class, eventBus,
-				shutdown);
+				shutdown, clock, config.isReadCacheEnabled());
+	}
+
+	@Provides
+	@Singleton
+	GroupCommitter provideGroupCommitter(DatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor) {
+		return new GroupCommitterImpl(db, dbExecutor);
+	}
+
+	@Provides
+	@Singleton
+	TombstonePurger provideTombstonePurger(LifecycleManager lifecycleManager,
+			EventBus eventBus, DatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor) {
+		TombstonePurger tombstonePurger = new TombstonePurger(db, dbExecutor);
+		lifecycleManager.registerService(tombstonePurger);
+		eventBus.addListener(tombstonePurger);
+		return tombstonePurger;
 	}
 }
@@ -0,0 +1,139 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.system.Clock;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Keeps track of the disk space used by the database without walking the
+ * database directory on every query. The usage is measured when the
+ * database is opened, updated from the volume of data written and deleted,
+ * and measured again when it's queried after the reconciliation interval
+ * has passed.
+ * <p/>
+ * Deleted data is assumed to free space that will be reused, although the
+ * database files may not shrink until they are compacted.
+ */
+@ThreadSafe
+@NotNullByDefault
+class DiskUsageTracker {
+
+	private static final Logger LOG =
+			Logger.getLogger(DiskUsageTracker.class.getName());
+
+	private final File dir;
+	private final long maxSize, reconcileInterval;
+	private final Clock clock;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private long used = 0, free = 0, lastReconciled = 0;
+	@GuardedBy("lock")
+	private boolean reconciling = false;
+	// Changes recorded while reconciling, which may not be measured
+	@GuardedBy("lock")
+	private long usedDelta = 0, freeDelta = 0;
+
+	DiskUsageTracker(File dir, long maxSize, long reconcileInterval,
+			Clock clock) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.reconcileInterval = reconcileInterval;
+		this.clock = clock;
+	}
+
+	/**
+	 * Measures the disk space used by the database and the free space on
+	 * the device, replacing the incremental updates recorded before the
+	 * measurement started. Updates recorded while measuring are applied to
+	 * the measured values.
+	 */
+	void reconcile() {
+		long now = clock.currentTimeMillis();
+		synchronized (lock) {
+			if (reconciling) return;
+			reconciling = true;
+			usedDelta = 0;
+			freeDelta = 0;
+		}
+		// Walk the directory without holding the lock
+		long measuredUsed = getDiskSpace(dir);
+		long measuredFree = dir.getFreeSpace();
+		synchronized (lock) {
+			if (LOG.isLoggable(FINE)) {
+				LOG.fine("Estimated " + used + " bytes used, measured "
+						+ measuredUsed);
+			}
+			used = Math.max(0, measuredUsed + usedDelta);
+			free = measuredFree + freeDelta;
+			lastReconciled = now;
+			reconciling = false;
+		}
+	}
+
+	/**
+	 * Records that the given number of bytes have been written.
+	 */
+	void recordWrite(long bytes) {
+		synchronized (lock) {
+			used += bytes;
+			free -= bytes;
+			if (reconciling) {
+				usedDelta += bytes;
+				freeDelta -= bytes;
+			}
+		}
+	}
+
+	/**
+	 * Records that the given number of bytes have been deleted.
+	 */
+	void recordDelete(long bytes) {
+		synchronized (lock) {
+			used = Math.max(0, used - bytes);
+			free += bytes;
+			if (reconciling) {
+				usedDelta -= bytes;
+				freeDelta += bytes;
+			}
+		}
+	}
+
+	/**
+	 * Returns the amount of free space available to the database, in bytes.
+	 * This is the minimum of the space available on the device and the
+	 * space remaining within the database's maximum size.
+	 */
+	long getFreeSpace() {
+		boolean reconcile;
+		synchronized (lock) {
+			long now = clock.currentTimeMillis();
+			reconcile = now - lastReconciled >= reconcileInterval;
+		}
+		if (reconcile) reconcile();
+		synchronized (lock) {
+			return Math.min(free, maxSize - used);
+		}
+	}
+
+	private long getDiskSpace(File f) {
+		if (f.isDirectory()) {
+			long total = 0;
+			File[] children = f.listFiles();
+			if (children != null)
+				for (File child : children) total += getDiskSpace(child);
+			return total;
+		} else if (f.isFile()) {
+			return f.length();
+		} else {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.CryptoComponent;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.api.UniqueId.LENGTH;
+import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.StringUtils.fromHexString;
+import static org.briarproject.bramble.util.StringUtils.toHexString;
+
+/**
+ * A {@link BlobStore} that stores each blob in an encrypted file named after
+ * the blob's ID.
+ */
+@ThreadSafe
+@NotNullByDefault
+class FileBlobStore implements BlobStore {
+
+	private static final Logger LOG =
+			Logger.getLogger(FileBlobStore.class.getName());
+
+	// Package access for testing
+	static final String BLOB_KEY_LABEL =
+			"org.briarproject.bramble.db/BLOB_KEY";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+	private final CryptoComponent crypto;
+
+	@Nullable
+	private volatile SecretKey key = null;
+
+	FileBlobStore(File dir, CryptoComponent crypto) {
+		this.dir = dir;
+		this.crypto = crypto;
+	}
+
+	@Override
+	public void open(SecretKey key) throws DbException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new DbException();
+		// Delete any temporary files left behind by an earlier crash
+		File[] files = dir.listFiles();
+		if (files == null) throw new DbException();
+		int deleted = 0;
+		for (File f : files) {
+			if (f.getName().endsWith(TEMP_SUFFIX) && f.delete()) deleted++;
+		}
+		if (LOG.isLoggable(INFO) && deleted > 0)
+			LOG.info("Deleted " + deleted + " temporary blob files");
+		this.key = crypto.deriveKey(BLOB_KEY_LABEL, key);
+	}
+
+	@Override
+	public void addBlob(MessageId m, byte[] raw) throws DbException {
+		byte[] ciphertext = crypto.encryptWithKey(getKey(), raw);
+		// Write the blob to a temporary file, then move it into place so a
+		// partially written blob is never visible under its ID
+		File temp = new File(dir, toHexString(m.getBytes()) + TEMP_SUFFIX);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(ciphertext);
+			out.getFD().sync();
+			out.close();
+		} catch (IOException e) {
+			tryToClose(out);
+			if (!temp.delete()) LOG.warning("Failed to delete " + temp);
+			throw new DbException(e);
+		}
+		if (!temp.renameTo(getFile(m))) {
+			if (!temp.delete()) LOG.warning("Failed to delete " + temp);
+			throw new DbException();
+		}
+	}
+
+	@Override
+	public byte[] getBlob(MessageId m) throws DbException {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(getFile(m));
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException();
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf) == -1) throw new EOFException();
+			}
+			in.close();
+			byte[] raw = crypto.decryptWithKey(getKey(), buf.array());
+			if (raw == null) throw new DbException();
+			return raw;
+		} catch (IOException e) {
+			tryToClose(in);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Collection<MessageId> getBlobIds() throws DbException {
+		File[] files = dir.listFiles();
+		if (files == null) throw new DbException();
+		List<MessageId> ids = new ArrayList<>(files.length);
+		for (File f : files) {
+			String name = f.getName();
+			if (name.length() != LENGTH * 2) continue;
+			try {
+				ids.add(new MessageId(fromHexString(name)));
+			} catch (IllegalArgumentException e) {
+				// Not a blob - ignore
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public void removeBlob(MessageId m) throws DbException {
+		File f = getFile(m);
+		if (!f.delete() && f.exists()) throw new DbException();
+	}
+
+	private SecretKey getKey() {
+		SecretKey key = this.key;
+		if (key == null) throw new IllegalStateException();
+		return key;
+	}
+
+	private File getFile(MessageId m) {
+		return new File(dir, toHexString(m.getBytes()));
+	}
+
+	private void tryToClose(@Nullable FileInputStream in) {
+		try {
+			if (in != null) in.close();
+		} catch (IOException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	private void tryToClose(@Nullable FileOutputStream out) {
+		try {
+			if (out != null) out.close();
+		} catch (IOException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
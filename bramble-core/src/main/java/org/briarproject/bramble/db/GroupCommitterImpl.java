@@ -0,0 +1,85 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.GroupCommitTask;
+import org.briarproject.bramble.api.db.GroupCommitter;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import static java.util.logging.Level.FINE;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_GROUP_COMMIT_TASKS;
+
+/**
+ * A {@link GroupCommitter} that queues tasks until the database executor is
+ * ready to run them. The first task submitted to an empty queue schedules a
+ * flush on the database executor; any tasks submitted before the flush runs
+ * are committed in the same group. The group therefore grows while the
+ * database is busy and shrinks to a single task when it's idle, so no delay
+ * is added when there's no contention.
+ */
+@ThreadSafe
+@NotNullByDefault
+class GroupCommitterImpl implements GroupCommitter {
+
+	private static final Logger LOG =
+			Logger.getLogger(GroupCommitterImpl.class.getName());
+
+	private final DatabaseComponent db;
+	private final Executor dbExecutor;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private final Queue<GroupCommitTask> queue = new LinkedList<>();
+	@GuardedBy("lock")
+	private boolean flushScheduled = false;
+
+	@Inject
+	GroupCommitterImpl(DatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor) {
+		this.db = db;
+		this.dbExecutor = dbExecutor;
+	}
+
+	@Override
+	public void submit(GroupCommitTask task) {
+		boolean schedule;
+		synchronized (lock) {
+			queue.add(task);
+			schedule = !flushScheduled;
+			flushScheduled = true;
+		}
+		if (schedule) dbExecutor.execute(this::flush);
+	}
+
+	@DatabaseExecutor
+	private void flush() {
+		List<GroupCommitTask> tasks = new ArrayList<>();
+		boolean more;
+		synchronized (lock) {
+			while (tasks.size() < MAX_GROUP_COMMIT_TASKS && !queue.isEmpty())
+				tasks.add(queue.poll());
+			more = !queue.isEmpty();
+			// If the queue is empty, the next task will schedule a new flush
+			flushScheduled = more;
+		}
+		if (LOG.isLoggable(FINE))
+			LOG.fine("Committing " + tasks.size() + " tasks");
+		try {
+			db.runGroupCommit(tasks);
+		} finally {
+			// Run the remaining tasks after this group to preserve ordering
+			if (more) dbExecutor.execute(this::flush);
+		}
+	}
+}
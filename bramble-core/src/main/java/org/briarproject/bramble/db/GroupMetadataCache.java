@@ -0,0 +1,91 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.GroupId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded cache of committed group metadata, which discards the least
+ * recently used groups when it's full. The cache stores and returns copies,
+ * so callers are free to modify the metadata they pass in or get back.
+ */
+@ThreadSafe
+@NotNullByDefault
+class GroupMetadataCache {
+
+	private final Object lock = new Object();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	@GuardedBy("lock")
+	private final Map<GroupId, Metadata> cache;
+
+	GroupMetadataCache(int capacity) {
+		cache = new LinkedHashMap<GroupId, Metadata>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<GroupId, Metadata> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached metadata for the given group, or null if the group's
+	 * metadata is not cached, and counts the lookup as a hit or a miss.
+	 */
+	@Nullable
+	Metadata get(GroupId g) {
+		Metadata meta = peek(g);
+		if (meta == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return meta;
+	}
+
+	/**
+	 * Returns the cached metadata for the given group, or null if the group's
+	 * metadata is not cached, without counting the lookup as a hit or a miss.
+	 */
+	@Nullable
+	Metadata peek(GroupId g) {
+		synchronized (lock) {
+			Metadata meta = cache.get(g);
+			return meta == null ? null : copy(meta);
+		}
+	}
+
+	void put(GroupId g, Metadata meta) {
+		Metadata copy = copy(meta);
+		synchronized (lock) {
+			cache.put(g, copy);
+		}
+	}
+
+	void remove(GroupId g) {
+		synchronized (lock) {
+			cache.remove(g);
+		}
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	static Metadata copy(Metadata meta) {
+		Metadata copy = new Metadata();
+		copy.putAll(meta);
+		return copy;
+	}
+}
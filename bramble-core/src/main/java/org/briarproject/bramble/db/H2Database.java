@@ -28,6 +28,7 @@ class H2Database extends JdbcDatabase {
 	private static final String BINARY_TYPE = "BINARY";
 	private static final String COUNTER_TYPE = "INT NOT NULL AUTO_INCREMENT";
 	private static final String STRING_TYPE = "VARCHAR";
+	private static final String EXPLAIN_PREFIX = "EXPLAIN ";
 
 	private final DatabaseConfig config;
 	private final String url;
@@ -37,8 +38,13 @@ class H2Database extends JdbcDatabase {
 
 	@Inject
 	H2Database(DatabaseConfig config, Clock clock) {
+		this(config, clock, null);
+	}
+
+	H2Database(DatabaseConfig config, Clock clock,
+			@Nullable BlobStore blobStore) {
 		super(HASH_TYPE, SECRET_TYPE, BINARY_TYPE, COUNTER_TYPE, STRING_TYPE,
-				clock);
+				EXPLAIN_PREFIX, config, clock, blobStore);
 		this.config = config;
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
@@ -65,30 +71,6 @@ class H2Database extends JdbcDatabase {
 		}
 	}
 
-	@Override
-	public long getFreeSpace() {
-		File dir = config.getDatabaseDirectory();
-		long maxSize = config.getMaxSize();
-		long free = dir.getFreeSpace();
-		long used = getDiskSpace(dir);
-		long quota = maxSize - used;
-		return Math.min(free, quota);
-	}
-
-	private long getDiskSpace(File f) {
-		if (f.isDirectory()) {
-			long total = 0;
-			File[] children = f.listFiles();
-			if (children != null)
-				for (File child : children) total += getDiskSpace(child);
-			return total;
-		} else if (f.isFile()) {
-			return f.length();
-		} else {
-			return 0;
-		}
-	}
-
 	@Override
 	protected Connection createConnection() throws SQLException {
 		SecretKey key = this.key;
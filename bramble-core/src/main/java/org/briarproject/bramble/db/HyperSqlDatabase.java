@@ -29,6 +29,7 @@ class HyperSqlDatabase extends JdbcDatabase {
 	private static final String COUNTER_TYPE =
 			"INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY(START WITH 1)";
 	private static final String STRING_TYPE = "VARCHAR";
+	private static final String EXPLAIN_PREFIX = "EXPLAIN PLAN FOR ";
 
 	private final DatabaseConfig config;
 	private final String url;
@@ -38,14 +39,19 @@ class HyperSqlDatabase extends JdbcDatabase {
 
 	@Inject
 	HyperSqlDatabase(DatabaseConfig config, Clock clock) {
+		this(config, clock, null);
+	}
+
+	HyperSqlDatabase(DatabaseConfig config, Clock clock,
+			@Nullable BlobStore blobStore) {
 		super(HASH_TYPE, SECRET_TYPE, BINARY_TYPE, COUNTER_TYPE, STRING_TYPE,
-				clock);
+				EXPLAIN_PREFIX, config, clock, blobStore);
 		this.config = config;
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
 		url = "jdbc:hsqldb:file:" + path
 				+ ";sql.enforce_size=false;allow_empty_batch=true"
-				+ ";encrypt_lobs=true;crypt_type=AES";
+				+ ";encrypt_lobs=true;crypt_type=AES;hsqldb.tx=mvcc";
 	}
 
 	@Override
@@ -71,30 +77,6 @@ class HyperSqlDatabase extends JdbcDatabase {
 		}
 	}
 
-	@Override
-	public long getFreeSpace() throws DbException {
-		File dir = config.getDatabaseDirectory();
-		long maxSize = config.getMaxSize();
-		long free = dir.getFreeSpace();
-		long used = getDiskSpace(dir);
-		long quota = maxSize - used;
-		return Math.min(free, quota);
-	}
-
-	private long getDiskSpace(File f) {
-		if (f.isDirectory()) {
-			long total = 0;
-			File[] children = f.listFiles();
-			if (children != null)
-				for (File child : children) total += getDiskSpace(child);
-			return total;
-		} else if (f.isFile()) {
-			return f.length();
-		} else {
-			return 0;
-		}
-	}
-
 	@Override
 	protected Connection createConnection() throws SQLException {
 		SecretKey key = this.key;
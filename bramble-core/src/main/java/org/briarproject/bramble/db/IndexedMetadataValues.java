@@ -0,0 +1,92 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.IndexedMetadataType;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BYTES;
+
+/**
+ * Decodes the BDF-encoded values of indexed metadata keys into the typed
+ * values stored in the metadata index. Each encoded value has a single
+ * canonical encoding, so two values are equal if and only if their typed
+ * values are equal.
+ */
+@NotNullByDefault
+class IndexedMetadataValues {
+
+	private static final byte FALSE = 0x10, TRUE = 0x11;
+
+	/**
+	 * Returns the value of the {@link IndexedMetadataType#LONG LONG} or
+	 * {@link IndexedMetadataType#BOOLEAN BOOLEAN} column of the metadata
+	 * index, or null if the given value is not of the given type. Booleans
+	 * are stored as 0 or 1.
+	 */
+	@Nullable
+	static Long decodeLong(IndexedMetadataType type, byte[] value) {
+		switch (type) {
+			case LONG:
+				return decodeInteger(value);
+			case BOOLEAN:
+				if (value.length != 1) return null;
+				if (value[0] == FALSE) return 0L;
+				if (value[0] == TRUE) return 1L;
+				return null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Returns the value of the {@link IndexedMetadataType#BYTES BYTES}
+	 * column of the metadata index, or null if the given value is not of the
+	 * given type.
+	 */
+	@Nullable
+	static byte[] decodeBytes(IndexedMetadataType type, byte[] value) {
+		if (type != BYTES) return null;
+		// Raw types are 0x51, 0x52 and 0x54, where the low bits give the
+		// length of the big-endian length that follows
+		if (value.length < 2 || (value[0] & 0xF0) != 0x50) return null;
+		Long length = decodeBigEndian(value, 1, value[0] & 0x0F);
+		if (length == null || length != value.length - 1 - (value[0] & 0x0F))
+			return null;
+		return Arrays.copyOfRange(value, value.length - length.intValue(),
+				value.length);
+	}
+
+	@Nullable
+	private static Long decodeInteger(byte[] value) {
+		// Integer types are 0x21, 0x22, 0x24 and 0x28, where the low bits
+		// give the length of the big-endian value that follows
+		if (value.length < 2 || (value[0] & 0xF0) != 0x20) return null;
+		int length = value[0] & 0x0F;
+		if (value.length != 1 + length) return null;
+		return decodeBigEndian(value, 1, length);
+	}
+
+	/**
+	 * Decodes a signed big-endian integer of the given length, returning
+	 * null unless the length is the shortest one that can hold the integer,
+	 * which is the length the BDF writer uses.
+	 */
+	@Nullable
+	private static Long decodeBigEndian(byte[] b, int offset, int length) {
+		if (length != 1 && length != 2 && length != 4 && length != 8)
+			return null;
+		if (b.length < offset + length) return null;
+		long l = b[offset]; // Sign-extended
+		for (int i = 1; i < length; i++)
+			l = (l << 8) | (b[offset + i] & 0xFF);
+		int shortest;
+		if (l >= Byte.MIN_VALUE && l <= Byte.MAX_VALUE) shortest = 1;
+		else if (l >= Short.MIN_VALUE && l <= Short.MAX_VALUE) shortest = 2;
+		else if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) shortest = 4;
+		else shortest = 8;
+		return length == shortest ? l : null;
+	}
+}
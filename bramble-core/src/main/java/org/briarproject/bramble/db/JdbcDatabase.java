@@ -5,9 +5,14 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.DataTooNewException;
 import org.briarproject.bramble.api.db.DataTooOldException;
+import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DbClosedException;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
 import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.MigrationListener;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.AuthorId;
@@ -29,22 +34,26 @@ import org.briarproject.bramble.api.transport.KeySet;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.OutgoingKeys;
 import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.api.versioning.ClientMajorVersion;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,11 +61,18 @@ import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
+import static java.sql.Types.BIGINT;
+import static java.sql.Types.BLOB;
 import static java.sql.Types.INTEGER;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableMap;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
 import static org.briarproject.bramble.api.db.Metadata.REMOVE;
+import static org.briarproject.bramble.api.db.MetadataRange.NO_LIMIT;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
@@ -64,8 +80,15 @@ import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERE
 import static org.briarproject.bramble.api.sync.ValidationManager.State.PENDING;
 import static org.briarproject.bramble.api.sync.ValidationManager.State.UNKNOWN;
 import static org.briarproject.bramble.db.DatabaseConstants.DB_SETTINGS_NAMESPACE;
+import static org.briarproject.bramble.db.DatabaseConstants.DISK_USAGE_RECONCILE_INTERVAL;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_CACHED_STATEMENTS;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_RAW_MESSAGES_PER_QUERY;
 import static org.briarproject.bramble.db.DatabaseConstants.SCHEMA_VERSION_KEY;
 import static org.briarproject.bramble.db.ExponentialBackoff.calculateExpiry;
+import static org.briarproject.bramble.db.IndexedMetadataValues.decodeBytes;
+import static org.briarproject.bramble.db.IndexedMetadataValues.decodeLong;
+import static org.briarproject.bramble.db.MessageCompressor.compress;
+import static org.briarproject.bramble.db.MessageCompressor.decompress;
 import static org.briarproject.bramble.util.LogUtils.logException;
 
 /**
@@ -76,7 +99,7 @@ import static org.briarproject.bramble.util.LogUtils.logException;
 abstract class JdbcDatabase implements Database<Connection> {
 
 	// Package access for testing
-	static final int CODE_SCHEMA_VERSION = 39;
+	static final int CODE_SCHEMA_VERSION = 45;
 
 	// Rotation period offsets for incoming transport keys
 	private static final int OFFSET_PREV = -1;
@@ -110,6 +133,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " localAuthorId _HASH NOT NULL,"
 					+ " verified BOOLEAN NOT NULL,"
 					+ " active BOOLEAN NOT NULL,"
+					+ " removed BOOLEAN NOT NULL,"
 					+ " PRIMARY KEY (contactId),"
 					+ " FOREIGN KEY (localAuthorId)"
 					+ " REFERENCES localAuthors (authorId)"
@@ -121,6 +145,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " clientId _STRING NOT NULL,"
 					+ " majorVersion INT NOT NULL,"
 					+ " descriptor _BINARY NOT NULL,"
+					+ " removed BOOLEAN NOT NULL,"
 					+ " PRIMARY KEY (groupId))";
 
 	private static final String CREATE_GROUP_METADATA =
@@ -133,6 +158,18 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES groups (groupId)"
 					+ " ON DELETE CASCADE)";
 
+	// Package access for migrations
+	static final String CREATE_GROUP_COUNTS =
+			"CREATE TABLE groupCounts"
+					+ " (groupId _HASH NOT NULL,"
+					+ " msgCount INT NOT NULL,"
+					+ " unreadCount INT NOT NULL,"
+					+ " latestMsgTime BIGINT NOT NULL,"
+					+ " PRIMARY KEY (groupId),"
+					+ " FOREIGN KEY (groupId)"
+					+ " REFERENCES groups (groupId)"
+					+ " ON DELETE CASCADE)";
+
 	private static final String CREATE_GROUP_VISIBILITIES =
 			"CREATE TABLE groupVisibilities"
 					+ " (contactId INT NOT NULL,"
@@ -154,7 +191,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " state INT NOT NULL,"
 					+ " shared BOOLEAN NOT NULL,"
 					+ " length INT NOT NULL,"
-					+ " raw BLOB," // Null if message has been deleted
+					// Null if message has been deleted or is in the blob store
+					+ " raw BLOB,"
+					+ " external BOOLEAN NOT NULL," // True if in the blob store
+					// True if raw (or the blob) holds the compressed message
+					+ " compressed BOOLEAN NOT NULL,"
 					+ " PRIMARY KEY (messageId),"
 					+ " FOREIGN KEY (groupId)"
 					+ " REFERENCES groups (groupId)"
@@ -175,6 +216,30 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES groups (groupId)"
 					+ " ON DELETE CASCADE)";
 
+	private static final String CREATE_INDEXED_METADATA_KEYS =
+			"CREATE TABLE indexedMetadataKeys"
+					+ " (clientId _STRING NOT NULL,"
+					+ " majorVersion INT NOT NULL,"
+					+ " metaKey _STRING NOT NULL,"
+					+ " type INT NOT NULL,"
+					+ " PRIMARY KEY (clientId, majorVersion, metaKey))";
+
+	private static final String CREATE_MESSAGE_METADATA_INDEX =
+			"CREATE TABLE messageMetadataIndex"
+					+ " (messageId _HASH NOT NULL,"
+					+ " groupId _HASH NOT NULL," // Denormalised
+					+ " state INT NOT NULL," // Denormalised
+					+ " metaKey _STRING NOT NULL,"
+					+ " longValue BIGINT," // Null for BYTES keys
+					+ " bytesValue _BINARY," // Null for LONG and BOOLEAN keys
+					+ " PRIMARY KEY (messageId, metaKey),"
+					+ " FOREIGN KEY (messageId)"
+					+ " REFERENCES messages (messageId)"
+					+ " ON DELETE CASCADE,"
+					+ " FOREIGN KEY (groupId)"
+					+ " REFERENCES groups (groupId)"
+					+ " ON DELETE CASCADE)";
+
 	private static final String CREATE_MESSAGE_DEPENDENCIES =
 			"CREATE TABLE messageDependencies"
 					+ " (groupId _HASH NOT NULL,"
@@ -282,10 +347,32 @@ abstract class JdbcDatabase implements Database<Connection> {
 			"CREATE INDEX IF NOT EXISTS groupsByClientIdMajorVersion"
 					+ " ON groups (clientId, majorVersion)";
 
+	private static final String INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS messagesByGroupIdTimestamp"
+					+ " ON messages (groupId, timestamp)";
+
 	private static final String INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE =
 			"CREATE INDEX IF NOT EXISTS messageMetadataByGroupIdState"
 					+ " ON messageMetadata (groupId, state)";
 
+	private static final String INDEX_MESSAGE_METADATA_INDEX_BY_LONG_VALUE =
+			"CREATE INDEX IF NOT EXISTS messageMetadataIndexByLongValue"
+					+ " ON messageMetadataIndex"
+					+ " (groupId, metaKey, state, longValue, messageId)";
+
+	private static final String
+			INDEX_MESSAGE_METADATA_INDEX_BY_LONG_VALUE_DESCENDING =
+			"CREATE INDEX IF NOT EXISTS"
+					+ " messageMetadataIndexByLongValueDescending"
+					+ " ON messageMetadataIndex"
+					+ " (groupId DESC, metaKey DESC, state DESC,"
+					+ " longValue DESC, messageId DESC)";
+
+	private static final String INDEX_MESSAGE_METADATA_INDEX_BY_BYTES_VALUE =
+			"CREATE INDEX IF NOT EXISTS messageMetadataIndexByBytesValue"
+					+ " ON messageMetadataIndex"
+					+ " (groupId, metaKey, state, bytesValue)";
+
 	private static final String INDEX_MESSAGE_DEPENDENCIES_BY_DEPENDENCY_ID =
 			"CREATE INDEX IF NOT EXISTS messageDependenciesByDependencyId"
 					+ " ON messageDependencies (dependencyId)";
@@ -305,6 +392,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private final String hashType, secretType, binaryType;
 	private final String counterType, stringType;
 	private final Clock clock;
+	@Nullable
+	private final BlobStore blobStore;
+	private final boolean compressionEnabled;
+	private final DiskUsageTracker diskUsage;
+	@Nullable
+	private final StatementProfiler profiler;
 
 	// Locking: connectionsLock
 	private final LinkedList<Connection> connections = new LinkedList<>();
@@ -312,20 +405,70 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private int openConnections = 0; // Locking: connectionsLock
 	private boolean closed = false; // Locking: connectionsLock
 
+	// Prepared statements are cached for each connection and reused by later
+	// transactions on the same connection. Each cache is only accessed by
+	// the thread that is currently using the connection
+	private final Map<Connection, StatementCache> statements =
+			new ConcurrentHashMap<>();
+
+	// The savepoint, if any, that is currently set in each transaction
+	private final Map<Connection, Savepoint> savepoints =
+			new ConcurrentHashMap<>();
+
+	// Blobs to remove from the blob store when each transaction commits,
+	// and the blobs that were waiting to be removed when each savepoint was
+	// set. Each list is only accessed by the thread that is currently using
+	// the connection
+	private final Map<Connection, List<MessageId>> blobsToRemove =
+			new ConcurrentHashMap<>();
+	private final Map<Connection, List<MessageId>> blobsToRemoveAtSavepoint =
+			new ConcurrentHashMap<>();
+
+	// The indexed metadata keys declared by each client, and their types.
+	// A transaction that changes the declarations doesn't use the cache,
+	// and the cache is cleared when the transaction ends
+	// Locking: indexedKeysLock
+	private final Map<ClientMajorVersion, Map<String, IndexedMetadataType>>
+			indexedKeys = new HashMap<>();
+	// Incremented when the cache is cleared, so declarations that were
+	// loaded before a transaction changed them aren't cached afterwards
+	// Locking: indexedKeysLock
+	private long indexedKeysGeneration = 0;
+	private final Object indexedKeysLock = new Object();
+
+	// The connections whose transactions have changed the declarations
+	private final Set<Connection> indexedKeysChanged =
+			Collections.newSetFromMap(new ConcurrentHashMap<>());
+
 	@Nullable
 	protected abstract Connection createConnection() throws SQLException;
 
 	private final Lock connectionsLock = new ReentrantLock();
 	private final Condition connectionsChanged = connectionsLock.newCondition();
 
+	/**
+	 * @param explainPrefix the prefix that turns a statement into a query
+	 * for its plan, used if statement profiling is enabled
+	 * @param blobStore if not null, raw messages are kept in the given blob
+	 * store rather than in the database
+	 */
 	JdbcDatabase(String hashType, String secretType, String binaryType,
-			String counterType, String stringType, Clock clock) {
+			String counterType, String stringType, String explainPrefix,
+			DatabaseConfig config, Clock clock,
+			@Nullable BlobStore blobStore) {
 		this.hashType = hashType;
 		this.secretType = secretType;
 		this.binaryType = binaryType;
 		this.counterType = counterType;
 		this.stringType = stringType;
 		this.clock = clock;
+		this.blobStore = blobStore;
+		compressionEnabled = config.isCompressionEnabled();
+		diskUsage = new DiskUsageTracker(config.getDatabaseDirectory(),
+				config.getMaxSize(), DISK_USAGE_RECONCILE_INTERVAL, clock);
+		if (config.isStatementProfilingEnabled())
+			profiler = new StatementProfiler(explainPrefix);
+		else profiler = null;
 	}
 
 	protected void open(String driverClass, boolean reopen, SecretKey key,
@@ -346,11 +489,17 @@ abstract class JdbcDatabase implements Database<Connection> {
 				storeSchemaVersion(txn, CODE_SCHEMA_VERSION);
 			}
 			createIndexes(txn);
+			if (blobStore != null) {
+				blobStore.open(key);
+				removeUnreferencedBlobs(txn, blobStore);
+			}
 			commitTransaction(txn);
 		} catch (DbException e) {
 			abortTransaction(txn);
 			throw e;
 		}
+		// Measure the disk usage, which will then be updated incrementally
+		diskUsage.reconcile();
 	}
 
 	/**
@@ -391,7 +540,61 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	// Package access for testing
 	List<Migration<Connection>> getMigrations() {
-		return singletonList(new Migration38_39());
+		return asList(new Migration38_39(),
+				new Migration39_40(insertTypeNames(CREATE_GROUP_COUNTS)),
+				new Migration40_41(),
+				new Migration41_42(),
+				new Migration42_43(),
+				new Migration43_44(
+						insertTypeNames(CREATE_INDEXED_METADATA_KEYS),
+						insertTypeNames(CREATE_MESSAGE_METADATA_INDEX)),
+				new Migration44_45());
+	}
+
+	/**
+	 * Removes any blobs that are not referenced by the database, which may
+	 * have been left behind by a transaction that aborted, or by a crash
+	 * after a transaction that removed messages committed.
+	 */
+	private void removeUnreferencedBlobs(Connection txn, BlobStore blobStore)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId FROM messages"
+					+ " WHERE external = TRUE";
+			ps = prepareStatement(txn, sql);
+			rs = ps.executeQuery();
+			Set<MessageId> referenced = new HashSet<>();
+			while (rs.next()) referenced.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			int removed = 0;
+			for (MessageId m : blobStore.getBlobIds()) {
+				if (!referenced.contains(m)) {
+					blobStore.removeBlob(m);
+					removed++;
+				}
+			}
+			if (LOG.isLoggable(INFO) && removed > 0)
+				LOG.info("Removed " + removed + " unreferenced blobs");
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Schedules the blob with the given ID, if any, to be removed from the
+	 * blob store when the transaction commits.
+	 */
+	private void removeBlobOnCommit(Connection txn, MessageId m) {
+		List<MessageId> ids = blobsToRemove.get(txn);
+		if (ids == null) {
+			ids = new ArrayList<>();
+			blobsToRemove.put(txn, ids);
+		}
+		ids.add(m);
 	}
 
 	private void storeSchemaVersion(Connection txn, int version)
@@ -417,6 +620,57 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	/**
+	 * Returns a prepared statement for the given SQL, reusing the statement
+	 * cached for the given connection if there is one. The caller must set
+	 * every parameter before executing the statement, and must not close the
+	 * statement except to discard it after an error.
+	 */
+	private PreparedStatement prepareStatement(Connection txn, String sql)
+			throws SQLException {
+		StatementCache cache = statements.get(txn);
+		if (cache == null) {
+			cache = new StatementCache(MAX_CACHED_STATEMENTS);
+			statements.put(txn, cache);
+		}
+		PreparedStatement ps = cache.get(sql);
+		if (ps == null) {
+			ps = txn.prepareStatement(sql);
+			if (profiler != null) ps = profiler.profile(txn, sql, ps);
+			cache.put(sql, ps);
+		}
+		return ps;
+	}
+
+	/**
+	 * Prepares a statement that isn't cached, for a scan that calls out to
+	 * other code while its result set is open. The other code may run the
+	 * same SQL, which would close the result set if the statement was
+	 * shared. The caller must close the statement.
+	 */
+	private PreparedStatement prepareUncachedStatement(Connection txn,
+			String sql) throws SQLException {
+		PreparedStatement ps = txn.prepareStatement(sql);
+		if (profiler != null) ps = profiler.profile(txn, sql, ps);
+		return ps;
+	}
+
+	/**
+	 * Clears anything left on the statements cached for the given connection
+	 * by an operation that failed. Failures other than SQLExceptions don't
+	 * discard the statement that was in use, so this is called whenever a
+	 * transaction is aborted or rolled back to a savepoint.
+	 */
+	private void resetStatements(Connection txn) {
+		StatementCache cache = statements.get(txn);
+		if (cache != null) cache.reset();
+	}
+
+	private void closeStatements(Connection txn) {
+		StatementCache cache = statements.remove(txn);
+		if (cache != null) cache.close();
+	}
+
 	private void createTables(Connection txn) throws DbException {
 		Statement s = null;
 		try {
@@ -426,9 +680,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(insertTypeNames(CREATE_CONTACTS));
 			s.executeUpdate(insertTypeNames(CREATE_GROUPS));
 			s.executeUpdate(insertTypeNames(CREATE_GROUP_METADATA));
+			s.executeUpdate(insertTypeNames(CREATE_GROUP_COUNTS));
 			s.executeUpdate(insertTypeNames(CREATE_GROUP_VISIBILITIES));
 			s.executeUpdate(insertTypeNames(CREATE_MESSAGES));
 			s.executeUpdate(insertTypeNames(CREATE_MESSAGE_METADATA));
+			s.executeUpdate(insertTypeNames(CREATE_INDEXED_METADATA_KEYS));
+			s.executeUpdate(insertTypeNames(CREATE_MESSAGE_METADATA_INDEX));
 			s.executeUpdate(insertTypeNames(CREATE_MESSAGE_DEPENDENCIES));
 			s.executeUpdate(insertTypeNames(CREATE_OFFERS));
 			s.executeUpdate(insertTypeNames(CREATE_STATUSES));
@@ -448,7 +705,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s = txn.createStatement();
 			s.executeUpdate(INDEX_CONTACTS_BY_AUTHOR_ID);
 			s.executeUpdate(INDEX_GROUPS_BY_CLIENT_ID_MAJOR_VERSION);
+			s.executeUpdate(INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP);
 			s.executeUpdate(INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE);
+			s.executeUpdate(INDEX_MESSAGE_METADATA_INDEX_BY_LONG_VALUE);
+			s.executeUpdate(
+					INDEX_MESSAGE_METADATA_INDEX_BY_LONG_VALUE_DESCENDING);
+			s.executeUpdate(INDEX_MESSAGE_METADATA_INDEX_BY_BYTES_VALUE);
 			s.executeUpdate(INDEX_MESSAGE_DEPENDENCIES_BY_DEPENDENCY_ID);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_GROUP_ID);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_TIMESTAMP);
@@ -499,8 +761,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void abortTransaction(Connection txn) {
+		savepoints.remove(txn);
+		blobsToRemove.remove(txn);
+		blobsToRemoveAtSavepoint.remove(txn);
+		resetStatements(txn);
 		try {
 			txn.rollback();
+			clearIndexedMetadataKeys(txn);
 			connectionsLock.lock();
 			try {
 				connections.add(txn);
@@ -511,11 +778,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		} catch (SQLException e) {
 			// Try to close the connection
 			logException(LOG, WARNING, e);
+			closeStatements(txn);
 			try {
 				txn.close();
 			} catch (SQLException e1) {
 				logException(LOG, WARNING, e1);
 			}
+			clearIndexedMetadataKeys(txn);
 			// Whatever happens, allow the database to close
 			connectionsLock.lock();
 			try {
@@ -529,11 +798,26 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void commitTransaction(Connection txn) throws DbException {
+		savepoints.remove(txn);
+		blobsToRemoveAtSavepoint.remove(txn);
+		List<MessageId> removed = blobsToRemove.remove(txn);
 		try {
 			txn.commit();
 		} catch (SQLException e) {
 			throw new DbException(e);
 		}
+		clearIndexedMetadataKeys(txn);
+		// Any blobs that can't be removed now will be removed when the
+		// database is next opened
+		if (blobStore != null && removed != null) {
+			for (MessageId m : removed) {
+				try {
+					blobStore.removeBlob(m);
+				} catch (DbException e) {
+					logException(LOG, WARNING, e);
+				}
+			}
+		}
 		connectionsLock.lock();
 		try {
 			connections.add(txn);
@@ -543,12 +827,68 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	/**
+	 * Clears the cached indexed metadata keys if the given transaction has
+	 * changed the declarations.
+	 */
+	private void clearIndexedMetadataKeys(Connection txn) {
+		if (!indexedKeysChanged.remove(txn)) return;
+		synchronized (indexedKeysLock) {
+			indexedKeysGeneration++;
+			indexedKeys.clear();
+		}
+	}
+
+	@Override
+	public void setSavepoint(Connection txn) throws DbException {
+		if (savepoints.containsKey(txn)) throw new IllegalStateException();
+		try {
+			savepoints.put(txn, txn.setSavepoint());
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+		List<MessageId> ids = blobsToRemove.get(txn);
+		if (ids != null)
+			blobsToRemoveAtSavepoint.put(txn, new ArrayList<>(ids));
+	}
+
+	@Override
+	public void rollbackToSavepoint(Connection txn) throws DbException {
+		Savepoint s = savepoints.remove(txn);
+		if (s == null) throw new IllegalStateException();
+		resetStatements(txn);
+		try {
+			txn.rollback(s);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+		// Keep any blobs removed after the savepoint was set
+		List<MessageId> ids = blobsToRemoveAtSavepoint.remove(txn);
+		if (ids == null) blobsToRemove.remove(txn);
+		else blobsToRemove.put(txn, ids);
+	}
+
+	@Override
+	public void releaseSavepoint(Connection txn) throws DbException {
+		Savepoint s = savepoints.remove(txn);
+		if (s == null) throw new IllegalStateException();
+		blobsToRemoveAtSavepoint.remove(txn);
+		try {
+			txn.releaseSavepoint(s);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+
 	void closeAllConnections() throws SQLException {
 		boolean interrupted = false;
 		connectionsLock.lock();
 		try {
 			closed = true;
-			for (Connection c : connections) c.close();
+			for (Connection c : connections) {
+				closeStatements(c);
+				c.close();
+			}
 			openConnections -= connections.size();
 			connections.clear();
 			while (openConnections > 0) {
@@ -558,7 +898,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 					LOG.warning("Interrupted while closing connections");
 					interrupted = true;
 				}
-				for (Connection c : connections) c.close();
+				for (Connection c : connections) {
+					closeStatements(c);
+					c.close();
+				}
 				openConnections -= connections.size();
 				connections.clear();
 			}
@@ -567,6 +910,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 
 		if (interrupted) Thread.currentThread().interrupt();
+		logStatementProfile();
+	}
+
+	@Override
+	public void logStatementProfile() {
+		if (profiler != null) profiler.logReport();
 	}
 
 	@Override
@@ -579,9 +928,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO contacts"
 					+ " (authorId, formatVersion, name, publicKey,"
 					+ " localAuthorId,"
-					+ " verified, active)"
-					+ " VALUES (?, ?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+					+ " verified, active, removed)"
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, FALSE)";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, remote.getId().getBytes());
 			ps.setInt(2, remote.getFormatVersion());
 			ps.setString(3, remote.getName());
@@ -591,17 +940,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setBoolean(7, active);
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 			// Get the new (highest) contact ID
 			sql = "SELECT contactId FROM contacts"
 					+ " ORDER BY contactId DESC LIMIT 1";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
 			ContactId c = new ContactId(rs.getInt(1));
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return c;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -615,16 +962,16 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "INSERT INTO groups"
-					+ " (groupId, clientId, majorVersion, descriptor)"
-					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+					+ " (groupId, clientId, majorVersion, descriptor,"
+					+ " removed)"
+					+ " VALUES (?, ?, ?, ?, FALSE)";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getId().getBytes());
 			ps.setString(2, g.getClientId().getString());
 			ps.setInt(3, g.getMajorVersion());
 			ps.setBytes(4, g.getDescriptor());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -639,13 +986,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO groupVisibilities"
 					+ " (contactId, groupId, shared)"
 					+ " VALUES (?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			ps.setBoolean(3, groupShared);
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 			// Create a status row for each message in the group
 			addStatus(txn, c, g, groupShared);
 		} catch (SQLException e) {
@@ -654,16 +1000,135 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void addIndexedMetadataKey(Connection txn, ClientId c,
+			int majorVersion, String key, IndexedMetadataType type)
+			throws DbException {
+		PreparedStatement ps = null, insert = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT type FROM indexedMetadataKeys"
+					+ " WHERE clientId = ? AND majorVersion = ?"
+					+ " AND metaKey = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			ps.setString(3, key);
+			rs = ps.executeQuery();
+			Integer oldType = rs.next() ? rs.getInt(1) : null;
+			rs.close();
+			if (oldType != null && oldType == type.getValue()) {
+				// Already declared and indexed
+				return;
+			}
+			// Stop using the cached declarations until this transaction ends
+			indexedKeysChanged.add(txn);
+			if (oldType == null) {
+				sql = "INSERT INTO indexedMetadataKeys"
+						+ " (clientId, majorVersion, metaKey, type)"
+						+ " VALUES (?, ?, ?, ?)";
+			} else {
+				// The key has changed type, so remove the old index entries
+				String delete = "DELETE FROM messageMetadataIndex"
+						+ " WHERE metaKey = ? AND groupId IN"
+						+ " (SELECT groupId FROM groups"
+						+ " WHERE clientId = ? AND majorVersion = ?)";
+				ps = prepareStatement(txn, delete);
+				ps.setString(1, key);
+				ps.setString(2, c.getString());
+				ps.setInt(3, majorVersion);
+				if (ps.executeUpdate() < 0) throw new DbStateException();
+				sql = "UPDATE indexedMetadataKeys SET type = ?"
+						+ " WHERE clientId = ? AND majorVersion = ?"
+						+ " AND metaKey = ?";
+			}
+			ps = prepareStatement(txn, sql);
+			if (oldType == null) {
+				ps.setString(1, c.getString());
+				ps.setInt(2, majorVersion);
+				ps.setString(3, key);
+				ps.setInt(4, type.getValue());
+			} else {
+				ps.setInt(1, type.getValue());
+				ps.setString(2, c.getString());
+				ps.setInt(3, majorVersion);
+				ps.setString(4, key);
+			}
+			if (ps.executeUpdate() != 1) throw new DbStateException();
+			// Index any existing metadata for the key
+			sql = "SELECT messageId, md.groupId, state, value"
+					+ " FROM messageMetadata AS md"
+					+ " JOIN groups AS g"
+					+ " ON md.groupId = g.groupId"
+					+ " WHERE clientId = ? AND majorVersion = ?"
+					+ " AND metaKey = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			ps.setString(3, key);
+			rs = ps.executeQuery();
+			sql = "INSERT INTO messageMetadataIndex"
+					+ " (messageId, groupId, state, metaKey, longValue,"
+					+ " bytesValue)"
+					+ " VALUES (?, ?, ?, ?, ?, ?)";
+			insert = prepareStatement(txn, sql);
+			int inserted = 0;
+			while (rs.next()) {
+				if (setIndexedValue(insert, 5, type, rs.getBytes(4))) {
+					insert.setBytes(1, rs.getBytes(1));
+					insert.setBytes(2, rs.getBytes(2));
+					insert.setInt(3, rs.getInt(3));
+					insert.setString(4, key);
+					insert.addBatch();
+					inserted++;
+				}
+			}
+			rs.close();
+			if (inserted == 0) return;
+			int[] batchAffected = insert.executeBatch();
+			if (batchAffected.length != inserted) throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+			if (LOG.isLoggable(INFO))
+				LOG.info("Indexed " + inserted + " values of " + key);
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			// Discard the insert statement, which may hold a partial batch
+			tryToClose(insert);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Binds the typed value of an indexed metadata key to the longValue and
+	 * bytesValue parameters, starting at the given index.
+	 *
+	 * @return True if the value was bound, or false if the encoded value is
+	 * not of the given type and should not be indexed.
+	 */
+	private boolean setIndexedValue(PreparedStatement ps, int index,
+			IndexedMetadataType type, byte[] value) throws SQLException {
+		Long longValue = decodeLong(type, value);
+		byte[] bytesValue = decodeBytes(type, value);
+		if (longValue == null && bytesValue == null) return false;
+		if (longValue == null) ps.setNull(index, BIGINT);
+		else ps.setLong(index, longValue);
+		if (bytesValue == null) ps.setNull(index + 1, BLOB);
+		else ps.setBytes(index + 1, bytesValue);
+		return true;
+	}
+
 	private void addStatus(Connection txn, ContactId c, GroupId g,
 			boolean groupShared) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT messageId, timestamp, state, shared,"
-					+ " length, raw IS NULL"
+					+ " length, raw IS NULL AND external = FALSE"
 					+ " FROM messages"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			while (rs.next()) {
@@ -678,7 +1143,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						messageShared, deleted, seen);
 			}
 			rs.close();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -695,7 +1159,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " (authorId, formatVersion, name, publicKey,"
 					+ " privateKey, created)"
 					+ " VALUES (?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getId().getBytes());
 			ps.setInt(2, a.getFormatVersion());
 			ps.setString(3, a.getName());
@@ -704,7 +1168,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setLong(6, a.getTimeCreated());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -715,45 +1178,147 @@ abstract class JdbcDatabase implements Database<Connection> {
 	public void addMessage(Connection txn, Message m, State state,
 			boolean messageShared, @Nullable ContactId sender)
 			throws DbException {
+		addMessages(txn, singletonList(m), state, messageShared, sender);
+	}
+
+	@Override
+	public void addMessages(Connection txn, Collection<Message> messages,
+			State state, boolean messageShared, @Nullable ContactId sender)
+			throws DbException {
+		if (messages.isEmpty()) return;
+		// Compress the messages and write any blobs before batching the
+		// rows, so a failure to write a blob can't leave rows in the batch
+		List<byte[]> compressed = new ArrayList<>(messages.size());
+		List<MessageId> toRemove = blobsToRemove.get(txn);
+		for (Message m : messages) {
+			byte[] c = compressionEnabled ? compress(m.getRaw()) : null;
+			compressed.add(c);
+			if (blobStore != null) {
+				// The blob is written before the transaction commits - if
+				// the transaction aborts, the blob will be removed when the
+				// database is next opened
+				blobStore.addBlob(m.getId(), c == null ? m.getRaw() : c);
+				if (toRemove != null) toRemove.remove(m.getId());
+			}
+		}
 		PreparedStatement ps = null;
 		try {
 			String sql = "INSERT INTO messages (messageId, groupId, timestamp,"
-					+ " state, shared, length, raw)"
-					+ " VALUES (?, ?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getId().getBytes());
-			ps.setBytes(2, m.getGroupId().getBytes());
-			ps.setLong(3, m.getTimestamp());
-			ps.setInt(4, state.getValue());
-			ps.setBoolean(5, messageShared);
-			byte[] raw = m.getRaw();
-			ps.setInt(6, raw.length);
-			ps.setBytes(7, raw);
-			int affected = ps.executeUpdate();
-			if (affected != 1) throw new DbStateException();
-			ps.close();
-			// Create a status row for each contact that can see the group
-			Map<ContactId, Boolean> visibility =
-					getGroupVisibility(txn, m.getGroupId());
-			for (Entry<ContactId, Boolean> e : visibility.entrySet()) {
-				ContactId c = e.getKey();
-				boolean offered = removeOfferedMessage(txn, c, m.getId());
-				boolean seen = offered || (sender != null && c.equals(sender));
-				addStatus(txn, m.getId(), c, m.getGroupId(), m.getTimestamp(),
-						m.getLength(), state, e.getValue(), messageShared,
-						false, seen);
+					+ " state, shared, length, raw, external, compressed)"
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			ps = prepareStatement(txn, sql);
+			int index = 0;
+			for (Message m : messages) {
+				ps.setBytes(1, m.getId().getBytes());
+				ps.setBytes(2, m.getGroupId().getBytes());
+				ps.setLong(3, m.getTimestamp());
+				ps.setInt(4, state.getValue());
+				ps.setBoolean(5, messageShared);
+				byte[] raw = m.getRaw();
+				// The length column always holds the uncompressed length
+				ps.setInt(6, raw.length);
+				byte[] c = compressed.get(index++);
+				if (blobStore == null) {
+					ps.setBytes(7, c == null ? raw : c);
+					ps.setBoolean(8, false);
+				} else {
+					ps.setNull(7, BLOB);
+					ps.setBoolean(8, true);
+				}
+				ps.setBoolean(9, c != null);
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != messages.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+			long written = 0;
+			for (Message m : messages) written += m.getRaw().length;
+			diskUsage.recordWrite(written);
+			// Find the contacts that can see each message's group, loading
+			// the visibility of each group once
+			Map<GroupId, Map<ContactId, Boolean>> visibilities =
+					new HashMap<>();
+			List<Message> statusMessages = new ArrayList<>();
+			List<ContactId> statusContacts = new ArrayList<>();
+			List<Boolean> statusGroupShared = new ArrayList<>();
+			for (Message m : messages) {
+				Map<ContactId, Boolean> visibility =
+						visibilities.get(m.getGroupId());
+				if (visibility == null) {
+					visibility = getGroupVisibility(txn, m.getGroupId());
+					visibilities.put(m.getGroupId(), visibility);
+				}
+				for (Entry<ContactId, Boolean> e : visibility.entrySet()) {
+					statusMessages.add(m);
+					statusContacts.add(e.getKey());
+					statusGroupShared.add(e.getValue());
+				}
+			}
+			int statuses = statusMessages.size();
+			if (statuses > 0) {
+				// Remove any offers of the messages, noting which contacts
+				// offered them
+				sql = "DELETE FROM offers"
+						+ " WHERE contactId = ? AND messageId = ?";
+				ps = prepareStatement(txn, sql);
+				for (int i = 0; i < statuses; i++) {
+					ps.setInt(1, statusContacts.get(i).getInt());
+					ps.setBytes(2, statusMessages.get(i).getId().getBytes());
+					ps.addBatch();
+				}
+				int[] offered = ps.executeBatch();
+				if (offered.length != statuses) throw new DbStateException();
+				for (int rows : offered)
+					if (rows < 0 || rows > 1) throw new DbStateException();
+				// Create a status row for each contact that can see each
+				// message's group
+				sql = "INSERT INTO statuses (messageId, contactId, groupId,"
+						+ " timestamp, length, state, groupShared,"
+						+ " messageShared, deleted, ack, seen, requested,"
+						+ " expiry, txCount)"
+						+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, FALSE, ?, ?,"
+						+ " FALSE, 0, 0)";
+				ps = prepareStatement(txn, sql);
+				for (int i = 0; i < statuses; i++) {
+					Message m = statusMessages.get(i);
+					ContactId c = statusContacts.get(i);
+					boolean seen = offered[i] == 1 || c.equals(sender);
+					ps.setBytes(1, m.getId().getBytes());
+					ps.setInt(2, c.getInt());
+					ps.setBytes(3, m.getGroupId().getBytes());
+					ps.setLong(4, m.getTimestamp());
+					ps.setInt(5, m.getLength());
+					ps.setInt(6, state.getValue());
+					ps.setBoolean(7, statusGroupShared.get(i));
+					ps.setBoolean(8, messageShared);
+					ps.setBoolean(9, seen);
+					ps.setBoolean(10, seen);
+					ps.addBatch();
+				}
+				batchAffected = ps.executeBatch();
+				if (batchAffected.length != statuses)
+					throw new DbStateException();
+				for (int rows : batchAffected)
+					if (rows != 1) throw new DbStateException();
 			}
 			// Update denormalised column in messageDependencies if dependency
 			// is in same group as dependent
 			sql = "UPDATE messageDependencies SET dependencyState = ?"
 					+ " WHERE groupId = ? AND dependencyId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setInt(1, state.getValue());
-			ps.setBytes(2, m.getGroupId().getBytes());
-			ps.setBytes(3, m.getId().getBytes());
-			affected = ps.executeUpdate();
-			if (affected < 0) throw new DbStateException();
-			ps.close();
+			ps = prepareStatement(txn, sql);
+			for (Message m : messages) {
+				ps.setInt(1, state.getValue());
+				ps.setBytes(2, m.getGroupId().getBytes());
+				ps.setBytes(3, m.getId().getBytes());
+				ps.addBatch();
+			}
+			batchAffected = ps.executeBatch();
+			if (batchAffected.length != messages.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows < 0) throw new DbStateException();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -768,22 +1333,20 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT NULL FROM offers"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			if (found) return;
 			sql = "INSERT INTO offers (messageId, contactId) VALUES (?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -801,7 +1364,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " timestamp, length, state, groupShared, messageShared,"
 					+ " deleted, ack, seen, requested, expiry, txCount)"
 					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, FALSE, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			ps.setBytes(3, g.getBytes());
@@ -815,7 +1378,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setBoolean(11, seen);
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -831,7 +1393,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Get state of dependency if present and in same group as dependent
 			String sql = "SELECT state FROM messages"
 					+ " WHERE messageId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, dependency.getBytes());
 			ps.setBytes(2, dependent.getGroupId().getBytes());
 			rs = ps.executeQuery();
@@ -841,13 +1403,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rs.next()) throw new DbStateException();
 			}
 			rs.close();
-			ps.close();
 			// Create messageDependencies row
 			sql = "INSERT INTO messageDependencies"
 					+ " (groupId, messageId, dependencyId, messageState,"
 					+ " dependencyState)"
 					+ " VALUES (?, ?, ?, ? ,?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, dependent.getGroupId().getBytes());
 			ps.setBytes(2, dependent.getId().getBytes());
 			ps.setBytes(3, dependency.getBytes());
@@ -856,7 +1417,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			else ps.setInt(5, dependencyState.getValue());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -871,12 +1431,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "INSERT INTO transports (transportId, maxLatency)"
 					+ " VALUES (?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.setLong(2, maxLatency);
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -893,7 +1452,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO outgoingKeys (contactId, transportId,"
 					+ " rotationPeriod, tagKey, headerKey, stream, active)"
 					+ " VALUES (?, ?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setString(2, k.getTransportId().getString());
 			OutgoingKeys outCurr = k.getCurrentOutgoingKeys();
@@ -904,23 +1463,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setBoolean(7, outCurr.isActive());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 			// Get the new (highest) key set ID
 			sql = "SELECT keySetId FROM outgoingKeys"
 					+ " ORDER BY keySetId DESC LIMIT 1";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
 			KeySetId keySetId = new KeySetId(rs.getInt(1));
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			// Store the incoming keys
 			sql = "INSERT INTO incomingKeys (keySetId, contactId, transportId,"
 					+ " rotationPeriod, tagKey, headerKey, base, bitmap,"
 					+ " periodOffset)"
 					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, keySetId.getInt());
 			ps.setInt(2, c.getInt());
 			ps.setString(3, k.getTransportId().getString());
@@ -955,7 +1512,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			if (batchAffected.length != 3) throw new DbStateException();
 			for (int rows : batchAffected)
 				if (rows != 1) throw new DbStateException();
-			ps.close();
 			return keySetId;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -971,15 +1527,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM contacts"
-					+ " WHERE authorId = ? AND localAuthorId = ?";
-			ps = txn.prepareStatement(sql);
+					+ " WHERE authorId = ? AND localAuthorId = ?"
+					+ " AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, remote.getBytes());
 			ps.setBytes(2, local.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -994,14 +1550,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT NULL FROM contacts WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT NULL FROM contacts"
+					+ " WHERE contactId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1016,14 +1572,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT NULL FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT NULL FROM groups"
+					+ " WHERE groupId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1039,13 +1595,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM localAuthors WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1061,13 +1616,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1083,13 +1637,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM transports WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1104,17 +1657,20 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT NULL FROM statuses"
+			// Messages in removed groups that await purging aren't visible
+			String sql = "SELECT NULL FROM statuses AS s"
+					+ " JOIN groups AS g"
+					+ " ON s.groupId = g.groupId"
 					+ " WHERE messageId = ? AND contactId = ?"
-					+ " AND messageShared = TRUE";
-			ps = txn.prepareStatement(sql);
+					+ " AND messageShared = TRUE"
+					+ " AND g.removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1131,14 +1687,42 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT COUNT (messageId) FROM offers "
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbException();
 			int count = rs.getInt(1);
 			if (rs.next()) throw new DbException();
 			rs.close();
-			ps.close();
+			return count;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public int countMessages(Connection txn, GroupId g, Metadata query,
+			MetadataRange range) throws DbException {
+		Map<String, IndexedMetadataType> keys =
+				getIndexedMetadataKeys(txn, g);
+		if (keys.get(range.getKey()) != LONG) {
+			return MetadataRanges.select(getMessageMetadata(txn, g, query),
+					range, false).size();
+		}
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			Map<String, Object> indexed = getIndexedTerms(keys, query);
+			String sql = getRangeMatchesSql(query, indexed, range, true);
+			ps = prepareStatement(txn, sql);
+			setRangeMatchesParameters(ps, g, query, indexed, range, true);
+			rs = ps.executeQuery();
+			if (!rs.next()) throw new DbException();
+			int count = rs.getInt(1);
+			if (rs.next()) throw new DbException();
+			rs.close();
 			return count;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1149,22 +1733,24 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void deleteMessage(Connection txn, MessageId m) throws DbException {
+		diskUsage.recordDelete(getStoredLength(txn, m));
 		PreparedStatement ps = null;
 		try {
-			String sql = "UPDATE messages SET raw = NULL WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "UPDATE messages SET raw = NULL, external = FALSE,"
+					+ " compressed = FALSE"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
 			if (affected > 1) throw new DbStateException();
-			ps.close();
+			if (blobStore != null) removeBlobOnCommit(txn, m);
 			// Update denormalised column in statuses
 			sql = "UPDATE statuses SET deleted = TRUE WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -1177,11 +1763,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM messageMetadata WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
+			sql = "DELETE FROM messageMetadataIndex WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -1196,8 +1786,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT authorId, formatVersion, name, publicKey,"
 					+ " localAuthorId, verified, active"
 					+ " FROM contacts"
-					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+					+ " WHERE contactId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
@@ -1209,7 +1799,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			boolean verified = rs.getBoolean(6);
 			boolean active = rs.getBoolean(7);
 			rs.close();
-			ps.close();
 			Author author =
 					new Author(authorId, formatVersion, name, publicKey);
 			return new Contact(c, author, localAuthorId, verified, active);
@@ -1228,8 +1817,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT contactId, authorId, formatVersion, name,"
 					+ " publicKey, localAuthorId, verified, active"
-					+ " FROM contacts";
-			ps = txn.prepareStatement(sql);
+					+ " FROM contacts WHERE removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<Contact> contacts = new ArrayList<>();
 			while (rs.next()) {
@@ -1247,7 +1836,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						verified, active));
 			}
 			rs.close();
-			ps.close();
 			return contacts;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1263,14 +1851,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT contactId FROM contacts"
-					+ " WHERE localAuthorId = ?";
-			ps = txn.prepareStatement(sql);
+					+ " WHERE localAuthorId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, local.getBytes());
 			rs = ps.executeQuery();
 			List<ContactId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new ContactId(rs.getInt(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1288,8 +1875,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT contactId, formatVersion, name, publicKey,"
 					+ " localAuthorId, verified, active"
 					+ " FROM contacts"
-					+ " WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+					+ " WHERE authorId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, remote.getBytes());
 			rs = ps.executeQuery();
 			List<Contact> contacts = new ArrayList<>();
@@ -1307,7 +1894,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						active));
 			}
 			rs.close();
-			ps.close();
 			return contacts;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1316,14 +1902,19 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public long getFreeSpace() {
+		return diskUsage.getFreeSpace();
+	}
+
 	@Override
 	public Group getGroup(Connection txn, GroupId g) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT clientId, majorVersion, descriptor"
-					+ " FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+					+ " FROM groups WHERE groupId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
@@ -1331,7 +1922,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int majorVersion = rs.getInt(2);
 			byte[] descriptor = rs.getBytes(3);
 			rs.close();
-			ps.close();
 			return new Group(g, clientId, majorVersion, descriptor);
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1347,8 +1937,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT groupId, descriptor FROM groups"
-					+ " WHERE clientId = ? AND majorVersion = ?";
-			ps = txn.prepareStatement(sql);
+					+ " WHERE clientId = ? AND majorVersion = ?"
+					+ " AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, c.getString());
 			ps.setInt(2, majorVersion);
 			rs = ps.executeQuery();
@@ -1359,7 +1950,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				groups.add(new Group(id, c, majorVersion, descriptor));
 			}
 			rs.close();
-			ps.close();
 			return groups;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1376,7 +1966,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT shared FROM groupVisibilities"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			rs = ps.executeQuery();
@@ -1385,7 +1975,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			else v = INVISIBLE;
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return v;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1402,14 +1991,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT contactId, shared FROM groupVisibilities"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			Map<ContactId, Boolean> visible = new HashMap<>();
 			while (rs.next())
 				visible.put(new ContactId(rs.getInt(1)), rs.getBoolean(2));
 			rs.close();
-			ps.close();
 			return visible;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1428,7 +2016,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " privateKey, created"
 					+ " FROM localAuthors"
 					+ " WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
@@ -1441,7 +2029,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 					publicKey, privateKey, created);
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return localAuthor;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1459,7 +2046,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT authorId, formatVersion, name, publicKey,"
 					+ " privateKey, created"
 					+ " FROM localAuthors";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<LocalAuthor> authors = new ArrayList<>();
 			while (rs.next()) {
@@ -1473,7 +2060,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						publicKey, privateKey, created));
 			}
 			rs.close();
-			ps.close();
 			return authors;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1490,14 +2076,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT messageId FROM messages"
 					+ " WHERE groupId = ? AND state = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1514,32 +2099,281 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			// Retrieve the message IDs for each query term and intersect
-			Set<MessageId> intersection = null;
-			String sql = "SELECT messageId FROM messageMetadata"
-					+ " WHERE groupId = ? AND state = ?"
-					+ " AND metaKey = ? AND value = ?";
-			for (Entry<String, byte[]> e : query.entrySet()) {
-				ps = txn.prepareStatement(sql);
-				ps.setBytes(1, g.getBytes());
-				ps.setInt(2, DELIVERED.getValue());
-				ps.setString(3, e.getKey());
-				ps.setBytes(4, e.getValue());
-				rs = ps.executeQuery();
-				Set<MessageId> ids = new HashSet<>();
-				while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
-				rs.close();
-				ps.close();
-				if (intersection == null) intersection = ids;
-				else intersection.retainAll(ids);
-				// Return early if there are no matches
-				if (intersection.isEmpty()) return Collections.emptySet();
-			}
-			if (intersection == null) throw new AssertionError();
-			return intersection;
-		} catch (SQLException e) {
-			tryToClose(rs);
-			tryToClose(ps);
+			Map<String, Object> indexed = getIndexedTerms(txn, g, query);
+			String sql = getQueryMatchesSql(query, indexed);
+			ps = prepareStatement(txn, sql);
+			setQueryMatchesParameters(ps, 1, g, query, indexed);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			return ids;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the typed values of any query terms that can be matched using
+	 * the metadata index, keyed by metadata key. A term can be matched using
+	 * the index if its key is indexed and its value is of the key's declared
+	 * type. Values of other types aren't indexed, but they can't be equal to
+	 * a value of the declared type either, so such terms are matched against
+	 * the metadata instead.
+	 */
+	private Map<String, Object> getIndexedTerms(Connection txn, GroupId g,
+			Metadata query) throws DbException {
+		return getIndexedTerms(getIndexedMetadataKeys(txn, g), query);
+	}
+
+	private Map<String, Object> getIndexedTerms(
+			Map<String, IndexedMetadataType> keys, Metadata query) {
+		if (keys.isEmpty()) return Collections.emptyMap();
+		Map<String, Object> indexed = new LinkedHashMap<>();
+		for (Entry<String, byte[]> e : query.entrySet()) {
+			IndexedMetadataType type = keys.get(e.getKey());
+			if (type == null) continue;
+			Long longValue = decodeLong(type, e.getValue());
+			if (longValue != null) {
+				indexed.put(e.getKey(), longValue);
+			} else {
+				byte[] bytesValue = decodeBytes(type, e.getValue());
+				if (bytesValue != null) indexed.put(e.getKey(), bytesValue);
+			}
+		}
+		return indexed;
+	}
+
+	/**
+	 * Returns SQL that selects the IDs of the delivered messages in a group
+	 * whose metadata matches all of the given query terms.
+	 * <p/>
+	 * If none of the terms can be matched using the metadata index, each
+	 * term matches at most one row per message, because (messageId, metaKey)
+	 * is the primary key, so a message matches all the terms if it matches
+	 * as many rows as there are terms.
+	 * <p/>
+	 * Otherwise the messages are found by scanning the metadata index for
+	 * the first indexed term, and the remaining terms are matched by
+	 * primary key lookups in the index or the metadata.
+	 *
+	 * @param indexed the terms returned by
+	 * {@link #getIndexedTerms(Connection, GroupId, Metadata)}
+	 */
+	private String getQueryMatchesSql(Metadata query,
+			Map<String, Object> indexed) {
+		if (indexed.isEmpty()) {
+			StringBuilder sb = new StringBuilder("SELECT messageId"
+					+ " FROM messageMetadata"
+					+ " WHERE groupId = ? AND state = ? AND (");
+			for (int i = 0; i < query.size(); i++) {
+				if (i > 0) sb.append(" OR ");
+				sb.append("(metaKey = ? AND value = ?)");
+			}
+			sb.append(") GROUP BY messageId HAVING COUNT(*) = ?");
+			return sb.toString();
+		}
+		StringBuilder sb = new StringBuilder("SELECT i0.messageId"
+				+ " FROM messageMetadataIndex AS i0");
+		int i = 0;
+		String firstColumn = null;
+		for (Object value : indexed.values()) {
+			String column = getIndexColumn(value);
+			if (i == 0) {
+				firstColumn = column;
+			} else {
+				String alias = "i" + i;
+				sb.append(" JOIN messageMetadataIndex AS ").append(alias)
+						.append(" ON ").append(alias)
+						.append(".messageId = i0.messageId AND ")
+						.append(alias).append(".metaKey = ? AND ")
+						.append(alias).append('.').append(column)
+						.append(" = ?");
+			}
+			i++;
+		}
+		sb.append(" WHERE i0.groupId = ? AND i0.metaKey = ?"
+				+ " AND i0.state = ? AND i0.").append(firstColumn)
+				.append(" = ?");
+		for (int j = indexed.size(); j < query.size(); j++) {
+			sb.append(" AND EXISTS (SELECT NULL FROM messageMetadata AS md"
+					+ " WHERE md.messageId = i0.messageId"
+					+ " AND md.metaKey = ? AND md.value = ?)");
+		}
+		return sb.toString();
+	}
+
+	private String getIndexColumn(Object indexedValue) {
+		return indexedValue instanceof Long ? "longValue" : "bytesValue";
+	}
+
+	/**
+	 * Binds the parameters of the SQL returned by
+	 * {@link #getQueryMatchesSql(Metadata, Map)}, starting at the given
+	 * index.
+	 */
+	private void setQueryMatchesParameters(PreparedStatement ps, int index,
+			GroupId g, Metadata query, Map<String, Object> indexed)
+			throws SQLException {
+		if (indexed.isEmpty()) {
+			ps.setBytes(index++, g.getBytes());
+			ps.setInt(index++, DELIVERED.getValue());
+			for (Entry<String, byte[]> e : query.entrySet()) {
+				ps.setString(index++, e.getKey());
+				ps.setBytes(index++, e.getValue());
+			}
+			ps.setInt(index, query.size());
+			return;
+		}
+		Entry<String, Object> first = null;
+		for (Entry<String, Object> e : indexed.entrySet()) {
+			if (first == null) {
+				first = e;
+			} else {
+				ps.setString(index++, e.getKey());
+				setIndexValue(ps, index++, e.getValue());
+			}
+		}
+		ps.setBytes(index++, g.getBytes());
+		ps.setString(index++, first.getKey());
+		ps.setInt(index++, DELIVERED.getValue());
+		setIndexValue(ps, index++, first.getValue());
+		for (Entry<String, byte[]> e : query.entrySet()) {
+			if (indexed.containsKey(e.getKey())) continue;
+			ps.setString(index++, e.getKey());
+			ps.setBytes(index++, e.getValue());
+		}
+	}
+
+	/**
+	 * Returns SQL that selects the IDs of the delivered messages in a group
+	 * whose metadata matches all of the given query terms and whose values
+	 * for the range's key lie within the range, in the range's order, or
+	 * that counts the messages if {@code count} is true.
+	 * <p/>
+	 * The messages are found by scanning the ascending or descending index
+	 * of integer values for the range's key, which holds them in the range's
+	 * order, so the scan can stop when the range's limit is reached. The
+	 * query terms are matched by primary key lookups in the index or the
+	 * metadata.
+	 *
+	 * @param indexed the terms returned by
+	 * {@link #getIndexedTerms(Connection, GroupId, Metadata)}
+	 */
+	private String getRangeMatchesSql(Metadata query,
+			Map<String, Object> indexed, MetadataRange range, boolean count) {
+		StringBuilder sb = new StringBuilder(count ? "SELECT COUNT (*)"
+				: "SELECT r.messageId");
+		sb.append(" FROM messageMetadataIndex AS r");
+		int i = 0;
+		for (Object value : indexed.values()) {
+			String alias = "i" + i++;
+			sb.append(" JOIN messageMetadataIndex AS ").append(alias)
+					.append(" ON ").append(alias)
+					.append(".messageId = r.messageId AND ")
+					.append(alias).append(".metaKey = ? AND ")
+					.append(alias).append('.').append(getIndexColumn(value))
+					.append(" = ?");
+		}
+		// The bounds are compared to TRUE so the planner doesn't choose an
+		// index that can seek to them but must then sort the whole range
+		sb.append(" WHERE r.groupId = ? AND r.metaKey = ? AND r.state = ?"
+				+ " AND (r.longValue >= ?) = TRUE"
+				+ " AND (r.longValue <= ?) = TRUE");
+		if (range.getAfterMessageId() != null) {
+			// The bounds exclude any values before the message's value, so
+			// only messages with the same value are compared by ID
+			String after = range.isDescending() ? " < ?" : " > ?";
+			sb.append(" AND (r.longValue").append(after)
+					.append(" OR r.messageId").append(after).append(')');
+		}
+		for (int j = indexed.size(); j < query.size(); j++) {
+			sb.append(" AND EXISTS (SELECT NULL FROM messageMetadata AS md"
+					+ " WHERE md.messageId = r.messageId"
+					+ " AND md.metaKey = ? AND md.value = ?)");
+		}
+		if (!count) {
+			// Ordering by all the columns of the index lets the messages be
+			// read in order from the index, rather than sorted
+			String direction = range.isDescending() ? " DESC" : "";
+			sb.append(" ORDER BY r.groupId").append(direction)
+					.append(", r.metaKey").append(direction)
+					.append(", r.state").append(direction)
+					.append(", r.longValue").append(direction)
+					.append(", r.messageId").append(direction);
+			if (range.getLimit() != NO_LIMIT) sb.append(" LIMIT ?");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Binds the parameters of the SQL returned by
+	 * {@link #getRangeMatchesSql(Metadata, Map, MetadataRange, boolean)}.
+	 */
+	private void setRangeMatchesParameters(PreparedStatement ps, GroupId g,
+			Metadata query, Map<String, Object> indexed, MetadataRange range,
+			boolean count) throws SQLException {
+		int index = 1;
+		for (Entry<String, Object> e : indexed.entrySet()) {
+			ps.setString(index++, e.getKey());
+			setIndexValue(ps, index++, e.getValue());
+		}
+		long min = range.getMinValue(), max = range.getMaxValue();
+		Long afterValue = range.getAfterValue();
+		MessageId afterMessageId = range.getAfterMessageId();
+		if (afterValue != null) {
+			if (range.isDescending()) max = Math.min(max, afterValue);
+			else min = Math.max(min, afterValue);
+		}
+		ps.setBytes(index++, g.getBytes());
+		ps.setString(index++, range.getKey());
+		ps.setInt(index++, DELIVERED.getValue());
+		ps.setLong(index++, min);
+		ps.setLong(index++, max);
+		if (afterValue != null && afterMessageId != null) {
+			ps.setLong(index++, afterValue);
+			ps.setBytes(index++, afterMessageId.getBytes());
+		}
+		for (Entry<String, byte[]> e : query.entrySet()) {
+			if (indexed.containsKey(e.getKey())) continue;
+			ps.setString(index++, e.getKey());
+			ps.setBytes(index++, e.getValue());
+		}
+		if (!count && range.getLimit() != NO_LIMIT)
+			ps.setInt(index, range.getLimit());
+	}
+
+	private void setIndexValue(PreparedStatement ps, int index,
+			Object indexedValue) throws SQLException {
+		if (indexedValue instanceof Long)
+			ps.setLong(index, (Long) indexedValue);
+		else ps.setBytes(index, (byte[]) indexedValue);
+	}
+
+	@Override
+	public Map<MessageId, Long> getMessageTimestamps(Connection txn,
+			GroupId g) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, timestamp FROM messages"
+					+ " WHERE groupId = ? AND state = ?"
+					+ " AND (raw IS NOT NULL OR external = TRUE)"
+					+ " ORDER BY timestamp";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, DELIVERED.getValue());
+			rs = ps.executeQuery();
+			Map<MessageId, Long> timestamps = new LinkedHashMap<>();
+			while (rs.next())
+				timestamps.put(new MessageId(rs.getBytes(1)), rs.getLong(2));
+			rs.close();
+			return timestamps;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
@@ -1553,7 +2387,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT messageId, metaKey, value"
 					+ " FROM messageMetadata"
 					+ " WHERE groupId = ? AND state = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
@@ -1568,7 +2402,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				metadata.put(rs.getString(2), rs.getBytes(3));
 			}
 			rs.close();
-			ps.close();
 			return all;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1580,13 +2413,175 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public Map<MessageId, Metadata> getMessageMetadata(Connection txn,
 			GroupId g, Metadata query) throws DbException {
-		// Retrieve the matching message IDs
-		Collection<MessageId> matches = getMessageIds(txn, g, query);
-		if (matches.isEmpty()) return Collections.emptyMap();
-		// Retrieve the metadata for each match
-		Map<MessageId, Metadata> all = new HashMap<>(matches.size());
-		for (MessageId m : matches) all.put(m, getMessageMetadata(txn, m));
-		return all;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			if (query.isEmpty()) {
+				// Match all delivered messages, including any without metadata
+				String sql = "SELECT m.messageId, metaKey, value"
+						+ " FROM messages AS m"
+						+ " LEFT OUTER JOIN messageMetadata AS md"
+						+ " ON m.messageId = md.messageId"
+						+ " WHERE m.groupId = ? AND m.state = ?";
+				ps = prepareStatement(txn, sql);
+				ps.setBytes(1, g.getBytes());
+				ps.setInt(2, DELIVERED.getValue());
+			} else {
+				// Retrieve the metadata of the matching messages in one query
+				Map<String, Object> indexed = getIndexedTerms(txn, g, query);
+				String sql = "SELECT md.messageId, metaKey, value"
+						+ " FROM messageMetadata AS md"
+						+ " JOIN (" + getQueryMatchesSql(query, indexed)
+						+ ") AS matches"
+						+ " ON md.messageId = matches.messageId";
+				ps = prepareStatement(txn, sql);
+				setQueryMatchesParameters(ps, 1, g, query, indexed);
+			}
+			rs = ps.executeQuery();
+			Map<MessageId, Metadata> all = new HashMap<>();
+			while (rs.next()) {
+				MessageId messageId = new MessageId(rs.getBytes(1));
+				Metadata metadata = all.get(messageId);
+				if (metadata == null) {
+					metadata = new Metadata();
+					all.put(messageId, metadata);
+				}
+				String key = rs.getString(2);
+				if (key != null) metadata.put(key, rs.getBytes(3));
+			}
+			rs.close();
+			return all;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(Connection txn,
+			GroupId g, Metadata query, MetadataRange range)
+			throws DbException {
+		Map<MessageId, Metadata> selected = new LinkedHashMap<>();
+		visitMessageMetadata(txn, g, query, range, selected::put);
+		return selected;
+	}
+
+	@Override
+	public GroupCounts getGroupCounts(Connection txn, GroupId g)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT msgCount, unreadCount, latestMsgTime"
+					+ " FROM groupCounts"
+					+ " WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			rs = ps.executeQuery();
+			GroupCounts counts;
+			if (rs.next()) {
+				counts = new GroupCounts(rs.getInt(1), rs.getInt(2),
+						rs.getLong(3));
+				if (rs.next()) throw new DbStateException();
+			} else {
+				counts = new GroupCounts(0, 0, 0);
+			}
+			rs.close();
+			return counts;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Map<GroupId, GroupCounts> getGroupCounts(Connection txn,
+			ClientId c, int majorVersion) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT gc.groupId, msgCount, unreadCount,"
+					+ " latestMsgTime"
+					+ " FROM groupCounts AS gc"
+					+ " JOIN groups AS g"
+					+ " ON gc.groupId = g.groupId"
+					+ " WHERE clientId = ? AND majorVersion = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			rs = ps.executeQuery();
+			Map<GroupId, GroupCounts> counts = new HashMap<>();
+			while (rs.next()) {
+				GroupId g = new GroupId(rs.getBytes(1));
+				counts.put(g, new GroupCounts(rs.getInt(2), rs.getInt(3),
+						rs.getLong(4)));
+			}
+			rs.close();
+			return counts;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public long getStorageUsage(Connection txn, ClientId c, int majorVersion)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT SUM(length) FROM messages AS m"
+					+ " JOIN groups AS g"
+					+ " ON m.groupId = g.groupId"
+					+ " WHERE clientId = ? AND majorVersion = ?"
+					+ " AND g.removed = FALSE"
+					+ " AND (raw IS NOT NULL OR external = TRUE)";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			rs = ps.executeQuery();
+			if (!rs.next()) throw new DbStateException();
+			long total = rs.getLong(1); // Zero if there are no messages
+			if (rs.next()) throw new DbStateException();
+			rs.close();
+			return total;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Map<GroupId, Long> getGroupStorageUsage(Connection txn,
+			ClientId c, int majorVersion) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT m.groupId, SUM(length) FROM messages AS m"
+					+ " JOIN groups AS g"
+					+ " ON m.groupId = g.groupId"
+					+ " WHERE clientId = ? AND majorVersion = ?"
+					+ " AND g.removed = FALSE"
+					+ " AND (raw IS NOT NULL OR external = TRUE)"
+					+ " GROUP BY m.groupId";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			rs = ps.executeQuery();
+			Map<GroupId, Long> usage = new HashMap<>();
+			while (rs.next())
+				usage.put(new GroupId(rs.getBytes(1)), rs.getLong(2));
+			rs.close();
+			return usage;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
 	}
 
 	@Override
@@ -1597,13 +2592,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT metaKey, value FROM groupMetadata"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			Metadata metadata = new Metadata();
 			while (rs.next()) metadata.put(rs.getString(1), rs.getBytes(2));
 			rs.close();
-			ps.close();
 			return metadata;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1620,14 +2614,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT metaKey, value FROM messageMetadata"
 					+ " WHERE state = ? AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, DELIVERED.getValue());
 			ps.setBytes(2, m.getBytes());
 			rs = ps.executeQuery();
 			Metadata metadata = new Metadata();
 			while (rs.next()) metadata.put(rs.getString(1), rs.getBytes(2));
 			rs.close();
-			ps.close();
 			return metadata;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1645,7 +2638,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT metaKey, value FROM messageMetadata"
 					+ " WHERE (state = ? OR state = ?)"
 					+ " AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, DELIVERED.getValue());
 			ps.setInt(2, PENDING.getValue());
 			ps.setBytes(3, m.getBytes());
@@ -1653,7 +2646,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			Metadata metadata = new Metadata();
 			while (rs.next()) metadata.put(rs.getString(1), rs.getBytes(2));
 			rs.close();
-			ps.close();
 			return metadata;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1670,7 +2662,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT messageId, txCount > 0, seen FROM statuses"
 					+ " WHERE groupId = ? AND contactId = ? AND state = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			ps.setInt(2, c.getInt());
 			ps.setInt(3, DELIVERED.getValue());
@@ -1683,7 +2675,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				statuses.add(new MessageStatus(messageId, c, sent, seen));
 			}
 			rs.close();
-			ps.close();
 			return statuses;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1701,7 +2692,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT txCount > 0, seen FROM statuses"
 					+ " WHERE messageId = ? AND contactId = ? AND state = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			ps.setInt(3, DELIVERED.getValue());
@@ -1714,7 +2705,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			}
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return status;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1732,7 +2722,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT dependencyId, dependencyState"
 					+ " FROM messageDependencies"
 					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			Map<MessageId, State> dependencies = new HashMap<>();
@@ -1744,7 +2734,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				dependencies.put(dependency, state);
 			}
 			rs.close();
-			ps.close();
 			return dependencies;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1765,7 +2754,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " FROM messageDependencies"
 					+ " WHERE dependencyId = ?"
 					+ " AND dependencyState IS NOT NULL";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			Map<MessageId, State> dependents = new HashMap<>();
@@ -1775,7 +2764,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				dependents.put(dependent, state);
 			}
 			rs.close();
-			ps.close();
 			return dependents;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1791,14 +2779,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT state FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
 			State state = State.fromValue(rs.getInt(1));
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return state;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1816,14 +2803,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT messageId FROM statuses"
 					+ " WHERE contactId = ? AND ack = TRUE"
 					+ " LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, maxMessages);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1846,7 +2832,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE AND requested = FALSE"
 					+ " AND expiry < ?"
 					+ " ORDER BY timestamp LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			ps.setLong(3, now);
@@ -1855,7 +2841,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1873,14 +2858,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT messageId FROM offers"
 					+ " WHERE contactId = ?"
 					+ " LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, maxMessages);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1903,7 +2887,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE"
 					+ " AND expiry < ?"
 					+ " ORDER BY timestamp";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			ps.setLong(3, now);
@@ -1917,7 +2901,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				total += length;
 			}
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1943,15 +2926,19 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT messageId FROM messages"
-					+ " WHERE state = ? AND raw IS NOT NULL";
-			ps = txn.prepareStatement(sql);
+			// Skip the messages of removed groups that await purging
+			String sql = "SELECT messageId FROM messages AS m"
+					+ " JOIN groups AS g"
+					+ " ON m.groupId = g.groupId"
+					+ " WHERE state = ?"
+					+ " AND (raw IS NOT NULL OR external = TRUE)"
+					+ " AND g.removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1966,20 +2953,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
+			// Skip the messages of removed groups that await purging
 			String sql = "SELECT m.messageId FROM messages AS m"
 					+ " JOIN messageDependencies AS d"
 					+ " ON m.messageId = d.dependencyId"
 					+ " JOIN messages AS m1"
 					+ " ON d.messageId = m1.messageId"
+					+ " JOIN groups AS g"
+					+ " ON m.groupId = g.groupId"
 					+ " WHERE m.state = ?"
-					+ " AND m.shared = FALSE AND m1.shared = TRUE";
-			ps = txn.prepareStatement(sql);
+					+ " AND m.shared = FALSE AND m1.shared = TRUE"
+					+ " AND g.removed = FALSE";
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, DELIVERED.getValue());
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -1999,7 +2989,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND groupShared = TRUE AND messageShared = TRUE"
 					+ " AND deleted = FALSE AND seen = FALSE"
 					+ " ORDER BY expiry LIMIT 1";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
@@ -2009,7 +2999,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rs.next()) throw new AssertionError();
 			}
 			rs.close();
-			ps.close();
 			return nextSendTime;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -2025,15 +3014,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT raw FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT raw, external, compressed, length"
+					+ " FROM messages"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			if (!rs.next()) throw new DbStateException();
 			byte[] raw = rs.getBytes(1);
+			boolean external = rs.getBoolean(2);
+			boolean compressed = rs.getBoolean(3);
+			int length = rs.getInt(4);
 			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
+			if (external) raw = getBlob(m);
+			if (raw != null && compressed) raw = decompress(raw, length);
 			return raw;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -2042,6 +3037,129 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public Map<MessageId, byte[]> getRawMessages(Connection txn,
+			Collection<MessageId> ids) throws DbException {
+		List<MessageId> list = new ArrayList<>(ids);
+		Map<MessageId, byte[]> messages = new HashMap<>();
+		for (int i = 0; i < list.size(); i += MAX_RAW_MESSAGES_PER_QUERY) {
+			int end = Math.min(list.size(), i + MAX_RAW_MESSAGES_PER_QUERY);
+			getRawMessages(txn, list.subList(i, end), messages);
+		}
+		return messages;
+	}
+
+	private void getRawMessages(Connection txn, List<MessageId> ids,
+			Map<MessageId, byte[]> messages) throws DbException {
+		// Round the number of parameters up to a power of two, repeating the
+		// last ID, so only a few distinct statements are prepared
+		int params = Integer.highestOneBit(ids.size());
+		if (params < ids.size()) params <<= 1;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			StringBuilder sql = new StringBuilder(
+					"SELECT messageId, raw, external, compressed, length"
+							+ " FROM messages"
+							+ " WHERE messageId IN (?");
+			for (int i = 1; i < params; i++) sql.append(", ?");
+			sql.append(")");
+			ps = prepareStatement(txn, sql.toString());
+			for (int i = 0; i < params; i++) {
+				MessageId m = ids.get(Math.min(i, ids.size() - 1));
+				ps.setBytes(i + 1, m.getBytes());
+			}
+			rs = ps.executeQuery();
+			Set<MessageId> found = new HashSet<>();
+			while (rs.next()) {
+				MessageId m = new MessageId(rs.getBytes(1));
+				found.add(m);
+				byte[] raw = rs.getBytes(2);
+				if (rs.getBoolean(3)) raw = getBlob(m);
+				if (raw != null && rs.getBoolean(4))
+					raw = decompress(raw, rs.getInt(5));
+				if (raw != null) messages.put(m, raw);
+			}
+			rs.close();
+			if (!found.containsAll(ids)) throw new DbStateException();
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the length of the given message, or zero if the message has
+	 * been deleted or is not in the database.
+	 */
+	private int getStoredLength(Connection txn, MessageId m)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT length FROM messages"
+					+ " WHERE messageId = ?"
+					+ " AND (raw IS NOT NULL OR external = TRUE)";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			rs = ps.executeQuery();
+			int length = rs.next() ? rs.getInt(1) : 0;
+			if (rs.next()) throw new DbStateException();
+			rs.close();
+			return length;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	private byte[] getBlob(MessageId m) throws DbException {
+		if (blobStore == null) throw new DbException();
+		return blobStore.getBlob(m);
+	}
+
+	@Override
+	public Collection<ContactId> getRemovedContacts(Connection txn)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT contactId FROM contacts WHERE removed = TRUE";
+			ps = prepareStatement(txn, sql);
+			rs = ps.executeQuery();
+			List<ContactId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new ContactId(rs.getInt(1)));
+			rs.close();
+			return ids;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Collection<GroupId> getRemovedGroups(Connection txn)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT groupId FROM groups WHERE removed = TRUE";
+			ps = prepareStatement(txn, sql);
+			rs = ps.executeQuery();
+			List<GroupId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new GroupId(rs.getBytes(1)));
+			rs.close();
+			return ids;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public Collection<MessageId> getRequestedMessagesToSend(Connection txn,
 			ContactId c, int maxLength) throws DbException {
@@ -2056,7 +3174,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE AND requested = TRUE"
 					+ " AND expiry < ?"
 					+ " ORDER BY timestamp";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			ps.setLong(3, now);
@@ -2070,7 +3188,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				total += length;
 			}
 			rs.close();
-			ps.close();
 			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -2087,13 +3204,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT settingKey, value FROM settings"
 					+ " WHERE namespace = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, namespace);
 			rs = ps.executeQuery();
 			Settings s = new Settings();
 			while (rs.next()) s.put(rs.getString(1), rs.getString(2));
 			rs.close();
-			ps.close();
 			return s;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -2102,6 +3218,89 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public Collection<SyncState> getSyncStates(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, timestamp, length, state,"
+					+ " groupShared, messageShared, deleted, ack, seen,"
+					+ " requested, expiry, txCount"
+					+ " FROM statuses"
+					+ " WHERE contactId = ? AND (ack = TRUE"
+					+ " OR (state = ? AND groupShared = TRUE"
+					+ " AND messageShared = TRUE AND deleted = FALSE"
+					+ " AND seen = FALSE))"
+					// Skip the rows of removed groups that await purging
+					+ " AND groupId NOT IN"
+					+ " (SELECT groupId FROM groups WHERE removed = TRUE)"
+					+ " ORDER BY timestamp";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			ps.setInt(2, DELIVERED.getValue());
+			rs = ps.executeQuery();
+			List<SyncState> states = new ArrayList<>();
+			while (rs.next())
+				states.add(getSyncState(new MessageId(rs.getBytes(1)), rs));
+			rs.close();
+			return states;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Map<ContactId, SyncState> getSyncStates(Connection txn,
+			MessageId m) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT contactId, timestamp, length, state,"
+					+ " groupShared, messageShared, deleted, ack, seen,"
+					+ " requested, expiry, txCount"
+					+ " FROM statuses"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			rs = ps.executeQuery();
+			Map<ContactId, SyncState> states = new HashMap<>();
+			while (rs.next())
+				states.put(new ContactId(rs.getInt(1)), getSyncState(m, rs));
+			rs.close();
+			return states;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Reads a sync state from the current row of a result set, starting
+	 * from the second column.
+	 */
+	private SyncState getSyncState(MessageId m, ResultSet rs)
+			throws SQLException {
+		long timestamp = rs.getLong(2);
+		int length = rs.getInt(3);
+		State state = State.fromValue(rs.getInt(4));
+		boolean groupShared = rs.getBoolean(5);
+		boolean messageShared = rs.getBoolean(6);
+		boolean deleted = rs.getBoolean(7);
+		boolean ack = rs.getBoolean(8);
+		boolean seen = rs.getBoolean(9);
+		boolean requested = rs.getBoolean(10);
+		long expiry = rs.getLong(11);
+		int txCount = rs.getInt(12);
+		boolean sendable = state == DELIVERED && groupShared && messageShared
+				&& !deleted && !seen;
+		return new SyncState(m, timestamp, length, ack, sendable, requested,
+				expiry, txCount);
+	}
+
 	@Override
 	public Collection<KeySet> getTransportKeys(Connection txn, TransportId t)
 			throws DbException {
@@ -2114,7 +3313,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " FROM incomingKeys"
 					+ " WHERE transportId = ?"
 					+ " ORDER BY keySetId, periodOffset";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			List<IncomingKeys> inKeys = new ArrayList<>();
@@ -2128,14 +3327,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 						windowBase, windowBitmap));
 			}
 			rs.close();
-			ps.close();
 			// Retrieve the outgoing keys in the same order
 			sql = "SELECT keySetId, contactId, rotationPeriod,"
 					+ " tagKey, headerKey, stream, active"
 					+ " FROM outgoingKeys"
 					+ " WHERE transportId = ?"
 					+ " ORDER BY keySetId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			Collection<KeySet> keys = new ArrayList<>();
@@ -2159,7 +3357,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				keys.add(new KeySet(keySetId, contactId, transportKeys));
 			}
 			rs.close();
-			ps.close();
 			return keys;
 		} catch (SQLException e) {
 			tryToClose(rs);
@@ -2175,12 +3372,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE outgoingKeys SET stream = stream + 1"
 					+ " WHERE transportId = ? AND keySetId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.setInt(2, k.getInt());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2194,7 +3390,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET ack = FALSE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(2, c.getInt());
 			for (MessageId m : acked) {
 				ps.setBytes(1, m.getBytes());
@@ -2207,7 +3403,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rows < 0) throw new DbStateException();
 				if (rows > 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2221,7 +3416,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET requested = FALSE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(2, c.getInt());
 			for (MessageId m : requested) {
 				ps.setBytes(1, m.getBytes());
@@ -2234,7 +3429,75 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rows < 0) throw new DbStateException();
 				if (rows > 1) throw new DbStateException();
 			}
-			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public void markContactRemoved(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE contacts SET removed = TRUE"
+					+ " WHERE contactId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			int affected = ps.executeUpdate();
+			if (affected != 1) throw new DbStateException();
+			// Remove the rows that are small or needed for correctness now,
+			// leaving the status rows to be purged later. Incoming keys are
+			// removed by cascade
+			sql = "DELETE FROM outgoingKeys WHERE contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			sql = "DELETE FROM groupVisibilities WHERE contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			sql = "DELETE FROM offers WHERE contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+		} catch (SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public void markGroupRemoved(Connection txn, GroupId g)
+			throws DbException {
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE groups SET removed = TRUE"
+					+ " WHERE groupId = ? AND removed = FALSE";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			int affected = ps.executeUpdate();
+			if (affected != 1) throw new DbStateException();
+			// Remove the rows that are small or needed for correctness now,
+			// leaving the messages and their status rows to be purged later
+			sql = "DELETE FROM groupVisibilities WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			sql = "DELETE FROM groupMetadata WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			sql = "DELETE FROM groupCounts WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2252,7 +3515,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Insert any keys that don't already exist
 			String sql = "INSERT INTO groupMetadata (groupId, metaKey, value)"
 					+ " VALUES (?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			for (Entry<String, byte[]> e : added.entrySet()) {
 				ps.setString(2, e.getKey());
@@ -2264,52 +3527,196 @@ abstract class JdbcDatabase implements Database<Connection> {
 				throw new DbStateException();
 			for (int rows : batchAffected)
 				if (rows != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
 
-	@Override
-	public void mergeMessageMetadata(Connection txn, MessageId m,
-			Metadata meta) throws DbException {
+	@Override
+	public void mergeMessageMetadata(Connection txn, MessageId m,
+			Metadata meta) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			Map<String, byte[]> added = removeOrUpdateMetadata(txn,
+					m.getBytes(), meta, "messageMetadata", "messageId");
+			// Get the group ID and message state for the denormalised
+			// columns, and the group's client for the metadata index
+			String sql = "SELECT m.groupId, state, clientId, majorVersion"
+					+ " FROM messages AS m"
+					+ " JOIN groups AS g"
+					+ " ON m.groupId = g.groupId"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			rs = ps.executeQuery();
+			if (!rs.next()) throw new DbStateException();
+			GroupId g = new GroupId(rs.getBytes(1));
+			State state = State.fromValue(rs.getInt(2));
+			ClientId c = new ClientId(rs.getString(3));
+			int majorVersion = rs.getInt(4);
+			rs.close();
+			updateMetadataIndex(txn, m, g, state, meta,
+					getIndexedMetadataKeys(txn, c, majorVersion));
+			if (added.isEmpty()) return;
+			// Insert any keys that don't already exist
+			sql = "INSERT INTO messageMetadata"
+					+ " (messageId, groupId, state, metaKey, value)"
+					+ " VALUES (?, ?, ?, ?, ?)";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			ps.setBytes(2, g.getBytes());
+			ps.setInt(3, state.getValue());
+			for (Entry<String, byte[]> e : added.entrySet()) {
+				ps.setString(4, e.getKey());
+				ps.setBytes(5, e.getValue());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != added.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Updates the metadata index for any of the given message's metadata
+	 * entries that belong to the given indexed keys.
+	 */
+	private void updateMetadataIndex(Connection txn, MessageId m, GroupId g,
+			State state, Metadata meta,
+			Map<String, IndexedMetadataType> indexed) throws DbException {
+		if (indexed.isEmpty()) return;
+		PreparedStatement ps = null;
+		try {
+			// Delete the old entries for any indexed keys that are changing
+			String sql = "DELETE FROM messageMetadataIndex"
+					+ " WHERE messageId = ? AND metaKey = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			int deleted = 0;
+			for (String key : meta.keySet()) {
+				if (indexed.containsKey(key)) {
+					ps.setString(2, key);
+					ps.addBatch();
+					deleted++;
+				}
+			}
+			if (deleted == 0) return;
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != deleted) throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows < 0 || rows > 1) throw new DbStateException();
+			// Insert the new entries for any values of the declared types
+			sql = "INSERT INTO messageMetadataIndex"
+					+ " (messageId, groupId, state, metaKey, longValue,"
+					+ " bytesValue)"
+					+ " VALUES (?, ?, ?, ?, ?, ?)";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			ps.setBytes(2, g.getBytes());
+			ps.setInt(3, state.getValue());
+			int inserted = 0;
+			for (Entry<String, byte[]> e : meta.entrySet()) {
+				IndexedMetadataType type = indexed.get(e.getKey());
+				if (type == null || e.getValue() == REMOVE) continue;
+				if (setIndexedValue(ps, 5, type, e.getValue())) {
+					ps.setString(4, e.getKey());
+					ps.addBatch();
+					inserted++;
+				}
+			}
+			if (inserted == 0) return;
+			batchAffected = ps.executeBatch();
+			if (batchAffected.length != inserted) throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+		} catch (SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the indexed metadata keys declared by the client that owns the
+	 * given group, and their types.
+	 */
+	private Map<String, IndexedMetadataType> getIndexedMetadataKeys(
+			Connection txn, GroupId g) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			Map<String, byte[]> added = removeOrUpdateMetadata(txn,
-					m.getBytes(), meta, "messageMetadata", "messageId");
-			if (added.isEmpty()) return;
-			// Get the group ID and message state for the denormalised columns
-			String sql = "SELECT groupId, state FROM messages"
-					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getBytes());
+			String sql = "SELECT clientId, majorVersion FROM groups"
+					+ " WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
-			if (!rs.next()) throw new DbStateException();
-			GroupId g = new GroupId(rs.getBytes(1));
-			State state = State.fromValue(rs.getInt(2));
+			if (!rs.next()) {
+				// No such group, so no keys are indexed
+				rs.close();
+				return emptyMap();
+			}
+			ClientId c = new ClientId(rs.getString(1));
+			int majorVersion = rs.getInt(2);
+			if (rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
-			// Insert any keys that don't already exist
-			sql = "INSERT INTO messageMetadata"
-					+ " (messageId, groupId, state, metaKey, value)"
-					+ " VALUES (?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getBytes());
-			ps.setBytes(2, g.getBytes());
-			ps.setInt(3, state.getValue());
-			for (Entry<String, byte[]> e : added.entrySet()) {
-				ps.setString(4, e.getKey());
-				ps.setBytes(5, e.getValue());
-				ps.addBatch();
+			return getIndexedMetadataKeys(txn, c, majorVersion);
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the indexed metadata keys declared by the given client, and
+	 * their types. The declarations are loaded from the database the first
+	 * time they're needed and cached until they change.
+	 */
+	private Map<String, IndexedMetadataType> getIndexedMetadataKeys(
+			Connection txn, ClientId c, int majorVersion)
+			throws DbException {
+		ClientMajorVersion cv = new ClientMajorVersion(c, majorVersion);
+		boolean changed = indexedKeysChanged.contains(txn);
+		long generation;
+		synchronized (indexedKeysLock) {
+			if (!changed) {
+				Map<String, IndexedMetadataType> cached = indexedKeys.get(cv);
+				if (cached != null) return cached;
 			}
-			int[] batchAffected = ps.executeBatch();
-			if (batchAffected.length != added.size())
-				throw new DbStateException();
-			for (int rows : batchAffected)
-				if (rows != 1) throw new DbStateException();
-			ps.close();
+			generation = indexedKeysGeneration;
+		}
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT metaKey, type FROM indexedMetadataKeys"
+					+ " WHERE clientId = ? AND majorVersion = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			rs = ps.executeQuery();
+			Map<String, IndexedMetadataType> indexed = new HashMap<>();
+			while (rs.next()) {
+				indexed.put(rs.getString(1),
+						IndexedMetadataType.fromValue(rs.getInt(2)));
+			}
+			rs.close();
+			indexed = unmodifiableMap(indexed);
+			// Don't cache declarations that haven't been committed, or that
+			// were loaded before another transaction changed them
+			if (!changed) {
+				synchronized (indexedKeysLock) {
+					if (generation == indexedKeysGeneration)
+						indexedKeys.put(cv, indexed);
+				}
+			}
+			return indexed;
 		} catch (SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -2335,7 +3742,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			if (!removed.isEmpty()) {
 				String sql = "DELETE FROM " + tableName
 						+ " WHERE " + columnName + " = ? AND metaKey = ?";
-				ps = txn.prepareStatement(sql);
+				ps = prepareStatement(txn, sql);
 				ps.setBytes(1, id);
 				for (String key : removed) {
 					ps.setString(2, key);
@@ -2348,13 +3755,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 					if (rows < 0) throw new DbStateException();
 					if (rows > 1) throw new DbStateException();
 				}
-				ps.close();
 			}
 			if (notRemoved.isEmpty()) return Collections.emptyMap();
 			// Update any keys that already exist
 			String sql = "UPDATE " + tableName + " SET value = ?"
 					+ " WHERE " + columnName + " = ? AND metaKey = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(2, id);
 			for (Entry<String, byte[]> e : notRemoved.entrySet()) {
 				ps.setBytes(1, e.getValue());
@@ -2368,7 +3774,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rows < 0) throw new DbStateException();
 				if (rows > 1) throw new DbStateException();
 			}
-			ps.close();
 			// Are there any keys that don't already exist?
 			Map<String, byte[]> added = new HashMap<>();
 			int updateIndex = 0;
@@ -2391,7 +3796,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Update any settings that already exist
 			String sql = "UPDATE settings SET value = ?"
 					+ " WHERE namespace = ? AND settingKey = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			for (Entry<String, String> e : s.entrySet()) {
 				ps.setString(1, e.getValue());
 				ps.setString(2, namespace);
@@ -2407,7 +3812,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Insert any settings that don't already exist
 			sql = "INSERT INTO settings (namespace, settingKey, value)"
 					+ " VALUES (?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			int updateIndex = 0, inserted = 0;
 			for (Entry<String, String> e : s.entrySet()) {
 				if (batchAffected[updateIndex] == 0) {
@@ -2423,13 +3828,115 @@ abstract class JdbcDatabase implements Database<Connection> {
 			if (batchAffected.length != inserted) throw new DbStateException();
 			for (int rows : batchAffected)
 				if (rows != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
 
+	@Override
+	public boolean purgeRemovedContact(Connection txn, ContactId c,
+			int maxRows) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId FROM statuses"
+					+ " WHERE contactId = ?"
+					+ " LIMIT ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			ps.setInt(2, maxRows);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			if (!ids.isEmpty()) {
+				sql = "DELETE FROM statuses"
+						+ " WHERE messageId = ? AND contactId = ?";
+				ps = prepareStatement(txn, sql);
+				for (MessageId m : ids) {
+					ps.setBytes(1, m.getBytes());
+					ps.setInt(2, c.getInt());
+					ps.addBatch();
+				}
+				int[] batchAffected = ps.executeBatch();
+				if (batchAffected.length != ids.size())
+					throw new DbStateException();
+				for (int rows : batchAffected)
+					if (rows != 1) throw new DbStateException();
+			}
+			// A full chunk may have been followed by more rows
+			if (ids.size() == maxRows) return false;
+			sql = "DELETE FROM contacts"
+					+ " WHERE contactId = ? AND removed = TRUE";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			int affected = ps.executeUpdate();
+			if (affected != 1) throw new DbStateException();
+			return true;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public boolean purgeRemovedGroup(Connection txn, GroupId g,
+			int maxMessages) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, length, external,"
+					+ " raw IS NOT NULL OR external = TRUE"
+					+ " FROM messages"
+					+ " WHERE groupId = ?"
+					+ " LIMIT ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, maxMessages);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			long deleted = 0;
+			while (rs.next()) {
+				MessageId m = new MessageId(rs.getBytes(1));
+				ids.add(m);
+				if (rs.getBoolean(4)) deleted += rs.getInt(2);
+				if (blobStore != null && rs.getBoolean(3))
+					removeBlobOnCommit(txn, m);
+			}
+			rs.close();
+			if (!ids.isEmpty()) {
+				// The messages' metadata, dependencies and status rows will
+				// be removed by cascade
+				sql = "DELETE FROM messages WHERE messageId = ?";
+				ps = prepareStatement(txn, sql);
+				for (MessageId m : ids) {
+					ps.setBytes(1, m.getBytes());
+					ps.addBatch();
+				}
+				int[] batchAffected = ps.executeBatch();
+				if (batchAffected.length != ids.size())
+					throw new DbStateException();
+				for (int rows : batchAffected)
+					if (rows != 1) throw new DbStateException();
+				diskUsage.recordDelete(deleted);
+			}
+			// A full chunk may have been followed by more messages
+			if (ids.size() == maxMessages) return false;
+			sql = "DELETE FROM groups WHERE groupId = ? AND removed = TRUE";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			int affected = ps.executeUpdate();
+			if (affected != 1) throw new DbStateException();
+			return true;
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public void raiseAckFlag(Connection txn, ContactId c, MessageId m)
 			throws DbException {
@@ -2437,12 +3944,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET ack = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2456,12 +3962,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET requested = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2475,12 +3980,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET seen = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2493,11 +3997,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM contacts WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2507,14 +4010,31 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public void removeGroup(Connection txn, GroupId g) throws DbException {
 		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-			String sql = "DELETE FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			// The group's messages will be removed by cascade, so find the
+			// space they use and the blobs that need to be removed
+			String sql = "SELECT messageId, length, external FROM messages"
+					+ " WHERE groupId = ?"
+					+ " AND (raw IS NOT NULL OR external = TRUE)";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			rs = ps.executeQuery();
+			long deleted = 0;
+			while (rs.next()) {
+				deleted += rs.getInt(2);
+				if (blobStore != null && rs.getBoolean(3))
+					removeBlobOnCommit(txn, new MessageId(rs.getBytes(1)));
+			}
+			rs.close();
+			diskUsage.recordDelete(deleted);
+			sql = "DELETE FROM groups WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
+			tryToClose(rs);
 			tryToClose(ps);
 			throw new DbException(e);
 		}
@@ -2527,21 +4047,19 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM groupVisibilities"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 			// Remove status rows for the messages in the group
 			sql = "DELETE FROM statuses"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2554,11 +4072,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM localAuthors WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2567,14 +4084,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void removeMessage(Connection txn, MessageId m) throws DbException {
+		diskUsage.recordDelete(getStoredLength(txn, m));
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
+			if (blobStore != null) removeBlobOnCommit(txn, m);
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2587,12 +4105,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM offers"
 					+ " WHERE contactId = ? AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			return affected == 1;
 		} catch (SQLException e) {
 			tryToClose(ps);
@@ -2607,7 +4124,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM offers"
 					+ " WHERE contactId = ? AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			for (MessageId m : requested) {
 				ps.setBytes(2, m.getBytes());
@@ -2618,7 +4135,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				throw new DbStateException();
 			for (int rows : batchAffected)
 				if (rows != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2631,11 +4147,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM transports WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2651,12 +4166,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// incoming keys with the same key set ID
 			String sql = "DELETE FROM outgoingKeys"
 					+ " WHERE transportId = ? AND keySetId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.setInt(2, k.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2670,12 +4184,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET expiry = 0, txCount = 0"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2688,12 +4201,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "UPDATE contacts SET verified = ? WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, true);
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2706,12 +4218,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "UPDATE contacts SET active = ? WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, active);
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2725,23 +4236,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE groupVisibilities SET shared = ?"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, shared);
 			ps.setInt(2, c.getInt());
 			ps.setBytes(3, g.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in statuses
 			sql = "UPDATE statuses SET groupShared = ?"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, shared);
 			ps.setInt(2, c.getInt());
 			ps.setBytes(3, g.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2755,19 +4264,17 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE messages SET shared = TRUE"
 					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in statuses
 			sql = "UPDATE statuses SET messageShared = TRUE"
 					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2780,47 +4287,50 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "UPDATE messages SET state = ? WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			ps.setBytes(2, m.getBytes());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in messageMetadata
 			sql = "UPDATE messageMetadata SET state = ? WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, state.getValue());
+			ps.setBytes(2, m.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			// Update denormalised column in messageMetadataIndex
+			sql = "UPDATE messageMetadataIndex SET state = ?"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			ps.setBytes(2, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in statuses
 			sql = "UPDATE statuses SET state = ? WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			ps.setBytes(2, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in messageDependencies
 			sql = "UPDATE messageDependencies SET messageState = ?"
 					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			ps.setBytes(2, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 			// Update denormalised column in messageDependencies if dependency
 			// is present and in same group as dependent
 			sql = "UPDATE messageDependencies SET dependencyState = ?"
 					+ " WHERE dependencyId = ? AND dependencyState IS NOT NULL";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, state.getValue());
 			ps.setBytes(2, m.getBytes());
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2835,7 +4345,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE incomingKeys SET base = ?, bitmap = ?"
 					+ " WHERE transportId = ? AND keySetId = ?"
 					+ " AND rotationPeriod = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, base);
 			ps.setBytes(2, bitmap);
 			ps.setString(3, t.getString());
@@ -2843,7 +4353,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setLong(5, rotationPeriod);
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2857,12 +4366,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE outgoingKeys SET active = true"
 					+ " WHERE transportId = ? AND keySetId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.setInt(2, k.getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2872,32 +4380,93 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public void updateExpiryTime(Connection txn, ContactId c, MessageId m,
 			int maxLatency) throws DbException {
+		updateExpiryTimes(txn, c, singletonList(m), maxLatency);
+	}
+
+	@Override
+	public void updateExpiryTimes(Connection txn, ContactId c,
+			Collection<MessageId> ids, int maxLatency) throws DbException {
+		if (ids.isEmpty()) return;
+		long now = clock.currentTimeMillis();
+		// Below this transmission count the expiry time is
+		// now + roundTrip * 2 ^ txCount, above it the expiry time overflows.
+		// This lets the database calculate the expiry time of each message
+		// from its own transmission count
+		int overflowTxCount = 0;
+		while (calculateExpiry(now, maxLatency, overflowTxCount)
+				!= Long.MAX_VALUE) {
+			overflowTxCount++;
+		}
+		long roundTrip = maxLatency * 2L;
 		PreparedStatement ps = null;
-		ResultSet rs = null;
 		try {
-			String sql = "SELECT txCount FROM statuses"
-					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getBytes());
-			ps.setInt(2, c.getInt());
-			rs = ps.executeQuery();
-			if (!rs.next()) throw new DbStateException();
-			int txCount = rs.getInt(1);
-			if (rs.next()) throw new DbStateException();
-			rs.close();
-			ps.close();
-			sql = "UPDATE statuses SET expiry = ?, txCount = txCount + 1"
+			String sql = "UPDATE statuses"
+					+ " SET expiry = CASE WHEN txCount >= ?"
+					+ " THEN CAST(? AS BIGINT)"
+					+ " ELSE CAST(? AS BIGINT) + CAST(? AS BIGINT)"
+					+ " * CAST(POWER(2, txCount) AS BIGINT) END,"
+					+ " txCount = txCount + 1"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
-			long now = clock.currentTimeMillis();
-			ps.setLong(1, calculateExpiry(now, maxLatency, txCount));
-			ps.setBytes(2, m.getBytes());
-			ps.setInt(3, c.getInt());
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, overflowTxCount);
+			ps.setLong(2, Long.MAX_VALUE);
+			ps.setLong(3, now);
+			ps.setLong(4, roundTrip);
+			ps.setInt(6, c.getInt());
+			for (MessageId m : ids) {
+				ps.setBytes(5, m.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != ids.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+		} catch (SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public void updateGroupCounts(Connection txn, GroupId g,
+			int msgCountDelta, int unreadCountDelta, long latestMsgTime)
+			throws DbException {
+		PreparedStatement ps = null;
+		try {
+			// Update the counts in place unless either would become negative
+			String sql = "UPDATE groupCounts"
+					+ " SET msgCount = msgCount + ?,"
+					+ " unreadCount = unreadCount + ?,"
+					+ " latestMsgTime = CASE WHEN latestMsgTime > ?"
+					+ " THEN latestMsgTime ELSE ? END"
+					+ " WHERE groupId = ?"
+					+ " AND msgCount + ? >= 0 AND unreadCount + ? >= 0";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, msgCountDelta);
+			ps.setInt(2, unreadCountDelta);
+			ps.setLong(3, latestMsgTime);
+			ps.setLong(4, latestMsgTime);
+			ps.setBytes(5, g.getBytes());
+			ps.setInt(6, msgCountDelta);
+			ps.setInt(7, unreadCountDelta);
 			int affected = ps.executeUpdate();
+			if (affected < 0 || affected > 1) throw new DbStateException();
+			if (affected == 1) return;
+			// Either the row doesn't exist or a count would become negative
+			if (msgCountDelta < 0 || unreadCountDelta < 0)
+				throw new DbStateException();
+			sql = "INSERT INTO groupCounts"
+					+ " (groupId, msgCount, unreadCount, latestMsgTime)"
+					+ " VALUES (?, ?, ?, ?)";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, msgCountDelta);
+			ps.setInt(3, unreadCountDelta);
+			ps.setLong(4, latestMsgTime);
+			affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
-			tryToClose(rs);
 			tryToClose(ps);
 			throw new DbException(e);
 		}
@@ -2912,7 +4481,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE outgoingKeys SET rotationPeriod = ?,"
 					+ " tagKey = ?, headerKey = ?, stream = ?"
 					+ " WHERE transportId = ? AND keySetId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			TransportKeys k = ks.getTransportKeys();
 			OutgoingKeys outCurr = k.getCurrentOutgoingKeys();
 			ps.setLong(1, outCurr.getRotationPeriod());
@@ -2923,13 +4492,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setInt(6, ks.getKeySetId().getInt());
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Update the incoming keys
 			sql = "UPDATE incomingKeys SET rotationPeriod = ?,"
 					+ " tagKey = ?, headerKey = ?, base = ?, bitmap = ?"
 					+ " WHERE transportId = ? AND keySetId = ?"
 					+ " AND periodOffset = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(6, k.getTransportId().getString());
 			ps.setInt(7, ks.getKeySetId().getInt());
 			// Previous rotation period
@@ -2963,10 +4531,127 @@ abstract class JdbcDatabase implements Database<Connection> {
 			if (batchAffected.length != 3) throw new DbStateException();
 			for (int rows : batchAffected)
 				if (rows < 0 || rows > 1) throw new DbStateException();
-			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
+
+	@Override
+	public void visitMessageMetadata(Connection txn, GroupId g,
+			MetadataVisitor v) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, metaKey, value"
+					+ " FROM messageMetadata"
+					+ " WHERE groupId = ? AND state = ?"
+					+ " ORDER BY messageId";
+			ps = prepareUncachedStatement(txn, sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, DELIVERED.getValue());
+			rs = ps.executeQuery();
+			visitMetadataRows(rs, v);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		} finally {
+			// The statement isn't cached, so close it even if the visitor
+			// throws an exception
+			tryToClose(rs);
+			tryToClose(ps);
+		}
+	}
+
+	@Override
+	public void visitMessageMetadata(Connection txn, GroupId g,
+			Metadata query, MetadataVisitor v) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			if (query.isEmpty()) {
+				// Match all delivered messages, including any without metadata
+				String sql = "SELECT m.messageId, metaKey, value"
+						+ " FROM messages AS m"
+						+ " LEFT OUTER JOIN messageMetadata AS md"
+						+ " ON m.messageId = md.messageId"
+						+ " WHERE m.groupId = ? AND m.state = ?"
+						+ " ORDER BY m.messageId";
+				ps = prepareUncachedStatement(txn, sql);
+				ps.setBytes(1, g.getBytes());
+				ps.setInt(2, DELIVERED.getValue());
+			} else {
+				Map<String, Object> indexed = getIndexedTerms(txn, g, query);
+				String sql = "SELECT md.messageId, metaKey, value"
+						+ " FROM messageMetadata AS md"
+						+ " JOIN (" + getQueryMatchesSql(query, indexed)
+						+ ") AS matches"
+						+ " ON md.messageId = matches.messageId"
+						+ " ORDER BY md.messageId";
+				ps = prepareUncachedStatement(txn, sql);
+				setQueryMatchesParameters(ps, 1, g, query, indexed);
+			}
+			rs = ps.executeQuery();
+			visitMetadataRows(rs, v);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		} finally {
+			tryToClose(rs);
+			tryToClose(ps);
+		}
+	}
+
+	/**
+	 * Passes the metadata in the given rows of message IDs, keys and values,
+	 * which are sorted by message ID, to the given visitor. A row with a null
+	 * key belongs to a message without metadata.
+	 */
+	private void visitMetadataRows(ResultSet rs, MetadataVisitor v)
+			throws SQLException, DbException {
+		MessageId lastMessageId = null;
+		Metadata metadata = null;
+		while (rs.next()) {
+			MessageId messageId = new MessageId(rs.getBytes(1));
+			if (!messageId.equals(lastMessageId)) {
+				if (metadata != null) v.visit(lastMessageId, metadata);
+				lastMessageId = messageId;
+				metadata = new Metadata();
+			}
+			String key = rs.getString(2);
+			if (key != null) metadata.put(key, rs.getBytes(3));
+		}
+		if (metadata != null) v.visit(lastMessageId, metadata);
+	}
+
+	@Override
+	public void visitMessageMetadata(Connection txn, GroupId g,
+			Metadata query, MetadataRange range, MetadataVisitor v)
+			throws DbException {
+		Map<String, IndexedMetadataType> keys =
+				getIndexedMetadataKeys(txn, g);
+		if (keys.get(range.getKey()) != LONG) {
+			Map<MessageId, Metadata> selected = MetadataRanges.select(
+					getMessageMetadata(txn, g, query), range, true);
+			for (Entry<MessageId, Metadata> e : selected.entrySet())
+				v.visit(e.getKey(), e.getValue());
+			return;
+		}
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		List<MessageId> ids = new ArrayList<>();
+		try {
+			Map<String, Object> indexed = getIndexedTerms(keys, query);
+			String sql = getRangeMatchesSql(query, indexed, range, false);
+			ps = prepareStatement(txn, sql);
+			setRangeMatchesParameters(ps, g, query, indexed, range, false);
+			rs = ps.executeQuery();
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+		} catch (SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+		// Retrieve the metadata of the selected messages by primary key
+		for (MessageId m : ids) v.visit(m, getMessageMetadata(txn, m));
+	}
 }
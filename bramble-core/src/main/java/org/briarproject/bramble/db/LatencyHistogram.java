@@ -0,0 +1,71 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A histogram of durations in microseconds, with a bucket for each power
+ * of two.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class LatencyHistogram {
+
+	// Bucket i counts durations of less than 2^i microseconds
+	private static final int BUCKETS = 40;
+
+	private final long[] buckets = new long[BUCKETS];
+
+	private long count = 0, total = 0, max = 0;
+
+	void record(long micros) {
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets[Math.min(bucket, BUCKETS - 1)]++;
+		count++;
+		total += micros;
+		if (micros > max) max = micros;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the sum of the recorded durations in microseconds.
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns an upper bound on the given percentile of the recorded
+	 * durations in microseconds.
+	 */
+	long getPercentile(double percentile) {
+		long threshold = (long) Math.ceil(count * percentile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= threshold) return 1L << i;
+		}
+		return max;
+	}
+
+	/**
+	 * Appends a one-line summary of the histogram to the given builder.
+	 */
+	void appendSummary(StringBuilder sb) {
+		sb.append(total).append(" us total");
+		if (count == 0) return;
+		sb.append(", ").append(total / count).append(" us mean");
+		sb.append(", p50 < ").append(getPercentile(0.5)).append(" us");
+		sb.append(", p90 < ").append(getPercentile(0.9)).append(" us");
+		sb.append(", p99 < ").append(getPercentile(0.99)).append(" us");
+		sb.append(", max ").append(max).append(" us");
+	}
+}
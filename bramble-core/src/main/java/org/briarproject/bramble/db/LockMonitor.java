@@ -0,0 +1,269 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Arrays.asList;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Records how long transactions wait for the database lock and how long
+ * they hold it, split by the type of lock and the component that started
+ * the transaction, and logs write transactions that hold the lock for too
+ * long.
+ * <p/>
+ * Finding the component that started a transaction requires a stack trace,
+ * so components are only identified if fine logging is enabled. Otherwise
+ * the statistics for all components are combined.
+ * <p/>
+ * The lock is not reentrant, so each thread waits for or holds at most one
+ * lock at a time.
+ */
+@ThreadSafe
+@NotNullByDefault
+class LockMonitor {
+
+	private static final Logger LOG =
+			Logger.getLogger(LockMonitor.class.getName());
+
+	private static final int NANOS_PER_MICRO = 1000;
+	private static final int MICROS_PER_MILLI = 1000;
+	private static final String UNKNOWN_COMPONENT = "unknown";
+
+	// Classes that start transactions on behalf of other components
+	private static final List<String> HELPER_CLASSES = asList(
+			LockMonitor.class.getName(),
+			DatabaseComponentImpl.class.getName(),
+			GroupCommitterImpl.class.getName(),
+			"org.briarproject.bramble.client.ClientHelperImpl");
+
+	// Packages of the platform classes that run other components' code
+	private static final List<String> PLATFORM_PACKAGES = asList(
+			"java.", "javax.", "sun.", "jdk.", "android.", "dalvik.");
+
+	private final String name;
+	private final long slowWriteHoldTime;
+	private final ThreadLocal<Hold> holds = new ThreadLocal<>();
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private final Map<String, LockStats> stats = new HashMap<>();
+
+	/**
+	 * @param name the name of the lock, used for logging
+	 * @param slowWriteHoldTime the time in milliseconds after which a write
+	 * transaction is considered to have held the lock for too long
+	 */
+	LockMonitor(String name, long slowWriteHoldTime) {
+		this.name = name;
+		this.slowWriteHoldTime = slowWriteHoldTime;
+	}
+
+	/**
+	 * Called before the current thread waits for the lock.
+	 */
+	void waiting(boolean write) {
+		Throwable stack = null;
+		String component = UNKNOWN_COMPONENT;
+		if (LOG.isLoggable(FINE)) {
+			stack = new Throwable("Transaction started");
+			component = getComponent(stack.getStackTrace());
+		}
+		holds.set(new Hold(write, component, stack, System.nanoTime()));
+	}
+
+	/**
+	 * Called when the current thread has acquired the lock.
+	 */
+	void acquired() {
+		Hold h = holds.get();
+		if (h == null) throw new IllegalStateException();
+		h.acquired = System.nanoTime();
+		getStats(h).recordWait((h.acquired - h.waiting) / NANOS_PER_MICRO);
+	}
+
+	/**
+	 * Called when the current thread has released the lock.
+	 */
+	void released() {
+		Hold h = holds.get();
+		if (h == null) throw new IllegalStateException();
+		holds.remove();
+		long micros = (System.nanoTime() - h.acquired) / NANOS_PER_MICRO;
+		boolean slow = h.write && micros > slowWriteHoldTime * MICROS_PER_MILLI;
+		getStats(h).recordHold(micros, slow);
+		if (slow && LOG.isLoggable(WARNING)) {
+			String message = name + " held for writing by " + h.component
+					+ " for " + micros / MICROS_PER_MILLI + " ms";
+			if (h.stack == null) LOG.warning(message);
+			else LOG.log(WARNING, message, h.stack);
+		}
+	}
+
+	// Package access for testing
+	@Nullable
+	LockStats getStats(boolean write, String component) {
+		synchronized (lock) {
+			return stats.get(getKey(write, component));
+		}
+	}
+
+	/**
+	 * Returns a report of the recorded statistics, ordered by the total
+	 * time each type of lock was held by each component.
+	 */
+	String getReport() {
+		List<Entry<String, LockStats>> sorted;
+		synchronized (lock) {
+			sorted = new ArrayList<>(stats.entrySet());
+		}
+		Collections.sort(sorted, new Comparator<Entry<String, LockStats>>() {
+			@Override
+			public int compare(Entry<String, LockStats> a,
+					Entry<String, LockStats> b) {
+				long aTotal = a.getValue().getTotalHoldTime();
+				long bTotal = b.getValue().getTotalHoldTime();
+				if (aTotal == bTotal) return 0;
+				return aTotal > bTotal ? -1 : 1;
+			}
+		});
+		StringBuilder sb = new StringBuilder(name).append(" statistics\n");
+		for (Entry<String, LockStats> e : sorted) {
+			sb.append(e.getKey()).append('\n');
+			e.getValue().appendReport(sb);
+		}
+		return sb.toString();
+	}
+
+	void logReport() {
+		synchronized (lock) {
+			if (stats.isEmpty()) return;
+		}
+		if (LOG.isLoggable(INFO)) LOG.info(getReport());
+	}
+
+	private LockStats getStats(Hold h) {
+		String key = getKey(h.write, h.component);
+		synchronized (lock) {
+			LockStats s = stats.get(key);
+			if (s == null) {
+				s = new LockStats();
+				stats.put(key, s);
+			}
+			return s;
+		}
+	}
+
+	private String getKey(boolean write, String component) {
+		return (write ? "Write lock, " : "Read lock, ") + component;
+	}
+
+	/**
+	 * Returns the simple name of the outermost class of the first caller
+	 * that isn't part of the database component, a helper that starts
+	 * transactions for other components, or the platform. Transactions
+	 * started by the group committer on behalf of several components are
+	 * therefore attributed to the unknown component.
+	 */
+	static String getComponent(StackTraceElement[] stack) {
+		for (StackTraceElement e : stack) {
+			String className = e.getClassName();
+			int dollar = className.indexOf('$');
+			if (dollar != -1) className = className.substring(0, dollar);
+			if (HELPER_CLASSES.contains(className)) continue;
+			if (isPlatformClass(className)) continue;
+			return className.substring(className.lastIndexOf('.') + 1);
+		}
+		return UNKNOWN_COMPONENT;
+	}
+
+	private static boolean isPlatformClass(String className) {
+		for (String prefix : PLATFORM_PACKAGES)
+			if (className.startsWith(prefix)) return true;
+		return false;
+	}
+
+	@NotNullByDefault
+	private static class Hold {
+
+		private final boolean write;
+		private final String component;
+		@Nullable
+		private final Throwable stack;
+		private final long waiting;
+
+		private long acquired = 0;
+
+		private Hold(boolean write, String component,
+				@Nullable Throwable stack, long waiting) {
+			this.write = write;
+			this.component = component;
+			this.stack = stack;
+			this.waiting = waiting;
+		}
+	}
+
+	@ThreadSafe
+	@NotNullByDefault
+	static class LockStats {
+
+		@GuardedBy("this")
+		private final LatencyHistogram waits = new LatencyHistogram();
+		@GuardedBy("this")
+		private final LatencyHistogram holds = new LatencyHistogram();
+		@GuardedBy("this")
+		private long slowHolds = 0;
+
+		private synchronized void recordWait(long micros) {
+			waits.record(micros);
+		}
+
+		private synchronized void recordHold(long micros, boolean slow) {
+			holds.record(micros);
+			if (slow) slowHolds++;
+		}
+
+		synchronized long getWaitCount() {
+			return waits.getCount();
+		}
+
+		synchronized long getHoldCount() {
+			return holds.getCount();
+		}
+
+		/**
+		 * Returns the total time the lock was held, in microseconds.
+		 */
+		synchronized long getTotalHoldTime() {
+			return holds.getTotal();
+		}
+
+		synchronized long getSlowHoldCount() {
+			return slowHolds;
+		}
+
+		private synchronized void appendReport(StringBuilder sb) {
+			sb.append("  ").append(holds.getCount()).append(" holds, ");
+			sb.append(slowHolds).append(" slow\n");
+			sb.append("  Waiting: ");
+			waits.appendSummary(sb);
+			sb.append("\n  Holding: ");
+			holds.appendSummary(sb);
+			sb.append('\n');
+		}
+	}
+}
@@ -0,0 +1,2322 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DataTooNewException;
+import org.briarproject.bramble.api.db.DataTooOldException;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbClosedException;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.IndexedMetadataType;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.db.MetadataVisitor;
+import org.briarproject.bramble.api.db.MigrationListener;
+import org.briarproject.bramble.api.identity.Author;
+import org.briarproject.bramble.api.identity.AuthorId;
+import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.Group.Visibility;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.MessageStatus;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.transport.IncomingKeys;
+import org.briarproject.bramble.api.transport.KeySet;
+import org.briarproject.bramble.api.transport.KeySetId;
+import org.briarproject.bramble.api.transport.OutgoingKeys;
+import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.util.StringUtils;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.db.TransactionStore;
+import org.h2.mvstore.db.TransactionStore.Transaction;
+import org.h2.mvstore.db.TransactionStore.TransactionMap;
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.util.Collections.singletonList;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.api.db.Metadata.REMOVE;
+import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
+import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
+import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.PENDING;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.UNKNOWN;
+import static org.briarproject.bramble.db.DatabaseConstants.DB_SETTINGS_NAMESPACE;
+import static org.briarproject.bramble.db.DatabaseConstants.DISK_USAGE_RECONCILE_INTERVAL;
+import static org.briarproject.bramble.db.DatabaseConstants.SCHEMA_VERSION_KEY;
+import static org.briarproject.bramble.db.ExponentialBackoff.calculateExpiry;
+import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.StringUtils.fromUtf8;
+import static org.briarproject.bramble.util.StringUtils.toUtf8;
+
+/**
+ * A database implementation that stores its data in the maps of an H2
+ * MVStore rather than in SQL tables, avoiding the cost of parsing and
+ * executing SQL statements.
+ * <p/>
+ * Each table of {@link JdbcDatabase} corresponds to a map, and the indexes
+ * correspond to extra maps that are kept up to date by hand. Keys are
+ * byte arrays made by concatenating fixed-length fields and
+ * length-prefixed strings, so a range of keys sharing a prefix can be read
+ * in order. Values are arrays of fields.
+ * <p/>
+ * Transactions are provided by an MVStore {@link TransactionStore}, so
+ * read-only transactions see the last committed state of any data that a
+ * concurrent write transaction has changed, and don't block.
+ */
+@NotNullByDefault
+class MVStoreDatabase implements Database<MVStoreTransaction> {
+
+	// Package access for testing
+	static final int CODE_SCHEMA_VERSION = 1;
+
+	// Rotation period offsets for incoming transport keys
+	private static final int OFFSET_PREV = -1;
+	private static final int OFFSET_CURR = 0;
+	private static final int OFFSET_NEXT = 1;
+
+	private static final int ID_LENGTH = 32;
+
+	// Settings: namespace, key -> value
+	private static final String SETTINGS = "settings";
+	// Local authors: author ID -> local author
+	private static final String LOCAL_AUTHORS = "localAuthors";
+	// Contacts: contact ID -> contact
+	private static final String CONTACTS = "contacts";
+	// Index: author ID, contact ID -> true
+	private static final String CONTACTS_BY_AUTHOR_ID = "contactsByAuthorId";
+	// Index: local author ID, contact ID -> true
+	private static final String CONTACTS_BY_LOCAL_AUTHOR_ID =
+			"contactsByLocalAuthorId";
+	// Removed contacts awaiting purging: contact ID -> true
+	private static final String REMOVED_CONTACTS = "removedContacts";
+	// Groups: group ID -> group
+	private static final String GROUPS = "groups";
+	// Index: client ID, major version, group ID -> true
+	private static final String GROUPS_BY_CLIENT_ID_MAJOR_VERSION =
+			"groupsByClientIdMajorVersion";
+	// Removed groups awaiting purging: group ID -> IDs of the contacts
+	// that could see the group when it was removed
+	private static final String REMOVED_GROUPS = "removedGroups";
+	// Group metadata: group ID, key -> value
+	private static final String GROUP_METADATA = "groupMetadata";
+	// Group counts: group ID -> counts
+	private static final String GROUP_COUNTS = "groupCounts";
+	// Group visibilities: contact ID, group ID -> shared
+	private static final String GROUP_VISIBILITIES = "groupVisibilities";
+	// Index: group ID, contact ID -> shared
+	private static final String GROUP_VISIBILITIES_BY_GROUP_ID =
+			"groupVisibilitiesByGroupId";
+	// Messages: message ID -> message header
+	private static final String MESSAGES = "messages";
+	// Message bodies: message ID -> raw message, absent if deleted
+	private static final String MESSAGE_BODIES = "messageBodies";
+	// Index: group ID, message ID -> true
+	private static final String MESSAGES_BY_GROUP_ID = "messagesByGroupId";
+	// Message metadata: group ID, message ID, key -> value
+	private static final String MESSAGE_METADATA = "messageMetadata";
+	// Message dependencies: message ID, dependency ID -> true
+	private static final String MESSAGE_DEPENDENCIES = "messageDependencies";
+	// Index: dependency ID, message ID -> state of dependent message
+	private static final String MESSAGE_DEPENDENTS = "messageDependents";
+	// Offers: contact ID, message ID -> true
+	private static final String OFFERS = "offers";
+	// Statuses: contact ID, timestamp, sequence, message ID -> status
+	private static final String STATUSES = "statuses";
+	// Transports: transport ID -> max latency
+	private static final String TRANSPORTS = "transports";
+	// Outgoing keys: transport ID, key set ID -> keys
+	private static final String OUTGOING_KEYS = "outgoingKeys";
+	// Incoming keys: transport ID, key set ID, period offset -> keys
+	private static final String INCOMING_KEYS = "incomingKeys";
+	// Counters: name -> last value used
+	private static final String COUNTERS = "counters";
+
+	private static final byte[] CONTACT_ID_COUNTER = toUtf8("contactId");
+	private static final byte[] KEY_SET_ID_COUNTER = toUtf8("keySetId");
+	private static final byte[] MESSAGE_SEQUENCE_COUNTER =
+			toUtf8("messageSequence");
+
+	private static final DataType KEY_TYPE = new ByteArrayDataType();
+	private static final DataType VALUE_TYPE = new ObjectDataType();
+
+	private static final Logger LOG =
+			Logger.getLogger(MVStoreDatabase.class.getName());
+
+	private final DatabaseConfig config;
+	private final Clock clock;
+	private final DiskUsageTracker diskUsage;
+	private final File file;
+
+	private final Lock transactionsLock = new ReentrantLock();
+	private final Condition transactionsChanged =
+			transactionsLock.newCondition();
+
+	@Nullable
+	private volatile MVStore store = null;
+	@Nullable
+	private volatile TransactionStore transactionStore = null;
+
+	private int openTransactions = 0; // Locking: transactionsLock
+	private boolean closed = false; // Locking: transactionsLock
+
+	MVStoreDatabase(DatabaseConfig config, Clock clock) {
+		this.config = config;
+		this.clock = clock;
+		File dir = config.getDatabaseDirectory();
+		file = new File(dir, "db.mvstore");
+		diskUsage = new DiskUsageTracker(dir, config.getMaxSize(),
+				DISK_USAGE_RECONCILE_INTERVAL, clock);
+	}
+
+	@Override
+	public boolean open(SecretKey key, @Nullable MigrationListener listener)
+			throws DbException {
+		boolean reopen = !config.getDatabaseDirectory().mkdirs();
+		String hex = StringUtils.toHexString(key.getBytes());
+		try {
+			MVStore store = new MVStore.Builder()
+					.fileName(file.getAbsolutePath())
+					.encryptionKey(hex.toCharArray())
+					.open();
+			TransactionStore transactionStore = new TransactionStore(store);
+			transactionStore.init();
+			// Roll back any transactions that were open when the store was
+			// last closed
+			for (Transaction t : transactionStore.getOpenTransactions())
+				t.rollback();
+			this.store = store;
+			this.transactionStore = transactionStore;
+		} catch (IllegalStateException e) {
+			throw new DbException(e);
+		}
+		MVStoreTransaction txn = startTransaction();
+		try {
+			if (reopen) checkSchemaVersion(txn);
+			else storeSchemaVersion(txn, CODE_SCHEMA_VERSION);
+			commitTransaction(txn);
+		} catch (DbException e) {
+			abortTransaction(txn);
+			throw e;
+		}
+		// Measure the disk usage, which will then be updated incrementally
+		diskUsage.reconcile();
+		return reopen;
+	}
+
+	/**
+	 * Compares the schema version stored in the database with the schema
+	 * version used by the current code. There are no migrations yet.
+	 *
+	 * @throws DataTooNewException if the data uses a newer schema than the
+	 * current code
+	 * @throws DataTooOldException if the data uses an older schema than the
+	 * current code
+	 */
+	private void checkSchemaVersion(MVStoreTransaction txn)
+			throws DbException {
+		Settings s = getSettings(txn, DB_SETTINGS_NAMESPACE);
+		int dataSchemaVersion = s.getInt(SCHEMA_VERSION_KEY, -1);
+		if (dataSchemaVersion == -1) throw new DbException();
+		if (CODE_SCHEMA_VERSION < dataSchemaVersion)
+			throw new DataTooNewException();
+		if (CODE_SCHEMA_VERSION > dataSchemaVersion)
+			throw new DataTooOldException();
+	}
+
+	private void storeSchemaVersion(MVStoreTransaction txn, int version)
+			throws DbException {
+		Settings s = new Settings();
+		s.putInt(SCHEMA_VERSION_KEY, version);
+		mergeSettings(txn, s, DB_SETTINGS_NAMESPACE);
+	}
+
+	@Override
+	public void close() throws DbException {
+		boolean interrupted = false;
+		transactionsLock.lock();
+		try {
+			closed = true;
+			while (openTransactions > 0) {
+				try {
+					transactionsChanged.await();
+				} catch (InterruptedException e) {
+					LOG.warning("Interrupted while closing transactions");
+					interrupted = true;
+				}
+			}
+		} finally {
+			transactionsLock.unlock();
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		TransactionStore transactionStore = this.transactionStore;
+		MVStore store = this.store;
+		if (transactionStore == null || store == null)
+			throw new IllegalStateException();
+		try {
+			transactionStore.close();
+			store.close();
+		} catch (IllegalStateException e) {
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public void logStatementProfile() {
+		// No SQL statements are executed
+	}
+
+	@Override
+	public MVStoreTransaction startTransaction() throws DbException {
+		TransactionStore transactionStore = this.transactionStore;
+		if (transactionStore == null) throw new IllegalStateException();
+		transactionsLock.lock();
+		try {
+			if (closed) throw new DbClosedException();
+			openTransactions++;
+		} finally {
+			transactionsLock.unlock();
+		}
+		try {
+			return new MVStoreTransaction(transactionStore.begin());
+		} catch (IllegalStateException e) {
+			endTransaction();
+			throw new DbException(e);
+		}
+	}
+
+	private void endTransaction() {
+		transactionsLock.lock();
+		try {
+			openTransactions--;
+			transactionsChanged.signalAll();
+		} finally {
+			transactionsLock.unlock();
+		}
+	}
+
+	@Override
+	public void abortTransaction(MVStoreTransaction txn) {
+		// The transaction may already have ended if committing it failed
+		if (txn.ended) return;
+		txn.ended = true;
+		try {
+			txn.txn.rollback();
+		} catch (IllegalStateException e) {
+			logException(LOG, WARNING, e);
+		} finally {
+			// Whatever happens, allow the database to close
+			endTransaction();
+		}
+	}
+
+	@Override
+	public void commitTransaction(MVStoreTransaction txn) throws DbException {
+		MVStore store = this.store;
+		if (store == null) throw new IllegalStateException();
+		if (txn.ended) throw new IllegalStateException();
+		txn.ended = true;
+		try {
+			txn.txn.commit();
+			// Write the committed changes to disk
+			store.commit();
+		} catch (IllegalStateException e) {
+			if (txn.txn.getStatus() != Transaction.STATUS_CLOSED) {
+				try {
+					txn.txn.rollback();
+				} catch (IllegalStateException e1) {
+					logException(LOG, WARNING, e1);
+				}
+			}
+			throw new DbException(e);
+		} finally {
+			endTransaction();
+		}
+	}
+
+	@Override
+	public void setSavepoint(MVStoreTransaction txn) throws DbException {
+		if (txn.savepoint != -1) throw new IllegalStateException();
+		txn.savepoint = txn.txn.setSavepoint();
+	}
+
+	@Override
+	public void rollbackToSavepoint(MVStoreTransaction txn)
+			throws DbException {
+		if (txn.savepoint == -1) throw new IllegalStateException();
+		try {
+			txn.txn.rollbackToSavepoint(txn.savepoint);
+		} catch (IllegalStateException e) {
+			throw new DbException(e);
+		} finally {
+			txn.savepoint = -1;
+		}
+	}
+
+	@Override
+	public void releaseSavepoint(MVStoreTransaction txn) throws DbException {
+		if (txn.savepoint == -1) throw new IllegalStateException();
+		txn.savepoint = -1;
+	}
+
+	private TransactionMap<byte[], Object> map(MVStoreTransaction txn,
+			String name) {
+		TransactionMap<byte[], Object> map = txn.maps.get(name);
+		if (map == null) {
+			map = txn.txn.openMap(name, KEY_TYPE, VALUE_TYPE);
+			txn.maps.put(name, map);
+		}
+		return map;
+	}
+
+	@Override
+	public ContactId addContact(MVStoreTransaction txn, Author remote,
+			AuthorId local, boolean verified, boolean active)
+			throws DbException {
+		if (!containsLocalAuthor(txn, local)) throw illegalState();
+		ContactId c = new ContactId(nextCounterValue(txn, CONTACT_ID_COUNTER));
+		map(txn, CONTACTS).put(intKey(c.getInt()), new Object[] {
+				remote.getId().getBytes(), remote.getFormatVersion(),
+				remote.getName(), remote.getPublicKey(), local.getBytes(),
+				verified, active});
+		map(txn, CONTACTS_BY_AUTHOR_ID).put(
+				concat(remote.getId().getBytes(), intKey(c.getInt())), true);
+		map(txn, CONTACTS_BY_LOCAL_AUTHOR_ID).put(
+				concat(local.getBytes(), intKey(c.getInt())), true);
+		return c;
+	}
+
+	private int nextCounterValue(MVStoreTransaction txn, byte[] counter) {
+		TransactionMap<byte[], Object> counters = map(txn, COUNTERS);
+		Integer last = (Integer) counters.get(counter);
+		int next = last == null ? 1 : last + 1;
+		counters.put(counter, next);
+		return next;
+	}
+
+	@Override
+	public void addGroup(MVStoreTransaction txn, Group g) throws DbException {
+		TransactionMap<byte[], Object> groups = map(txn, GROUPS);
+		byte[] key = g.getId().getBytes();
+		if (groups.containsKey(key)) throw illegalState();
+		groups.put(key, new Object[] {g.getClientId().getString(),
+				g.getMajorVersion(), g.getDescriptor()});
+		map(txn, GROUPS_BY_CLIENT_ID_MAJOR_VERSION).put(concat(
+				clientKey(g.getClientId(), g.getMajorVersion()), key), true);
+	}
+
+	@Override
+	public void addGroupVisibility(MVStoreTransaction txn, ContactId c,
+			GroupId g, boolean groupShared) throws DbException {
+		if (!containsContact(txn, c) || !containsGroup(txn, g))
+			throw illegalState();
+		TransactionMap<byte[], Object> visibilities =
+				map(txn, GROUP_VISIBILITIES);
+		byte[] key = concat(intKey(c.getInt()), g.getBytes());
+		if (visibilities.containsKey(key)) throw illegalState();
+		visibilities.put(key, groupShared);
+		map(txn, GROUP_VISIBILITIES_BY_GROUP_ID).put(
+				concat(g.getBytes(), intKey(c.getInt())), groupShared);
+		// Create a status for each message in the group
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			MessageHeader h = getMessageHeader(txn, m);
+			if (h == null) throw illegalState();
+			boolean seen = removeOfferedMessage(txn, c, m);
+			Status s = new Status(h.length, h.state, groupShared, h.shared,
+					h.deleted, seen);
+			statuses.put(statusKey(c, h, m), s.toArray());
+		}
+	}
+
+	@Override
+	public void addIndexedMetadataKey(MVStoreTransaction txn, ClientId c,
+			int majorVersion, String key, IndexedMetadataType type) {
+		// Metadata isn't indexed - queries scan the group's metadata
+	}
+
+	@Override
+	public void addLocalAuthor(MVStoreTransaction txn, LocalAuthor a)
+			throws DbException {
+		TransactionMap<byte[], Object> localAuthors = map(txn, LOCAL_AUTHORS);
+		byte[] key = a.getId().getBytes();
+		if (localAuthors.containsKey(key)) throw illegalState();
+		localAuthors.put(key, new Object[] {a.getFormatVersion(),
+				a.getName(), a.getPublicKey(), a.getPrivateKey(),
+				a.getTimeCreated()});
+	}
+
+	@Override
+	public void addMessage(MVStoreTransaction txn, Message m, State state,
+			boolean messageShared, @Nullable ContactId sender)
+			throws DbException {
+		addMessages(txn, singletonList(m), state, messageShared, sender);
+	}
+
+	@Override
+	public void addMessages(MVStoreTransaction txn,
+			Collection<Message> messages, State state, boolean messageShared,
+			@Nullable ContactId sender) throws DbException {
+		if (messages.isEmpty()) return;
+		TransactionMap<byte[], Object> headers = map(txn, MESSAGES);
+		TransactionMap<byte[], Object> bodies = map(txn, MESSAGE_BODIES);
+		TransactionMap<byte[], Object> byGroup =
+				map(txn, MESSAGES_BY_GROUP_ID);
+		List<MessageHeader> added = new ArrayList<>(messages.size());
+		long written = 0;
+		for (Message m : messages) {
+			byte[] key = m.getId().getBytes();
+			if (headers.containsKey(key)) throw illegalState();
+			if (!containsGroup(txn, m.getGroupId()))
+				throw illegalState();
+			byte[] raw = m.getRaw();
+			int sequence = nextCounterValue(txn, MESSAGE_SEQUENCE_COUNTER);
+			MessageHeader h = new MessageHeader(m.getGroupId(),
+					m.getTimestamp(), sequence, state, messageShared,
+					raw.length, false);
+			headers.put(key, h.toArray());
+			added.add(h);
+			bodies.put(key, raw);
+			byGroup.put(concat(m.getGroupId().getBytes(), key), true);
+			written += raw.length;
+		}
+		diskUsage.recordWrite(written);
+		// Create a status for each contact that can see each message's
+		// group, loading the visibility of each group once
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		Map<GroupId, Map<ContactId, Boolean>> visibilities = new HashMap<>();
+		int i = 0;
+		for (Message m : messages) {
+			MessageHeader h = added.get(i++);
+			Map<ContactId, Boolean> visibility =
+					visibilities.get(m.getGroupId());
+			if (visibility == null) {
+				visibility = getGroupVisibility(txn, m.getGroupId());
+				visibilities.put(m.getGroupId(), visibility);
+			}
+			for (Entry<ContactId, Boolean> e : visibility.entrySet()) {
+				ContactId c = e.getKey();
+				// Remove any offer of the message, noting that it was seen
+				boolean offered = removeOfferedMessage(txn, c, m.getId());
+				boolean seen = offered || c.equals(sender);
+				Status s = new Status(m.getLength(), state, e.getValue(),
+						messageShared, false, seen);
+				statuses.put(statusKey(c, h, m.getId()), s.toArray());
+			}
+		}
+	}
+
+	@Override
+	public void addOfferedMessage(MVStoreTransaction txn, ContactId c,
+			MessageId m) throws DbException {
+		if (!containsContact(txn, c)) throw illegalState();
+		map(txn, OFFERS).put(concat(intKey(c.getInt()), m.getBytes()), true);
+	}
+
+	@Override
+	public void addMessageDependency(MVStoreTransaction txn,
+			Message dependent, MessageId dependency, State dependentState)
+			throws DbException {
+		if (!containsMessage(txn, dependent.getId()))
+			throw illegalState();
+		byte[] m = dependent.getId().getBytes();
+		map(txn, MESSAGE_DEPENDENCIES).put(concat(m, dependency.getBytes()),
+				true);
+		map(txn, MESSAGE_DEPENDENTS).put(concat(dependency.getBytes(), m),
+				dependentState.getValue());
+	}
+
+	@Override
+	public void addTransport(MVStoreTransaction txn, TransportId t,
+			int maxLatency) throws DbException {
+		TransactionMap<byte[], Object> transports = map(txn, TRANSPORTS);
+		byte[] key = stringKey(t.getString());
+		if (transports.containsKey(key)) throw illegalState();
+		transports.put(key, maxLatency);
+	}
+
+	@Override
+	public KeySetId addTransportKeys(MVStoreTransaction txn, ContactId c,
+			TransportKeys k) throws DbException {
+		if (!containsTransport(txn, k.getTransportId()) ||
+				!containsContact(txn, c)) {
+			throw illegalState();
+		}
+		KeySetId keySetId =
+				new KeySetId(nextCounterValue(txn, KEY_SET_ID_COUNTER));
+		byte[] key = keySetKey(k.getTransportId(), keySetId);
+		OutgoingKeys outCurr = k.getCurrentOutgoingKeys();
+		map(txn, OUTGOING_KEYS).put(key, new Object[] {c.getInt(),
+				outCurr.getRotationPeriod(), outCurr.getTagKey().getBytes(),
+				outCurr.getHeaderKey().getBytes(), outCurr.getStreamCounter(),
+				outCurr.isActive()});
+		TransactionMap<byte[], Object> incoming = map(txn, INCOMING_KEYS);
+		incoming.put(concat(key, intKey(OFFSET_PREV)),
+				toArray(k.getPreviousIncomingKeys()));
+		incoming.put(concat(key, intKey(OFFSET_CURR)),
+				toArray(k.getCurrentIncomingKeys()));
+		incoming.put(concat(key, intKey(OFFSET_NEXT)),
+				toArray(k.getNextIncomingKeys()));
+		return keySetId;
+	}
+
+	@Override
+	public boolean containsContact(MVStoreTransaction txn, AuthorId remote,
+			AuthorId local) throws DbException {
+		for (ContactId c : getContactIds(txn, CONTACTS_BY_AUTHOR_ID, remote)) {
+			Object[] contact = (Object[]) map(txn, CONTACTS).get(
+					intKey(c.getInt()));
+			if (contact == null) throw illegalState();
+			if (Arrays.equals(local.getBytes(), (byte[]) contact[4]))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean containsContact(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		return map(txn, CONTACTS).containsKey(intKey(c.getInt()));
+	}
+
+	@Override
+	public boolean containsGroup(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		return map(txn, GROUPS).containsKey(g.getBytes());
+	}
+
+	@Override
+	public boolean containsLocalAuthor(MVStoreTransaction txn, AuthorId a)
+			throws DbException {
+		return map(txn, LOCAL_AUTHORS).containsKey(a.getBytes());
+	}
+
+	@Override
+	public boolean containsMessage(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		return map(txn, MESSAGES).containsKey(m.getBytes());
+	}
+
+	@Override
+	public boolean containsTransport(MVStoreTransaction txn, TransportId t)
+			throws DbException {
+		return map(txn, TRANSPORTS).containsKey(stringKey(t.getString()));
+	}
+
+	@Override
+	public boolean containsVisibleMessage(MVStoreTransaction txn,
+			ContactId c, MessageId m) throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		// Messages in removed groups that await purging aren't visible
+		if (h == null || !containsGroup(txn, h.groupId)) return false;
+		Status s = getStatus(map(txn, STATUSES), statusKey(c, h, m));
+		return s != null && s.messageShared;
+	}
+
+	@Override
+	public int countOfferedMessages(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		int count = 0;
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, OFFERS), intKey(c.getInt())); it.hasNext();
+				it.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int countMessages(MVStoreTransaction txn, GroupId g,
+			Metadata query, MetadataRange range) throws DbException {
+		return MetadataRanges.select(getMessageMetadata(txn, g, query), range,
+				false).size();
+	}
+
+	@Override
+	public void deleteMessage(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return;
+		if (!h.deleted) diskUsage.recordDelete(h.length);
+		h.deleted = true;
+		map(txn, MESSAGES).put(m.getBytes(), h.toArray());
+		map(txn, MESSAGE_BODIES).remove(m.getBytes());
+		// Update the denormalised field in the statuses
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (byte[] key : getStatusKeys(txn, m, h)) {
+			Status s = getStatus(statuses, key);
+			if (s == null) continue;
+			s.deleted = true;
+			statuses.put(key, s.toArray());
+		}
+	}
+
+	@Override
+	public void deleteMessageMetadata(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return;
+		TransactionMap<byte[], Object> metadata = map(txn, MESSAGE_METADATA);
+		for (byte[] key : getKeys(metadata, metadataPrefix(h.groupId, m)))
+			metadata.remove(key);
+	}
+
+	@Override
+	public Contact getContact(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		Object[] contact = (Object[]) map(txn, CONTACTS).get(
+				intKey(c.getInt()));
+		if (contact == null) throw illegalState();
+		return toContact(c, contact);
+	}
+
+	private Contact toContact(ContactId c, Object[] contact) {
+		Author author = new Author(new AuthorId((byte[]) contact[0]),
+				(Integer) contact[1], (String) contact[2],
+				(byte[]) contact[3]);
+		return new Contact(c, author, new AuthorId((byte[]) contact[4]),
+				(Boolean) contact[5], (Boolean) contact[6]);
+	}
+
+	@Override
+	public Collection<Contact> getContacts(MVStoreTransaction txn)
+			throws DbException {
+		List<Contact> contacts = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, CONTACTS), new byte[0]); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			ContactId c = new ContactId(readInt(e.getKey(), 0));
+			contacts.add(toContact(c, (Object[]) e.getValue()));
+		}
+		return contacts;
+	}
+
+	@Override
+	public Collection<Contact> getContactsByAuthorId(MVStoreTransaction txn,
+			AuthorId remote) throws DbException {
+		List<Contact> contacts = new ArrayList<>();
+		for (ContactId c : getContactIds(txn, CONTACTS_BY_AUTHOR_ID, remote))
+			contacts.add(getContact(txn, c));
+		return contacts;
+	}
+
+	@Override
+	public Collection<ContactId> getContacts(MVStoreTransaction txn,
+			AuthorId local) throws DbException {
+		return getContactIds(txn, CONTACTS_BY_LOCAL_AUTHOR_ID, local);
+	}
+
+	/**
+	 * Returns the IDs of the contacts indexed under the given author ID in
+	 * the given index.
+	 */
+	private List<ContactId> getContactIds(MVStoreTransaction txn,
+			String index, AuthorId a) {
+		List<ContactId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, index), a.getBytes()); it.hasNext(); ) {
+			ids.add(new ContactId(readInt(it.next().getKey(), ID_LENGTH)));
+		}
+		return ids;
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return diskUsage.getFreeSpace();
+	}
+
+	@Override
+	public Group getGroup(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		Object[] group = (Object[]) map(txn, GROUPS).get(g.getBytes());
+		if (group == null) throw illegalState();
+		return new Group(g, new ClientId((String) group[0]),
+				(Integer) group[1], (byte[]) group[2]);
+	}
+
+	@Override
+	public GroupCounts getGroupCounts(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		Object[] counts = (Object[]) map(txn, GROUP_COUNTS).get(g.getBytes());
+		if (counts == null) return new GroupCounts(0, 0, 0);
+		return toGroupCounts(counts);
+	}
+
+	private GroupCounts toGroupCounts(Object[] counts) {
+		return new GroupCounts((Integer) counts[0], (Integer) counts[1],
+				(Long) counts[2]);
+	}
+
+	@Override
+	public Map<GroupId, GroupCounts> getGroupCounts(MVStoreTransaction txn,
+			ClientId c, int majorVersion) throws DbException {
+		TransactionMap<byte[], Object> groupCounts = map(txn, GROUP_COUNTS);
+		Map<GroupId, GroupCounts> counts = new HashMap<>();
+		for (GroupId g : getGroupIds(txn, c, majorVersion)) {
+			Object[] count = (Object[]) groupCounts.get(g.getBytes());
+			if (count != null) counts.put(g, toGroupCounts(count));
+		}
+		return counts;
+	}
+
+	@Override
+	public long getStorageUsage(MVStoreTransaction txn, ClientId c,
+			int majorVersion) throws DbException {
+		long total = 0;
+		for (long usage : getGroupStorageUsage(txn, c, majorVersion).values())
+			total += usage;
+		return total;
+	}
+
+	@Override
+	public Map<GroupId, Long> getGroupStorageUsage(MVStoreTransaction txn,
+			ClientId c, int majorVersion) throws DbException {
+		Map<GroupId, Long> usage = new HashMap<>();
+		for (GroupId g : getGroupIds(txn, c, majorVersion)) {
+			long total = 0;
+			boolean stored = false;
+			for (MessageId m : getAllMessageIds(txn, g)) {
+				MessageHeader h = getMessageHeader(txn, m);
+				if (h == null) throw illegalState();
+				if (!h.deleted) {
+					total += h.length;
+					stored = true;
+				}
+			}
+			if (stored) usage.put(g, total);
+		}
+		return usage;
+	}
+
+	@Override
+	public Metadata getGroupMetadata(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		Metadata metadata = new Metadata();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, GROUP_METADATA), g.getBytes());
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			metadata.put(readString(e.getKey(), ID_LENGTH),
+					(byte[]) e.getValue());
+		}
+		return metadata;
+	}
+
+	@Override
+	public Collection<Group> getGroups(MVStoreTransaction txn, ClientId c,
+			int majorVersion) throws DbException {
+		List<Group> groups = new ArrayList<>();
+		for (GroupId g : getGroupIds(txn, c, majorVersion))
+			groups.add(getGroup(txn, g));
+		return groups;
+	}
+
+	private List<GroupId> getGroupIds(MVStoreTransaction txn, ClientId c,
+			int majorVersion) {
+		byte[] prefix = clientKey(c, majorVersion);
+		List<GroupId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, GROUPS_BY_CLIENT_ID_MAJOR_VERSION), prefix);
+				it.hasNext(); ) {
+			ids.add(new GroupId(readId(it.next().getKey(), prefix.length)));
+		}
+		return ids;
+	}
+
+	@Override
+	public Visibility getGroupVisibility(MVStoreTransaction txn, ContactId c,
+			GroupId g) throws DbException {
+		Boolean shared = (Boolean) map(txn, GROUP_VISIBILITIES).get(
+				concat(intKey(c.getInt()), g.getBytes()));
+		if (shared == null) return INVISIBLE;
+		return shared ? SHARED : VISIBLE;
+	}
+
+	@Override
+	public Map<ContactId, Boolean> getGroupVisibility(MVStoreTransaction txn,
+			GroupId g) throws DbException {
+		Map<ContactId, Boolean> visible = new HashMap<>();
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, GROUP_VISIBILITIES_BY_GROUP_ID), g.getBytes());
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			visible.put(new ContactId(readInt(e.getKey(), ID_LENGTH)),
+					(Boolean) e.getValue());
+		}
+		return visible;
+	}
+
+	@Override
+	public LocalAuthor getLocalAuthor(MVStoreTransaction txn, AuthorId a)
+			throws DbException {
+		Object[] author = (Object[]) map(txn, LOCAL_AUTHORS).get(a.getBytes());
+		if (author == null) throw illegalState();
+		return toLocalAuthor(a, author);
+	}
+
+	private LocalAuthor toLocalAuthor(AuthorId a, Object[] author) {
+		return new LocalAuthor(a, (Integer) author[0], (String) author[1],
+				(byte[]) author[2], (byte[]) author[3], (Long) author[4]);
+	}
+
+	@Override
+	public Collection<LocalAuthor> getLocalAuthors(MVStoreTransaction txn)
+			throws DbException {
+		List<LocalAuthor> authors = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, LOCAL_AUTHORS), new byte[0]);
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			authors.add(toLocalAuthor(new AuthorId(e.getKey()),
+					(Object[]) e.getValue()));
+		}
+		return authors;
+	}
+
+	@Override
+	public Map<MessageId, State> getMessageDependencies(
+			MVStoreTransaction txn, MessageId m) throws DbException {
+		Map<MessageId, State> dependencies = new HashMap<>();
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return dependencies;
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGE_DEPENDENCIES), m.getBytes()); it.hasNext(); ) {
+			MessageId dependency =
+					new MessageId(readId(it.next().getKey(), ID_LENGTH));
+			// The state is unknown if the dependency is missing or in a
+			// different group
+			MessageHeader dh = getMessageHeader(txn, dependency);
+			if (dh == null || !dh.groupId.equals(h.groupId))
+				dependencies.put(dependency, UNKNOWN);
+			else dependencies.put(dependency, dh.state);
+		}
+		return dependencies;
+	}
+
+	@Override
+	public Map<MessageId, State> getMessageDependents(MVStoreTransaction txn,
+			MessageId m) throws DbException {
+		Map<MessageId, State> dependents = new HashMap<>();
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return dependents;
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGE_DEPENDENTS), m.getBytes()); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			MessageId dependent = new MessageId(readId(e.getKey(), ID_LENGTH));
+			// Exclude dependents in a different group
+			MessageHeader dh = getMessageHeader(txn, dependent);
+			if (dh == null) throw illegalState();
+			if (dh.groupId.equals(h.groupId)) {
+				dependents.put(dependent,
+						State.fromValue((Integer) e.getValue()));
+			}
+		}
+		return dependents;
+	}
+
+	@Override
+	public Collection<MessageId> getMessageIds(MVStoreTransaction txn,
+			GroupId g) throws DbException {
+		List<MessageId> ids = new ArrayList<>();
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			MessageHeader h = getMessageHeader(txn, m);
+			if (h == null) throw illegalState();
+			if (h.state == DELIVERED) ids.add(m);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the IDs of all messages in the given group, in any state.
+	 */
+	private List<MessageId> getAllMessageIds(MVStoreTransaction txn,
+			GroupId g) {
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGES_BY_GROUP_ID), g.getBytes()); it.hasNext(); ) {
+			ids.add(new MessageId(readId(it.next().getKey(), ID_LENGTH)));
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getMessageIds(MVStoreTransaction txn,
+			GroupId g, Metadata query) throws DbException {
+		// If there are no query terms, return all delivered messages
+		if (query.isEmpty()) return getMessageIds(txn, g);
+		List<MessageId> ids = new ArrayList<>();
+		for (MessageId m : getMessageIds(txn, g))
+			if (matches(txn, g, m, query)) ids.add(m);
+		return ids;
+	}
+
+	@Override
+	public Map<MessageId, Long> getMessageTimestamps(MVStoreTransaction txn,
+			GroupId g) throws DbException {
+		List<MessageId> ids = new ArrayList<>();
+		Map<MessageId, Long> timestamps = new HashMap<>();
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			MessageHeader h = getMessageHeader(txn, m);
+			if (h == null) throw illegalState();
+			if (h.state == DELIVERED && !h.deleted) {
+				ids.add(m);
+				timestamps.put(m, h.timestamp);
+			}
+		}
+		Collections.sort(ids, (a, b) ->
+				Long.compare(timestamps.get(a), timestamps.get(b)));
+		Map<MessageId, Long> sorted = new LinkedHashMap<>();
+		for (MessageId m : ids) sorted.put(m, timestamps.get(m));
+		return sorted;
+	}
+
+	/**
+	 * Returns true if the metadata of the given message contains all the
+	 * entries in the given query.
+	 */
+	private boolean matches(MVStoreTransaction txn, GroupId g, MessageId m,
+			Metadata query) {
+		TransactionMap<byte[], Object> metadata = map(txn, MESSAGE_METADATA);
+		byte[] prefix = metadataPrefix(g, m);
+		for (Entry<String, byte[]> e : query.entrySet()) {
+			byte[] value = (byte[]) metadata.get(
+					concat(prefix, toUtf8(e.getKey())));
+			if (value == null || !Arrays.equals(value, e.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(MVStoreTransaction txn,
+			GroupId g) throws DbException {
+		Map<MessageId, Metadata> all = new HashMap<>();
+		visitMessageMetadata(txn, g, all::put);
+		return all;
+	}
+
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(MVStoreTransaction txn,
+			GroupId g, Metadata query) throws DbException {
+		Map<MessageId, Metadata> all = new HashMap<>();
+		visitMessageMetadata(txn, g, query, all::put);
+		return all;
+	}
+
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(MVStoreTransaction txn,
+			GroupId g, Metadata query, MetadataRange range)
+			throws DbException {
+		return MetadataRanges.select(getMessageMetadata(txn, g, query), range,
+				true);
+	}
+
+	private Metadata getMetadata(MVStoreTransaction txn, GroupId g,
+			MessageId m) {
+		Metadata metadata = new Metadata();
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGE_METADATA), metadataPrefix(g, m));
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			metadata.put(readString(e.getKey(), ID_LENGTH * 2),
+					(byte[]) e.getValue());
+		}
+		return metadata;
+	}
+
+	@Override
+	public Metadata getMessageMetadataForValidator(MVStoreTransaction txn,
+			MessageId m) throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null || (h.state != DELIVERED && h.state != PENDING))
+			return new Metadata();
+		return getMetadata(txn, h.groupId, m);
+	}
+
+	@Override
+	public Metadata getMessageMetadata(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null || h.state != DELIVERED) return new Metadata();
+		return getMetadata(txn, h.groupId, m);
+	}
+
+	@Override
+	public State getMessageState(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) throw illegalState();
+		return h.state;
+	}
+
+	@Override
+	public Collection<MessageStatus> getMessageStatus(MVStoreTransaction txn,
+			ContactId c, GroupId g) throws DbException {
+		List<MessageStatus> statuses = new ArrayList<>();
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			Status s = getStatus(txn, c, m);
+			if (s != null && s.state == DELIVERED)
+				statuses.add(new MessageStatus(m, c, s.txCount > 0, s.seen));
+		}
+		return statuses;
+	}
+
+	@Override
+	@Nullable
+	public MessageStatus getMessageStatus(MVStoreTransaction txn,
+			ContactId c, MessageId m) throws DbException {
+		Status s = getStatus(txn, c, m);
+		if (s == null || s.state != DELIVERED) return null;
+		return new MessageStatus(m, c, s.txCount > 0, s.seen);
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToAck(MVStoreTransaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, STATUSES), intKey(c.getInt()));
+				it.hasNext() && ids.size() < maxMessages; ) {
+			Entry<byte[], Object> e = it.next();
+			if (Status.fromArray((Object[]) e.getValue()).ack)
+				ids.add(getStatusMessageId(e.getKey()));
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToOffer(MVStoreTransaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		long now = clock.currentTimeMillis();
+		List<MessageId> ids = new ArrayList<>();
+		// The statuses are sorted by timestamp
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, STATUSES), intKey(c.getInt()));
+				it.hasNext() && ids.size() < maxMessages; ) {
+			Entry<byte[], Object> e = it.next();
+			Status s = Status.fromArray((Object[]) e.getValue());
+			if (s.isSendable(now) && !s.requested)
+				ids.add(getStatusMessageId(e.getKey()));
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToRequest(MVStoreTransaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, OFFERS), intKey(c.getInt()));
+				it.hasNext() && ids.size() < maxMessages; ) {
+			ids.add(new MessageId(readId(it.next().getKey(), 4)));
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToSend(MVStoreTransaction txn,
+			ContactId c, int maxLength) throws DbException {
+		return new ArrayList<>(
+				getMessagesToSend(txn, c, maxLength, false).keySet());
+	}
+
+	@Override
+	public Collection<ContactId> getRemovedContacts(MVStoreTransaction txn)
+			throws DbException {
+		List<ContactId> ids = new ArrayList<>();
+		for (byte[] key : getKeys(map(txn, REMOVED_CONTACTS), new byte[0]))
+			ids.add(new ContactId(readInt(key, 0)));
+		return ids;
+	}
+
+	@Override
+	public Collection<GroupId> getRemovedGroups(MVStoreTransaction txn)
+			throws DbException {
+		List<GroupId> ids = new ArrayList<>();
+		for (byte[] key : getKeys(map(txn, REMOVED_GROUPS), new byte[0]))
+			ids.add(new GroupId(key));
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getRequestedMessagesToSend(
+			MVStoreTransaction txn, ContactId c, int maxLength)
+			throws DbException {
+		return new ArrayList<>(
+				getMessagesToSend(txn, c, maxLength, true).keySet());
+	}
+
+	/**
+	 * Returns the IDs and lengths of some messages that are eligible to be
+	 * sent to the given contact, up to the given total length, in the order
+	 * they should be sent.
+	 */
+	private Map<MessageId, Integer> getMessagesToSend(MVStoreTransaction txn,
+			ContactId c, int maxLength, boolean requestedOnly) {
+		long now = clock.currentTimeMillis();
+		Map<MessageId, Integer> messages = new LinkedHashMap<>();
+		int total = 0;
+		// The statuses are sorted by timestamp
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, STATUSES), intKey(c.getInt()));
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			Status s = Status.fromArray((Object[]) e.getValue());
+			if (!s.isSendable(now) || (requestedOnly && !s.requested))
+				continue;
+			if (total + s.length > maxLength) break;
+			messages.put(getStatusMessageId(e.getKey()), s.length);
+			total += s.length;
+		}
+		return messages;
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToValidate(MVStoreTransaction txn)
+			throws DbException {
+		return getMessagesInState(txn, UNKNOWN);
+	}
+
+	@Override
+	public Collection<MessageId> getPendingMessages(MVStoreTransaction txn)
+			throws DbException {
+		return getMessagesInState(txn, PENDING);
+	}
+
+	private Collection<MessageId> getMessagesInState(MVStoreTransaction txn,
+			State state) throws DbException {
+		List<MessageId> ids = new ArrayList<>();
+		Set<GroupId> removed = new HashSet<>(getRemovedGroups(txn));
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, MESSAGES), new byte[0]); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			MessageHeader h = MessageHeader.fromArray((Object[]) e.getValue());
+			// Skip the messages of removed groups that await purging
+			if (h.state == state && !h.deleted
+					&& !removed.contains(h.groupId)) {
+				ids.add(new MessageId(e.getKey()));
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public Collection<MessageId> getMessagesToShare(MVStoreTransaction txn)
+			throws DbException {
+		Set<MessageId> ids = new LinkedHashSet<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, MESSAGE_DEPENDENTS), new byte[0]);
+				it.hasNext(); ) {
+			byte[] key = it.next().getKey();
+			MessageId dependency = new MessageId(readId(key, 0));
+			if (ids.contains(dependency)) continue;
+			MessageHeader h = getMessageHeader(txn, dependency);
+			if (h == null || h.state != DELIVERED || h.shared) continue;
+			// Skip the messages of removed groups that await purging
+			if (!containsGroup(txn, h.groupId)) continue;
+			MessageId dependent = new MessageId(readId(key, ID_LENGTH));
+			MessageHeader dh = getMessageHeader(txn, dependent);
+			if (dh == null) throw illegalState();
+			if (dh.shared) ids.add(dependency);
+		}
+		return new ArrayList<>(ids);
+	}
+
+	@Override
+	public long getNextSendTime(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		long nextSendTime = Long.MAX_VALUE;
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, STATUSES), intKey(c.getInt()));
+				it.hasNext(); ) {
+			Status s = Status.fromArray((Object[]) it.next().getValue());
+			if (s.isSendable() && s.expiry < nextSendTime)
+				nextSendTime = s.expiry;
+		}
+		return nextSendTime;
+	}
+
+	@Override
+	@Nullable
+	public byte[] getRawMessage(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) throw illegalState();
+		if (h.deleted) return null;
+		byte[] raw = (byte[]) map(txn, MESSAGE_BODIES).get(m.getBytes());
+		if (raw == null) throw illegalState();
+		return raw;
+	}
+
+	@Override
+	public Map<MessageId, byte[]> getRawMessages(MVStoreTransaction txn,
+			Collection<MessageId> ids) throws DbException {
+		Map<MessageId, byte[]> messages = new LinkedHashMap<>();
+		for (MessageId m : ids) {
+			byte[] raw = getRawMessage(txn, m);
+			if (raw != null) messages.put(m, raw);
+		}
+		return messages;
+	}
+
+	@Override
+	public Settings getSettings(MVStoreTransaction txn, String namespace)
+			throws DbException {
+		byte[] prefix = stringKey(namespace);
+		Settings s = new Settings();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, SETTINGS), prefix); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			s.put(readString(e.getKey(), prefix.length),
+					(String) e.getValue());
+		}
+		return s;
+	}
+
+	@Override
+	public Collection<SyncState> getSyncStates(MVStoreTransaction txn,
+			ContactId c) throws DbException {
+		List<SyncState> states = new ArrayList<>();
+		Set<GroupId> removed = new HashSet<>(getRemovedGroups(txn));
+		// The statuses are sorted by timestamp
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, STATUSES), intKey(c.getInt()));
+				it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			Status s = Status.fromArray((Object[]) e.getValue());
+			if (s.ack || s.isSendable()) {
+				MessageId m = getStatusMessageId(e.getKey());
+				// Skip the statuses of removed groups that await purging
+				if (!removed.isEmpty()) {
+					MessageHeader h = getMessageHeader(txn, m);
+					if (h == null || removed.contains(h.groupId)) continue;
+				}
+				states.add(s.toSyncState(m, readLong(e.getKey(), 4)));
+			}
+		}
+		return states;
+	}
+
+	@Override
+	public Map<ContactId, SyncState> getSyncStates(MVStoreTransaction txn,
+			MessageId m) throws DbException {
+		Map<ContactId, SyncState> states = new HashMap<>();
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return states;
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (ContactId c : getGroupVisibility(txn, h.groupId).keySet()) {
+			Status s = getStatus(statuses, statusKey(c, h, m));
+			if (s != null) states.put(c, s.toSyncState(m, h.timestamp));
+		}
+		return states;
+	}
+
+	@Override
+	public Collection<KeySet> getTransportKeys(MVStoreTransaction txn,
+			TransportId t) throws DbException {
+		TransactionMap<byte[], Object> incoming = map(txn, INCOMING_KEYS);
+		byte[] prefix = stringKey(t.getString());
+		List<KeySet> keys = new ArrayList<>();
+		// The keys are sorted by key set ID
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(map(txn, OUTGOING_KEYS), prefix); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			byte[] key = e.getKey();
+			Object[] out = (Object[]) e.getValue();
+			KeySetId keySetId = new KeySetId(readInt(key, prefix.length));
+			ContactId contactId = new ContactId((Integer) out[0]);
+			OutgoingKeys outCurr = new OutgoingKeys(
+					new SecretKey((byte[]) out[2]),
+					new SecretKey((byte[]) out[3]), (Long) out[1],
+					(Long) out[4], (Boolean) out[5]);
+			Object[] prev = (Object[]) incoming.get(
+					concat(key, intKey(OFFSET_PREV)));
+			Object[] curr = (Object[]) incoming.get(
+					concat(key, intKey(OFFSET_CURR)));
+			Object[] next = (Object[]) incoming.get(
+					concat(key, intKey(OFFSET_NEXT)));
+			if (prev == null || curr == null || next == null)
+				throw illegalState();
+			TransportKeys transportKeys = new TransportKeys(t,
+					toIncomingKeys(prev), toIncomingKeys(curr),
+					toIncomingKeys(next), outCurr);
+			keys.add(new KeySet(keySetId, contactId, transportKeys));
+		}
+		return keys;
+	}
+
+	private Object[] toArray(IncomingKeys k) {
+		return new Object[] {k.getRotationPeriod(), k.getTagKey().getBytes(),
+				k.getHeaderKey().getBytes(), k.getWindowBase(),
+				k.getWindowBitmap()};
+	}
+
+	private IncomingKeys toIncomingKeys(Object[] k) {
+		return new IncomingKeys(new SecretKey((byte[]) k[1]),
+				new SecretKey((byte[]) k[2]), (Long) k[0], (Long) k[3],
+				(byte[]) k[4]);
+	}
+
+	@Override
+	public void incrementStreamCounter(MVStoreTransaction txn, TransportId t,
+			KeySetId k) throws DbException {
+		TransactionMap<byte[], Object> outgoing = map(txn, OUTGOING_KEYS);
+		byte[] key = keySetKey(t, k);
+		Object[] out = (Object[]) outgoing.get(key);
+		if (out == null) throw illegalState();
+		out[4] = (Long) out[4] + 1;
+		outgoing.put(key, out);
+	}
+
+	@Override
+	public void lowerAckFlag(MVStoreTransaction txn, ContactId c,
+			Collection<MessageId> acked) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : acked) {
+			byte[] key = getStatusKey(txn, c, m);
+			Status s = key == null ? null : getStatus(statuses, key);
+			if (s == null) continue;
+			s.ack = false;
+			statuses.put(key, s.toArray());
+		}
+	}
+
+	@Override
+	public void lowerRequestedFlag(MVStoreTransaction txn, ContactId c,
+			Collection<MessageId> requested) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : requested) {
+			byte[] key = getStatusKey(txn, c, m);
+			Status s = key == null ? null : getStatus(statuses, key);
+			if (s == null) continue;
+			s.requested = false;
+			statuses.put(key, s.toArray());
+		}
+	}
+
+	@Override
+	public void markContactRemoved(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		TransactionMap<byte[], Object> contacts = map(txn, CONTACTS);
+		byte[] contactKey = intKey(c.getInt());
+		Object[] contact = (Object[]) contacts.remove(contactKey);
+		if (contact == null) throw illegalState();
+		map(txn, CONTACTS_BY_AUTHOR_ID).remove(
+				concat((byte[]) contact[0], contactKey));
+		map(txn, CONTACTS_BY_LOCAL_AUTHOR_ID).remove(
+				concat((byte[]) contact[4], contactKey));
+		removeGroupVisibilities(txn, contactKey);
+		removeKeys(map(txn, OFFERS), contactKey);
+		removeTransportKeys(txn, c);
+		// The statuses are left for purgeRemovedContact()
+		map(txn, REMOVED_CONTACTS).put(contactKey, true);
+	}
+
+	@Override
+	public void markGroupRemoved(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		TransactionMap<byte[], Object> groups = map(txn, GROUPS);
+		Object[] group = (Object[]) groups.remove(g.getBytes());
+		if (group == null) throw illegalState();
+		ClientId c = new ClientId((String) group[0]);
+		map(txn, GROUPS_BY_CLIENT_ID_MAJOR_VERSION).remove(concat(
+				clientKey(c, (Integer) group[1]), g.getBytes()));
+		removeKeys(map(txn, GROUP_METADATA), g.getBytes());
+		map(txn, GROUP_COUNTS).remove(g.getBytes());
+		// Remember who could see the group, so the statuses of its messages
+		// can be found when the messages are purged
+		Collection<ContactId> visible = getGroupVisibility(txn, g).keySet();
+		Object[] contactIds = new Object[visible.size()];
+		int i = 0;
+		for (ContactId contactId : visible)
+			contactIds[i++] = contactId.getInt();
+		removeGroupVisibilities(txn, g);
+		map(txn, REMOVED_GROUPS).put(g.getBytes(), contactIds);
+	}
+
+	@Override
+	public void mergeGroupMetadata(MVStoreTransaction txn, GroupId g,
+			Metadata meta) throws DbException {
+		mergeMetadata(map(txn, GROUP_METADATA), g.getBytes(), meta,
+				containsGroup(txn, g));
+	}
+
+	@Override
+	public void mergeMessageMetadata(MVStoreTransaction txn, MessageId m,
+			Metadata meta) throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) {
+			// Keys can be removed but not added
+			mergeMetadata(map(txn, MESSAGE_METADATA), m.getBytes(), meta,
+					false);
+		} else {
+			mergeMetadata(map(txn, MESSAGE_METADATA),
+					metadataPrefix(h.groupId, m), meta, true);
+		}
+	}
+
+	/**
+	 * Removes, updates or adds the entries under the given prefix. If
+	 * adding is not allowed, because the owner of the metadata does not
+	 * exist, an exception is thrown unless all the entries are removals.
+	 */
+	private void mergeMetadata(TransactionMap<byte[], Object> metadata,
+			byte[] prefix, Metadata meta, boolean canAdd)
+			throws DbException {
+		for (Entry<String, byte[]> e : meta.entrySet()) {
+			byte[] key = concat(prefix, toUtf8(e.getKey()));
+			if (e.getValue() == REMOVE) {
+				metadata.remove(key);
+			} else {
+				if (!canAdd) throw illegalState();
+				metadata.put(key, e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void mergeSettings(MVStoreTransaction txn, Settings s,
+			String namespace) throws DbException {
+		TransactionMap<byte[], Object> settings = map(txn, SETTINGS);
+		byte[] prefix = stringKey(namespace);
+		for (Entry<String, String> e : s.entrySet())
+			settings.put(concat(prefix, toUtf8(e.getKey())), e.getValue());
+	}
+
+	@Override
+	public boolean purgeRemovedContact(MVStoreTransaction txn, ContactId c,
+			int maxRows) throws DbException {
+		byte[] contactKey = intKey(c.getInt());
+		TransactionMap<byte[], Object> removed = map(txn, REMOVED_CONTACTS);
+		if (!removed.containsKey(contactKey)) throw illegalState();
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		List<byte[]> keys = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it =
+				iterator(statuses, contactKey);
+				it.hasNext() && keys.size() < maxRows; ) {
+			keys.add(it.next().getKey());
+		}
+		for (byte[] key : keys) statuses.remove(key);
+		// A full chunk may have been followed by more statuses
+		if (keys.size() == maxRows) return false;
+		removed.remove(contactKey);
+		return true;
+	}
+
+	@Override
+	public boolean purgeRemovedGroup(MVStoreTransaction txn, GroupId g,
+			int maxMessages) throws DbException {
+		TransactionMap<byte[], Object> removed = map(txn, REMOVED_GROUPS);
+		Object[] contactIds = (Object[]) removed.get(g.getBytes());
+		if (contactIds == null) throw illegalState();
+		List<ContactId> visible = new ArrayList<>(contactIds.length);
+		for (Object contactId : contactIds)
+			visible.add(new ContactId((Integer) contactId));
+		List<MessageId> ids = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGES_BY_GROUP_ID), g.getBytes());
+				it.hasNext() && ids.size() < maxMessages; ) {
+			ids.add(new MessageId(readId(it.next().getKey(), ID_LENGTH)));
+		}
+		for (MessageId m : ids) {
+			MessageHeader h = getMessageHeader(txn, m);
+			if (h == null) throw illegalState();
+			removeMessage(txn, m, h, visible);
+		}
+		// A full chunk may have been followed by more messages
+		if (ids.size() == maxMessages) return false;
+		removed.remove(g.getBytes());
+		return true;
+	}
+
+	@Override
+	public void raiseAckFlag(MVStoreTransaction txn, ContactId c,
+			MessageId m) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		byte[] key = getStatusKey(txn, c, m);
+		Status s = key == null ? null : getStatus(statuses, key);
+		if (s == null) return;
+		s.ack = true;
+		statuses.put(key, s.toArray());
+	}
+
+	@Override
+	public void raiseRequestedFlag(MVStoreTransaction txn, ContactId c,
+			MessageId m) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		byte[] key = getStatusKey(txn, c, m);
+		Status s = key == null ? null : getStatus(statuses, key);
+		if (s == null) return;
+		s.requested = true;
+		statuses.put(key, s.toArray());
+	}
+
+	@Override
+	public void raiseSeenFlag(MVStoreTransaction txn, ContactId c,
+			MessageId m) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		byte[] key = getStatusKey(txn, c, m);
+		Status s = key == null ? null : getStatus(statuses, key);
+		if (s == null) return;
+		s.seen = true;
+		statuses.put(key, s.toArray());
+	}
+
+	@Override
+	public void removeContact(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		TransactionMap<byte[], Object> contacts = map(txn, CONTACTS);
+		byte[] contactKey = intKey(c.getInt());
+		Object[] contact = (Object[]) contacts.remove(contactKey);
+		if (contact == null) throw illegalState();
+		map(txn, CONTACTS_BY_AUTHOR_ID).remove(
+				concat((byte[]) contact[0], contactKey));
+		map(txn, CONTACTS_BY_LOCAL_AUTHOR_ID).remove(
+				concat((byte[]) contact[4], contactKey));
+		// Remove the contact's group visibilities, offers and statuses
+		removeGroupVisibilities(txn, contactKey);
+		removeKeys(map(txn, OFFERS), contactKey);
+		removeKeys(map(txn, STATUSES), contactKey);
+		removeTransportKeys(txn, c);
+	}
+
+	private void removeGroupVisibilities(MVStoreTransaction txn,
+			byte[] contactKey) {
+		TransactionMap<byte[], Object> visibilities =
+				map(txn, GROUP_VISIBILITIES);
+		TransactionMap<byte[], Object> byGroup =
+				map(txn, GROUP_VISIBILITIES_BY_GROUP_ID);
+		for (byte[] key : getKeys(visibilities, contactKey)) {
+			visibilities.remove(key);
+			byGroup.remove(concat(readId(key, 4), contactKey));
+		}
+	}
+
+	private void removeTransportKeys(MVStoreTransaction txn, ContactId c) {
+		TransactionMap<byte[], Object> outgoing = map(txn, OUTGOING_KEYS);
+		for (byte[] key : getKeys(outgoing, new byte[0])) {
+			Object[] out = (Object[]) outgoing.get(key);
+			if (out != null && c.getInt() == (Integer) out[0])
+				removeTransportKeys(txn, key);
+		}
+	}
+
+	@Override
+	public void removeGroup(MVStoreTransaction txn, GroupId g)
+			throws DbException {
+		TransactionMap<byte[], Object> groups = map(txn, GROUPS);
+		Object[] group = (Object[]) groups.get(g.getBytes());
+		if (group == null) throw illegalState();
+		// Remove the group's messages and any state associated with them
+		for (MessageId m : getAllMessageIds(txn, g)) removeMessage(txn, m);
+		groups.remove(g.getBytes());
+		ClientId c = new ClientId((String) group[0]);
+		map(txn, GROUPS_BY_CLIENT_ID_MAJOR_VERSION).remove(concat(
+				clientKey(c, (Integer) group[1]), g.getBytes()));
+		removeKeys(map(txn, GROUP_METADATA), g.getBytes());
+		map(txn, GROUP_COUNTS).remove(g.getBytes());
+		removeGroupVisibilities(txn, g);
+	}
+
+	private void removeGroupVisibilities(MVStoreTransaction txn, GroupId g) {
+		TransactionMap<byte[], Object> visibilities =
+				map(txn, GROUP_VISIBILITIES);
+		TransactionMap<byte[], Object> byGroup =
+				map(txn, GROUP_VISIBILITIES_BY_GROUP_ID);
+		for (byte[] key : getKeys(byGroup, g.getBytes())) {
+			byGroup.remove(key);
+			visibilities.remove(concat(
+					Arrays.copyOfRange(key, ID_LENGTH, key.length),
+					g.getBytes()));
+		}
+	}
+
+	@Override
+	public void removeGroupVisibility(MVStoreTransaction txn, ContactId c,
+			GroupId g) throws DbException {
+		byte[] key = concat(intKey(c.getInt()), g.getBytes());
+		if (map(txn, GROUP_VISIBILITIES).remove(key) == null)
+			throw illegalState();
+		map(txn, GROUP_VISIBILITIES_BY_GROUP_ID).remove(
+				concat(g.getBytes(), intKey(c.getInt())));
+		// Remove the statuses of the messages in the group
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			byte[] statusKey = getStatusKey(txn, c, m);
+			if (statusKey != null) statuses.remove(statusKey);
+		}
+	}
+
+	@Override
+	public void removeLocalAuthor(MVStoreTransaction txn, AuthorId a)
+			throws DbException {
+		if (map(txn, LOCAL_AUTHORS).remove(a.getBytes()) == null)
+			throw illegalState();
+		// Remove the contacts associated with the local author
+		for (ContactId c : getContacts(txn, a)) removeContact(txn, c);
+	}
+
+	@Override
+	public void removeMessage(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) throw illegalState();
+		removeMessage(txn, m, h, getGroupVisibility(txn, h.groupId).keySet());
+	}
+
+	/**
+	 * Removes a message and any state associated with it, including its
+	 * statuses with respect to the given contacts.
+	 */
+	private void removeMessage(MVStoreTransaction txn, MessageId m,
+			MessageHeader h, Collection<ContactId> visible) {
+		if (!h.deleted) diskUsage.recordDelete(h.length);
+		// Remove the statuses before the header they depend on
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (ContactId c : visible) statuses.remove(statusKey(c, h, m));
+		byte[] key = m.getBytes();
+		map(txn, MESSAGES).remove(key);
+		map(txn, MESSAGE_BODIES).remove(key);
+		map(txn, MESSAGES_BY_GROUP_ID).remove(concat(h.groupId.getBytes(),
+				key));
+		removeKeys(map(txn, MESSAGE_METADATA), metadataPrefix(h.groupId, m));
+		// Remove the message's dependencies, but not its dependents
+		TransactionMap<byte[], Object> dependencies =
+				map(txn, MESSAGE_DEPENDENCIES);
+		TransactionMap<byte[], Object> dependents =
+				map(txn, MESSAGE_DEPENDENTS);
+		for (byte[] dependencyKey : getKeys(dependencies, key)) {
+			dependencies.remove(dependencyKey);
+			dependents.remove(concat(readId(dependencyKey, ID_LENGTH), key));
+		}
+	}
+
+	private boolean removeOfferedMessage(MVStoreTransaction txn, ContactId c,
+			MessageId m) {
+		return map(txn, OFFERS).remove(
+				concat(intKey(c.getInt()), m.getBytes())) != null;
+	}
+
+	@Override
+	public void removeOfferedMessages(MVStoreTransaction txn, ContactId c,
+			Collection<MessageId> requested) throws DbException {
+		for (MessageId m : requested) {
+			if (!removeOfferedMessage(txn, c, m))
+				throw illegalState();
+		}
+	}
+
+	@Override
+	public void removeTransport(MVStoreTransaction txn, TransportId t)
+			throws DbException {
+		if (map(txn, TRANSPORTS).remove(stringKey(t.getString())) == null)
+			throw illegalState();
+		byte[] prefix = stringKey(t.getString());
+		removeKeys(map(txn, OUTGOING_KEYS), prefix);
+		removeKeys(map(txn, INCOMING_KEYS), prefix);
+	}
+
+	@Override
+	public void removeTransportKeys(MVStoreTransaction txn, TransportId t,
+			KeySetId k) throws DbException {
+		removeTransportKeys(txn, keySetKey(t, k));
+	}
+
+	private void removeTransportKeys(MVStoreTransaction txn, byte[] key) {
+		map(txn, OUTGOING_KEYS).remove(key);
+		removeKeys(map(txn, INCOMING_KEYS), key);
+	}
+
+	@Override
+	public void resetExpiryTime(MVStoreTransaction txn, ContactId c,
+			MessageId m) throws DbException {
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		byte[] key = getStatusKey(txn, c, m);
+		Status s = key == null ? null : getStatus(statuses, key);
+		if (s == null) return;
+		s.expiry = 0;
+		s.txCount = 0;
+		statuses.put(key, s.toArray());
+	}
+
+	@Override
+	public void setContactVerified(MVStoreTransaction txn, ContactId c)
+			throws DbException {
+		setContactFlag(txn, c, 5, true);
+	}
+
+	@Override
+	public void setContactActive(MVStoreTransaction txn, ContactId c,
+			boolean active) throws DbException {
+		setContactFlag(txn, c, 6, active);
+	}
+
+	private void setContactFlag(MVStoreTransaction txn, ContactId c,
+			int field, boolean value) {
+		TransactionMap<byte[], Object> contacts = map(txn, CONTACTS);
+		byte[] key = intKey(c.getInt());
+		Object[] contact = (Object[]) contacts.get(key);
+		if (contact == null) return;
+		contact[field] = value;
+		contacts.put(key, contact);
+	}
+
+	@Override
+	public void setGroupVisibility(MVStoreTransaction txn, ContactId c,
+			GroupId g, boolean shared) throws DbException {
+		TransactionMap<byte[], Object> visibilities =
+				map(txn, GROUP_VISIBILITIES);
+		byte[] key = concat(intKey(c.getInt()), g.getBytes());
+		if (!visibilities.containsKey(key)) return;
+		visibilities.put(key, shared);
+		map(txn, GROUP_VISIBILITIES_BY_GROUP_ID).put(
+				concat(g.getBytes(), intKey(c.getInt())), shared);
+		// Update the denormalised field in the statuses
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : getAllMessageIds(txn, g)) {
+			byte[] statusKey = getStatusKey(txn, c, m);
+			Status s = statusKey == null ? null : getStatus(statuses, statusKey);
+			if (s == null) continue;
+			s.groupShared = shared;
+			statuses.put(statusKey, s.toArray());
+		}
+	}
+
+	@Override
+	public void setMessageShared(MVStoreTransaction txn, MessageId m)
+			throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return;
+		h.shared = true;
+		map(txn, MESSAGES).put(m.getBytes(), h.toArray());
+		// Update the denormalised field in the statuses
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (byte[] key : getStatusKeys(txn, m, h)) {
+			Status s = getStatus(statuses, key);
+			if (s == null) continue;
+			s.messageShared = true;
+			statuses.put(key, s.toArray());
+		}
+	}
+
+	@Override
+	public void setMessageState(MVStoreTransaction txn, MessageId m,
+			State state) throws DbException {
+		MessageHeader h = getMessageHeader(txn, m);
+		if (h == null) return;
+		h.state = state;
+		map(txn, MESSAGES).put(m.getBytes(), h.toArray());
+		// Update the denormalised field in the statuses
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (byte[] key : getStatusKeys(txn, m, h)) {
+			Status s = getStatus(statuses, key);
+			if (s == null) continue;
+			s.state = state;
+			statuses.put(key, s.toArray());
+		}
+		// Update the denormalised field in the dependents index
+		TransactionMap<byte[], Object> dependents =
+				map(txn, MESSAGE_DEPENDENTS);
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGE_DEPENDENCIES), m.getBytes()); it.hasNext(); ) {
+			byte[] dependency = readId(it.next().getKey(), ID_LENGTH);
+			dependents.put(concat(dependency, m.getBytes()),
+					state.getValue());
+		}
+	}
+
+	@Override
+	public void setReorderingWindow(MVStoreTransaction txn, KeySetId k,
+			TransportId t, long rotationPeriod, long base, byte[] bitmap)
+			throws DbException {
+		TransactionMap<byte[], Object> incoming = map(txn, INCOMING_KEYS);
+		int updated = 0;
+		for (byte[] key : getKeys(incoming, keySetKey(t, k))) {
+			Object[] in = (Object[]) incoming.get(key);
+			if (in == null || rotationPeriod != (Long) in[0]) continue;
+			in[3] = base;
+			in[4] = bitmap;
+			incoming.put(key, in);
+			updated++;
+		}
+		if (updated > 1) throw illegalState();
+	}
+
+	@Override
+	public void setTransportKeysActive(MVStoreTransaction txn, TransportId t,
+			KeySetId k) throws DbException {
+		TransactionMap<byte[], Object> outgoing = map(txn, OUTGOING_KEYS);
+		byte[] key = keySetKey(t, k);
+		Object[] out = (Object[]) outgoing.get(key);
+		if (out == null) return;
+		out[5] = true;
+		outgoing.put(key, out);
+	}
+
+	@Override
+	public void updateExpiryTime(MVStoreTransaction txn, ContactId c,
+			MessageId m, int maxLatency) throws DbException {
+		updateExpiryTimes(txn, c, singletonList(m), maxLatency);
+	}
+
+	@Override
+	public void updateExpiryTimes(MVStoreTransaction txn, ContactId c,
+			Collection<MessageId> ids, int maxLatency) throws DbException {
+		long now = clock.currentTimeMillis();
+		TransactionMap<byte[], Object> statuses = map(txn, STATUSES);
+		for (MessageId m : ids) {
+			byte[] key = getStatusKey(txn, c, m);
+			Status s = key == null ? null : getStatus(statuses, key);
+			if (s == null) throw illegalState();
+			s.expiry = calculateExpiry(now, maxLatency, s.txCount);
+			s.txCount++;
+			statuses.put(key, s.toArray());
+		}
+	}
+
+	@Override
+	public void updateGroupCounts(MVStoreTransaction txn, GroupId g,
+			int msgCountDelta, int unreadCountDelta, long latestMsgTime)
+			throws DbException {
+		TransactionMap<byte[], Object> groupCounts = map(txn, GROUP_COUNTS);
+		byte[] key = g.getBytes();
+		Object[] counts = (Object[]) groupCounts.get(key);
+		int msgCount = msgCountDelta, unreadCount = unreadCountDelta;
+		if (counts == null) {
+			if (!containsGroup(txn, g)) throw illegalState();
+		} else {
+			msgCount += (Integer) counts[0];
+			unreadCount += (Integer) counts[1];
+			latestMsgTime = Math.max(latestMsgTime, (Long) counts[2]);
+		}
+		if (msgCount < 0 || unreadCount < 0) throw illegalState();
+		groupCounts.put(key, new Object[] {msgCount, unreadCount,
+				latestMsgTime});
+	}
+
+	@Override
+	public void updateTransportKeys(MVStoreTransaction txn, KeySet ks)
+			throws DbException {
+		TransportKeys k = ks.getTransportKeys();
+		byte[] key = keySetKey(k.getTransportId(), ks.getKeySetId());
+		TransactionMap<byte[], Object> outgoing = map(txn, OUTGOING_KEYS);
+		Object[] out = (Object[]) outgoing.get(key);
+		if (out == null) return;
+		OutgoingKeys outCurr = k.getCurrentOutgoingKeys();
+		out[1] = outCurr.getRotationPeriod();
+		out[2] = outCurr.getTagKey().getBytes();
+		out[3] = outCurr.getHeaderKey().getBytes();
+		out[4] = outCurr.getStreamCounter();
+		outgoing.put(key, out);
+		TransactionMap<byte[], Object> incoming = map(txn, INCOMING_KEYS);
+		incoming.put(concat(key, intKey(OFFSET_PREV)),
+				toArray(k.getPreviousIncomingKeys()));
+		incoming.put(concat(key, intKey(OFFSET_CURR)),
+				toArray(k.getCurrentIncomingKeys()));
+		incoming.put(concat(key, intKey(OFFSET_NEXT)),
+				toArray(k.getNextIncomingKeys()));
+	}
+
+	@Override
+	public void visitMessageMetadata(MVStoreTransaction txn, GroupId g,
+			MetadataVisitor v) throws DbException {
+		MessageId lastMessageId = null;
+		boolean lastDelivered = false;
+		Metadata metadata = null;
+		// The metadata is sorted by message ID, so the state of each message
+		// only needs to be loaded once, and each message's metadata can be
+		// visited as soon as the next message's metadata is reached
+		for (Iterator<Entry<byte[], Object>> it = iterator(
+				map(txn, MESSAGE_METADATA), g.getBytes()); it.hasNext(); ) {
+			Entry<byte[], Object> e = it.next();
+			MessageId m = new MessageId(readId(e.getKey(), ID_LENGTH));
+			if (!m.equals(lastMessageId)) {
+				if (metadata != null) v.visit(lastMessageId, metadata);
+				MessageHeader h = getMessageHeader(txn, m);
+				if (h == null) throw illegalState();
+				lastMessageId = m;
+				lastDelivered = h.state == DELIVERED;
+				metadata = lastDelivered ? new Metadata() : null;
+			}
+			if (!lastDelivered) continue;
+			metadata.put(readString(e.getKey(), ID_LENGTH * 2),
+					(byte[]) e.getValue());
+		}
+		if (metadata != null) v.visit(lastMessageId, metadata);
+	}
+
+	@Override
+	public void visitMessageMetadata(MVStoreTransaction txn, GroupId g,
+			Metadata query, MetadataVisitor v) throws DbException {
+		// If there are no query terms, include all delivered messages,
+		// including any without metadata
+		for (MessageId m : getMessageIds(txn, g, query))
+			v.visit(m, getMetadata(txn, g, m));
+	}
+
+	@Override
+	public void visitMessageMetadata(MVStoreTransaction txn, GroupId g,
+			Metadata query, MetadataRange range, MetadataVisitor v)
+			throws DbException {
+		// The range is selected from the matching messages' metadata
+		Map<MessageId, Metadata> selected =
+				getMessageMetadata(txn, g, query, range);
+		for (Entry<MessageId, Metadata> e : selected.entrySet())
+			v.visit(e.getKey(), e.getValue());
+	}
+
+	@Nullable
+	private MessageHeader getMessageHeader(MVStoreTransaction txn,
+			MessageId m) {
+		Object[] header = (Object[]) map(txn, MESSAGES).get(m.getBytes());
+		return header == null ? null : MessageHeader.fromArray(header);
+	}
+
+	/**
+	 * Returns the key of the given message's status with respect to the
+	 * given contact, or null if the message is not in the database.
+	 */
+	@Nullable
+	private byte[] getStatusKey(MVStoreTransaction txn, ContactId c,
+			MessageId m) {
+		MessageHeader h = getMessageHeader(txn, m);
+		return h == null ? null : statusKey(c, h, m);
+	}
+
+	/**
+	 * Returns the keys of the given message's statuses with respect to all
+	 * contacts that can see the message's group.
+	 */
+	private List<byte[]> getStatusKeys(MVStoreTransaction txn, MessageId m,
+			MessageHeader h) throws DbException {
+		List<byte[]> keys = new ArrayList<>();
+		for (ContactId c : getGroupVisibility(txn, h.groupId).keySet())
+			keys.add(statusKey(c, h, m));
+		return keys;
+	}
+
+	@Nullable
+	private Status getStatus(MVStoreTransaction txn, ContactId c,
+			MessageId m) {
+		byte[] key = getStatusKey(txn, c, m);
+		return key == null ? null : getStatus(map(txn, STATUSES), key);
+	}
+
+	@Nullable
+	private Status getStatus(TransactionMap<byte[], Object> statuses,
+			byte[] key) {
+		Object[] status = (Object[]) statuses.get(key);
+		return status == null ? null : Status.fromArray(status);
+	}
+
+	/**
+	 * Returns an exception to throw when the database is in an illegal
+	 * state, wrapped in the same way as by {@link JdbcDatabase}.
+	 */
+	private static DbException illegalState() {
+		return new DbException(new DbStateException());
+	}
+
+	private MessageId getStatusMessageId(byte[] key) {
+		return new MessageId(readId(key, 16));
+	}
+
+	/**
+	 * Returns an iterator over the entries in the given map whose keys
+	 * start with the given prefix, in key order.
+	 */
+	private Iterator<Entry<byte[], Object>> iterator(
+			TransactionMap<byte[], Object> map, byte[] prefix) {
+		return new PrefixIterator(map.entryIterator(prefix), prefix);
+	}
+
+	/**
+	 * Returns the keys in the given map that start with the given prefix,
+	 * so the map can be modified while the keys are visited.
+	 */
+	private List<byte[]> getKeys(TransactionMap<byte[], Object> map,
+			byte[] prefix) {
+		List<byte[]> keys = new ArrayList<>();
+		for (Iterator<Entry<byte[], Object>> it = iterator(map, prefix);
+				it.hasNext(); ) {
+			keys.add(it.next().getKey());
+		}
+		return keys;
+	}
+
+	private void removeKeys(TransactionMap<byte[], Object> map,
+			byte[] prefix) {
+		for (byte[] key : getKeys(map, prefix)) map.remove(key);
+	}
+
+	/**
+	 * Returns the key of a message's status, which sorts the statuses for
+	 * each contact by timestamp and then by the order the messages were
+	 * added.
+	 */
+	private static byte[] statusKey(ContactId c, MessageHeader h,
+			MessageId m) {
+		return concat(intKey(c.getInt()), longKey(h.timestamp),
+				intKey(h.sequence), m.getBytes());
+	}
+
+	private static byte[] metadataPrefix(GroupId g, MessageId m) {
+		return concat(g.getBytes(), m.getBytes());
+	}
+
+	private static byte[] clientKey(ClientId c, int majorVersion) {
+		return concat(stringKey(c.getString()), intKey(majorVersion));
+	}
+
+	private static byte[] keySetKey(TransportId t, KeySetId k) {
+		return concat(stringKey(t.getString()), intKey(k.getInt()));
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) length += part.length;
+		byte[] b = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, b, offset, part.length);
+			offset += part.length;
+		}
+		return b;
+	}
+
+	/**
+	 * Encodes an int so the encodings sort in numerical order.
+	 */
+	private static byte[] intKey(int i) {
+		i ^= Integer.MIN_VALUE;
+		return new byte[] {(byte) (i >> 24), (byte) (i >> 16),
+				(byte) (i >> 8), (byte) i};
+	}
+
+	/**
+	 * Encodes a long so the encodings sort in numerical order.
+	 */
+	private static byte[] longKey(long l) {
+		return concat(intKey((int) (l >> 32)),
+				intKey((int) l ^ Integer.MIN_VALUE));
+	}
+
+	/**
+	 * Encodes a string with a length prefix, so it can be followed by other
+	 * fields.
+	 */
+	private static byte[] stringKey(String s) {
+		byte[] utf8 = toUtf8(s);
+		return concat(intKey(utf8.length), utf8);
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		int i = ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+				| ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+		return i ^ Integer.MIN_VALUE;
+	}
+
+	private static long readLong(byte[] b, int offset) {
+		long high = readInt(b, offset);
+		int low = readInt(b, offset + 4) ^ Integer.MIN_VALUE;
+		return (high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+	private static byte[] readId(byte[] b, int offset) {
+		return Arrays.copyOfRange(b, offset, offset + ID_LENGTH);
+	}
+
+	/**
+	 * Reads a string that runs from the given offset to the end of the key.
+	 */
+	private static String readString(byte[] b, int offset) {
+		return fromUtf8(b, offset, b.length - offset);
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix) {
+		if (b.length < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (b[i] != prefix[i]) return false;
+		return true;
+	}
+
+	private static class PrefixIterator
+			implements Iterator<Entry<byte[], Object>> {
+
+		private final Iterator<Entry<byte[], Object>> delegate;
+		private final byte[] prefix;
+
+		@Nullable
+		private Entry<byte[], Object> next;
+
+		private PrefixIterator(Iterator<Entry<byte[], Object>> delegate,
+				byte[] prefix) {
+			this.delegate = delegate;
+			this.prefix = prefix;
+			next = findNext();
+		}
+
+		@Nullable
+		private Entry<byte[], Object> findNext() {
+			if (!delegate.hasNext()) return null;
+			Entry<byte[], Object> e = delegate.next();
+			return startsWith(e.getKey(), prefix) ? e : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<byte[], Object> next() {
+			Entry<byte[], Object> e = next;
+			if (e == null) throw new IllegalStateException();
+			next = findNext();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The fields of a message other than its body.
+	 */
+	private static class MessageHeader {
+
+		private final GroupId groupId;
+		private final long timestamp;
+		private final int sequence, length;
+
+		private State state;
+		private boolean shared, deleted;
+
+		private MessageHeader(GroupId groupId, long timestamp, int sequence,
+				State state, boolean shared, int length, boolean deleted) {
+			this.groupId = groupId;
+			this.timestamp = timestamp;
+			this.sequence = sequence;
+			this.state = state;
+			this.shared = shared;
+			this.length = length;
+			this.deleted = deleted;
+		}
+
+		private static MessageHeader fromArray(Object[] o) {
+			return new MessageHeader(new GroupId((byte[]) o[0]), (Long) o[1],
+					(Integer) o[2], State.fromValue((Integer) o[3]),
+					(Boolean) o[4], (Integer) o[5], (Boolean) o[6]);
+		}
+
+		private Object[] toArray() {
+			return new Object[] {groupId.getBytes(), timestamp, sequence,
+					state.getValue(), shared, length, deleted};
+		}
+	}
+
+	/**
+	 * The status of a message with respect to a contact, including the
+	 * denormalised fields of the message and its group's visibility that
+	 * are needed to decide whether the message can be sent.
+	 */
+	private static class Status {
+
+		private final int length;
+
+		private State state;
+		private boolean groupShared, messageShared, deleted;
+		private boolean ack, seen, requested;
+		private long expiry;
+		private int txCount;
+
+		private Status(int length, State state, boolean groupShared,
+				boolean messageShared, boolean deleted, boolean seen) {
+			this(length, state, groupShared, messageShared, deleted, seen,
+					seen, false, 0, 0);
+		}
+
+		private Status(int length, State state, boolean groupShared,
+				boolean messageShared, boolean deleted, boolean ack,
+				boolean seen, boolean requested, long expiry, int txCount) {
+			this.length = length;
+			this.state = state;
+			this.groupShared = groupShared;
+			this.messageShared = messageShared;
+			this.deleted = deleted;
+			this.ack = ack;
+			this.seen = seen;
+			this.requested = requested;
+			this.expiry = expiry;
+			this.txCount = txCount;
+		}
+
+		/**
+		 * Returns true if the message can be sent or offered once its
+		 * expiry time has passed.
+		 */
+		private boolean isSendable() {
+			return state == DELIVERED && groupShared && messageShared
+					&& !deleted && !seen;
+		}
+
+		/**
+		 * Returns true if the message can be sent or offered at the given
+		 * time.
+		 */
+		private boolean isSendable(long now) {
+			return isSendable() && expiry < now;
+		}
+
+		private SyncState toSyncState(MessageId m, long timestamp) {
+			return new SyncState(m, timestamp, length, ack, isSendable(),
+					requested, expiry, txCount);
+		}
+
+		private static Status fromArray(Object[] o) {
+			return new Status((Integer) o[0], State.fromValue((Integer) o[1]),
+					(Boolean) o[2], (Boolean) o[3], (Boolean) o[4],
+					(Boolean) o[5], (Boolean) o[6], (Boolean) o[7],
+					(Long) o[8], (Integer) o[9]);
+		}
+
+		private Object[] toArray() {
+			return new Object[] {length, state.getValue(), groupShared,
+					messageShared, deleted, ack, seen, requested, expiry,
+					txCount};
+		}
+	}
+}
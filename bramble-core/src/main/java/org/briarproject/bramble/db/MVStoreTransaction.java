@@ -0,0 +1,30 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.h2.mvstore.db.TransactionStore.Transaction;
+import org.h2.mvstore.db.TransactionStore.TransactionMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A transaction in an {@link MVStoreDatabase}, which caches the maps it
+ * has opened.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class MVStoreTransaction {
+
+	final Transaction txn;
+	final Map<String, TransactionMap<byte[], Object>> maps = new HashMap<>();
+
+	// The savepoint that is currently set, or -1 if no savepoint is set
+	long savepoint = -1;
+	boolean ended = false;
+
+	MVStoreTransaction(Transaction txn) {
+		this.txn = txn;
+	}
+}
@@ -0,0 +1,80 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_COMPRESSED_PERCENTAGE;
+import static org.briarproject.bramble.db.DatabaseConstants.MIN_COMPRESSIBLE_MESSAGE_LENGTH;
+
+/**
+ * Compresses raw messages before they're stored and decompresses them when
+ * they're loaded. Only the stored form of a message is compressed, so the
+ * message's ID and the bytes sent over the wire are unchanged.
+ */
+@NotNullByDefault
+class MessageCompressor {
+
+	/**
+	 * Returns the compressed form of the given raw message, or null if the
+	 * message is too short or doesn't compress well enough to be worth
+	 * storing compressed.
+	 */
+	@Nullable
+	static byte[] compress(byte[] raw) {
+		if (raw.length < MIN_COMPRESSIBLE_MESSAGE_LENGTH) return null;
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			// Give up as soon as the output reaches the maximum length
+			byte[] out = new byte[raw.length * MAX_COMPRESSED_PERCENTAGE / 100];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == out.length) return null;
+				length += deflater.deflate(out, length, out.length - length);
+			}
+			return Arrays.copyOf(out, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses a raw message that was compressed by
+	 * {@link #compress(byte[])}.
+	 *
+	 * @param length the length of the raw message before it was compressed
+	 */
+	static byte[] decompress(byte[] compressed, int length)
+			throws DbException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] raw = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				int read = inflater.inflate(raw, offset, length - offset);
+				// The stored message is shorter than the recorded length
+				if (read == 0 && (inflater.finished() || inflater.needsInput()
+						|| inflater.needsDictionary())) {
+					throw new DbException();
+				}
+				offset += read;
+			}
+			// The stored message is longer than the recorded length
+			if (inflater.inflate(new byte[1]) != 0) throw new DbException();
+			return raw;
+		} catch (DataFormatException e) {
+			throw new DbException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
+import static org.briarproject.bramble.db.IndexedMetadataValues.decodeLong;
+
+/**
+ * Selects a {@link MetadataRange} from the metadata of the messages that
+ * match a query, for when the range can't be selected using the metadata
+ * index.
+ */
+@NotNullByDefault
+class MetadataRanges {
+
+	/**
+	 * Returns the metadata of the given messages that lie within the given
+	 * range, in the range's order. The range's limit is applied if
+	 * {@code applyLimit} is true.
+	 */
+	static Map<MessageId, Metadata> select(Map<MessageId, Metadata> metadata,
+			MetadataRange range, boolean applyLimit) {
+		Map<MessageId, Long> values = new HashMap<>();
+		for (Entry<MessageId, Metadata> e : metadata.entrySet()) {
+			byte[] encoded = e.getValue().get(range.getKey());
+			if (encoded == null) continue;
+			Long value = decodeLong(LONG, encoded);
+			if (value != null && contains(range, value, e.getKey()))
+				values.put(e.getKey(), value);
+		}
+		List<MessageId> ids = new ArrayList<>(values.keySet());
+		int sign = range.isDescending() ? -1 : 1;
+		Collections.sort(ids, (a, b) ->
+				sign * compare(values.get(a), a, values.get(b), b));
+		int size = applyLimit ? Math.min(ids.size(), range.getLimit())
+				: ids.size();
+		Map<MessageId, Metadata> selected = new LinkedHashMap<>(size);
+		for (MessageId m : ids.subList(0, size))
+			selected.put(m, metadata.get(m));
+		return selected;
+	}
+
+	private static boolean contains(MetadataRange range, long value,
+			MessageId m) {
+		if (value < range.getMinValue() || value > range.getMaxValue())
+			return false;
+		Long afterValue = range.getAfterValue();
+		MessageId afterMessageId = range.getAfterMessageId();
+		if (afterValue == null || afterMessageId == null) return true;
+		int sign = range.isDescending() ? -1 : 1;
+		return sign * compare(value, m, afterValue, afterMessageId) > 0;
+	}
+
+	private static int compare(long aValue, MessageId a, long bValue,
+			MessageId b) {
+		int c = Long.compare(aValue, bValue);
+		return c == 0 ? a.compareTo(b) : c;
+	}
+}
@@ -0,0 +1,52 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+class Migration42_43 implements Migration<Connection> {
+
+	private static final Logger LOG =
+			Logger.getLogger(Migration42_43.class.getName());
+
+	@Override
+	public int getStartVersion() {
+		return 42;
+	}
+
+	@Override
+	public int getEndVersion() {
+		return 43;
+	}
+
+	@Override
+	public void migrate(Connection txn) throws DbException {
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			// Existing raw messages are stored uncompressed
+			s.execute("ALTER TABLE messages"
+					+ " ADD COLUMN compressed BOOLEAN DEFAULT FALSE NOT NULL");
+			s.close();
+		} catch (SQLException e) {
+			tryToClose(s);
+			throw new DbException(e);
+		}
+	}
+
+	private void tryToClose(@Nullable Statement s) {
+		try {
+			if (s != null) s.close();
+		} catch (SQLException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+class Migration43_44 implements Migration<Connection> {
+
+	private static final Logger LOG =
+			Logger.getLogger(Migration43_44.class.getName());
+
+	private final String createIndexedMetadataKeys;
+	private final String createMessageMetadataIndex;
+
+	Migration43_44(String createIndexedMetadataKeys,
+			String createMessageMetadataIndex) {
+		this.createIndexedMetadataKeys = createIndexedMetadataKeys;
+		this.createMessageMetadataIndex = createMessageMetadataIndex;
+	}
+
+	@Override
+	public int getStartVersion() {
+		return 43;
+	}
+
+	@Override
+	public int getEndVersion() {
+		return 44;
+	}
+
+	@Override
+	public void migrate(Connection txn) throws DbException {
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			// No keys have been declared yet, so the index starts empty.
+			// Clients declare their keys at startup, which indexes any
+			// existing metadata
+			s.execute(createIndexedMetadataKeys);
+			s.execute(createMessageMetadataIndex);
+			s.close();
+		} catch (SQLException e) {
+			tryToClose(s);
+			throw new DbException(e);
+		}
+	}
+
+	private void tryToClose(@Nullable Statement s) {
+		try {
+			if (s != null) s.close();
+		} catch (SQLException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+class Migration44_45 implements Migration<Connection> {
+
+	private static final Logger LOG =
+			Logger.getLogger(Migration44_45.class.getName());
+
+	@Override
+	public int getStartVersion() {
+		return 44;
+	}
+
+	@Override
+	public int getEndVersion() {
+		return 45;
+	}
+
+	@Override
+	public void migrate(Connection txn) throws DbException {
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			// The index of integer values is recreated with the message ID as
+			// its last column, alongside a descending copy, so ranges can be
+			// read in either order from the index
+			s.execute("DROP INDEX messageMetadataIndexByLongValue");
+			s.close();
+		} catch (SQLException e) {
+			tryToClose(s);
+			throw new DbException(e);
+		}
+	}
+
+	private void tryToClose(@Nullable Statement s) {
+		try {
+			if (s != null) s.close();
+		} catch (SQLException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+/**
+ * A bounded cache of the prepared statements for a single connection, which
+ * closes and discards the least recently used statement when it's full.
+ * Most statements are built from fixed SQL, but some are built dynamically,
+ * such as metadata queries, and the bound stops those from accumulating.
+ * The capacity must be well above the number of statements that a single
+ * operation uses at once, so a statement isn't closed while it's in use.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class StatementCache {
+
+	private static final Logger LOG =
+			Logger.getLogger(StatementCache.class.getName());
+
+	private final Map<String, PreparedStatement> cache;
+
+	StatementCache(int capacity) {
+		cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+				true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Entry<String, PreparedStatement> eldest) {
+				if (size() <= capacity) return false;
+				tryToClose(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for the given SQL, or null if there's no
+	 * cached statement or the cached statement has been closed.
+	 */
+	@Nullable
+	PreparedStatement get(String sql) throws SQLException {
+		PreparedStatement ps = cache.get(sql);
+		if (ps == null) return null;
+		if (ps.isClosed()) {
+			cache.remove(sql);
+			return null;
+		}
+		return ps;
+	}
+
+	void put(String sql, PreparedStatement ps) {
+		PreparedStatement old = cache.put(sql, ps);
+		if (old != null && old != ps) tryToClose(old);
+	}
+
+	/**
+	 * Clears the parameters and batches of the cached statements, so that
+	 * an operation that failed part way through, for any reason, doesn't
+	 * leave anything behind for a later operation to execute. Statements
+	 * that can't be cleared are closed and discarded.
+	 */
+	void reset() {
+		Iterator<PreparedStatement> it = cache.values().iterator();
+		while (it.hasNext()) {
+			PreparedStatement ps = it.next();
+			try {
+				if (ps.isClosed()) {
+					it.remove();
+				} else {
+					ps.clearBatch();
+					ps.clearParameters();
+				}
+			} catch (SQLException e) {
+				logException(LOG, WARNING, e);
+				tryToClose(ps);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Closes and discards all the cached statements.
+	 */
+	void close() {
+		for (PreparedStatement ps : cache.values()) tryToClose(ps);
+		cache.clear();
+	}
+
+	int size() {
+		return cache.size();
+	}
+
+	private void tryToClose(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+/**
+ * Records the number of calls, the number of rows affected or returned, and
+ * a histogram of execution times for each distinct SQL statement, and
+ * captures the query plan of each statement the first time it's executed.
+ * <p/>
+ * The execution time of a query includes the time taken to read its
+ * results.
+ */
+@ThreadSafe
+@NotNullByDefault
+class StatementProfiler {
+
+	private static final Logger LOG =
+			Logger.getLogger(StatementProfiler.class.getName());
+
+	private static final int NANOS_PER_MICRO = 1000;
+
+	// Statement types that are not worth explaining
+	private static final String[] NO_PLAN_PREFIXES = {"CREATE", "ALTER",
+			"DROP", "SAVEPOINT", "RELEASE", "ROLLBACK", "SET"};
+
+	private final String explainPrefix;
+	private final ConcurrentMap<String, StatementStats> stats =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * @param explainPrefix the prefix that turns a statement into a query
+	 * for its plan, which differs between database libraries
+	 */
+	StatementProfiler(String explainPrefix) {
+		this.explainPrefix = explainPrefix;
+	}
+
+	/**
+	 * Returns a statement that delegates to the given statement and records
+	 * its executions.
+	 */
+	PreparedStatement profile(Connection txn, String sql,
+			PreparedStatement ps) {
+		StatementStats s = stats.get(sql);
+		if (s == null) {
+			s = new StatementStats(sql);
+			StatementStats old = stats.putIfAbsent(sql, s);
+			if (old != null) s = old;
+		}
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] {PreparedStatement.class},
+				new ProfilingStatement(txn, s, ps));
+	}
+
+	// Package access for testing
+	@Nullable
+	StatementStats getStats(String sql) {
+		return stats.get(sql);
+	}
+
+	/**
+	 * Returns a report of the recorded statements, ordered by their total
+	 * execution time.
+	 */
+	String getReport() {
+		List<StatementStats> sorted = new ArrayList<>(stats.values());
+		Collections.sort(sorted, new Comparator<StatementStats>() {
+			@Override
+			public int compare(StatementStats a, StatementStats b) {
+				long aTotal = a.getTotalTime(), bTotal = b.getTotalTime();
+				if (aTotal == bTotal) return 0;
+				return aTotal > bTotal ? -1 : 1;
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		sb.append(sorted.size()).append(" distinct statements\n");
+		for (StatementStats s : sorted) s.appendReport(sb);
+		return sb.toString();
+	}
+
+	void logReport() {
+		if (LOG.isLoggable(INFO)) LOG.info(getReport());
+	}
+
+	private boolean isExplainable(String sql) {
+		for (String prefix : NO_PLAN_PREFIXES)
+			if (sql.startsWith(prefix)) return false;
+		return true;
+	}
+
+	@ThreadSafe
+	@NotNullByDefault
+	static class StatementStats {
+
+		private final String sql;
+
+		@GuardedBy("this")
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		@GuardedBy("this")
+		private long rows = 0;
+		@GuardedBy("this")
+		private boolean planClaimed = false;
+		@GuardedBy("this")
+		@Nullable
+		private String plan = null;
+
+		private StatementStats(String sql) {
+			this.sql = sql;
+		}
+
+		synchronized void record(long nanos, long rowCount) {
+			histogram.record(nanos / NANOS_PER_MICRO);
+			rows += rowCount;
+		}
+
+		/**
+		 * Returns true the first time it's called, to indicate that the
+		 * caller should capture the plan.
+		 */
+		synchronized boolean claimPlan() {
+			if (planClaimed) return false;
+			planClaimed = true;
+			return true;
+		}
+
+		synchronized void setPlan(String plan) {
+			this.plan = plan;
+		}
+
+		synchronized long getCalls() {
+			return histogram.getCount();
+		}
+
+		synchronized long getRows() {
+			return rows;
+		}
+
+		/**
+		 * Returns the total execution time in microseconds.
+		 */
+		synchronized long getTotalTime() {
+			return histogram.getTotal();
+		}
+
+		@Nullable
+		synchronized String getPlan() {
+			return plan;
+		}
+
+		private synchronized void appendReport(StringBuilder sb) {
+			sb.append(sql).append('\n');
+			sb.append("  ").append(histogram.getCount()).append(" calls, ");
+			sb.append(rows).append(" rows, ");
+			histogram.appendSummary(sb);
+			sb.append('\n');
+			if (plan != null) {
+				for (String line : plan.split("\n"))
+					sb.append("  | ").append(line).append('\n');
+			}
+		}
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private class ProfilingStatement implements InvocationHandler {
+
+		private final Connection txn;
+		private final StatementStats stats;
+		private final PreparedStatement delegate;
+		// The most recent call to each parameter setter, by parameter index
+		private final Map<Integer, Object[]> parameters = new TreeMap<>();
+		private final Map<Integer, Method> setters = new TreeMap<>();
+
+		private ProfilingStatement(Connection txn, StatementStats stats,
+				PreparedStatement delegate) {
+			this.txn = txn;
+			this.stats = stats;
+			this.delegate = delegate;
+		}
+
+		@Override
+		@Nullable
+		public Object invoke(Object proxy, Method method,
+				@Nullable Object[] args) throws Throwable {
+			String name = method.getName();
+			boolean noArgs = args == null || args.length == 0;
+			if (name.startsWith("set") && args != null && args.length >= 2
+					&& args[0] instanceof Integer) {
+				parameters.put((Integer) args[0], args);
+				setters.put((Integer) args[0], method);
+			} else if (name.equals("clearParameters")) {
+				parameters.clear();
+				setters.clear();
+			} else if (noArgs && name.equals("executeQuery")) {
+				capturePlan();
+				long start = System.nanoTime();
+				ResultSet rs = (ResultSet) delegate(method, null);
+				return Proxy.newProxyInstance(
+						ResultSet.class.getClassLoader(),
+						new Class<?>[] {ResultSet.class},
+						new ProfilingResultSet(stats, rs, start));
+			} else if (noArgs && name.equals("executeUpdate")) {
+				capturePlan();
+				long start = System.nanoTime();
+				Integer rows = (Integer) delegate(method, null);
+				stats.record(System.nanoTime() - start, rows);
+				return rows;
+			} else if (noArgs && name.equals("executeBatch")) {
+				capturePlan();
+				long start = System.nanoTime();
+				int[] results = (int[]) delegate(method, null);
+				long rows = 0;
+				for (int r : results) if (r > 0) rows += r;
+				stats.record(System.nanoTime() - start, rows);
+				return results;
+			} else if (noArgs && name.equals("execute")) {
+				capturePlan();
+				long start = System.nanoTime();
+				Object result = delegate(method, null);
+				stats.record(System.nanoTime() - start, 0);
+				return result;
+			}
+			return delegate(method, args);
+		}
+
+		@Nullable
+		private Object delegate(Method method, @Nullable Object[] args)
+				throws Throwable {
+			try {
+				return method.invoke(delegate, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		private void capturePlan() {
+			if (!isExplainable(stats.sql) || !stats.claimPlan()) return;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			try {
+				ps = txn.prepareStatement(explainPrefix + stats.sql);
+				// Bind the current parameters if the plan depends on them
+				int count = ps.getParameterMetaData().getParameterCount();
+				for (Entry<Integer, Object[]> e : parameters.entrySet()) {
+					if (e.getKey() > count) break;
+					setters.get(e.getKey()).invoke(ps, e.getValue());
+				}
+				rs = ps.executeQuery();
+				StringBuilder plan = new StringBuilder();
+				while (rs.next()) {
+					if (plan.length() > 0) plan.append('\n');
+					plan.append(rs.getString(1));
+				}
+				rs.close();
+				ps.close();
+				stats.setPlan(plan.toString());
+			} catch (SQLException | IllegalAccessException
+					| InvocationTargetException e) {
+				tryToClose(rs);
+				tryToClose(ps);
+				stats.setPlan("Plan unavailable: " + e);
+			}
+		}
+
+		private void tryToClose(@Nullable ResultSet rs) {
+			try {
+				if (rs != null) rs.close();
+			} catch (SQLException e) {
+				logException(LOG, WARNING, e);
+			}
+		}
+
+		private void tryToClose(@Nullable PreparedStatement ps) {
+			try {
+				if (ps != null) ps.close();
+			} catch (SQLException e) {
+				logException(LOG, WARNING, e);
+			}
+		}
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private static class ProfilingResultSet implements InvocationHandler {
+
+		private final StatementStats stats;
+		private final ResultSet delegate;
+		private final long start;
+
+		private long rows = 0;
+		private boolean recorded = false;
+
+		private ProfilingResultSet(StatementStats stats, ResultSet delegate,
+				long start) {
+			this.stats = stats;
+			this.delegate = delegate;
+			this.start = start;
+		}
+
+		@Override
+		@Nullable
+		public Object invoke(Object proxy, Method method,
+				@Nullable Object[] args) throws Throwable {
+			Object result;
+			try {
+				result = method.invoke(delegate, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			String name = method.getName();
+			if (name.equals("next") && (Boolean) result) {
+				rows++;
+			} else if (name.equals("close") && !recorded) {
+				recorded = true;
+				stats.record(System.nanoTime() - start, rows);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The status of a message with respect to a contact, reduced to the fields
+ * that are needed for choosing which messages to ack, offer and send.
+ */
+@Immutable
+@NotNullByDefault
+class SyncState {
+
+	private final MessageId messageId;
+	private final long timestamp, expiry;
+	private final int length, txCount;
+	private final boolean ack, sendable, requested;
+
+	SyncState(MessageId messageId, long timestamp, int length, boolean ack,
+			boolean sendable, boolean requested, long expiry, int txCount) {
+		this.messageId = messageId;
+		this.timestamp = timestamp;
+		this.length = length;
+		this.ack = ack;
+		this.sendable = sendable;
+		this.requested = requested;
+		this.expiry = expiry;
+		this.txCount = txCount;
+	}
+
+	MessageId getMessageId() {
+		return messageId;
+	}
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the message needs to be acked to the contact.
+	 */
+	boolean isAck() {
+		return ack;
+	}
+
+	/**
+	 * Returns true if the message is delivered, shared and not deleted, the
+	 * group is shared with the contact, and the contact hasn't seen the
+	 * message, so it may be offered or sent when its expiry time has passed.
+	 */
+	boolean isSendable() {
+		return sendable;
+	}
+
+	boolean isRequested() {
+		return requested;
+	}
+
+	long getExpiry() {
+		return expiry;
+	}
+
+	int getTxCount() {
+		return txCount;
+	}
+}
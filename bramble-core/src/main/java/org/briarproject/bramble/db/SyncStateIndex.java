@@ -0,0 +1,69 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An index of the sync state of each contact whose state has been loaded
+ * from the database.
+ * <p/>
+ * A write transaction changes the indexed states in place, recording the
+ * changes in an {@link UndoLog} so they can be undone if the transaction
+ * doesn't commit. The indexed states are only read by transactions that
+ * hold the main lock, so other transactions never see the changes before
+ * they're committed.
+ */
+@ThreadSafe
+@NotNullByDefault
+class SyncStateIndex {
+
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private final Map<ContactId, ContactSyncState> index = new HashMap<>();
+
+	/**
+	 * Returns the indexed state of the given contact, or null if the
+	 * contact's state has not been loaded. Only a write transaction may
+	 * modify the returned state.
+	 */
+	@Nullable
+	ContactSyncState get(ContactId c) {
+		synchronized (lock) {
+			return index.get(c);
+		}
+	}
+
+	void put(ContactId c, ContactSyncState state) {
+		synchronized (lock) {
+			index.put(c, state);
+		}
+	}
+
+	void remove(ContactId c) {
+		synchronized (lock) {
+			index.remove(c);
+		}
+	}
+
+	boolean isEmpty() {
+		synchronized (lock) {
+			return index.isEmpty();
+		}
+	}
+
+	Collection<ContactId> getContactIds() {
+		synchronized (lock) {
+			return new ArrayList<>(index.keySet());
+		}
+	}
+}
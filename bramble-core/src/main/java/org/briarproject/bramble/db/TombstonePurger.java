@@ -0,0 +1,102 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
+import org.briarproject.bramble.api.lifecycle.Service;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.event.GroupRemovedEvent;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.util.LogUtils.logException;
+
+/**
+ * Purges the remaining state of removed contacts and groups in the
+ * background. Each chunk is purged by a separate task on the database
+ * executor, so other tasks can run between the chunks and a large group
+ * doesn't hold the database lock for long.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class TombstonePurger implements Service, EventListener {
+
+	private static final Logger LOG =
+			Logger.getLogger(TombstonePurger.class.getName());
+
+	private final DatabaseComponent db;
+	private final Executor dbExecutor;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private boolean purgeScheduled = false, purgeNeeded = false;
+
+	@Inject
+	TombstonePurger(DatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor) {
+		this.db = db;
+		this.dbExecutor = dbExecutor;
+	}
+
+	@Override
+	public void startService() {
+		// Finish any purging that was interrupted by the last shutdown
+		schedulePurge();
+	}
+
+	@Override
+	public void stopService() {
+	}
+
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof ContactRemovedEvent || e instanceof GroupRemovedEvent)
+			schedulePurge();
+	}
+
+	private void schedulePurge() {
+		boolean schedule;
+		synchronized (lock) {
+			purgeNeeded = true;
+			schedule = !purgeScheduled;
+			purgeScheduled = true;
+		}
+		if (schedule) dbExecutor.execute(this::purge);
+	}
+
+	@DatabaseExecutor
+	private void purge() {
+		synchronized (lock) {
+			purgeNeeded = false;
+		}
+		boolean more;
+		try {
+			Transaction txn = db.startTransaction(false);
+			try {
+				more = db.purgeRemovedContactsAndGroups(txn);
+				db.commitTransaction(txn);
+			} finally {
+				db.endTransaction(txn);
+			}
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+			more = false;
+		}
+		synchronized (lock) {
+			// A removal may have been committed after this chunk started
+			more |= purgeNeeded;
+			purgeScheduled = more;
+		}
+		if (more) dbExecutor.execute(this::purge);
+	}
+}
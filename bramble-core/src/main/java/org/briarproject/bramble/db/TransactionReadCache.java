@@ -0,0 +1,119 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.db.GroupMetadataCache.copy;
+
+/**
+ * Caches the contacts, groups and metadata read by a single transaction, so
+ * reading them again within the transaction doesn't reach the database. The
+ * DatabaseComponent drops any entries that the transaction's own writes may
+ * change. The cache stores and returns copies of metadata, so callers are
+ * free to modify the metadata they pass in or get back.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class TransactionReadCache {
+
+	private final AtomicLong hits, misses;
+	private final Map<ContactId, Contact> contacts = new HashMap<>();
+	private final Map<GroupId, Group> groups = new HashMap<>();
+	private final Map<GroupId, Metadata> groupMetadata = new HashMap<>();
+	private final Map<MessageId, Metadata> messageMetadata = new HashMap<>();
+
+	/**
+	 * Creates a cache that counts its lookups as hits or misses using the
+	 * given counters, which may be shared with other caches.
+	 */
+	TransactionReadCache(AtomicLong hits, AtomicLong misses) {
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	@Nullable
+	Contact getContact(ContactId c) {
+		return count(contacts.get(c));
+	}
+
+	void putContact(Contact c) {
+		contacts.put(c.getId(), c);
+	}
+
+	void removeContact(ContactId c) {
+		contacts.remove(c);
+	}
+
+	@Nullable
+	Group getGroup(GroupId g) {
+		return count(groups.get(g));
+	}
+
+	void putGroup(Group g) {
+		groups.put(g.getId(), g);
+	}
+
+	/**
+	 * Drops the given group, its metadata and the metadata of any messages,
+	 * which may belong to the group.
+	 */
+	void removeGroup(GroupId g) {
+		groups.remove(g);
+		groupMetadata.remove(g);
+		messageMetadata.clear();
+	}
+
+	@Nullable
+	Metadata getGroupMetadata(GroupId g) {
+		Metadata meta = count(groupMetadata.get(g));
+		return meta == null ? null : copy(meta);
+	}
+
+	void putGroupMetadata(GroupId g, Metadata meta) {
+		groupMetadata.put(g, copy(meta));
+	}
+
+	void removeGroupMetadata(GroupId g) {
+		groupMetadata.remove(g);
+	}
+
+	@Nullable
+	Metadata getMessageMetadata(MessageId m) {
+		Metadata meta = count(messageMetadata.get(m));
+		return meta == null ? null : copy(meta);
+	}
+
+	void putMessageMetadata(MessageId m, Metadata meta) {
+		messageMetadata.put(m, copy(meta));
+	}
+
+	void removeMessageMetadata(MessageId m) {
+		messageMetadata.remove(m);
+	}
+
+	void clear() {
+		contacts.clear();
+		groups.clear();
+		groupMetadata.clear();
+		messageMetadata.clear();
+	}
+
+	@Nullable
+	private <V> V count(@Nullable V value) {
+		if (value == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return value;
+	}
+}
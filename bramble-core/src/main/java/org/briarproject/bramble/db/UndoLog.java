@@ -0,0 +1,52 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Records how to undo the changes made to in-memory state by a write
+ * transaction, so the changes can be made in place and undone if the
+ * transaction aborts or rolls back to a savepoint.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class UndoLog {
+
+	private final List<Runnable> actions = new ArrayList<>();
+
+	/**
+	 * Records an action that undoes a change that has just been made.
+	 */
+	void add(Runnable undo) {
+		actions.add(undo);
+	}
+
+	/**
+	 * Returns the number of changes that have been recorded, which can be
+	 * passed to {@link #rollback(int)} to undo any later changes.
+	 */
+	int size() {
+		return actions.size();
+	}
+
+	/**
+	 * Undoes the changes recorded after the log had the given size, most
+	 * recent first.
+	 */
+	void rollback(int size) {
+		for (int i = actions.size() - 1; i >= size; i--) {
+			actions.remove(i).run();
+		}
+	}
+
+	/**
+	 * Forgets the recorded changes, which can no longer be undone.
+	 */
+	void clear() {
+		actions.clear();
+	}
+}
@@ -6,6 +6,8 @@ import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCommitTask;
+import org.briarproject.bramble.api.db.GroupCommitter;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
@@ -21,9 +23,12 @@ import org.briarproject.bramble.api.sync.SyncRecordReader;
 import org.briarproject.bramble.api.sync.SyncSession;
 
 import java.io.IOException;
-import java.util.concurrent.Executor;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import static java.util.logging.Level.WARNING;
@@ -40,19 +45,31 @@ class IncomingSession implements SyncSession, EventListener {
 	private static final Logger LOG =
 			Logger.getLogger(IncomingSession.class.getName());
 
+	/**
+	 * The maximum number of consecutive messages that are stored in a batch.
+	 */
+	private static final int MAX_MESSAGES_PER_BATCH = 64;
+
 	private final DatabaseComponent db;
-	private final Executor dbExecutor;
+	private final GroupCommitter groupCommitter;
 	private final EventBus eventBus;
 	private final ContactId contactId;
 	private final SyncRecordReader recordReader;
+	private final Object lock = new Object();
+
+	// The most recently submitted task, if it's receiving messages that have
+	// not yet been stored
+	@GuardedBy("lock")
+	@Nullable
+	private ReceiveMessages pendingMessages = null;
 
 	private volatile boolean interrupted = false;
 
-	IncomingSession(DatabaseComponent db, Executor dbExecutor,
+	IncomingSession(DatabaseComponent db, GroupCommitter groupCommitter,
 			EventBus eventBus, ContactId contactId,
 			SyncRecordReader recordReader) {
 		this.db = db;
-		this.dbExecutor = dbExecutor;
+		this.groupCommitter = groupCommitter;
 		this.eventBus = eventBus;
 		this.contactId = contactId;
 		this.recordReader = recordReader;
@@ -71,16 +88,16 @@ class IncomingSession implements SyncSession, EventListener {
 				}
 				if (recordReader.hasAck()) {
 					Ack a = recordReader.readAck();
-					dbExecutor.execute(new ReceiveAck(a));
+					submit(new ReceiveAck(a));
 				} else if (recordReader.hasMessage()) {
 					Message m = recordReader.readMessage();
-					dbExecutor.execute(new ReceiveMessage(m));
+					receiveMessage(m);
 				} else if (recordReader.hasOffer()) {
 					Offer o = recordReader.readOffer();
-					dbExecutor.execute(new ReceiveOffer(o));
+					submit(new ReceiveOffer(o));
 				} else if (recordReader.hasRequest()) {
 					Request r = recordReader.readRequest();
-					dbExecutor.execute(new ReceiveRequest(r));
+					submit(new ReceiveRequest(r));
 				} else {
 					// unknown records are ignored in RecordReader#eof()
 					throw new FormatException();
@@ -91,6 +108,32 @@ class IncomingSession implements SyncSession, EventListener {
 		}
 	}
 
+	private void submit(ReceiveTask task) {
+		synchronized (lock) {
+			// Later messages must not be stored before this task runs
+			pendingMessages = null;
+		}
+		groupCommitter.submit(task);
+	}
+
+	private void receiveMessage(Message m) {
+		// If the quota is exceeded, don't store or acknowledge the message -
+		// the contact will send it again later
+		if (!db.hasFreeSpace(m.getRaw().length)) {
+			LOG.warning("Storage quota exceeded, not storing message");
+			return;
+		}
+		ReceiveMessages task;
+		synchronized (lock) {
+			// If the previous record was a message that hasn't been stored
+			// yet, store this message in the same batch
+			if (pendingMessages != null && pendingMessages.add(m)) return;
+			task = new ReceiveMessages(m);
+			pendingMessages = task;
+		}
+		groupCommitter.submit(task);
+	}
+
 	@Override
 	public void interrupt() {
 		// FIXME: This won't interrupt a blocking read
@@ -108,7 +151,17 @@ class IncomingSession implements SyncSession, EventListener {
 		}
 	}
 
-	private class ReceiveAck implements Runnable {
+	private abstract class ReceiveTask implements GroupCommitTask {
+
+		@DatabaseExecutor
+		@Override
+		public void onFailure(DbException e) {
+			logException(LOG, WARNING, e);
+			interrupt();
+		}
+	}
+
+	private class ReceiveAck extends ReceiveTask {
 
 		private final Ack ack;
 
@@ -118,49 +171,47 @@ class IncomingSession implements SyncSession, EventListener {
 
 		@DatabaseExecutor
 		@Override
-		public void run() {
-			try {
-				Transaction txn = db.startTransaction(false);
-				try {
-					db.receiveAck(txn, contactId, ack);
-					db.commitTransaction(txn);
-				} finally {
-					db.endTransaction(txn);
-				}
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
-			}
+		public void run(Transaction txn) throws DbException {
+			db.receiveAck(txn, contactId, ack);
 		}
 	}
 
-	private class ReceiveMessage implements Runnable {
+	private class ReceiveMessages extends ReceiveTask {
+
+		@GuardedBy("lock")
+		private final List<Message> messages = new ArrayList<>();
+		@GuardedBy("lock")
+		private boolean started = false;
 
-		private final Message message;
+		private ReceiveMessages(Message first) {
+			messages.add(first);
+		}
 
-		private ReceiveMessage(Message message) {
-			this.message = message;
+		/**
+		 * Adds a message to the batch, returning false if the task has
+		 * already started or the batch is full.
+		 */
+		@GuardedBy("lock")
+		private boolean add(Message m) {
+			if (started || messages.size() >= MAX_MESSAGES_PER_BATCH)
+				return false;
+			messages.add(m);
+			return true;
 		}
 
 		@DatabaseExecutor
 		@Override
-		public void run() {
-			try {
-				Transaction txn = db.startTransaction(false);
-				try {
-					db.receiveMessage(txn, contactId, message);
-					db.commitTransaction(txn);
-				} finally {
-					db.endTransaction(txn);
-				}
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
+		public void run(Transaction txn) throws DbException {
+			List<Message> batch;
+			synchronized (lock) {
+				started = true;
+				batch = new ArrayList<>(messages);
 			}
+			db.receiveMessages(txn, contactId, batch);
 		}
 	}
 
-	private class ReceiveOffer implements Runnable {
+	private class ReceiveOffer extends ReceiveTask {
 
 		private final Offer offer;
 
@@ -170,23 +221,12 @@ class IncomingSession implements SyncSession, EventListener {
 
 		@DatabaseExecutor
 		@Override
-		public void run() {
-			try {
-				Transaction txn = db.startTransaction(false);
-				try {
-					db.receiveOffer(txn, contactId, offer);
-					db.commitTransaction(txn);
-				} finally {
-					db.endTransaction(txn);
-				}
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
-			}
+		public void run(Transaction txn) throws DbException {
+			db.receiveOffer(txn, contactId, offer);
 		}
 	}
 
-	private class ReceiveRequest implements Runnable {
+	private class ReceiveRequest extends ReceiveTask {
 
 		private final Request request;
 
@@ -196,19 +236,8 @@ class IncomingSession implements SyncSession, EventListener {
 
 		@DatabaseExecutor
 		@Override
-		public void run() {
-			try {
-				Transaction txn = db.startTransaction(false);
-				try {
-					db.receiveRequest(txn, contactId, request);
-					db.commitTransaction(txn);
-				} finally {
-					db.endTransaction(txn);
-				}
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
-			}
+		public void run(Transaction txn) throws DbException {
+			db.receiveRequest(txn, contactId, request);
 		}
 	}
 }
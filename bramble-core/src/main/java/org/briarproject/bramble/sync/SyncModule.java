@@ -5,6 +5,7 @@ import org.briarproject.bramble.api.crypto.CryptoComponent;
 import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.GroupCommitter;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.sync.GroupFactory;
@@ -66,11 +67,12 @@ public class SyncModule {
 	@Provides
 	@Singleton
 	SyncSessionFactory provideSyncSessionFactory(DatabaseComponent db,
-			@DatabaseExecutor Executor dbExecutor, EventBus eventBus,
-			Clock clock, SyncRecordReaderFactory recordReaderFactory,
+			@DatabaseExecutor Executor dbExecutor,
+			GroupCommitter groupCommitter, EventBus eventBus, Clock clock,
+			SyncRecordReaderFactory recordReaderFactory,
 			SyncRecordWriterFactory recordWriterFactory) {
-		return new SyncSessionFactoryImpl(db, dbExecutor, eventBus, clock,
-				recordReaderFactory, recordWriterFactory);
+		return new SyncSessionFactoryImpl(db, dbExecutor, groupCommitter,
+				eventBus, clock, recordReaderFactory, recordWriterFactory);
 	}
 
 	@Provides
@@ -3,6 +3,7 @@ package org.briarproject.bramble.sync;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.GroupCommitter;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.sync.SyncRecordReader;
@@ -27,6 +28,7 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 
 	private final DatabaseComponent db;
 	private final Executor dbExecutor;
+	private final GroupCommitter groupCommitter;
 	private final EventBus eventBus;
 	private final Clock clock;
 	private final SyncRecordReaderFactory recordReaderFactory;
@@ -34,11 +36,13 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 
 	@Inject
 	SyncSessionFactoryImpl(DatabaseComponent db,
-			@DatabaseExecutor Executor dbExecutor, EventBus eventBus,
-			Clock clock, SyncRecordReaderFactory recordReaderFactory,
+			@DatabaseExecutor Executor dbExecutor,
+			GroupCommitter groupCommitter, EventBus eventBus, Clock clock,
+			SyncRecordReaderFactory recordReaderFactory,
 			SyncRecordWriterFactory recordWriterFactory) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.groupCommitter = groupCommitter;
 		this.eventBus = eventBus;
 		this.clock = clock;
 		this.recordReaderFactory = recordReaderFactory;
@@ -49,7 +53,8 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 	public SyncSession createIncomingSession(ContactId c, InputStream in) {
 		SyncRecordReader recordReader =
 				recordReaderFactory.createRecordReader(in);
-		return new IncomingSession(db, dbExecutor, eventBus, c, recordReader);
+		return new IncomingSession(db, groupCommitter, eventBus, c,
+				recordReader);
 	}
 
 	@Override
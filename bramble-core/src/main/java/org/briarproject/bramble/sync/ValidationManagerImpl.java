@@ -2,6 +2,7 @@ package org.briarproject.bramble.sync;
 
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
@@ -51,7 +52,7 @@ class ValidationManagerImpl implements ValidationManager, Service,
 			Logger.getLogger(ValidationManagerImpl.class.getName());
 
 	private final DatabaseComponent db;
-	private final Executor dbExecutor, validationExecutor;
+	private final Executor dbExecutor, dbReadExecutor, validationExecutor;
 	private final MessageFactory messageFactory;
 	private final Map<ClientMajorVersion, MessageValidator> validators;
 	private final Map<ClientMajorVersion, IncomingMessageHook> hooks;
@@ -60,10 +61,12 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	@Inject
 	ValidationManagerImpl(DatabaseComponent db,
 			@DatabaseExecutor Executor dbExecutor,
+			@DatabaseReadExecutor Executor dbReadExecutor,
 			@ValidationExecutor Executor validationExecutor,
 			MessageFactory messageFactory) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.dbReadExecutor = dbReadExecutor;
 		this.validationExecutor = validationExecutor;
 		this.messageFactory = messageFactory;
 		validators = new ConcurrentHashMap<>();
@@ -95,14 +98,14 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	}
 
 	private void validateOutstandingMessagesAsync() {
-		dbExecutor.execute(this::validateOutstandingMessages);
+		dbReadExecutor.execute(this::validateOutstandingMessages);
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void validateOutstandingMessages() {
 		try {
 			Queue<MessageId> unvalidated = new LinkedList<>();
-			Transaction txn = db.startTransaction(true);
+			Transaction txn = db.startSnapshotTransaction();
 			try {
 				unvalidated.addAll(db.getMessagesToValidate(txn));
 				db.commitTransaction(txn);
@@ -117,15 +120,15 @@ class ValidationManagerImpl implements ValidationManager, Service,
 
 	private void validateNextMessageAsync(Queue<MessageId> unvalidated) {
 		if (unvalidated.isEmpty()) return;
-		dbExecutor.execute(() -> validateNextMessage(unvalidated));
+		dbReadExecutor.execute(() -> validateNextMessage(unvalidated));
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void validateNextMessage(Queue<MessageId> unvalidated) {
 		try {
 			Message m;
 			Group g;
-			Transaction txn = db.startTransaction(true);
+			Transaction txn = db.startSnapshotTransaction();
 			try {
 				MessageId id = unvalidated.poll();
 				byte[] raw = db.getRawMessage(txn, id);
@@ -150,14 +153,14 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	}
 
 	private void deliverOutstandingMessagesAsync() {
-		dbExecutor.execute(this::deliverOutstandingMessages);
+		dbReadExecutor.execute(this::deliverOutstandingMessages);
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void deliverOutstandingMessages() {
 		try {
 			Queue<MessageId> pending = new LinkedList<>();
-			Transaction txn = db.startTransaction(true);
+			Transaction txn = db.startSnapshotTransaction();
 			try {
 				pending.addAll(db.getPendingMessages(txn));
 				db.commitTransaction(txn);
@@ -361,14 +364,14 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	}
 
 	private void shareOutstandingMessagesAsync() {
-		dbExecutor.execute(this::shareOutstandingMessages);
+		dbReadExecutor.execute(this::shareOutstandingMessages);
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void shareOutstandingMessages() {
 		try {
 			Queue<MessageId> toShare = new LinkedList<>();
-			Transaction txn = db.startTransaction(true);
+			Transaction txn = db.startSnapshotTransaction();
 			try {
 				toShare.addAll(db.getMessagesToShare(txn));
 				db.commitTransaction(txn);
@@ -474,14 +477,14 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	}
 
 	private void loadGroupAndValidateAsync(Message m) {
-		dbExecutor.execute(() -> loadGroupAndValidate(m));
+		dbReadExecutor.execute(() -> loadGroupAndValidate(m));
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void loadGroupAndValidate(Message m) {
 		try {
 			Group g;
-			Transaction txn = db.startTransaction(true);
+			Transaction txn = db.startSnapshotTransaction();
 			try {
 				g = db.getGroup(txn, m.getGroupId());
 				db.commitTransaction(txn);
@@ -142,7 +142,7 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 			return null;
 		}
 		StreamContext ctx;
-		Transaction txn = db.startTransaction(false);
+		Transaction txn = db.startTransportKeyTransaction(false);
 		try {
 			ctx = m.getStreamContext(txn, c);
 			db.commitTransaction(txn);
@@ -161,7 +161,7 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 			return null;
 		}
 		StreamContext ctx;
-		Transaction txn = db.startTransaction(false);
+		Transaction txn = db.startTransportKeyTransaction(false);
 		try {
 			ctx = m.getStreamContext(txn, tag);
 			db.commitTransaction(txn);
@@ -162,7 +162,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	private void rotateKeys() {
 		dbExecutor.execute(() -> {
 			try {
-				Transaction txn = db.startTransaction(false);
+				Transaction txn = db.startTransportKeyTransaction(false);
 				try {
 					rotateKeys(txn);
 					db.commitTransaction(txn);
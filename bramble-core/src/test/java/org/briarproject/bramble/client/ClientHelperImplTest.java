@@ -14,6 +14,7 @@ import org.briarproject.bramble.api.data.MetadataEncoder;
 import org.briarproject.bramble.api.data.MetadataParser;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataVisitor;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.AuthorFactory;
@@ -25,6 +26,8 @@ import org.briarproject.bramble.test.BrambleTestCase;
 import org.briarproject.bramble.util.StringUtils;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
@@ -219,6 +222,43 @@ public class ClientHelperImplTest extends BrambleTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testVisitMessageMetadataAsDictionary() throws Exception {
+		Transaction txn = new Transaction(null, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).visitMessageMetadata(with(txn), with(groupId),
+					with(any(MetadataVisitor.class)));
+			will(new VisitAction());
+			oneOf(metadataParser).parse(metadata);
+			will(returnValue(dictionary));
+		}});
+
+		Map<MessageId, BdfDictionary> visited = new HashMap<>();
+		clientHelper.visitMessageMetadataAsDictionary(txn, groupId,
+				visited::put);
+		assertEquals(Collections.singletonMap(messageId, dictionary),
+				visited);
+		context.assertIsSatisfied();
+	}
+
+	@Test(expected = FormatException.class)
+	public void testVisitMessageMetadataAsDictionaryThrowsFormatException()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).visitMessageMetadata(with(txn), with(groupId),
+					with(any(MetadataVisitor.class)));
+			will(new VisitAction());
+			oneOf(metadataParser).parse(metadata);
+			will(throwException(new FormatException()));
+		}});
+
+		clientHelper.visitMessageMetadataAsDictionary(txn, groupId,
+				(m, meta) -> fail());
+	}
+
 	@Test
 	public void testMergeGroupMetadata() throws Exception {
 		Transaction txn = new Transaction(null, false);
@@ -521,4 +561,23 @@ public class ClientHelperImplTest extends BrambleTestCase {
 			will(returnValue(eof));
 		}});
 	}
+
+	/**
+	 * Passes the test message's metadata to the visitor that's the last
+	 * argument of the invocation.
+	 */
+	private class VisitAction extends CustomAction {
+
+		private VisitAction() {
+			super("visit metadata");
+		}
+
+		@Override
+		public Object invoke(Invocation invocation) throws Throwable {
+			MetadataVisitor v = (MetadataVisitor) invocation.getParameter(
+					invocation.getParameterCount() - 1);
+			v.visit(messageId, metadata);
+			return null;
+		}
+	}
 }
@@ -0,0 +1,48 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.briarproject.bramble.test.TestSecureRandomProvider;
+import org.briarproject.bramble.test.TestUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeyBasedEncryptionTest extends BrambleTestCase {
+
+	private final CryptoComponentImpl crypto =
+			new CryptoComponentImpl(new TestSecureRandomProvider(), null);
+
+	@Test
+	public void testEncryptionAndDecryption() {
+		byte[] input = TestUtils.getRandomBytes(1234);
+		SecretKey key = getSecretKey();
+		byte[] ciphertext = crypto.encryptWithKey(key, input);
+		byte[] output = crypto.decryptWithKey(key, ciphertext);
+		assertArrayEquals(input, output);
+	}
+
+	@Test
+	public void testInvalidCiphertextReturnsNull() {
+		byte[] input = TestUtils.getRandomBytes(1234);
+		SecretKey key = getSecretKey();
+		byte[] ciphertext = crypto.encryptWithKey(key, input);
+		// Modify the ciphertext
+		int position = new Random().nextInt(ciphertext.length);
+		ciphertext[position] = (byte) (ciphertext[position] ^ 0xFF);
+		byte[] output = crypto.decryptWithKey(key, ciphertext);
+		assertNull(output);
+	}
+
+	@Test
+	public void testWrongKeyReturnsNull() {
+		byte[] input = TestUtils.getRandomBytes(1234);
+		byte[] ciphertext = crypto.encryptWithKey(getSecretKey(), input);
+		byte[] output = crypto.decryptWithKey(getSecretKey(), ciphertext);
+		assertNull(output);
+	}
+}
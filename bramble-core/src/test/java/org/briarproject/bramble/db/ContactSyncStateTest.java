@@ -0,0 +1,162 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertEquals;
+
+public class ContactSyncStateTest extends BrambleTestCase {
+
+	private static final int MAX_LATENCY = 60 * 1000;
+
+	private final MessageId messageId = new MessageId(getRandomId());
+	private final MessageId messageId1 = new MessageId(getRandomId());
+	private final MessageId messageId2 = new MessageId(getRandomId());
+	private final UndoLog undoLog = new UndoLog();
+
+	@Test
+	public void testMessagesAreSentInTimestampOrder() {
+		ContactSyncState state = new ContactSyncState(emptyList(), undoLog);
+		state.put(new SyncState(messageId, 2, 100, false, true, false, 0, 0));
+		state.put(new SyncState(messageId1, 1, 100, false, true, false, 0, 0));
+		// Same timestamp as the first message, but indexed later
+		state.put(new SyncState(messageId2, 2, 100, false, true, false, 0, 0));
+
+		assertEquals(Arrays.asList(messageId1, messageId, messageId2),
+				state.getMessagesToSend(1000, 1, false));
+		assertEquals(Arrays.asList(messageId1, messageId, messageId2),
+				state.getMessagesToOffer(10, 1));
+		// Only the messages that fit should be returned
+		assertEquals(Arrays.asList(messageId1, messageId),
+				state.getMessagesToSend(250, 1, false));
+	}
+
+	@Test
+	public void testReplacingMessageKeepsItsPlaceInQueue() {
+		ContactSyncState state = new ContactSyncState(Arrays.asList(
+				new SyncState(messageId, 1, 100, false, true, false, 0, 0),
+				new SyncState(messageId1, 1, 100, false, true, false, 0, 0)),
+				undoLog);
+		state.put(new SyncState(messageId, 1, 100, true, true, false, 0, 0));
+
+		assertEquals(Arrays.asList(messageId, messageId1),
+				state.getMessagesToSend(1000, 1, false));
+		assertEquals(singletonList(messageId), state.getMessagesToAck(10));
+	}
+
+	@Test
+	public void testRequestedMessagesAreNotOffered() {
+		ContactSyncState state = new ContactSyncState(Arrays.asList(
+				new SyncState(messageId, 1, 100, false, true, false, 0, 0),
+				new SyncState(messageId1, 2, 100, false, true, false, 0, 0)),
+				undoLog);
+		state.raiseRequestedFlag(messageId);
+
+		assertEquals(singletonList(messageId1),
+				state.getMessagesToOffer(10, 1));
+		assertEquals(singletonList(messageId),
+				state.getMessagesToSend(1000, 1, true));
+
+		state.lowerRequestedFlag(singletonList(messageId));
+		assertEquals(emptyList(), state.getMessagesToSend(1000, 1, true));
+	}
+
+	@Test
+	public void testSentMessagesAreNotSentAgainUntilExpiry() {
+		ContactSyncState state = new ContactSyncState(singletonList(
+				new SyncState(messageId, 1, 100, false, true, false, 0, 0)),
+				undoLog);
+		assertEquals(0, state.getNextSendTime());
+
+		long now = 1000;
+		state.updateExpiryTimes(singletonList(messageId), now, MAX_LATENCY);
+		long expiry = state.getNextSendTime();
+		assertEquals(ExponentialBackoff.calculateExpiry(now, MAX_LATENCY, 0),
+				expiry);
+		assertEquals(emptyList(), state.getMessagesToSend(1000, now, false));
+		assertEquals(singletonList(messageId),
+				state.getMessagesToSend(1000, expiry + 1, false));
+
+		// Resetting the expiry time makes the message sendable again
+		state.resetExpiryTime(messageId);
+		assertEquals(0, state.getNextSendTime());
+	}
+
+	@Test
+	public void testSeenMessagesAreNotSent() {
+		ContactSyncState state = new ContactSyncState(singletonList(
+				new SyncState(messageId, 1, 100, false, true, false, 0, 0)),
+				undoLog);
+		state.raiseSeenFlag(messageId);
+
+		assertEquals(emptyList(), state.getMessagesToSend(1000, 1, false));
+		assertEquals(Long.MAX_VALUE, state.getNextSendTime());
+	}
+
+	@Test
+	public void testMessagesBecomeDueInTimestampOrder() {
+		ContactSyncState state = new ContactSyncState(Arrays.asList(
+				new SyncState(messageId, 1, 100, false, true, false, 300, 0),
+				new SyncState(messageId1, 2, 100, false, true, false, 200, 0),
+				new SyncState(messageId2, 3, 100, false, true, false, 0, 0)),
+				undoLog);
+		assertEquals(0, state.getNextSendTime());
+
+		assertEquals(singletonList(messageId2),
+				state.getMessagesToSend(1000, 100, false));
+		assertEquals(Arrays.asList(messageId1, messageId2),
+				state.getMessagesToSend(1000, 250, false));
+		assertEquals(Arrays.asList(messageId, messageId1, messageId2),
+				state.getMessagesToOffer(10, 350));
+
+		// If the clock goes backwards, messages stop being due
+		assertEquals(singletonList(messageId2),
+				state.getMessagesToSend(1000, 100, false));
+
+		// A message that's sent stops being due until its new expiry time
+		state.updateExpiryTimes(singletonList(messageId2), 100, MAX_LATENCY);
+		assertEquals(200, state.getNextSendTime());
+		assertEquals(Arrays.asList(messageId, messageId1),
+				state.getMessagesToSend(1000, 350, false));
+	}
+
+	@Test
+	public void testChangesCanBeUndone() {
+		ContactSyncState state = new ContactSyncState(Arrays.asList(
+				new SyncState(messageId, 1, 100, true, true, false, 0, 0),
+				new SyncState(messageId1, 2, 100, false, true, false, 0, 0)),
+				undoLog);
+		assertEquals(0, undoLog.size());
+
+		state.lowerAckFlag(singletonList(messageId));
+		state.updateExpiryTimes(singletonList(messageId), 1000, MAX_LATENCY);
+		int savepoint = undoLog.size();
+		state.raiseRequestedFlag(messageId1);
+		state.remove(messageId1);
+		state.put(new SyncState(messageId2, 3, 100, true, false, false, 0, 0));
+		assertEquals(singletonList(messageId2), state.getMessagesToAck(10));
+		assertEquals(emptyList(), state.getMessagesToSend(1000, 1, false));
+
+		// Undo the changes made after the savepoint
+		undoLog.rollback(savepoint);
+		assertEquals(emptyList(), state.getMessagesToAck(10));
+		assertEquals(singletonList(messageId1),
+				state.getMessagesToSend(1000, 1, false));
+		assertEquals(emptyList(), state.getMessagesToSend(1000, 1, true));
+
+		// Undo the rest of the changes
+		undoLog.rollback(0);
+		assertEquals(0, undoLog.size());
+		assertEquals(singletonList(messageId), state.getMessagesToAck(10));
+		assertEquals(0, state.getNextSendTime());
+		assertEquals(Arrays.asList(messageId, messageId1),
+				state.getMessagesToSend(1000, 1, false));
+		assertEquals(emptyList(), state.getMessagesToSend(1000, 1, true));
+	}
+}
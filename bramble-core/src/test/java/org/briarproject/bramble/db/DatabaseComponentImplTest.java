@@ -5,9 +5,12 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.event.ContactAddedEvent;
 import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
 import org.briarproject.bramble.api.contact.event.ContactStatusChangedEvent;
+import org.briarproject.bramble.api.contact.event.ContactVerifiedEvent;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.ContactExistsException;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCommitTask;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchContactException;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
@@ -49,18 +52,27 @@ import org.briarproject.bramble.api.transport.KeySet;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.OutgoingKeys;
 import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.system.SystemClock;
 import org.briarproject.bramble.test.BrambleMockTestCase;
 import org.briarproject.bramble.test.CaptureArgumentAction;
 import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.concurrent.Synchroniser;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
@@ -68,6 +80,8 @@ import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERE
 import static org.briarproject.bramble.api.sync.ValidationManager.State.UNKNOWN;
 import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.bramble.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_PURGE_CHUNK_SIZE;
+import static org.briarproject.bramble.db.DatabaseConstants.MIN_FREE_SPACE;
 import static org.briarproject.bramble.test.TestUtils.getAuthor;
 import static org.briarproject.bramble.test.TestUtils.getClientId;
 import static org.briarproject.bramble.test.TestUtils.getGroup;
@@ -75,9 +89,12 @@ import static org.briarproject.bramble.test.TestUtils.getLocalAuthor;
 import static org.briarproject.bramble.test.TestUtils.getRandomId;
 import static org.briarproject.bramble.test.TestUtils.getSecretKey;
 import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -133,8 +150,14 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 
 	private DatabaseComponent createDatabaseComponent(Database<Object> database,
 			EventBus eventBus, ShutdownManager shutdown) {
+		return createDatabaseComponent(database, eventBus, shutdown, false);
+	}
+
+	private DatabaseComponent createDatabaseComponent(Database<Object> database,
+			EventBus eventBus, ShutdownManager shutdown,
+			boolean readCacheEnabled) {
 		return new DatabaseComponentImpl<>(database, Object.class, eventBus,
-				shutdown);
+				shutdown, new SystemClock(), readCacheEnabled);
 	}
 
 	@Test
@@ -174,6 +197,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			// addGroup()
 			oneOf(database).containsGroup(txn, groupId);
 			will(returnValue(false));
+			oneOf(database).getRemovedGroups(txn);
+			will(returnValue(emptyList()));
 			oneOf(database).addGroup(txn, group);
 			oneOf(eventBus).broadcast(with(any(GroupAddedEvent.class)));
 			// addGroup() again
@@ -187,14 +212,14 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(true));
 			oneOf(database).getGroupVisibility(txn, groupId);
 			will(returnValue(emptyMap()));
-			oneOf(database).removeGroup(txn, groupId);
+			oneOf(database).markGroupRemoved(txn, groupId);
 			oneOf(eventBus).broadcast(with(any(GroupRemovedEvent.class)));
 			oneOf(eventBus).broadcast(with(any(
 					GroupVisibilityUpdatedEvent.class)));
 			// removeContact()
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).removeContact(txn, contactId);
+			oneOf(database).markContactRemoved(txn, contactId);
 			oneOf(eventBus).broadcast(with(any(ContactRemovedEvent.class)));
 			// removeLocalAuthor()
 			oneOf(database).containsLocalAuthor(txn, localAuthor.getId());
@@ -285,6 +310,46 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		}
 	}
 
+	@Test
+	public void testAddLocalMessages() throws Exception {
+		Message message1 = new Message(messageId1, groupId,
+				message.getTimestamp(), raw);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			// The group is only checked once
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			// The first message is new, the second is already stored
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(true));
+			// The new message is stored, the duplicate is ignored
+			oneOf(database).addMessages(txn, singletonList(message),
+					DELIVERED, true, null);
+			oneOf(database).mergeMessageMetadata(txn, messageId, metadata);
+			oneOf(database).commitTransaction(txn);
+			// Only the new message was added
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
+			oneOf(eventBus)
+					.broadcast(with(any(MessageStateChangedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageSharedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			db.addLocalMessages(transaction,
+					Arrays.asList(message, message1, message),
+					singletonMap(messageId, metadata), true);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
 	@Test
 	public void testVariousMethodsThrowExceptionIfContactIsMissing()
 			throws Exception {
@@ -514,11 +579,11 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			throws Exception {
 		context.checking(new Expectations() {{
 			// Check whether the group is in the DB (which it's not)
-			exactly(8).of(database).startTransaction();
+			exactly(10).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(8).of(database).containsGroup(txn, groupId);
+			exactly(10).of(database).containsGroup(txn, groupId);
 			will(returnValue(false));
-			exactly(8).of(database).abortTransaction(txn);
+			exactly(10).of(database).abortTransaction(txn);
 			// This is needed for getMessageStatus() and setGroupVisibility()
 			exactly(2).of(database).containsContact(txn, contactId);
 			will(returnValue(true));
@@ -536,6 +601,16 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			db.endTransaction(transaction);
 		}
 
+		transaction = db.startTransaction(false);
+		try {
+			db.getGroupCounts(transaction, groupId);
+			fail();
+		} catch (NoSuchGroupException expected) {
+			// Expected
+		} finally {
+			db.endTransaction(transaction);
+		}
+
 		transaction = db.startTransaction(false);
 		try {
 			db.getGroupMetadata(transaction, groupId);
@@ -605,6 +680,17 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		} finally {
 			db.endTransaction(transaction);
 		}
+
+		transaction = db.startTransaction(false);
+		try {
+			db.updateGroupCounts(transaction, groupId, 1, 1,
+					message.getTimestamp());
+			fail();
+		} catch (NoSuchGroupException expected) {
+			// Expected
+		} finally {
+			db.endTransaction(transaction);
+		}
 	}
 
 	@Test
@@ -839,13 +925,16 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	public void testGenerateAck() throws Exception {
 		Collection<MessageId> messagesToAck = Arrays.asList(messageId,
 				messageId1);
+		Collection<SyncState> states = Arrays.asList(
+				getSyncState(messageId, true, false, false),
+				getSyncState(messageId1, true, false, false));
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getMessagesToAck(txn, contactId, 123);
-			will(returnValue(messagesToAck));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
 			oneOf(database).lowerAckFlag(txn, contactId, messagesToAck);
 			oneOf(database).commitTransaction(txn);
 		}});
@@ -868,20 +957,22 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		byte[] raw1 = new byte[size];
 		Collection<MessageId> ids = Arrays.asList(messageId, messageId1);
 		Collection<byte[]> messages = Arrays.asList(raw, raw1);
+		Map<MessageId, byte[]> rawMessages = new HashMap<>();
+		rawMessages.put(messageId, raw);
+		rawMessages.put(messageId1, raw1);
+		Collection<SyncState> states = Arrays.asList(
+				getSyncState(messageId, false, true, false),
+				getSyncState(messageId1, false, true, false));
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getMessagesToSend(txn, contactId, size * 2);
-			will(returnValue(ids));
-			oneOf(database).getRawMessage(txn, messageId);
-			will(returnValue(raw));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).getRawMessage(txn, messageId1);
-			will(returnValue(raw1));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).getRawMessages(txn, ids);
+			will(returnValue(rawMessages));
+			oneOf(database).updateExpiryTimes(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -902,18 +993,18 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testGenerateOffer() throws Exception {
-		MessageId messageId1 = new MessageId(getRandomId());
 		Collection<MessageId> ids = Arrays.asList(messageId, messageId1);
+		Collection<SyncState> states = Arrays.asList(
+				getSyncState(messageId, false, true, false),
+				getSyncState(messageId1, false, true, false));
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getMessagesToOffer(txn, contactId, 123);
-			will(returnValue(ids));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).updateExpiryTimes(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).commitTransaction(txn);
 		}});
@@ -964,21 +1055,25 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		byte[] raw1 = new byte[size];
 		Collection<MessageId> ids = Arrays.asList(messageId, messageId1);
 		Collection<byte[]> messages = Arrays.asList(raw, raw1);
+		Map<MessageId, byte[]> rawMessages = new HashMap<>();
+		rawMessages.put(messageId, raw);
+		rawMessages.put(messageId1, raw1);
+		// The message that hasn't been requested should not be sent
+		MessageId unrequested = new MessageId(getRandomId());
+		Collection<SyncState> states = Arrays.asList(
+				getSyncState(messageId, false, true, true),
+				getSyncState(unrequested, false, true, false),
+				getSyncState(messageId1, false, true, true));
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getRequestedMessagesToSend(txn, contactId,
-					size * 2);
-			will(returnValue(ids));
-			oneOf(database).getRawMessage(txn, messageId);
-			will(returnValue(raw));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).getRawMessage(txn, messageId1);
-			will(returnValue(raw1));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).getRawMessages(txn, ids);
+			will(returnValue(rawMessages));
+			oneOf(database).updateExpiryTimes(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -997,6 +1092,218 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		}
 	}
 
+	@Test
+	public void testSyncStateIsIndexedWhenTransactionCommits()
+			throws Exception {
+		Collection<SyncState> states = Arrays.asList(
+				getSyncState(messageId, true, false, false),
+				getSyncState(messageId1, false, true, false));
+		context.checking(new Expectations() {{
+			// First transaction: load the state and lower the ack flag
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).lowerAckFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).commitTransaction(txn);
+			// Second transaction: the state is read from the index
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			Ack a = db.generateAck(transaction, contactId, 123);
+			assertNotNull(a);
+			assertEquals(singletonList(messageId), a.getMessageIds());
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(false);
+		try {
+			assertNull(db.generateAck(transaction, contactId, 123));
+			assertEquals(0, db.getNextSendTime(transaction, contactId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testSyncStateIsNotIndexedWhenTransactionAborts()
+			throws Exception {
+		Collection<SyncState> states =
+				singletonList(getSyncState(messageId, true, false, false));
+		context.checking(new Expectations() {{
+			// First transaction: load the state, then abort
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).lowerAckFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).abortTransaction(txn);
+			// Second transaction: the state is loaded again
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).lowerAckFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			assertNotNull(db.generateAck(transaction, contactId, 123));
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(false);
+		try {
+			assertNotNull(db.generateAck(transaction, contactId, 123));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testChangesToIndexedSyncStateAreUndoneWhenTransactionAborts()
+			throws Exception {
+		Collection<SyncState> states =
+				singletonList(getSyncState(messageId, true, false, false));
+		context.checking(new Expectations() {{
+			// First transaction: load the state
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(states));
+			oneOf(database).commitTransaction(txn);
+			// Second transaction: lower the ack flag, then abort
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).lowerAckFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).abortTransaction(txn);
+			// Third transaction: the indexed state still has the ack
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).lowerAckFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(true);
+		try {
+			assertEquals(Long.MAX_VALUE,
+					db.getNextSendTime(transaction, contactId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(false);
+		try {
+			assertNotNull(db.generateAck(transaction, contactId, 123));
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(false);
+		try {
+			Ack a = db.generateAck(transaction, contactId, 123);
+			assertNotNull(a);
+			assertEquals(singletonList(messageId), a.getMessageIds());
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testAddingMessageUpdatesIndexedSyncState() throws Exception {
+		context.checking(new Expectations() {{
+			// First transaction: load the state, which is empty
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).getSyncStates(txn, contactId);
+			will(returnValue(emptyList()));
+			oneOf(database).commitTransaction(txn);
+			// Second transaction: add a message
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).addMessage(txn, message, DELIVERED, true, null);
+			oneOf(database).getSyncStates(txn, messageId);
+			will(returnValue(singletonMap(contactId,
+					getSyncState(messageId, false, true, false))));
+			oneOf(database).mergeMessageMetadata(txn, messageId, metadata);
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(
+					MessageStateChangedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageSharedEvent.class)));
+			// Third transaction: the message is due to be sent
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(true);
+		try {
+			assertEquals(Long.MAX_VALUE,
+					db.getNextSendTime(transaction, contactId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(false);
+		try {
+			db.addLocalMessage(transaction, message, metadata, true);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		transaction = db.startTransaction(true);
+		try {
+			assertEquals(0, db.getNextSendTime(transaction, contactId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
 	@Test
 	public void testReceiveAck() throws Exception {
 		context.checking(new Expectations() {{
@@ -1035,6 +1342,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(VISIBLE));
 			oneOf(database).containsMessage(txn, messageId);
 			will(returnValue(false));
+			oneOf(database).getFreeSpace();
+			will(returnValue(Long.MAX_VALUE));
 			oneOf(database).addMessage(txn, message, UNKNOWN, false, contactId);
 			// Second time
 			oneOf(database).containsContact(txn, contactId);
@@ -1120,46 +1429,42 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	}
 
 	@Test
-	public void testReceiveOffer() throws Exception {
-		MessageId messageId1 = new MessageId(getRandomId());
-		MessageId messageId2 = new MessageId(getRandomId());
-		MessageId messageId3 = new MessageId(getRandomId());
+	public void testReceiveMessages() throws Exception {
+		Message message1 = new Message(messageId1, groupId,
+				message.getTimestamp(), raw);
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			// There's room for two more offered messages
-			oneOf(database).countOfferedMessages(txn, contactId);
-			will(returnValue(MAX_OFFERED_MESSAGES - 2));
-			// The first message isn't visible - request it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
+			// The visibility of the group is only checked once
+			oneOf(database).getGroupVisibility(txn, contactId, groupId);
+			will(returnValue(VISIBLE));
+			// The first message is new and is stored in a batch
+			oneOf(database).containsMessage(txn, messageId);
 			will(returnValue(false));
-			oneOf(database).addOfferedMessage(txn, contactId, messageId);
-			// The second message is visible - ack it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId1);
+			oneOf(database).getFreeSpace();
+			will(returnValue(Long.MAX_VALUE));
+			oneOf(database).addMessages(txn, singletonList(message),
+					UNKNOWN, false, contactId);
+			// The second message was already stored but must still be acked
+			oneOf(database).containsMessage(txn, messageId1);
 			will(returnValue(true));
 			oneOf(database).raiseSeenFlag(txn, contactId, messageId1);
 			oneOf(database).raiseAckFlag(txn, contactId, messageId1);
-			// The third message isn't visible - request it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId2);
-			will(returnValue(false));
-			oneOf(database).addOfferedMessage(txn, contactId, messageId2);
-			// The fourth message isn't visible, but there's no room to store it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId3);
-			will(returnValue(false));
 			oneOf(database).commitTransaction(txn);
+			// One message was added and the batch needs to be acked
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
 			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
-			oneOf(eventBus).broadcast(with(any(MessageToRequestEvent.class)));
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
 				shutdown);
 
 		Transaction transaction = db.startTransaction(false);
 		try {
-			Offer o = new Offer(Arrays.asList(messageId, messageId1,
-					messageId2, messageId3));
-			db.receiveOffer(transaction, contactId, o);
+			// The first message is received twice in the same batch
+			db.receiveMessages(transaction, contactId,
+					Arrays.asList(message, message1, message));
 			db.commitTransaction(transaction);
 		} finally {
 			db.endTransaction(transaction);
@@ -1167,26 +1472,37 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	}
 
 	@Test
-	public void testReceiveRequest() throws Exception {
+	public void testReceiveMessagesWhenQuotaExceeded() throws Exception {
+		Message message1 = new Message(messageId1, groupId,
+				message.getTimestamp(), raw);
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).raiseRequestedFlag(txn, contactId, messageId);
-			oneOf(database).resetExpiryTime(txn, contactId, messageId);
+			oneOf(database).getGroupVisibility(txn, contactId, groupId);
+			will(returnValue(VISIBLE));
+			// There's only room for the first message
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(false));
+			exactly(2).of(database).getFreeSpace();
+			will(returnValue(MIN_FREE_SPACE + raw.length));
+			oneOf(database).addMessages(txn, singletonList(message),
+					UNKNOWN, false, contactId);
 			oneOf(database).commitTransaction(txn);
-			oneOf(eventBus).broadcast(with(any(MessageRequestedEvent.class)));
+			// The first message was added and needs to be acked
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
 				shutdown);
 
 		Transaction transaction = db.startTransaction(false);
 		try {
-			Request r = new Request(singletonList(messageId));
-			db.receiveRequest(transaction, contactId, r);
+			db.receiveMessages(transaction, contactId,
+					Arrays.asList(message, message1));
 			db.commitTransaction(transaction);
 		} finally {
 			db.endTransaction(transaction);
@@ -1194,8 +1510,82 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	}
 
 	@Test
-	public void testChangingVisibilityFromInvisibleToVisibleCallsListeners()
-			throws Exception {
+	public void testReceiveOffer() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		MessageId messageId2 = new MessageId(getRandomId());
+		MessageId messageId3 = new MessageId(getRandomId());
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			// There's room for two more offered messages
+			oneOf(database).countOfferedMessages(txn, contactId);
+			will(returnValue(MAX_OFFERED_MESSAGES - 2));
+			// The first message isn't visible - request it
+			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
+			will(returnValue(false));
+			oneOf(database).addOfferedMessage(txn, contactId, messageId);
+			// The second message is visible - ack it
+			oneOf(database).containsVisibleMessage(txn, contactId, messageId1);
+			will(returnValue(true));
+			oneOf(database).raiseSeenFlag(txn, contactId, messageId1);
+			oneOf(database).raiseAckFlag(txn, contactId, messageId1);
+			// The third message isn't visible - request it
+			oneOf(database).containsVisibleMessage(txn, contactId, messageId2);
+			will(returnValue(false));
+			oneOf(database).addOfferedMessage(txn, contactId, messageId2);
+			// The fourth message isn't visible, but there's no room to store it
+			oneOf(database).containsVisibleMessage(txn, contactId, messageId3);
+			will(returnValue(false));
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageToRequestEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			Offer o = new Offer(Arrays.asList(messageId, messageId1,
+					messageId2, messageId3));
+			db.receiveOffer(transaction, contactId, o);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testReceiveRequest() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
+			will(returnValue(true));
+			oneOf(database).raiseRequestedFlag(txn, contactId, messageId);
+			oneOf(database).resetExpiryTime(txn, contactId, messageId);
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(MessageRequestedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			Request r = new Request(singletonList(messageId));
+			db.receiveRequest(transaction, contactId, r);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testChangingVisibilityFromInvisibleToVisibleCallsListeners()
+			throws Exception {
 		AtomicReference<GroupVisibilityUpdatedEvent> event =
 				new AtomicReference<>();
 
@@ -1539,6 +1929,176 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		fail();
 	}
 
+	@Test
+	public void testSnapshotTransactionDoesNotAcquireLock() throws Exception {
+		Object txn1 = new Object(), txn2 = new Object();
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).startTransaction();
+			will(returnValue(txn1));
+			oneOf(database).containsGroup(txn1, groupId);
+			will(returnValue(false));
+			oneOf(database).commitTransaction(txn1);
+			oneOf(database).abortTransaction(txn);
+			oneOf(database).startTransaction();
+			will(returnValue(txn2));
+			oneOf(database).abortTransaction(txn2);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		// A snapshot transaction can start while the write lock is held
+		Transaction writeTxn = db.startTransaction(false);
+		Transaction snapshotTxn = db.startSnapshotTransaction();
+		assertTrue(snapshotTxn.isReadOnly());
+		assertTrue(snapshotTxn.isSnapshot());
+		try {
+			assertFalse(db.containsGroup(snapshotTxn, groupId));
+			db.commitTransaction(snapshotTxn);
+		} finally {
+			db.endTransaction(snapshotTxn);
+		}
+		// Ending the snapshot transaction should not release the write lock
+		db.endTransaction(writeTxn);
+		// The write lock should have been released exactly once
+		db.endTransaction(db.startTransaction(false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCannotWriteInSnapshotTransaction() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).abortTransaction(txn);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startSnapshotTransaction();
+		try {
+			db.addGroup(transaction, group);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testTransportKeyTransactionDoesNotWaitForMainLock()
+			throws Exception {
+		// The main lock is held by another thread, so the mocks must be
+		// thread-safe
+		Mockery context = new Mockery() {{
+			setThreadingPolicy(new Synchroniser());
+		}};
+		@SuppressWarnings("unchecked")
+		Database<Object> database = context.mock(Database.class);
+		Object txn1 = new Object();
+		context.checking(new Expectations() {{
+			// Main write transaction
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).abortTransaction(txn);
+			// Transport key transaction
+			oneOf(database).startTransaction();
+			will(returnValue(txn1));
+			oneOf(database).containsTransport(txn1, transportId);
+			will(returnValue(true));
+			oneOf(database).incrementStreamCounter(txn1, transportId,
+					keySetId);
+			oneOf(database).commitTransaction(txn1);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		// Hold the main write lock on another thread
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch unlock = new CountDownLatch(1);
+		AtomicReference<Exception> error = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				Transaction writeTxn = db.startTransaction(false);
+				locked.countDown();
+				unlock.await();
+				db.endTransaction(writeTxn);
+			} catch (DbException | InterruptedException e) {
+				error.set(e);
+			}
+		});
+		writer.start();
+		assertTrue(locked.await(10, SECONDS));
+
+		// A transport key transaction can run while the main lock is held
+		Transaction keyTxn = db.startTransportKeyTransaction(false);
+		try {
+			db.incrementStreamCounter(keyTxn, transportId, keySetId);
+			db.commitTransaction(keyTxn);
+		} finally {
+			db.endTransaction(keyTxn);
+		}
+
+		unlock.countDown();
+		writer.join();
+		assertNull(error.get());
+		context.assertIsSatisfied();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTransportKeyTransactionCannotAccessOtherData()
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).abortTransaction(txn);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransportKeyTransaction(false);
+		try {
+			db.addGroup(transaction, group);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testTransportKeyLockIsReleasedByMainTransaction()
+			throws Exception {
+		Object txn1 = new Object();
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsTransport(txn, transportId);
+			will(returnValue(true));
+			oneOf(database).incrementStreamCounter(txn, transportId,
+					keySetId);
+			oneOf(database).commitTransaction(txn);
+			oneOf(database).startTransaction();
+			will(returnValue(txn1));
+			oneOf(database).abortTransaction(txn1);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		// Accessing transport keys acquires the transport key lock
+		Transaction transaction = db.startTransaction(false);
+		try {
+			db.incrementStreamCounter(transaction, transportId, keySetId);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+		// Ending the transaction should have released both locks, so this
+		// thread can start a transport key transaction
+		db.endTransaction(db.startTransportKeyTransaction(false));
+	}
+
 	@Test
 	public void testCannotAddLocalIdentityAsContact() throws Exception {
 		context.checking(new Expectations() {{
@@ -1663,4 +2223,480 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		}
 		db.close();
 	}
+
+	@Test
+	public void testGroupCommitRollsBackFailedTask() throws Exception {
+		AtomicReference<DbException> failure = new AtomicReference<>();
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			// The first task adds a group
+			oneOf(database).setSavepoint(txn);
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(false));
+			oneOf(database).getRemovedGroups(txn);
+			will(returnValue(emptyList()));
+			oneOf(database).addGroup(txn, group);
+			oneOf(database).releaseSavepoint(txn);
+			// The second task fails and is rolled back
+			oneOf(database).setSavepoint(txn);
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(false));
+			oneOf(database).rollbackToSavepoint(txn);
+			oneOf(database).commitTransaction(txn);
+			// Only the first task's event is broadcast
+			oneOf(eventBus).broadcast(with(any(GroupAddedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		GroupCommitTask addGroup = new GroupCommitTask() {
+			@Override
+			public void run(Transaction txn) throws DbException {
+				db.addGroup(txn, group);
+			}
+
+			@Override
+			public void onFailure(DbException e) {
+				fail();
+			}
+		};
+		GroupCommitTask addMessage = new GroupCommitTask() {
+			@Override
+			public void run(Transaction txn) throws DbException {
+				db.addLocalMessage(txn, message, metadata, true);
+			}
+
+			@Override
+			public void onFailure(DbException e) {
+				failure.set(e);
+			}
+		};
+		db.runGroupCommit(Arrays.asList(addGroup, addMessage));
+		assertTrue(failure.get() instanceof NoSuchGroupException);
+	}
+
+	@Test
+	public void testGroupCommitReportsUncheckedExceptionToItsTask()
+			throws Exception {
+		RuntimeException unchecked = new IllegalArgumentException();
+		AtomicReference<DbException> failure = new AtomicReference<>();
+		GroupCommitTask task1 = context.mock(GroupCommitTask.class, "task1");
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			// The first task throws an unchecked exception and is rolled back
+			oneOf(database).setSavepoint(txn);
+			oneOf(database).rollbackToSavepoint(txn);
+			// The second task still runs and is committed
+			oneOf(database).setSavepoint(txn);
+			oneOf(task1).run(with(any(Transaction.class)));
+			oneOf(database).releaseSavepoint(txn);
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		GroupCommitTask task = new GroupCommitTask() {
+			@Override
+			public void run(Transaction txn) {
+				throw unchecked;
+			}
+
+			@Override
+			public void onFailure(DbException e) {
+				failure.set(e);
+			}
+		};
+		db.runGroupCommit(Arrays.asList(task, task1));
+		assertSame(unchecked, failure.get().getCause());
+	}
+
+	@Test
+	public void testGroupCommitFailureIsReportedToAllTasks()
+			throws Exception {
+		DbException commitFailure = new DbException();
+		GroupCommitTask task = context.mock(GroupCommitTask.class, "task");
+		GroupCommitTask task1 = context.mock(GroupCommitTask.class, "task1");
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			exactly(2).of(database).setSavepoint(txn);
+			oneOf(task).run(with(any(Transaction.class)));
+			oneOf(task1).run(with(any(Transaction.class)));
+			exactly(2).of(database).releaseSavepoint(txn);
+			oneOf(database).commitTransaction(txn);
+			will(throwException(commitFailure));
+			oneOf(database).abortTransaction(txn);
+			oneOf(task).onFailure(commitFailure);
+			oneOf(task1).onFailure(commitFailure);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		db.runGroupCommit(Arrays.asList(task, task1));
+	}
+
+	@Test
+	public void testGroupMetadataIsCachedAfterFirstRead() throws Exception {
+		context.checking(new Expectations() {{
+			exactly(2).of(database).startTransaction();
+			will(returnValue(txn));
+			// The metadata is only loaded from the database once
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).getGroupMetadata(txn, groupId);
+			will(returnValue(metadata));
+			exactly(2).of(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		for (int i = 0; i < 2; i++) {
+			Transaction transaction = db.startTransaction(true);
+			try {
+				assertMetadataEquals(metadata,
+						db.getGroupMetadata(transaction, groupId));
+				db.commitTransaction(transaction);
+			} finally {
+				db.endTransaction(transaction);
+			}
+		}
+		assertEquals(1, db.getGroupMetadataCacheHitCount());
+		assertEquals(1, db.getGroupMetadataCacheMissCount());
+	}
+
+	@Test
+	public void testSnapshotTransactionBypassesGroupMetadataCache()
+			throws Exception {
+		Metadata newer = new Metadata();
+		newer.put("foo", new byte[] {'b', 'a', 'z'});
+		context.checking(new Expectations() {{
+			exactly(2).of(database).startTransaction();
+			will(returnValue(txn));
+			// Load the metadata into the cache
+			exactly(2).of(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).getGroupMetadata(txn, groupId);
+			will(returnValue(metadata));
+			// The snapshot transaction loads the metadata from the
+			// database, which may be newer than the cached metadata
+			oneOf(database).getGroupMetadata(txn, groupId);
+			will(returnValue(newer));
+			exactly(2).of(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(true);
+		try {
+			assertMetadataEquals(metadata,
+					db.getGroupMetadata(transaction, groupId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+		transaction = db.startSnapshotTransaction();
+		try {
+			assertMetadataEquals(newer,
+					db.getGroupMetadata(transaction, groupId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+		// The snapshot transaction didn't use the cache
+		assertEquals(0, db.getGroupMetadataCacheHitCount());
+		assertEquals(1, db.getGroupMetadataCacheMissCount());
+	}
+
+	@Test
+	public void testGroupMetadataChangesArePublishedOnCommit()
+			throws Exception {
+		Metadata changes = new Metadata();
+		changes.put("foo", Metadata.REMOVE);
+		changes.put("baz", new byte[] {'b', 'a', 'm'});
+		context.checking(new Expectations() {{
+			exactly(5).of(database).startTransaction();
+			will(returnValue(txn));
+			// Load the metadata into the cache
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).getGroupMetadata(txn, groupId);
+			will(returnValue(metadata));
+			// Merge the changes but abort the transaction
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).mergeGroupMetadata(txn, groupId, changes);
+			oneOf(database).abortTransaction(txn);
+			// Merge the changes and commit the transaction
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).mergeGroupMetadata(txn, groupId, changes);
+			// Remove the group
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).getGroupVisibility(txn, groupId);
+			will(returnValue(emptyMap()));
+			oneOf(database).markGroupRemoved(txn, groupId);
+			oneOf(eventBus).broadcast(with(any(GroupRemovedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(
+					GroupVisibilityUpdatedEvent.class)));
+			// The group no longer exists
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(false));
+			oneOf(database).abortTransaction(txn);
+			exactly(3).of(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(true);
+		try {
+			db.getGroupMetadata(transaction, groupId);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		// Changes made by an aborted transaction should not be cached
+		transaction = db.startTransaction(false);
+		try {
+			db.mergeGroupMetadata(transaction, groupId, changes);
+			// The transaction should see its own changes
+			Metadata merged = db.getGroupMetadata(transaction, groupId);
+			assertEquals(1, merged.size());
+			assertArrayEquals(changes.get("baz"), merged.get("baz"));
+		} finally {
+			db.endTransaction(transaction);
+		}
+
+		// Changes made by a committed transaction should be cached
+		transaction = db.startTransaction(false);
+		try {
+			assertMetadataEquals(metadata,
+					db.getGroupMetadata(transaction, groupId));
+			db.mergeGroupMetadata(transaction, groupId, changes);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+		transaction = db.startTransaction(false);
+		try {
+			Metadata merged = db.getGroupMetadata(transaction, groupId);
+			assertEquals(1, merged.size());
+			assertArrayEquals(changes.get("baz"), merged.get("baz"));
+			// Removing the group should drop its cached metadata
+			db.removeGroup(transaction, group);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+		transaction = db.startTransaction(true);
+		try {
+			db.getGroupMetadata(transaction, groupId);
+			fail();
+		} catch (NoSuchGroupException expected) {
+			// Expected
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testReadsAreCachedWithinTransaction() throws Exception {
+		context.checking(new Expectations() {{
+			exactly(2).of(database).startTransaction();
+			will(returnValue(txn));
+			// Each transaction loads each item from the database once
+			exactly(2).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			exactly(2).of(database).getContact(txn, contactId);
+			will(returnValue(contact));
+			exactly(2).of(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			exactly(2).of(database).getGroup(txn, groupId);
+			will(returnValue(group));
+			exactly(2).of(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			exactly(2).of(database).getMessageMetadata(txn, messageId);
+			will(returnValue(metadata));
+			exactly(2).of(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown, true);
+
+		for (int i = 0; i < 2; i++) {
+			Transaction transaction = db.startTransaction(true);
+			try {
+				for (int j = 0; j < 3; j++) {
+					assertEquals(contact, db.getContact(transaction,
+							contactId));
+					assertEquals(group, db.getGroup(transaction, groupId));
+					Metadata meta =
+							db.getMessageMetadata(transaction, messageId);
+					assertMetadataEquals(metadata, meta);
+					// Changing metadata returned from the cache shouldn't
+					// affect the cached copy
+					if (j > 0) meta.clear();
+				}
+				db.commitTransaction(transaction);
+			} finally {
+				db.endTransaction(transaction);
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCannotReadCachedGroupMetadataAfterCommit()
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).getGroupMetadata(txn, groupId);
+			will(returnValue(metadata));
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown, true);
+
+		Transaction transaction = db.startTransaction(true);
+		try {
+			db.getGroupMetadata(transaction, groupId);
+			db.commitTransaction(transaction);
+			// The cached metadata can't be read after committing
+			db.getGroupMetadata(transaction, groupId);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	@Test
+	public void testWritesInvalidateReadCache() throws Exception {
+		Metadata changes = new Metadata();
+		changes.put("baz", new byte[] {'b', 'a', 'm'});
+		Metadata merged = new Metadata();
+		merged.putAll(metadata);
+		merged.putAll(changes);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			// The contact is loaded again after it's verified
+			exactly(3).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			exactly(2).of(database).getContact(txn, contactId);
+			will(returnValue(contact));
+			oneOf(database).setContactVerified(txn, contactId);
+			// The metadata is loaded again after it's merged
+			exactly(3).of(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			oneOf(database).getMessageMetadata(txn, messageId);
+			will(returnValue(metadata));
+			oneOf(database).mergeMessageMetadata(txn, messageId, changes);
+			oneOf(database).getMessageMetadata(txn, messageId);
+			will(returnValue(merged));
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(ContactVerifiedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown, true);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			db.getContact(transaction, contactId);
+			db.setContactVerified(transaction, contactId);
+			db.getContact(transaction, contactId);
+			assertMetadataEquals(metadata,
+					db.getMessageMetadata(transaction, messageId));
+			db.mergeMessageMetadata(transaction, messageId, changes);
+			assertMetadataEquals(merged,
+					db.getMessageMetadata(transaction, messageId));
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	private SyncState getSyncState(MessageId m, boolean ack, boolean sendable,
+			boolean requested) {
+		return new SyncState(m, message.getTimestamp(), size, ack, sendable,
+				requested, 0, 0);
+	}
+
+	@Test
+	public void testRemovedContactsAndGroupsArePurgedInChunks()
+			throws Exception {
+		context.checking(new Expectations() {{
+			exactly(3).of(database).startTransaction();
+			will(returnValue(txn));
+			// The removed contact is purged first
+			oneOf(database).getRemovedContacts(txn);
+			will(returnValue(singletonList(contactId)));
+			oneOf(database).purgeRemovedContact(txn, contactId,
+					MAX_PURGE_CHUNK_SIZE);
+			will(returnValue(true));
+			// Then the removed group
+			oneOf(database).getRemovedContacts(txn);
+			will(returnValue(emptyList()));
+			oneOf(database).getRemovedGroups(txn);
+			will(returnValue(singletonList(groupId)));
+			oneOf(database).purgeRemovedGroup(txn, groupId,
+					MAX_PURGE_CHUNK_SIZE);
+			will(returnValue(true));
+			// Then there's nothing left to purge
+			oneOf(database).getRemovedContacts(txn);
+			will(returnValue(emptyList()));
+			oneOf(database).getRemovedGroups(txn);
+			will(returnValue(emptyList()));
+			exactly(3).of(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		boolean[] expected = {true, true, false};
+		for (boolean more : expected) {
+			Transaction transaction = db.startTransaction(false);
+			try {
+				assertEquals(more,
+						db.purgeRemovedContactsAndGroups(transaction));
+				db.commitTransaction(transaction);
+			} finally {
+				db.endTransaction(transaction);
+			}
+		}
+	}
+
+	@Test
+	public void testAddingRemovedGroupPurgesItFirst() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(false));
+			oneOf(database).getRemovedGroups(txn);
+			will(returnValue(singletonList(groupId)));
+			oneOf(database).purgeRemovedGroup(txn, groupId, Integer.MAX_VALUE);
+			will(returnValue(true));
+			oneOf(database).addGroup(txn, group);
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(GroupAddedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				shutdown);
+
+		Transaction transaction = db.startTransaction(false);
+		try {
+			db.addGroup(transaction, group);
+			db.commitTransaction(transaction);
+		} finally {
+			db.endTransaction(transaction);
+		}
+	}
+
+	private void assertMetadataEquals(Metadata expected, Metadata actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String key : expected.keySet())
+			assertArrayEquals(expected.get(key), actual.get(key));
+	}
 }
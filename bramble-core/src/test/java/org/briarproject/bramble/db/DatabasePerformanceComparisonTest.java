@@ -1,5 +1,6 @@
 package org.briarproject.bramble.db;
 
+import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.system.Clock;
@@ -8,7 +9,6 @@ import org.briarproject.bramble.test.TestDatabaseConfig;
 import org.briarproject.bramble.test.UTest;
 
 import java.io.IOException;
-import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,12 +27,15 @@ public abstract class DatabasePerformanceComparisonTest
 	 */
 	private static final int COMPARISON_BLOCKS = 10;
 
-	abstract Database<Connection> createDatabase(boolean conditionA,
+	// The same key must be used when the database is reopened
+	private final SecretKey databaseKey = getSecretKey();
+
+	abstract Database<?> createDatabase(boolean conditionA,
 			DatabaseConfig databaseConfig, Clock clock);
 
 	@Override
 	protected void benchmark(String name,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		List<Double> aDurations = new ArrayList<>();
 		List<Double> bDurations = new ArrayList<>();
 		boolean aFirst = true;
@@ -56,9 +59,9 @@ public abstract class DatabasePerformanceComparisonTest
 	}
 
 	private SteadyStateResult benchmark(boolean conditionA,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		deleteTestDirectory(testDir);
-		Database<Connection> db = openDatabase(conditionA);
+		Database<Object> db = openDatabase(conditionA);
 		populateDatabase(db);
 		db.close();
 		db = openDatabase(conditionA);
@@ -68,11 +71,11 @@ public abstract class DatabasePerformanceComparisonTest
 		return result;
 	}
 
-	private Database<Connection> openDatabase(boolean conditionA)
+	private Database<Object> openDatabase(boolean conditionA)
 			throws DbException {
-		Database<Connection> db = createDatabase(conditionA,
-				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock());
-		db.open(getSecretKey(), null);
+		Database<Object> db = asObjectDatabase(createDatabase(conditionA,
+				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock()));
+		db.open(databaseKey, null);
 		return db;
 	}
 
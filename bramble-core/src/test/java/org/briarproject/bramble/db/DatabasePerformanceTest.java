@@ -22,8 +22,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +32,7 @@ import java.util.Random;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.OFF;
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
 import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
 import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
@@ -112,7 +113,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	protected abstract String getTestName();
 
 	protected abstract void benchmark(String name,
-			BenchmarkTask<Database<Connection>> task) throws Exception;
+			BenchmarkTask<Database<Object>> task) throws Exception;
 
 	DatabasePerformanceTest() {
 		// Disable logging
@@ -133,7 +134,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsContactByAuthorId() throws Exception {
 		String name = "containsContact(T, AuthorId, AuthorId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			AuthorId remote = pickRandom(contacts).getAuthor().getId();
 			db.containsContact(txn, remote, localAuthor.getId());
 			db.commitTransaction(txn);
@@ -144,7 +145,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsContactByContactId() throws Exception {
 		String name = "containsContact(T, ContactId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.containsContact(txn, pickRandom(contacts).getId());
 			db.commitTransaction(txn);
 		});
@@ -154,7 +155,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsGroup() throws Exception {
 		String name = "containsGroup(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.containsGroup(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -164,7 +165,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsLocalAuthor() throws Exception {
 		String name = "containsLocalAuthor(T, AuthorId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.containsLocalAuthor(txn, localAuthor.getId());
 			db.commitTransaction(txn);
 		});
@@ -174,7 +175,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsMessage() throws Exception {
 		String name = "containsMessage(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.containsMessage(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -184,7 +185,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testContainsVisibleMessage() throws Exception {
 		String name = "containsVisibleMessage(T, ContactId, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.containsVisibleMessage(txn, pickRandom(contacts).getId(),
 					pickRandom(messages).getId());
 			db.commitTransaction(txn);
@@ -195,17 +196,33 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testCountOfferedMessages() throws Exception {
 		String name = "countOfferedMessages(T, ContactId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.countOfferedMessages(txn, pickRandom(contacts).getId());
 			db.commitTransaction(txn);
 		});
 	}
 
+	@Test
+	public void testGenerateBatch() throws Exception {
+		String name = "generateBatch(T, ContactId, int, int)";
+		benchmark(name, db -> {
+			Object txn = db.startTransaction();
+			ContactId c = pickRandom(contacts).getId();
+			Collection<MessageId> ids = db.getMessagesToSend(txn, c,
+					MAX_RECORD_PAYLOAD_BYTES);
+			db.getRawMessages(txn, ids);
+			db.updateExpiryTimes(txn, c, ids, Integer.MAX_VALUE);
+			db.lowerRequestedFlag(txn, c, ids);
+			// Roll back so the messages remain sendable for the next run
+			db.abortTransaction(txn);
+		});
+	}
+
 	@Test
 	public void testGetContact() throws Exception {
 		String name = "getContact(T, ContactId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getContact(txn, pickRandom(contacts).getId());
 			db.commitTransaction(txn);
 		});
@@ -215,7 +232,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetContacts() throws Exception {
 		String name = "getContacts(T)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getContacts(txn);
 			db.commitTransaction(txn);
 		});
@@ -225,7 +242,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetContactsByRemoteAuthorId() throws Exception {
 		String name = "getContactsByAuthorId(T, AuthorId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			AuthorId remote = pickRandom(contacts).getAuthor().getId();
 			db.getContactsByAuthorId(txn, remote);
 			db.commitTransaction(txn);
@@ -236,7 +253,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetContactsByLocalAuthorId() throws Exception {
 		String name = "getContacts(T, AuthorId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getContacts(txn, localAuthor.getId());
 			db.commitTransaction(txn);
 		});
@@ -246,7 +263,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetGroup() throws Exception {
 		String name = "getGroup(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getGroup(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -256,7 +273,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetGroupMetadata() throws Exception {
 		String name = "getGroupMetadata(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getGroupMetadata(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -266,7 +283,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetGroups() throws Exception {
 		String name = "getGroups(T, ClientId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getGroups(txn, pickRandom(clientIds), 123);
 			db.commitTransaction(txn);
 		});
@@ -276,7 +293,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetGroupVisibilityWithContactId() throws Exception {
 		String name = "getGroupVisibility(T, ContactId, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			ContactId c = pickRandom(contacts).getId();
 			db.getGroupVisibility(txn, c,
 					pickRandom(contactGroups.get(c)).getId());
@@ -288,7 +305,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetGroupVisibility() throws Exception {
 		String name = "getGroupVisibility(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getGroupVisibility(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -298,7 +315,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetLocalAuthor() throws Exception {
 		String name = "getLocalAuthor(T, AuthorId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getLocalAuthor(txn, localAuthor.getId());
 			db.commitTransaction(txn);
 		});
@@ -308,7 +325,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetLocalAuthors() throws Exception {
 		String name = "getLocalAuthors(T)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getLocalAuthors(txn);
 			db.commitTransaction(txn);
 		});
@@ -318,7 +335,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageDependencies() throws Exception {
 		String name = "getMessageDependencies(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageDependencies(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -328,7 +345,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageDependents() throws Exception {
 		String name = "getMessageDependents(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageDependents(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -338,7 +355,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageIds() throws Exception {
 		String name = "getMessageIds(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageIds(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -348,7 +365,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageIdsWithMatchingQuery() throws Exception {
 		String name = "getMessageIds(T, GroupId, Metadata) [match]";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			GroupId g = pickRandom(groups).getId();
 			db.getMessageIds(txn, g, pickRandom(messageMeta.get(g)));
 			db.commitTransaction(txn);
@@ -359,7 +376,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageIdsWithNonMatchingQuery() throws Exception {
 		String name = "getMessageIds(T, GroupId, Metadata) [no match]";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			Metadata query = getMetadata(METADATA_KEYS_PER_MESSAGE);
 			db.getMessageIds(txn, pickRandom(groups).getId(), query);
 			db.commitTransaction(txn);
@@ -370,7 +387,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageMetadataByGroupId() throws Exception {
 		String name = "getMessageMetadata(T, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageMetadata(txn, pickRandom(groups).getId());
 			db.commitTransaction(txn);
 		});
@@ -380,7 +397,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageMetadataByMessageId() throws Exception {
 		String name = "getMessageMetadata(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageMetadata(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -390,7 +407,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageMetadataForValidator() throws Exception {
 		String name = "getMessageMetadataForValidator(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageMetadataForValidator(txn,
 					pickRandom(messages).getId());
 			db.commitTransaction(txn);
@@ -401,7 +418,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageState() throws Exception {
 		String name = "getMessageState(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessageState(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -411,7 +428,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageStatusByGroupId() throws Exception {
 		String name = "getMessageStatus(T, ContactId, GroupId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			ContactId c = pickRandom(contacts).getId();
 			GroupId g = pickRandom(contactGroups.get(c)).getId();
 			db.getMessageStatus(txn, c, g);
@@ -423,7 +440,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessageStatusByMessageId() throws Exception {
 		String name = "getMessageStatus(T, ContactId, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			ContactId c = pickRandom(contacts).getId();
 			GroupId g = pickRandom(contactGroups.get(c)).getId();
 			db.getMessageStatus(txn, c, pickRandom(groupMessages.get(g)));
@@ -435,7 +452,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToAck() throws Exception {
 		String name = "getMessagesToAck(T, ContactId, int)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToAck(txn, pickRandom(contacts).getId(),
 					MAX_MESSAGE_IDS);
 			db.commitTransaction(txn);
@@ -446,7 +463,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToOffer() throws Exception {
 		String name = "getMessagesToOffer(T, ContactId, int)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToOffer(txn, pickRandom(contacts).getId(),
 					MAX_MESSAGE_IDS);
 			db.commitTransaction(txn);
@@ -457,7 +474,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToRequest() throws Exception {
 		String name = "getMessagesToRequest(T, ContactId, int)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToRequest(txn, pickRandom(contacts).getId(),
 					MAX_MESSAGE_IDS);
 			db.commitTransaction(txn);
@@ -468,7 +485,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToSend() throws Exception {
 		String name = "getMessagesToSend(T, ContactId, int)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToSend(txn, pickRandom(contacts).getId(),
 					MAX_MESSAGE_IDS);
 			db.commitTransaction(txn);
@@ -479,7 +496,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToShare() throws Exception {
 		String name = "getMessagesToShare(T)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToShare(txn);
 			db.commitTransaction(txn);
 		});
@@ -489,7 +506,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetMessagesToValidate() throws Exception {
 		String name = "getMessagesToValidate(T)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getMessagesToValidate(txn);
 			db.commitTransaction(txn);
 		});
@@ -499,7 +516,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetPendingMessages() throws Exception {
 		String name = "getPendingMessages(T)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getPendingMessages(txn);
 			db.commitTransaction(txn);
 		});
@@ -509,7 +526,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetRawMessage() throws Exception {
 		String name = "getRawMessage(T, MessageId)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getRawMessage(txn, pickRandom(messages).getId());
 			db.commitTransaction(txn);
 		});
@@ -519,18 +536,27 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 	public void testGetRequestedMessagesToSend() throws Exception {
 		String name = "getRequestedMessagesToSend(T, ContactId, int)";
 		benchmark(name, db -> {
-			Connection txn = db.startTransaction();
+			Object txn = db.startTransaction();
 			db.getRequestedMessagesToSend(txn, pickRandom(contacts).getId(),
 					MAX_MESSAGE_IDS);
 			db.commitTransaction(txn);
 		});
 	}
 
+	/**
+	 * The benchmarks don't depend on the type of transaction used by the
+	 * database, so databases with any type of transaction can be measured.
+	 */
+	@SuppressWarnings("unchecked")
+	static Database<Object> asObjectDatabase(Database<?> db) {
+		return (Database<Object>) db;
+	}
+
 	private <T> T pickRandom(List<T> list) {
 		return list.get(random.nextInt(list.size()));
 	}
 
-	void populateDatabase(Database<Connection> db) throws DbException {
+	void populateDatabase(Database<Object> db) throws DbException {
 		localAuthor = getLocalAuthor();
 		clientIds = new ArrayList<>();
 		contacts = new ArrayList<>();
@@ -542,7 +568,7 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 
 		for (int i = 0; i < CLIENTS; i++) clientIds.add(getClientId());
 
-		Connection txn = db.startTransaction();
+		Object txn = db.startTransaction();
 		db.addLocalAuthor(txn, localAuthor);
 		for (int i = 0; i < CONTACTS; i++) {
 			ContactId c = db.addContact(txn, getAuthor(), localAuthor.getId(),
@@ -623,23 +649,23 @@ public abstract class DatabasePerformanceTest extends BrambleTestCase {
 		return meta;
 	}
 
-	long measureOne(Database<Connection> db,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+	long measureOne(Database<Object> db,
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		long start = System.nanoTime();
 		task.run(db);
 		return System.nanoTime() - start;
 	}
 
-	private List<Double> measureBlock(Database<Connection> db,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+	private List<Double> measureBlock(Database<Object> db,
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		List<Double> durations = new ArrayList<>(ITERATIONS_PER_BLOCK);
 		for (int i = 0; i < ITERATIONS_PER_BLOCK; i++)
 			durations.add((double) measureOne(db, task));
 		return durations;
 	}
 
-	SteadyStateResult measureSteadyState(Database<Connection> db,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+	SteadyStateResult measureSteadyState(Database<Object> db,
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		List<Double> durations = measureBlock(db, task);
 		int blocks = 1, steadyBlocks = 1;
 		while (steadyBlocks < STEADY_STATE_BLOCKS) {
@@ -0,0 +1,2938 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.db.MetadataRange;
+import org.briarproject.bramble.api.identity.Author;
+import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.MessageStatus;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.transport.IncomingKeys;
+import org.briarproject.bramble.api.transport.KeySet;
+import org.briarproject.bramble.api.transport.KeySetId;
+import org.briarproject.bramble.api.transport.OutgoingKeys;
+import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.briarproject.bramble.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BOOLEAN;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BYTES;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
+import static org.briarproject.bramble.api.db.Metadata.REMOVE;
+import static org.briarproject.bramble.api.db.MetadataRange.NO_LIMIT;
+import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
+import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
+import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_LENGTH;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.INVALID;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.PENDING;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.UNKNOWN;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_RAW_MESSAGES_PER_QUERY;
+import static org.briarproject.bramble.test.TestUtils.getAuthor;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getLocalAuthor;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public abstract class DatabaseTest<T> extends BrambleTestCase {
+
+	private static final int ONE_MEGABYTE = 1024 * 1024;
+	private static final int MAX_SIZE = 5 * ONE_MEGABYTE;
+
+	private final SecretKey key = getSecretKey();
+	private final File testDir = getTestDirectory();
+	private final GroupId groupId;
+	private final ClientId clientId;
+	private final int majorVersion;
+	private final Group group;
+	private final Author author;
+	private final LocalAuthor localAuthor;
+	private final MessageId messageId;
+	private final long timestamp;
+	private final int size;
+	private final byte[] raw;
+	private final Message message;
+	private final TransportId transportId;
+	private final ContactId contactId;
+	private final KeySetId keySetId, keySetId1;
+	private final Random random = new Random();
+
+	DatabaseTest() {
+		clientId = getClientId();
+		majorVersion = 123;
+		group = getGroup(clientId, majorVersion);
+		groupId = group.getId();
+		author = getAuthor();
+		localAuthor = getLocalAuthor();
+		messageId = new MessageId(getRandomId());
+		timestamp = System.currentTimeMillis();
+		size = 1234;
+		raw = getRandomBytes(size);
+		message = new Message(messageId, groupId, timestamp, raw);
+		transportId = getTransportId();
+		contactId = new ContactId(1);
+		keySetId = new KeySetId(1);
+		keySetId1 = new KeySetId(2);
+	}
+
+	protected abstract Database<T> createDatabase(DatabaseConfig config,
+			Clock clock);
+
+	@Before
+	public void setUp() {
+		assertTrue(testDir.mkdirs());
+	}
+
+	@Test
+	public void testPersistence() throws Exception {
+		// Store some records
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+		assertFalse(db.containsContact(txn, contactId));
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		assertTrue(db.containsContact(txn, contactId));
+		assertFalse(db.containsGroup(txn, groupId));
+		db.addGroup(txn, group);
+		assertTrue(db.containsGroup(txn, groupId));
+		assertFalse(db.containsMessage(txn, messageId));
+		db.addMessage(txn, message, DELIVERED, true, null);
+		assertTrue(db.containsMessage(txn, messageId));
+		db.commitTransaction(txn);
+		db.close();
+
+		// Check that the records are still there
+		db = open(true);
+		txn = db.startTransaction();
+		assertTrue(db.containsContact(txn, contactId));
+		assertTrue(db.containsGroup(txn, groupId));
+		assertTrue(db.containsMessage(txn, messageId));
+		byte[] raw1 = db.getRawMessage(txn, messageId);
+		assertArrayEquals(raw, raw1);
+
+		// Delete the records
+		db.removeMessage(txn, messageId);
+		db.removeContact(txn, contactId);
+		db.removeGroup(txn, groupId);
+		db.commitTransaction(txn);
+		db.close();
+
+		// Check that the records are gone
+		db = open(true);
+		txn = db.startTransaction();
+		assertFalse(db.containsContact(txn, contactId));
+		assertFalse(db.containsGroup(txn, groupId));
+		assertFalse(db.containsMessage(txn, messageId));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testRollbackToSavepoint() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+		db.addGroup(txn, group);
+
+		// Changes made after the savepoint are rolled back
+		db.setSavepoint(txn);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		assertTrue(db.containsMessage(txn, messageId));
+		db.rollbackToSavepoint(txn);
+		assertFalse(db.containsMessage(txn, messageId));
+
+		// Changes made before the savepoint are kept
+		assertTrue(db.containsGroup(txn, groupId));
+
+		// Changes made after a released savepoint are kept
+		db.setSavepoint(txn);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.releaseSavepoint(txn);
+		db.commitTransaction(txn);
+
+		txn = db.startTransaction();
+		assertTrue(db.containsGroup(txn, groupId));
+		assertTrue(db.containsMessage(txn, messageId));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testReaderDoesNotSeeOrWaitForUncommittedWrites()
+			throws Exception {
+		Database<T> db = open(false);
+
+		// Start a write transaction and add a group without committing
+		T writer = db.startTransaction();
+		db.addGroup(writer, group);
+
+		// A concurrent reader should not see the group or block
+		T reader = db.startTransaction();
+		assertFalse(db.containsGroup(reader, groupId));
+
+		// Once the writer commits, later queries should see the group
+		db.commitTransaction(writer);
+		assertTrue(db.containsGroup(reader, groupId));
+		db.commitTransaction(reader);
+
+		db.close();
+	}
+
+	@Test
+	public void testRemovingGroupRemovesMessage() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and a message
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// Removing the group should remove the message
+		assertTrue(db.containsMessage(txn, messageId));
+		db.removeGroup(txn, groupId);
+		assertFalse(db.containsMessage(txn, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testRemovedGroupIsPurgedInChunks() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and three messages
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		assertEquals(3, db.getSyncStates(txn, contactId).size());
+
+		// Marking the group as removed should hide it but not its messages
+		db.markGroupRemoved(txn, groupId);
+		assertFalse(db.containsGroup(txn, groupId));
+		assertEquals(emptyList(), db.getGroups(txn, clientId, majorVersion));
+		assertEquals(emptyMap(), db.getGroupVisibility(txn, groupId));
+		assertEquals(emptyList(), db.getSyncStates(txn, contactId));
+		assertEquals(singletonList(groupId), db.getRemovedGroups(txn));
+		assertTrue(db.containsMessage(txn, messageId));
+
+		// The first chunk should leave one message behind
+		assertFalse(db.purgeRemovedGroup(txn, groupId, 2));
+		assertEquals(singletonList(groupId), db.getRemovedGroups(txn));
+
+		// The second chunk should remove the last message and the group
+		assertTrue(db.purgeRemovedGroup(txn, groupId, 2));
+		assertEquals(emptyList(), db.getRemovedGroups(txn));
+		assertFalse(db.containsMessage(txn, messageId));
+		assertFalse(db.containsMessage(txn, messageId1));
+		assertFalse(db.containsMessage(txn, messageId2));
+
+		// The group can be added again
+		db.addGroup(txn, group);
+		assertTrue(db.containsGroup(txn, groupId));
+		assertEquals(emptyList(), db.getMessageIds(txn, groupId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessagesOfRemovedGroupAreSkipped() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+		MessageId messageId3 = new MessageId(getRandomId());
+		Message message3 = new Message(messageId3, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and messages in various states
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, UNKNOWN, false, null);
+		db.addMessage(txn, message1, PENDING, false, null);
+		db.addMessage(txn, message2, DELIVERED, false, null);
+		db.addMessage(txn, message3, DELIVERED, true, null);
+		db.addMessageDependency(txn, message3, messageId2, DELIVERED);
+		assertEquals(singletonList(messageId), db.getMessagesToValidate(txn));
+		assertEquals(singletonList(messageId1), db.getPendingMessages(txn));
+		assertEquals(singletonList(messageId2), db.getMessagesToShare(txn));
+		assertTrue(db.containsVisibleMessage(txn, contactId, messageId3));
+
+		// The messages should be skipped until the group is purged
+		db.markGroupRemoved(txn, groupId);
+		assertEquals(emptyList(), db.getMessagesToValidate(txn));
+		assertEquals(emptyList(), db.getPendingMessages(txn));
+		assertEquals(emptyList(), db.getMessagesToShare(txn));
+		assertFalse(db.containsVisibleMessage(txn, contactId, messageId3));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testRemovedContactIsPurgedInChunks() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and two messages
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+
+		// Marking the contact as removed should hide it
+		db.markContactRemoved(txn, contactId);
+		assertFalse(db.containsContact(txn, contactId));
+		assertFalse(db.containsContact(txn, author.getId(),
+				localAuthor.getId()));
+		assertEquals(emptyList(), db.getContacts(txn));
+		assertEquals(emptyMap(), db.getGroupVisibility(txn, groupId));
+		assertEquals(singletonList(contactId), db.getRemovedContacts(txn));
+
+		// A full chunk may be followed by more statuses
+		assertFalse(db.purgeRemovedContact(txn, contactId, 2));
+		assertEquals(singletonList(contactId), db.getRemovedContacts(txn));
+
+		// The next chunk should find no statuses and remove the contact
+		assertTrue(db.purgeRemovedContact(txn, contactId, 2));
+		assertEquals(emptyList(), db.getRemovedContacts(txn));
+		assertEquals(emptyMap(), db.getSyncStates(txn, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSendableMessagesMustHaveSeenFlagFalse() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The contact has not seen the message, so it should be sendable
+		Collection<MessageId> ids =
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertEquals(singletonList(messageId), ids);
+
+		// Changing the status to seen = true should make the message unsendable
+		db.raiseSeenFlag(txn, contactId, messageId);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testAddMessages() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact and a shared group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+
+		// The contact has offered the second message
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		db.addOfferedMessage(txn, contactId, messageId1);
+		assertEquals(1, db.countOfferedMessages(txn, contactId));
+
+		// A third message depends on the second
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+		db.addMessage(txn, message2, PENDING, true, null);
+		db.addMessageDependency(txn, message2, messageId1, PENDING);
+		assertEquals(UNKNOWN,
+				db.getMessageDependencies(txn, messageId2).get(messageId1));
+
+		// Add the first and second messages in a batch
+		db.addMessages(txn, Arrays.asList(message, message1), DELIVERED, true,
+				null);
+		assertTrue(db.containsMessage(txn, messageId));
+		assertTrue(db.containsMessage(txn, messageId1));
+
+		// The offer should have been removed and the offered message seen
+		assertEquals(0, db.countOfferedMessages(txn, contactId));
+		assertFalse(db.getMessageStatus(txn, contactId, messageId).isSeen());
+		assertTrue(db.getMessageStatus(txn, contactId, messageId1).isSeen());
+		Collection<MessageId> ids =
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+
+		// The dependency's state should have been updated
+		assertEquals(DELIVERED,
+				db.getMessageDependencies(txn, messageId2).get(messageId1));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSendableMessagesMustBeDelivered() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared but unvalidated message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, UNKNOWN, true, null);
+
+		// The message has not been validated, so it should not be sendable
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Marking the message delivered should make it sendable
+		db.setMessageState(txn, messageId, DELIVERED);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertEquals(singletonList(messageId), ids);
+
+		// Marking the message invalid should make it unsendable
+		db.setMessageState(txn, messageId, INVALID);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Marking the message pending should make it unsendable
+		db.setMessageState(txn, messageId, PENDING);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSendableMessagesMustHaveSharedGroup() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, an invisible group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The group is invisible, so the message should not be sendable
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Making the group visible should not make the message sendable
+		db.addGroupVisibility(txn, contactId, groupId, false);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Sharing the group should make the message sendable
+		db.setGroupVisibility(txn, contactId, groupId, true);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertEquals(singletonList(messageId), ids);
+
+		// Unsharing the group should make the message unsendable
+		db.setGroupVisibility(txn, contactId, groupId, false);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Making the group invisible should make the message unsendable
+		db.removeGroupVisibility(txn, contactId, groupId);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSendableMessagesMustBeShared() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and an unshared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, false, null);
+
+		// The message is not shared, so it should not be sendable
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// Sharing the message should make it sendable
+		db.setMessageShared(txn, messageId);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertEquals(singletonList(messageId), ids);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSendableMessagesMustFitCapacity() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The message is sendable, but too large to send
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				size - 1);
+		assertTrue(ids.isEmpty());
+
+		// The message is just the right size to send
+		ids = db.getMessagesToSend(txn, contactId, size);
+		assertEquals(singletonList(messageId), ids);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessagesToAck() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact and a visible group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, false);
+
+		// Add some messages to ack
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		db.addMessage(txn, message, DELIVERED, true, contactId);
+		db.addMessage(txn, message1, DELIVERED, true, contactId);
+
+		// Both message IDs should be returned
+		Collection<MessageId> ids = db.getMessagesToAck(txn, contactId, 1234);
+		assertEquals(Arrays.asList(messageId, messageId1), ids);
+
+		// Remove both message IDs
+		db.lowerAckFlag(txn, contactId, Arrays.asList(messageId, messageId1));
+
+		// Both message IDs should have been removed
+		assertEquals(emptyList(), db.getMessagesToAck(txn,
+				contactId, 1234));
+
+		// Raise the ack flag again
+		db.raiseAckFlag(txn, contactId, messageId);
+		db.raiseAckFlag(txn, contactId, messageId1);
+
+		// Both message IDs should be returned
+		ids = db.getMessagesToAck(txn, contactId, 1234);
+		assertEquals(Arrays.asList(messageId, messageId1), ids);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testOutstandingMessageAcked() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// Retrieve the message from the database and mark it as sent
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		db.updateExpiryTime(txn, contactId, messageId, Integer.MAX_VALUE);
+
+		// The message should no longer be sendable
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+
+		// Pretend that the message was acked
+		db.raiseSeenFlag(txn, contactId, messageId);
+
+		// The message still should not be sendable
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetSyncStates() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact and a shared group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+
+		// Add a shared message and an older message received from the contact
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp - 1,
+				raw);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, contactId);
+
+		// Both messages should be returned in timestamp order
+		List<SyncState> states =
+				new ArrayList<>(db.getSyncStates(txn, contactId));
+		assertEquals(2, states.size());
+		SyncState s1 = states.get(0);
+		assertEquals(messageId1, s1.getMessageId());
+		assertEquals(timestamp - 1, s1.getTimestamp());
+		assertTrue(s1.isAck());
+		assertFalse(s1.isSendable());
+		SyncState s = states.get(1);
+		assertEquals(messageId, s.getMessageId());
+		assertEquals(timestamp, s.getTimestamp());
+		assertEquals(message.getLength(), s.getLength());
+		assertFalse(s.isAck());
+		assertTrue(s.isSendable());
+		assertFalse(s.isRequested());
+		assertEquals(0, s.getExpiry());
+		assertEquals(0, s.getTxCount());
+
+		// Send the message and raise the requested flag
+		db.updateExpiryTime(txn, contactId, messageId, 1000);
+		db.raiseRequestedFlag(txn, contactId, messageId);
+		Map<ContactId, SyncState> byContact =
+				db.getSyncStates(txn, messageId);
+		assertEquals(1, byContact.size());
+		s = byContact.get(contactId);
+		assertNotNull(s);
+		assertTrue(s.isSendable());
+		assertTrue(s.isRequested());
+		assertNotEquals(0, s.getExpiry());
+		assertEquals(1, s.getTxCount());
+
+		// Lower the ack flag and raise the seen flag: no messages are waiting
+		db.lowerAckFlag(txn, contactId, singletonList(messageId1));
+		db.raiseSeenFlag(txn, contactId, messageId);
+		assertEquals(emptyList(), new ArrayList<>(
+				db.getSyncStates(txn, contactId)));
+		s = db.getSyncStates(txn, messageId).get(contactId);
+		assertNotNull(s);
+		assertFalse(s.isSendable());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetFreeSpace() throws Exception {
+		byte[] largeBody = new byte[MAX_MESSAGE_LENGTH];
+		for (int i = 0; i < largeBody.length; i++) largeBody[i] = (byte) i;
+		Message message = new Message(messageId, groupId, timestamp, largeBody);
+		Database<T> db = open(false);
+
+		// Sanity check: there should be enough space on disk for this test
+		assertTrue(testDir.getFreeSpace() > MAX_SIZE);
+
+		// The free space should not be more than the allowed maximum size
+		long free = db.getFreeSpace();
+		assertTrue(free <= MAX_SIZE);
+		assertTrue(free > 0);
+
+		// Storing a message should reduce the free space
+		T txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.commitTransaction(txn);
+		assertTrue(db.getFreeSpace() < free);
+
+		db.close();
+	}
+
+	@Test
+	public void testCloseWaitsForCommit() throws Exception {
+		CountDownLatch closing = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		AtomicBoolean transactionFinished = new AtomicBoolean(false);
+		AtomicBoolean error = new AtomicBoolean(false);
+		Database<T> db = open(false);
+
+		// Start a transaction
+		T txn = db.startTransaction();
+		// In another thread, close the database
+		Thread close = new Thread(() -> {
+			try {
+				closing.countDown();
+				db.close();
+				if (!transactionFinished.get()) error.set(true);
+				closed.countDown();
+			} catch (Exception e) {
+				error.set(true);
+			}
+		});
+		close.start();
+		closing.await();
+		// Do whatever the transaction needs to do
+		Thread.sleep(10);
+		transactionFinished.set(true);
+		// Commit the transaction
+		db.commitTransaction(txn);
+		// The other thread should now terminate
+		assertTrue(closed.await(5, SECONDS));
+		// Check that the other thread didn't encounter an error
+		assertFalse(error.get());
+	}
+
+	@Test
+	public void testCloseWaitsForAbort() throws Exception {
+		CountDownLatch closing = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		AtomicBoolean transactionFinished = new AtomicBoolean(false);
+		AtomicBoolean error = new AtomicBoolean(false);
+		Database<T> db = open(false);
+
+		// Start a transaction
+		T txn = db.startTransaction();
+		// In another thread, close the database
+		Thread close = new Thread(() -> {
+			try {
+				closing.countDown();
+				db.close();
+				if (!transactionFinished.get()) error.set(true);
+				closed.countDown();
+			} catch (Exception e) {
+				error.set(true);
+			}
+		});
+		close.start();
+		closing.await();
+		// Do whatever the transaction needs to do
+		Thread.sleep(10);
+		transactionFinished.set(true);
+		// Abort the transaction
+		db.abortTransaction(txn);
+		// The other thread should now terminate
+		assertTrue(closed.await(5, SECONDS));
+		// Check that the other thread didn't encounter an error
+		assertFalse(error.get());
+	}
+
+	@Test
+	public void testUpdateSettings() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Store some settings
+		Settings s = new Settings();
+		s.put("foo", "foo");
+		s.put("bar", "bar");
+		db.mergeSettings(txn, s, "test");
+		assertEquals(s, db.getSettings(txn, "test"));
+
+		// Update one of the settings and add another
+		Settings s1 = new Settings();
+		s1.put("bar", "baz");
+		s1.put("bam", "bam");
+		db.mergeSettings(txn, s1, "test");
+
+		// Check that the settings were merged
+		Settings merged = new Settings();
+		merged.put("foo", "foo");
+		merged.put("bar", "baz");
+		merged.put("bam", "bam");
+		assertEquals(merged, db.getSettings(txn, "test"));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testContainsVisibleMessageRequiresMessageInDatabase()
+			throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact and a shared group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+
+		// The message is not in the database
+		assertFalse(db.containsVisibleMessage(txn, contactId, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testContainsVisibleMessageRequiresGroupInDatabase()
+			throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+
+		// The group is not in the database
+		assertFalse(db.containsVisibleMessage(txn, contactId, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testContainsVisibleMessageRequiresVisibileGroup()
+			throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, an invisible group and a message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The group is not visible so the message should not be visible
+		assertFalse(db.containsVisibleMessage(txn, contactId, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGroupVisibility() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact and a group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+
+		// The group should not be visible to the contact
+		assertEquals(INVISIBLE, db.getGroupVisibility(txn, contactId, groupId));
+		assertEquals(emptyMap(),
+				db.getGroupVisibility(txn, groupId));
+
+		// Make the group visible to the contact
+		db.addGroupVisibility(txn, contactId, groupId, false);
+		assertEquals(VISIBLE, db.getGroupVisibility(txn, contactId, groupId));
+		assertEquals(singletonMap(contactId, false),
+				db.getGroupVisibility(txn, groupId));
+
+		// Share the group with the contact
+		db.setGroupVisibility(txn, contactId, groupId, true);
+		assertEquals(SHARED, db.getGroupVisibility(txn, contactId, groupId));
+		assertEquals(singletonMap(contactId, true),
+				db.getGroupVisibility(txn, groupId));
+
+		// Unshare the group with the contact
+		db.setGroupVisibility(txn, contactId, groupId, false);
+		assertEquals(VISIBLE, db.getGroupVisibility(txn, contactId, groupId));
+		assertEquals(singletonMap(contactId, false),
+				db.getGroupVisibility(txn, groupId));
+
+		// Make the group invisible again
+		db.removeGroupVisibility(txn, contactId, groupId);
+		assertEquals(INVISIBLE, db.getGroupVisibility(txn, contactId, groupId));
+		assertEquals(emptyMap(),
+				db.getGroupVisibility(txn, groupId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testTransportKeys() throws Exception {
+		long rotationPeriod = 123, rotationPeriod1 = 234;
+		boolean active = random.nextBoolean();
+		TransportKeys keys = createTransportKeys(rotationPeriod, active);
+		TransportKeys keys1 = createTransportKeys(rotationPeriod1, active);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Initially there should be no transport keys in the database
+		assertEquals(emptyList(), db.getTransportKeys(txn, transportId));
+
+		// Add the contact, the transport and the transport keys
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, active));
+		db.addTransport(txn, transportId, 123);
+		assertEquals(keySetId, db.addTransportKeys(txn, contactId, keys));
+		assertEquals(keySetId1, db.addTransportKeys(txn, contactId, keys1));
+
+		// Retrieve the transport keys
+		Collection<KeySet> allKeys = db.getTransportKeys(txn, transportId);
+		assertEquals(2, allKeys.size());
+		for (KeySet ks : allKeys) {
+			assertEquals(contactId, ks.getContactId());
+			if (ks.getKeySetId().equals(keySetId)) {
+				assertKeysEquals(keys, ks.getTransportKeys());
+			} else {
+				assertEquals(keySetId1, ks.getKeySetId());
+				assertKeysEquals(keys1, ks.getTransportKeys());
+			}
+		}
+
+		// Rotate the transport keys
+		TransportKeys rotated = createTransportKeys(rotationPeriod + 1, active);
+		TransportKeys rotated1 =
+				createTransportKeys(rotationPeriod1 + 1, active);
+		db.updateTransportKeys(txn, new KeySet(keySetId, contactId, rotated));
+		db.updateTransportKeys(txn, new KeySet(keySetId1, contactId, rotated1));
+
+		// Retrieve the transport keys again
+		allKeys = db.getTransportKeys(txn, transportId);
+		assertEquals(2, allKeys.size());
+		for (KeySet ks : allKeys) {
+			assertEquals(contactId, ks.getContactId());
+			if (ks.getKeySetId().equals(keySetId)) {
+				assertKeysEquals(rotated, ks.getTransportKeys());
+			} else {
+				assertEquals(keySetId1, ks.getKeySetId());
+				assertKeysEquals(rotated1, ks.getTransportKeys());
+			}
+		}
+
+		// Removing the contact should remove the transport keys
+		db.removeContact(txn, contactId);
+		assertEquals(emptyList(), db.getTransportKeys(txn, transportId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	private void assertKeysEquals(TransportKeys expected,
+			TransportKeys actual) {
+		assertEquals(expected.getTransportId(), actual.getTransportId());
+		assertEquals(expected.getRotationPeriod(), actual.getRotationPeriod());
+		assertKeysEquals(expected.getPreviousIncomingKeys(),
+				actual.getPreviousIncomingKeys());
+		assertKeysEquals(expected.getCurrentIncomingKeys(),
+				actual.getCurrentIncomingKeys());
+		assertKeysEquals(expected.getNextIncomingKeys(),
+				actual.getNextIncomingKeys());
+		assertKeysEquals(expected.getCurrentOutgoingKeys(),
+				actual.getCurrentOutgoingKeys());
+	}
+
+	private void assertKeysEquals(IncomingKeys expected, IncomingKeys actual) {
+		assertArrayEquals(expected.getTagKey().getBytes(),
+				actual.getTagKey().getBytes());
+		assertArrayEquals(expected.getHeaderKey().getBytes(),
+				actual.getHeaderKey().getBytes());
+		assertEquals(expected.getRotationPeriod(), actual.getRotationPeriod());
+		assertEquals(expected.getWindowBase(), actual.getWindowBase());
+		assertArrayEquals(expected.getWindowBitmap(), actual.getWindowBitmap());
+	}
+
+	private void assertKeysEquals(OutgoingKeys expected, OutgoingKeys actual) {
+		assertArrayEquals(expected.getTagKey().getBytes(),
+				actual.getTagKey().getBytes());
+		assertArrayEquals(expected.getHeaderKey().getBytes(),
+				actual.getHeaderKey().getBytes());
+		assertEquals(expected.getRotationPeriod(), actual.getRotationPeriod());
+		assertEquals(expected.getStreamCounter(), actual.getStreamCounter());
+		assertEquals(expected.isActive(), actual.isActive());
+	}
+
+	@Test
+	public void testIncrementStreamCounter() throws Exception {
+		long rotationPeriod = 123;
+		TransportKeys keys = createTransportKeys(rotationPeriod, true);
+		long streamCounter = keys.getCurrentOutgoingKeys().getStreamCounter();
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add the contact, transport and transport keys
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addTransport(txn, transportId, 123);
+		assertEquals(keySetId, db.addTransportKeys(txn, contactId, keys));
+
+		// Increment the stream counter twice and retrieve the transport keys
+		db.incrementStreamCounter(txn, transportId, keySetId);
+		db.incrementStreamCounter(txn, transportId, keySetId);
+		Collection<KeySet> newKeys = db.getTransportKeys(txn, transportId);
+		assertEquals(1, newKeys.size());
+		KeySet ks = newKeys.iterator().next();
+		assertEquals(keySetId, ks.getKeySetId());
+		assertEquals(contactId, ks.getContactId());
+		TransportKeys k = ks.getTransportKeys();
+		assertEquals(transportId, k.getTransportId());
+		OutgoingKeys outCurr = k.getCurrentOutgoingKeys();
+		assertEquals(rotationPeriod, outCurr.getRotationPeriod());
+		assertEquals(streamCounter + 2, outCurr.getStreamCounter());
+
+		// The rest of the keys should be unaffected
+		assertKeysEquals(keys.getPreviousIncomingKeys(),
+				k.getPreviousIncomingKeys());
+		assertKeysEquals(keys.getCurrentIncomingKeys(),
+				k.getCurrentIncomingKeys());
+		assertKeysEquals(keys.getNextIncomingKeys(), k.getNextIncomingKeys());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSetReorderingWindow() throws Exception {
+		boolean active = random.nextBoolean();
+		long rotationPeriod = 123;
+		TransportKeys keys = createTransportKeys(rotationPeriod, active);
+		long base = keys.getCurrentIncomingKeys().getWindowBase();
+		byte[] bitmap = keys.getCurrentIncomingKeys().getWindowBitmap();
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add the contact, transport and transport keys
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, active));
+		db.addTransport(txn, transportId, 123);
+		assertEquals(keySetId, db.addTransportKeys(txn, contactId, keys));
+
+		// Update the reordering window and retrieve the transport keys
+		random.nextBytes(bitmap);
+		db.setReorderingWindow(txn, keySetId, transportId, rotationPeriod,
+				base + 1, bitmap);
+		Collection<KeySet> newKeys = db.getTransportKeys(txn, transportId);
+		assertEquals(1, newKeys.size());
+		KeySet ks = newKeys.iterator().next();
+		assertEquals(keySetId, ks.getKeySetId());
+		assertEquals(contactId, ks.getContactId());
+		TransportKeys k = ks.getTransportKeys();
+		assertEquals(transportId, k.getTransportId());
+		IncomingKeys inCurr = k.getCurrentIncomingKeys();
+		assertEquals(rotationPeriod, inCurr.getRotationPeriod());
+		assertEquals(base + 1, inCurr.getWindowBase());
+		assertArrayEquals(bitmap, inCurr.getWindowBitmap());
+
+		// The rest of the keys should be unaffected
+		assertKeysEquals(keys.getPreviousIncomingKeys(),
+				k.getPreviousIncomingKeys());
+		assertKeysEquals(keys.getNextIncomingKeys(), k.getNextIncomingKeys());
+		assertKeysEquals(keys.getCurrentOutgoingKeys(),
+				k.getCurrentOutgoingKeys());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetContactsByAuthorId() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a local author - no contacts should be associated
+		db.addLocalAuthor(txn, localAuthor);
+
+		// Add a contact associated with the local author
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+
+		// Ensure contact is returned from database by Author ID
+		Collection<Contact> contacts =
+				db.getContactsByAuthorId(txn, author.getId());
+		assertEquals(1, contacts.size());
+		assertEquals(contactId, contacts.iterator().next().getId());
+
+		// Ensure no contacts are returned after contact was deleted
+		db.removeContact(txn, contactId);
+		contacts = db.getContactsByAuthorId(txn, author.getId());
+		assertEquals(0, contacts.size());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetContactsByLocalAuthorId() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a local author - no contacts should be associated
+		db.addLocalAuthor(txn, localAuthor);
+		Collection<ContactId> contacts =
+				db.getContacts(txn, localAuthor.getId());
+		assertEquals(emptyList(), contacts);
+
+		// Add a contact associated with the local author
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		contacts = db.getContacts(txn, localAuthor.getId());
+		assertEquals(singletonList(contactId), contacts);
+
+		// Remove the local author - the contact should be removed
+		db.removeLocalAuthor(txn, localAuthor.getId());
+		contacts = db.getContacts(txn, localAuthor.getId());
+		assertEquals(emptyList(), contacts);
+		assertFalse(db.containsContact(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testOfferedMessages() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact - initially there should be no offered messages
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		assertEquals(0, db.countOfferedMessages(txn, contactId));
+
+		// Add some offered messages and count them
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			MessageId m = new MessageId(getRandomId());
+			db.addOfferedMessage(txn, contactId, m);
+			ids.add(m);
+		}
+		assertEquals(10, db.countOfferedMessages(txn, contactId));
+
+		// Remove some of the offered messages and count again
+		List<MessageId> half = ids.subList(0, 5);
+		db.removeOfferedMessages(txn, contactId, half);
+		assertEquals(5, db.countOfferedMessages(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGroupMetadata() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group
+		db.addGroup(txn, group);
+
+		// Attach some metadata to the group
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeGroupMetadata(txn, groupId, metadata);
+
+		// Retrieve the metadata for the group
+		Metadata retrieved = db.getGroupMetadata(txn, groupId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Update the metadata
+		metadata.put("foo", REMOVE);
+		metadata.put("baz", new byte[] {'q', 'u', 'x'});
+		db.mergeGroupMetadata(txn, groupId, metadata);
+
+		// Retrieve the metadata again
+		retrieved = db.getGroupMetadata(txn, groupId);
+		assertEquals(1, retrieved.size());
+		assertFalse(retrieved.containsKey("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGroupCounts() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add two groups belonging to the same client
+		db.addGroup(txn, group);
+		Group group1 = getGroup(clientId, majorVersion);
+		GroupId groupId1 = group1.getId();
+		db.addGroup(txn, group1);
+
+		// No messages have been tracked, so the counts should be zero
+		GroupCounts counts = db.getGroupCounts(txn, groupId);
+		assertEquals(0, counts.getMsgCount());
+		assertEquals(0, counts.getUnreadCount());
+		assertEquals(0, counts.getLatestMsgTime());
+		assertTrue(db.getGroupCounts(txn, clientId, majorVersion).isEmpty());
+
+		// Track a read message and two unread messages in the first group,
+		// out of timestamp order
+		db.updateGroupCounts(txn, groupId, 1, 0, 123);
+		db.updateGroupCounts(txn, groupId, 1, 1, 456);
+		db.updateGroupCounts(txn, groupId, 1, 1, 234);
+		counts = db.getGroupCounts(txn, groupId);
+		assertEquals(3, counts.getMsgCount());
+		assertEquals(2, counts.getUnreadCount());
+		assertEquals(456, counts.getLatestMsgTime());
+
+		// Mark a message as read
+		db.updateGroupCounts(txn, groupId, 0, -1, 0);
+		counts = db.getGroupCounts(txn, groupId);
+		assertEquals(3, counts.getMsgCount());
+		assertEquals(1, counts.getUnreadCount());
+		assertEquals(456, counts.getLatestMsgTime());
+
+		// Track an unread message in the second group
+		db.updateGroupCounts(txn, groupId1, 1, 1, 789);
+
+		// Retrieve the counts for both groups in one query
+		Map<GroupId, GroupCounts> all =
+				db.getGroupCounts(txn, clientId, majorVersion);
+		assertEquals(2, all.size());
+		assertEquals(3, all.get(groupId).getMsgCount());
+		assertEquals(1, all.get(groupId).getUnreadCount());
+		assertEquals(1, all.get(groupId1).getMsgCount());
+		assertEquals(789, all.get(groupId1).getLatestMsgTime());
+
+		// The counts should be deleted along with the group
+		db.removeGroup(txn, groupId1);
+		all = db.getGroupCounts(txn, clientId, majorVersion);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(groupId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test(expected = DbException.class)
+	public void testGroupCountsCannotBecomeNegative() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+		try {
+			db.addGroup(txn, group);
+			db.updateGroupCounts(txn, groupId, 1, 0, timestamp);
+			// There are no unread messages to mark as read
+			db.updateGroupCounts(txn, groupId, 0, -1, 0);
+		} finally {
+			db.abortTransaction(txn);
+			db.close();
+		}
+	}
+
+	@Test
+	public void testStorageUsage() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add two groups belonging to the same client and a group belonging
+		// to another client
+		db.addGroup(txn, group);
+		Group group1 = getGroup(clientId, majorVersion);
+		GroupId groupId1 = group1.getId();
+		db.addGroup(txn, group1);
+		Group group2 = getGroup(getClientId(), majorVersion);
+		db.addGroup(txn, group2);
+
+		// No messages have been stored
+		assertEquals(0, db.getStorageUsage(txn, clientId, majorVersion));
+		assertTrue(db.getGroupStorageUsage(txn, clientId, majorVersion)
+				.isEmpty());
+
+		// Store a message in the first group, two messages in the second
+		// group and a message in the other client's group
+		db.addMessage(txn, message, DELIVERED, true, null);
+		Message message1 = getMessage(groupId1, 100);
+		Message message2 = getMessage(groupId1, 200);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		db.addMessage(txn, getMessage(group2.getId()), DELIVERED, true, null);
+		long length1 = message1.getRaw().length + message2.getRaw().length;
+
+		assertEquals(size + length1,
+				db.getStorageUsage(txn, clientId, majorVersion));
+		Map<GroupId, Long> usage =
+				db.getGroupStorageUsage(txn, clientId, majorVersion);
+		assertEquals(2, usage.size());
+		assertEquals(Long.valueOf(size), usage.get(groupId));
+		assertEquals(Long.valueOf(length1), usage.get(groupId1));
+
+		// Deleted messages should not be included
+		db.deleteMessage(txn, messageId);
+		assertEquals(length1,
+				db.getStorageUsage(txn, clientId, majorVersion));
+		usage = db.getGroupStorageUsage(txn, clientId, majorVersion);
+		assertEquals(singletonMap(groupId1, length1), usage);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testFreeSpaceIsUpdatedIncrementally() throws Exception {
+		Database<T> db = open(false);
+		long free = db.getFreeSpace();
+
+		// Storing a message should reduce the free space by the length of
+		// the message without measuring the disk usage again
+		T txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.commitTransaction(txn);
+		assertEquals(free - size, db.getFreeSpace());
+
+		// Deleting the message should give the space back
+		txn = db.startTransaction();
+		db.deleteMessage(txn, messageId);
+		db.commitTransaction(txn);
+		assertEquals(free, db.getFreeSpace());
+
+		db.close();
+	}
+
+	@Test
+	public void testMessageMetadata() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and a message
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// Attach some metadata to the message
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+
+		// Retrieve the metadata for the message
+		Metadata retrieved = db.getMessageMetadata(txn, messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Retrieve the metadata for the group
+		Map<MessageId, Metadata> all = db.getMessageMetadata(txn, groupId);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(messageId));
+		retrieved = all.get(messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Update the metadata
+		metadata.put("foo", REMOVE);
+		metadata.put("baz", new byte[] {'q', 'u', 'x'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+
+		// Retrieve the metadata again
+		retrieved = db.getMessageMetadata(txn, messageId);
+		assertEquals(1, retrieved.size());
+		assertFalse(retrieved.containsKey("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Retrieve the metadata for the group again
+		all = db.getMessageMetadata(txn, groupId);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(messageId));
+		retrieved = all.get(messageId);
+		assertEquals(1, retrieved.size());
+		assertFalse(retrieved.containsKey("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Delete the metadata
+		db.deleteMessageMetadata(txn, messageId);
+
+		// Retrieve the metadata again
+		retrieved = db.getMessageMetadata(txn, messageId);
+		assertTrue(retrieved.isEmpty());
+
+		// Retrieve the metadata for the group again
+		all = db.getMessageMetadata(txn, groupId);
+		assertTrue(all.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessageMetadataOnlyForDeliveredMessages() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and a message
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// Attach some metadata to the message
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+
+		// Retrieve the metadata for the message
+		Metadata retrieved = db.getMessageMetadata(txn, messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+		Map<MessageId, Metadata> map = db.getMessageMetadata(txn, groupId);
+		assertEquals(1, map.size());
+		assertTrue(map.get(messageId).containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), map.get(messageId).get("foo"));
+		assertTrue(map.get(messageId).containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), map.get(messageId).get("baz"));
+
+		// No metadata for unknown messages
+		db.setMessageState(txn, messageId, UNKNOWN);
+		retrieved = db.getMessageMetadata(txn, messageId);
+		assertTrue(retrieved.isEmpty());
+		map = db.getMessageMetadata(txn, groupId);
+		assertTrue(map.isEmpty());
+
+		// No metadata for invalid messages
+		db.setMessageState(txn, messageId, INVALID);
+		retrieved = db.getMessageMetadata(txn, messageId);
+		assertTrue(retrieved.isEmpty());
+		map = db.getMessageMetadata(txn, groupId);
+		assertTrue(map.isEmpty());
+
+		// No metadata for pending messages
+		db.setMessageState(txn, messageId, PENDING);
+		retrieved = db.getMessageMetadata(txn, messageId);
+		assertTrue(retrieved.isEmpty());
+		map = db.getMessageMetadata(txn, groupId);
+		assertTrue(map.isEmpty());
+
+		// Validator can get metadata for pending messages
+		retrieved = db.getMessageMetadataForValidator(txn, messageId);
+		assertFalse(retrieved.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMetadataQueries() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+
+		// Attach some metadata to the messages
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", new byte[] {'q', 'u', 'x'});
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+
+		// Retrieve all the metadata for the group
+		Map<MessageId, Metadata> all = db.getMessageMetadata(txn, groupId);
+		assertEquals(2, all.size());
+		assertTrue(all.containsKey(messageId));
+		assertTrue(all.containsKey(messageId1));
+		Metadata retrieved = all.get(messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+		retrieved = all.get(messageId1);
+		assertEquals(1, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata1.get("foo"), retrieved.get("foo"));
+
+		// Query the metadata with an empty query
+		Metadata query = new Metadata();
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(2, all.size());
+		assertTrue(all.containsKey(messageId));
+		assertTrue(all.containsKey(messageId1));
+		retrieved = all.get(messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+		retrieved = all.get(messageId1);
+		assertEquals(1, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata1.get("foo"), retrieved.get("foo"));
+
+		// Use a single-term query that matches the first message
+		query = new Metadata();
+		query.put("foo", metadata.get("foo"));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(messageId));
+		retrieved = all.get(messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Use a single-term query that matches the second message
+		query = new Metadata();
+		query.put("foo", metadata1.get("foo"));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(messageId1));
+		retrieved = all.get(messageId1);
+		assertEquals(1, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata1.get("foo"), retrieved.get("foo"));
+
+		// Use a multi-term query that matches the first message
+		query = new Metadata();
+		query.put("foo", metadata.get("foo"));
+		query.put("baz", metadata.get("baz"));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertTrue(all.containsKey(messageId));
+		retrieved = all.get(messageId);
+		assertEquals(2, retrieved.size());
+		assertTrue(retrieved.containsKey("foo"));
+		assertArrayEquals(metadata.get("foo"), retrieved.get("foo"));
+		assertTrue(retrieved.containsKey("baz"));
+		assertArrayEquals(metadata.get("baz"), retrieved.get("baz"));
+
+		// Use a multi-term query that doesn't match any messages
+		query = new Metadata();
+		query.put("foo", metadata1.get("foo"));
+		query.put("baz", metadata.get("baz"));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertTrue(all.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessageIdQueries() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and three messages, the last without any metadata
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata1.put("baz", new byte[] {'q', 'u', 'x'});
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+
+		// An empty query matches all delivered messages
+		Metadata query = new Metadata();
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1, messageId2)),
+				new HashSet<>(db.getMessageIds(txn, groupId, query)));
+		Map<MessageId, Metadata> all =
+				db.getMessageMetadata(txn, groupId, query);
+		assertEquals(3, all.size());
+		assertTrue(all.get(messageId2).isEmpty());
+
+		// A single-term query matches both messages with metadata
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1)),
+				new HashSet<>(db.getMessageIds(txn, groupId, query)));
+
+		// A multi-term query only matches messages that match every term
+		query.put("baz", new byte[] {'q', 'u', 'x'});
+		assertEquals(singletonList(messageId1),
+				db.getMessageIds(txn, groupId, query));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertMetadataEquals(metadata1, all.get(messageId1));
+
+		// A query with a term that matches nothing matches no messages
+		query.put("quux", new byte[] {'b', 'a', 'r'});
+		assertTrue(db.getMessageIds(txn, groupId, query).isEmpty());
+		assertTrue(db.getMessageMetadata(txn, groupId, query).isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testIndexedMetadataQueries() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+		// BDF encodings of some integers, booleans, raw and a string
+		byte[] one = {0x21, 1}, big = {0x22, 1, 0}, yes = {0x11}, no = {0x10};
+		byte[] session = {0x51, 2, 'a', 'b'}, string = {0x41, 1, 'x'};
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Declare some indexed keys, then add a group and three messages
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "type", LONG);
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "read",
+				BOOLEAN);
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "session",
+				BYTES);
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		Metadata metadata = new Metadata();
+		metadata.put("type", one);
+		metadata.put("read", no);
+		metadata.put("session", session);
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("type", big);
+		metadata1.put("read", no);
+		metadata1.put("session", session);
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+		// The last message has a value that isn't of the declared type
+		Metadata metadata2 = new Metadata();
+		metadata2.put("type", string);
+		metadata2.put("read", yes);
+		db.mergeMessageMetadata(txn, messageId2, metadata2);
+
+		// A single-term query on an indexed key
+		Metadata query = new Metadata();
+		query.put("type", big);
+		assertEquals(singletonList(messageId1),
+				db.getMessageIds(txn, groupId, query));
+		Map<MessageId, Metadata> all =
+				db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertMetadataEquals(metadata1, all.get(messageId1));
+
+		// A multi-term query on indexed keys of different types
+		query = new Metadata();
+		query.put("read", no);
+		query.put("session", session);
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1)),
+				new HashSet<>(db.getMessageIds(txn, groupId, query)));
+
+		// A query on indexed and unindexed keys
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertMetadataEquals(metadata, all.get(messageId));
+
+		// A value that isn't of the declared type can still be queried
+		query = new Metadata();
+		query.put("type", string);
+		query.put("read", yes);
+		assertEquals(singletonList(messageId2),
+				db.getMessageIds(txn, groupId, query));
+
+		// Updating and removing indexed values changes the matches
+		Metadata update = new Metadata();
+		update.put("read", yes);
+		db.mergeMessageMetadata(txn, messageId, update);
+		update = new Metadata();
+		update.put("type", REMOVE);
+		db.mergeMessageMetadata(txn, messageId1, update);
+		query = new Metadata();
+		query.put("read", yes);
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId2)),
+				new HashSet<>(db.getMessageIds(txn, groupId, query)));
+		query = new Metadata();
+		query.put("type", big);
+		assertTrue(db.getMessageIds(txn, groupId, query).isEmpty());
+
+		// Messages that aren't delivered or have no metadata don't match
+		db.setMessageState(txn, messageId, PENDING);
+		db.deleteMessageMetadata(txn, messageId2);
+		query = new Metadata();
+		query.put("read", yes);
+		assertTrue(db.getMessageIds(txn, groupId, query).isEmpty());
+		db.setMessageState(txn, messageId, DELIVERED);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testExistingMetadataIsIndexedWhenKeyIsDeclared()
+			throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		// BDF encodings of an integer and a boolean
+		byte[] one = {0x21, 1}, yes = {0x11};
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and two messages with metadata
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		Metadata metadata = new Metadata();
+		metadata.put("foo", one);
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", yes);
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+
+		// Declare the key - the existing metadata should be queryable
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "foo", LONG);
+		Metadata query = new Metadata();
+		query.put("foo", one);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+		Metadata query1 = new Metadata();
+		query1.put("foo", yes);
+		assertEquals(singletonList(messageId1),
+				db.getMessageIds(txn, groupId, query1));
+
+		// Declaring the key again has no effect
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "foo", LONG);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+
+		// Declaring the key with a different type reindexes it
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "foo",
+				BOOLEAN);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+		assertEquals(singletonList(messageId1),
+				db.getMessageIds(txn, groupId, query1));
+
+		// Declarations are per client, so other clients aren't affected
+		Group group1 = getGroup(getClientId(), majorVersion);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, group1.getId(),
+				timestamp, raw);
+		db.addGroup(txn, group1);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		db.mergeMessageMetadata(txn, messageId2, metadata1);
+		assertEquals(singletonList(messageId2),
+				db.getMessageIds(txn, group1.getId(), query1));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testKeysDeclaredByAnotherTransactionAreIndexed()
+			throws Exception {
+		// BDF encodings of two integers
+		byte[] one = {0x21, 1}, two = {0x21, 2};
+
+		// Add a group and a message, and query the metadata before any
+		// keys have been declared
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		Metadata metadata = new Metadata();
+		metadata.put("foo", one);
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata query = new Metadata();
+		query.put("foo", one);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query));
+		db.commitTransaction(txn);
+
+		// Declaring a key in a transaction that aborts has no effect
+		txn = db.startTransaction();
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "foo",
+				BOOLEAN);
+		db.abortTransaction(txn);
+
+		// Declare the key in another transaction
+		txn = db.startTransaction();
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "foo", LONG);
+		db.commitTransaction(txn);
+
+		// Changes to the metadata should be indexed
+		txn = db.startTransaction();
+		metadata.put("foo", two);
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		db.commitTransaction(txn);
+		db.close();
+
+		// The index should be up to date when the database is reopened
+		db = open(true);
+		txn = db.startTransaction();
+		Metadata query1 = new Metadata();
+		query1.put("foo", two);
+		assertEquals(singletonList(messageId),
+				db.getMessageIds(txn, groupId, query1));
+		assertTrue(db.getMessageIds(txn, groupId, query).isEmpty());
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMetadataRanges() throws Exception {
+		// Give the messages IDs in a known order, and values for two keys,
+		// one of which is indexed. The messages with ID 2 and 3 have the
+		// same value, and the last two messages have no integer value
+		List<MessageId> ids = new ArrayList<>();
+		byte[][] values = {{0x21, 1}, {0x21, 2}, {0x21, 2}, {0x22, 1, 0},
+				{0x41, 1, 'x'}, null};
+		byte[] yes = {0x11}, no = {0x10};
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "time", LONG);
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "read",
+				BOOLEAN);
+		db.addGroup(txn, group);
+		for (int i = 0; i < values.length; i++) {
+			byte[] id = getRandomId();
+			id[0] = (byte) (0x7E + i);
+			MessageId m = new MessageId(id);
+			ids.add(m);
+			db.addMessage(txn, new Message(m, groupId, timestamp, raw),
+					DELIVERED, true, null);
+			Metadata metadata = new Metadata();
+			if (values[i] != null) {
+				metadata.put("time", values[i]);
+				metadata.put("unindexedTime", values[i]);
+			}
+			metadata.put("read", i < 2 ? yes : no);
+			metadata.put("type", new byte[] {(byte) (i % 2)});
+			db.mergeMessageMetadata(txn, m, metadata);
+		}
+
+		for (String key : Arrays.asList("time", "unindexedTime")) {
+			// All messages with integer values, in ascending order
+			Metadata empty = new Metadata();
+			MetadataRange range = new MetadataRange(key, false, NO_LIMIT);
+			Map<MessageId, Metadata> selected =
+					db.getMessageMetadata(txn, groupId, empty, range);
+			assertEquals(ids.subList(0, 4), new ArrayList<>(selected.keySet()));
+			assertArrayEquals(values[0], selected.get(ids.get(0)).get(key));
+			assertEquals(4, db.countMessages(txn, groupId, empty, range));
+
+			// Pages of messages in descending order
+			range = new MetadataRange(key, true, 2);
+			assertEquals(Arrays.asList(ids.get(3), ids.get(2)),
+					getSelectedIds(db, txn, empty, range));
+			range = range.after(2, ids.get(2));
+			assertEquals(Arrays.asList(ids.get(1), ids.get(0)),
+					getSelectedIds(db, txn, empty, range));
+			assertEquals(2, db.countMessages(txn, groupId, empty, range));
+			range = range.after(1, ids.get(0));
+			assertTrue(getSelectedIds(db, txn, empty, range).isEmpty());
+
+			// A page of a range of values in ascending order
+			range = new MetadataRange(key, false, 2, 256, 2);
+			assertEquals(ids.subList(1, 3),
+					getSelectedIds(db, txn, empty, range));
+			assertEquals(3, db.countMessages(txn, groupId, empty, range));
+			range = range.after(2, ids.get(2));
+			assertEquals(singletonList(ids.get(3)),
+					getSelectedIds(db, txn, empty, range));
+
+			// Ranges of messages matching indexed and unindexed terms
+			Metadata query = new Metadata();
+			query.put("read", yes);
+			range = new MetadataRange(key, true, NO_LIMIT);
+			assertEquals(Arrays.asList(ids.get(1), ids.get(0)),
+					getSelectedIds(db, txn, query, range));
+			query = new Metadata();
+			query.put("read", no);
+			query.put("type", new byte[] {1});
+			range = new MetadataRange(key, false, NO_LIMIT);
+			assertEquals(singletonList(ids.get(3)),
+					getSelectedIds(db, txn, query, range));
+			assertEquals(1, db.countMessages(txn, groupId, query, range));
+
+			// Messages that aren't delivered aren't selected
+			db.setMessageState(txn, ids.get(3), PENDING);
+			assertEquals(ids.subList(0, 3),
+					getSelectedIds(db, txn, empty, range));
+			assertEquals(3, db.countMessages(txn, groupId, empty, range));
+			db.setMessageState(txn, ids.get(3), DELIVERED);
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	private List<MessageId> getSelectedIds(Database<T> db, T txn,
+			Metadata query, MetadataRange range) throws Exception {
+		return new ArrayList<>(
+				db.getMessageMetadata(txn, groupId, query, range).keySet());
+	}
+
+	@Test
+	public void testVisitMessageMetadata() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		MessageId messageId2 = new MessageId(getRandomId());
+		MessageId messageId3 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+		Message message3 = new Message(messageId3, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and four messages, one of which has no metadata and
+		// one of which is pending
+		db.addIndexedMetadataKey(txn, clientId, majorVersion, "time", LONG);
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		db.addMessage(txn, message3, PENDING, true, null);
+
+		// Attach some metadata to the messages
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("time", new byte[] {0x21, 2});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", new byte[] {'b', 'a', 'z'});
+		metadata1.put("time", new byte[] {0x21, 1});
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+		db.mergeMessageMetadata(txn, messageId3, metadata);
+
+		// Each overload should visit each matching message once
+		Map<MessageId, Metadata> visited = new LinkedHashMap<>();
+		db.visitMessageMetadata(txn, groupId, (m, meta) ->
+				assertNull(visited.put(m, meta)));
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1)),
+				visited.keySet());
+		assertMetadataEquals(metadata, visited.get(messageId));
+		assertMetadataEquals(metadata1, visited.get(messageId1));
+
+		// An empty query should include the message without metadata
+		Metadata query = new Metadata();
+		visited.clear();
+		db.visitMessageMetadata(txn, groupId, query, (m, meta) ->
+				assertNull(visited.put(m, meta)));
+		assertEquals(new HashSet<>(
+						Arrays.asList(messageId, messageId1, messageId2)),
+				visited.keySet());
+		assertMetadataEquals(metadata1, visited.get(messageId1));
+		assertTrue(visited.get(messageId2).isEmpty());
+
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		visited.clear();
+		db.visitMessageMetadata(txn, groupId, query, (m, meta) ->
+				assertNull(visited.put(m, meta)));
+		assertEquals(singleton(messageId), visited.keySet());
+		assertMetadataEquals(metadata, visited.get(messageId));
+
+		// Ranges should be visited in order
+		MetadataRange range = new MetadataRange("time", false, NO_LIMIT);
+		visited.clear();
+		db.visitMessageMetadata(txn, groupId, new Metadata(), range,
+				(m, meta) -> assertNull(visited.put(m, meta)));
+		assertEquals(Arrays.asList(messageId1, messageId),
+				new ArrayList<>(visited.keySet()));
+		assertMetadataEquals(metadata, visited.get(messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testVisitorCanVisitMetadataDuringVisit() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and two messages with metadata
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		db.mergeMessageMetadata(txn, messageId1, metadata);
+
+		// A visitor that runs the same scan shouldn't disturb the outer scan
+		Set<MessageId> visited = new HashSet<>();
+		db.visitMessageMetadata(txn, groupId, (m, meta) -> {
+			assertTrue(visited.add(m));
+			Set<MessageId> inner = new HashSet<>();
+			db.visitMessageMetadata(txn, groupId,
+					(m1, meta1) -> inner.add(m1));
+			assertEquals(2, inner.size());
+		});
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1)),
+				visited);
+
+		Metadata query = new Metadata();
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		visited.clear();
+		db.visitMessageMetadata(txn, groupId, query, (m, meta) -> {
+			assertTrue(visited.add(m));
+			Set<MessageId> inner = new HashSet<>();
+			db.visitMessageMetadata(txn, groupId, query,
+					(m1, meta1) -> inner.add(m1));
+			assertEquals(2, inner.size());
+		});
+		assertEquals(new HashSet<>(Arrays.asList(messageId, messageId1)),
+				visited);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMetadataQueriesOnlyForDeliveredMessages() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+
+		// Attach some metadata to the messages
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", new byte[] {'b', 'a', 'r'});
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+
+		for (int i = 0; i < 2; i++) {
+			Metadata query;
+			if (i == 0) {
+				// Query the metadata with an empty query
+				query = new Metadata();
+			} else {
+				// Query for foo
+				query = new Metadata();
+				query.put("foo", new byte[] {'b', 'a', 'r'});
+			}
+
+			db.setMessageState(txn, messageId, DELIVERED);
+			db.setMessageState(txn, messageId1, DELIVERED);
+			Map<MessageId, Metadata> all =
+					db.getMessageMetadata(txn, groupId, query);
+			assertEquals(2, all.size());
+			assertMetadataEquals(metadata, all.get(messageId));
+			assertMetadataEquals(metadata1, all.get(messageId1));
+
+			// No metadata for unknown messages
+			db.setMessageState(txn, messageId, UNKNOWN);
+			all = db.getMessageMetadata(txn, groupId, query);
+			assertEquals(1, all.size());
+			assertMetadataEquals(metadata1, all.get(messageId1));
+
+			// No metadata for invalid messages
+			db.setMessageState(txn, messageId, INVALID);
+			all = db.getMessageMetadata(txn, groupId, query);
+			assertEquals(1, all.size());
+			assertMetadataEquals(metadata1, all.get(messageId1));
+
+			// No metadata for pending messages
+			db.setMessageState(txn, messageId, PENDING);
+			all = db.getMessageMetadata(txn, groupId, query);
+			assertEquals(1, all.size());
+			assertMetadataEquals(metadata1, all.get(messageId1));
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	private void assertMetadataEquals(Metadata m1, Metadata m2) {
+		assertEquals(m1.keySet(), m2.keySet());
+		for (Entry<String, byte[]> e : m1.entrySet()) {
+			assertArrayEquals(e.getValue(), m2.get(e.getKey()));
+		}
+	}
+
+	@Test
+	public void testMessageDependencies() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		MessageId messageId2 = new MessageId(getRandomId());
+		MessageId messageId3 = new MessageId(getRandomId());
+		MessageId messageId4 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp, raw);
+		Message message2 = new Message(messageId2, groupId, timestamp, raw);
+		Message message3 = new Message(messageId3, groupId, timestamp, raw);
+		Message message4 = new Message(messageId4, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and some messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, PENDING, true, contactId);
+		db.addMessage(txn, message1, PENDING, true, contactId);
+		db.addMessage(txn, message2, INVALID, true, contactId);
+
+		// Add dependencies
+		db.addMessageDependency(txn, message, messageId1, PENDING);
+		db.addMessageDependency(txn, message, messageId2, PENDING);
+		db.addMessageDependency(txn, message1, messageId3, PENDING);
+		db.addMessageDependency(txn, message2, messageId4, INVALID);
+
+		Map<MessageId, State> dependencies;
+
+		// Retrieve dependencies for root
+		dependencies = db.getMessageDependencies(txn, messageId);
+		assertEquals(2, dependencies.size());
+		assertEquals(PENDING, dependencies.get(messageId1));
+		assertEquals(INVALID, dependencies.get(messageId2));
+
+		// Retrieve dependencies for message 1
+		dependencies = db.getMessageDependencies(txn, messageId1);
+		assertEquals(1, dependencies.size());
+		assertEquals(UNKNOWN, dependencies.get(messageId3)); // Missing
+
+		// Retrieve dependencies for message 2
+		dependencies = db.getMessageDependencies(txn, messageId2);
+		assertEquals(1, dependencies.size());
+		assertEquals(UNKNOWN, dependencies.get(messageId4)); // Missing
+
+		// Make sure leaves have no dependencies
+		dependencies = db.getMessageDependencies(txn, messageId3);
+		assertEquals(0, dependencies.size());
+		dependencies = db.getMessageDependencies(txn, messageId4);
+		assertEquals(0, dependencies.size());
+
+		Map<MessageId, State> dependents;
+
+		// Root message does not have dependents
+		dependents = db.getMessageDependents(txn, messageId);
+		assertEquals(0, dependents.size());
+
+		// Messages 1 and 2 have the root as a dependent
+		dependents = db.getMessageDependents(txn, messageId1);
+		assertEquals(1, dependents.size());
+		assertEquals(PENDING, dependents.get(messageId));
+		dependents = db.getMessageDependents(txn, messageId2);
+		assertEquals(1, dependents.size());
+		assertEquals(PENDING, dependents.get(messageId));
+
+		// Message 3 is missing, so it has no dependents
+		dependents = db.getMessageDependents(txn, messageId3);
+		assertEquals(0, dependents.size());
+
+		// Add message 3
+		db.addMessage(txn, message3, UNKNOWN, false, contactId);
+
+		// Message 3 has message 1 as a dependent
+		dependents = db.getMessageDependents(txn, messageId3);
+		assertEquals(1, dependents.size());
+		assertEquals(PENDING, dependents.get(messageId1));
+
+		// Message 4 is missing, so it has no dependents
+		dependents = db.getMessageDependents(txn, messageId4);
+		assertEquals(0, dependents.size());
+
+		// Add message 4
+		db.addMessage(txn, message4, UNKNOWN, false, contactId);
+
+		// Message 4 has message 2 as a dependent
+		dependents = db.getMessageDependents(txn, messageId4);
+		assertEquals(1, dependents.size());
+		assertEquals(INVALID, dependents.get(messageId2));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessageDependenciesAcrossGroups() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and a message
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, PENDING, true, contactId);
+
+		// Add a second group
+		Group group1 = getGroup(clientId, 123);
+		GroupId groupId1 = group1.getId();
+		db.addGroup(txn, group1);
+
+		// Add a message to the second group
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId1, timestamp, raw);
+		db.addMessage(txn, message1, DELIVERED, true, contactId);
+
+		// Create an ID for a missing message
+		MessageId messageId2 = new MessageId(getRandomId());
+
+		// Add another message to the first group
+		MessageId messageId3 = new MessageId(getRandomId());
+		Message message3 = new Message(messageId3, groupId, timestamp, raw);
+		db.addMessage(txn, message3, DELIVERED, true, contactId);
+
+		// Add dependencies between the messages
+		db.addMessageDependency(txn, message, messageId1, PENDING);
+		db.addMessageDependency(txn, message, messageId2, PENDING);
+		db.addMessageDependency(txn, message, messageId3, PENDING);
+
+		// Retrieve the dependencies for the root
+		Map<MessageId, State> dependencies;
+		dependencies = db.getMessageDependencies(txn, messageId);
+
+		// The cross-group dependency should have state UNKNOWN
+		assertEquals(UNKNOWN, dependencies.get(messageId1));
+
+		// The missing dependency should have state UNKNOWN
+		assertEquals(UNKNOWN, dependencies.get(messageId2));
+
+		// The valid dependency should have its real state
+		assertEquals(DELIVERED, dependencies.get(messageId3));
+
+		// Retrieve the dependents for the message in the second group
+		Map<MessageId, State> dependents;
+		dependents = db.getMessageDependents(txn, messageId1);
+
+		// The cross-group dependent should be excluded
+		assertFalse(dependents.containsKey(messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetPendingMessagesForDelivery() throws Exception {
+		MessageId mId1 = new MessageId(getRandomId());
+		MessageId mId2 = new MessageId(getRandomId());
+		MessageId mId3 = new MessageId(getRandomId());
+		MessageId mId4 = new MessageId(getRandomId());
+		Message m1 = new Message(mId1, groupId, timestamp, raw);
+		Message m2 = new Message(mId2, groupId, timestamp, raw);
+		Message m3 = new Message(mId3, groupId, timestamp, raw);
+		Message m4 = new Message(mId4, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and some messages with different states
+		db.addGroup(txn, group);
+		db.addMessage(txn, m1, UNKNOWN, true, contactId);
+		db.addMessage(txn, m2, INVALID, true, contactId);
+		db.addMessage(txn, m3, PENDING, true, contactId);
+		db.addMessage(txn, m4, DELIVERED, true, contactId);
+
+		Collection<MessageId> result;
+
+		// Retrieve messages to be validated
+		result = db.getMessagesToValidate(txn);
+		assertEquals(1, result.size());
+		assertTrue(result.contains(mId1));
+
+		// Retrieve pending messages
+		result = db.getPendingMessages(txn);
+		assertEquals(1, result.size());
+		assertTrue(result.contains(mId3));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetMessagesToShare() throws Exception {
+		MessageId mId1 = new MessageId(getRandomId());
+		MessageId mId2 = new MessageId(getRandomId());
+		MessageId mId3 = new MessageId(getRandomId());
+		MessageId mId4 = new MessageId(getRandomId());
+		Message m1 = new Message(mId1, groupId, timestamp, raw);
+		Message m2 = new Message(mId2, groupId, timestamp, raw);
+		Message m3 = new Message(mId3, groupId, timestamp, raw);
+		Message m4 = new Message(mId4, groupId, timestamp, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and some messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, m1, DELIVERED, true, contactId);
+		db.addMessage(txn, m2, DELIVERED, false, contactId);
+		db.addMessage(txn, m3, DELIVERED, false, contactId);
+		db.addMessage(txn, m4, DELIVERED, true, contactId);
+
+		// Introduce dependencies between the messages
+		db.addMessageDependency(txn, m1, mId2, DELIVERED);
+		db.addMessageDependency(txn, m3, mId1, DELIVERED);
+		db.addMessageDependency(txn, m4, mId3, DELIVERED);
+
+		// Retrieve messages to be shared
+		Collection<MessageId> result = db.getMessagesToShare(txn);
+		assertEquals(2, result.size());
+		assertTrue(result.contains(mId2));
+		assertTrue(result.contains(mId3));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetMessageStatus() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The message should not be sent or seen
+		MessageStatus status = db.getMessageStatus(txn, contactId, messageId);
+		assertNotNull(status);
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertFalse(status.isSent());
+		assertFalse(status.isSeen());
+
+		// The same status should be returned when querying by group
+		Collection<MessageStatus> statuses = db.getMessageStatus(txn,
+				contactId, groupId);
+		assertEquals(1, statuses.size());
+		status = statuses.iterator().next();
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertFalse(status.isSent());
+		assertFalse(status.isSeen());
+
+		// Pretend the message was sent to the contact
+		db.updateExpiryTime(txn, contactId, messageId, Integer.MAX_VALUE);
+
+		// The message should be sent but not seen
+		status = db.getMessageStatus(txn, contactId, messageId);
+		assertNotNull(status);
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertTrue(status.isSent());
+		assertFalse(status.isSeen());
+
+		// The same status should be returned when querying by group
+		statuses = db.getMessageStatus(txn, contactId, groupId);
+		assertEquals(1, statuses.size());
+		status = statuses.iterator().next();
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertTrue(status.isSent());
+		assertFalse(status.isSeen());
+
+		// Pretend the message was acked by the contact
+		db.raiseSeenFlag(txn, contactId, messageId);
+
+		// The message should be sent and seen
+		status = db.getMessageStatus(txn, contactId, messageId);
+		assertNotNull(status);
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertTrue(status.isSent());
+		assertTrue(status.isSeen());
+
+		// The same status should be returned when querying by group
+		statuses = db.getMessageStatus(txn, contactId, groupId);
+		assertEquals(1, statuses.size());
+		status = statuses.iterator().next();
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertTrue(status.isSent());
+		assertTrue(status.isSeen());
+
+		// Make the group invisible to the contact
+		db.removeGroupVisibility(txn, contactId, groupId);
+
+		// Null should be returned when querying by message
+		assertNull(db.getMessageStatus(txn, contactId, messageId));
+
+		// No statuses should be returned when querying by group
+		statuses = db.getMessageStatus(txn, contactId, groupId);
+		assertEquals(0, statuses.size());
+
+		// Make the group visible to the contact again
+		db.addGroupVisibility(txn, contactId, groupId, false);
+
+		// The default status should be returned when querying by message
+		status = db.getMessageStatus(txn, contactId, messageId);
+		assertNotNull(status);
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertFalse(status.isSent());
+		assertFalse(status.isSeen());
+
+		// The default status should be returned when querying by group
+		statuses = db.getMessageStatus(txn, contactId, groupId);
+		assertEquals(1, statuses.size());
+		status = statuses.iterator().next();
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertFalse(status.isSent());
+		assertFalse(status.isSeen());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testDifferentLocalAuthorsCanHaveTheSameContact()
+			throws Exception {
+		LocalAuthor localAuthor1 = getLocalAuthor();
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add two local authors
+		db.addLocalAuthor(txn, localAuthor);
+		db.addLocalAuthor(txn, localAuthor1);
+
+		// Add the same contact for each local author
+		ContactId contactId =
+				db.addContact(txn, author, localAuthor.getId(), true, true);
+		ContactId contactId1 =
+				db.addContact(txn, author, localAuthor1.getId(), true, true);
+
+		// The contacts should be distinct
+		assertNotEquals(contactId, contactId1);
+		assertEquals(2, db.getContacts(txn).size());
+		assertEquals(1, db.getContacts(txn, localAuthor.getId()).size());
+		assertEquals(1, db.getContacts(txn, localAuthor1.getId()).size());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testDeleteMessage() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// The message should be visible to the contact
+		assertTrue(db.containsVisibleMessage(txn, contactId, messageId));
+
+		// The message should be sendable
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertEquals(singletonList(messageId), ids);
+
+		// The raw message should not be null
+		assertNotNull(db.getRawMessage(txn, messageId));
+
+		// Delete the message
+		db.deleteMessage(txn, messageId);
+
+		// The message should be visible to the contact
+		assertTrue(db.containsVisibleMessage(txn, contactId, messageId));
+
+		// The message should not be sendable
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100);
+		assertTrue(ids.isEmpty());
+
+		// The raw message should be null
+		assertNull(db.getRawMessage(txn, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetMessageTimestamps() throws Exception {
+		MessageId messageId1 = new MessageId(getRandomId());
+		Message message1 = new Message(messageId1, groupId, timestamp - 1, raw);
+		MessageId messageId2 = new MessageId(getRandomId());
+		Message message2 = new Message(messageId2, groupId, timestamp + 1, raw);
+		MessageId messageId3 = new MessageId(getRandomId());
+		Message message3 = new Message(messageId3, groupId, timestamp + 2, raw);
+
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and four messages, one of which is pending
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, null);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message2, DELIVERED, true, null);
+		db.addMessage(txn, message3, PENDING, true, null);
+
+		// The delivered messages should be returned, oldest first
+		Map<MessageId, Long> timestamps =
+				db.getMessageTimestamps(txn, groupId);
+		assertEquals(Arrays.asList(messageId1, messageId, messageId2),
+				new ArrayList<>(timestamps.keySet()));
+		assertEquals(Long.valueOf(timestamp - 1), timestamps.get(messageId1));
+
+		// Deleted messages should not be returned
+		db.deleteMessage(txn, messageId);
+		timestamps = db.getMessageTimestamps(txn, groupId);
+		assertEquals(Arrays.asList(messageId1, messageId2),
+				new ArrayList<>(timestamps.keySet()));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSetContactActive() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a contact
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+
+		// The contact should be active
+		Contact contact = db.getContact(txn, contactId);
+		assertTrue(contact.isActive());
+
+		// Set the contact inactive
+		db.setContactActive(txn, contactId, false);
+
+		// The contact should be inactive
+		contact = db.getContact(txn, contactId);
+		assertFalse(contact.isActive());
+
+		// Set the contact active
+		db.setContactActive(txn, contactId, true);
+
+		// The contact should be active
+		contact = db.getContact(txn, contactId);
+		assertTrue(contact.isActive());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSetMessageState() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and a message
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, UNKNOWN, false, contactId);
+
+		// Walk the message through the validation and delivery states
+		assertEquals(UNKNOWN, db.getMessageState(txn, messageId));
+		db.setMessageState(txn, messageId, INVALID);
+		assertEquals(INVALID, db.getMessageState(txn, messageId));
+		db.setMessageState(txn, messageId, PENDING);
+		assertEquals(PENDING, db.getMessageState(txn, messageId));
+		db.setMessageState(txn, messageId, DELIVERED);
+		assertEquals(DELIVERED, db.getMessageState(txn, messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetNextSendTime() throws Exception {
+		long now = System.currentTimeMillis();
+		Database<T> db = open(false, new StoppedClock(now));
+		T txn = db.startTransaction();
+
+		// Add a contact, a group and a message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, UNKNOWN, false, null);
+
+		// There should be no messages to send
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		// Share the group with the contact - still no messages to send
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		// Set the message's state to DELIVERED - still no messages to send
+		db.setMessageState(txn, messageId, DELIVERED);
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		// Share the message - now it should be sendable immediately
+		db.setMessageShared(txn, messageId);
+		assertEquals(0, db.getNextSendTime(txn, contactId));
+
+		// Mark the message as requested - it should still be sendable
+		db.raiseRequestedFlag(txn, contactId, messageId);
+		assertEquals(0, db.getNextSendTime(txn, contactId));
+
+		// Update the message's expiry time as though we sent it - now the
+		// message should be sendable after one round-trip
+		db.updateExpiryTime(txn, contactId, messageId, 1000);
+		assertEquals(now + 2000, db.getNextSendTime(txn, contactId));
+
+		// Update the message's expiry time again - now it should be sendable
+		// after two round-trips
+		db.updateExpiryTime(txn, contactId, messageId, 1000);
+		assertEquals(now + 4000, db.getNextSendTime(txn, contactId));
+
+		// Delete the message - there should be no messages to send
+		db.deleteMessage(txn, messageId);
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetMessagesToSend() throws Exception {
+		long now = System.currentTimeMillis();
+		Database<T> db = open(false, new StoppedClock(now));
+		T txn = db.startTransaction();
+
+		// Add a contact, a shared group and two shared messages
+		MessageId messageId1 = new MessageId(getRandomId());
+		byte[] raw1 = getRandomBytes(size);
+		Message message1 = new Message(messageId1, groupId, timestamp + 1,
+				raw1);
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthor.getId(),
+				true, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message1, DELIVERED, true, null);
+		db.addMessage(txn, message, DELIVERED, true, null);
+
+		// Both messages fit and should be returned in timestamp order
+		Collection<MessageId> ids =
+				db.getMessagesToSend(txn, contactId, size * 2);
+		assertEquals(Arrays.asList(messageId, messageId1),
+				new ArrayList<>(ids));
+		Map<MessageId, byte[]> messages = db.getRawMessages(txn, ids);
+		assertArrayEquals(raw, messages.get(messageId));
+		assertArrayEquals(raw1, messages.get(messageId1));
+
+		// Only the first message fits
+		ids = db.getMessagesToSend(txn, contactId, size * 2 - 1);
+		assertEquals(singletonList(messageId), new ArrayList<>(ids));
+
+		// Only the requested message should be returned
+		assertTrue(db.getRequestedMessagesToSend(txn, contactId,
+				size * 2).isEmpty());
+		db.raiseRequestedFlag(txn, contactId, messageId1);
+		ids = db.getRequestedMessagesToSend(txn, contactId, size * 2);
+		assertEquals(singletonList(messageId1), new ArrayList<>(ids));
+
+		// Update the expiry times as though we sent the messages - they
+		// should not be sendable again until after one round-trip
+		db.updateExpiryTimes(txn, contactId,
+				Arrays.asList(messageId, messageId1), 1000);
+		assertTrue(db.getMessagesToSend(txn, contactId, size * 2)
+				.isEmpty());
+		assertEquals(now + 2000, db.getNextSendTime(txn, contactId));
+
+		// Update one expiry time again - it should back off exponentially
+		db.updateExpiryTimes(txn, contactId, singletonList(messageId), 1000);
+		db.updateExpiryTimes(txn, contactId, singletonList(messageId), 1000);
+		db.updateExpiryTime(txn, contactId, messageId1, 1000);
+		assertEquals(now + 4000, db.getNextSendTime(txn, contactId));
+		db.deleteMessage(txn, messageId1);
+		assertEquals(now + 8000, db.getNextSendTime(txn, contactId));
+
+		// With a very long latency the expiry time should saturate
+		for (int i = 0; i < 64; i++)
+			db.updateExpiryTimes(txn, contactId, singletonList(messageId),
+					Integer.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetRawMessages() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		// Add a group and enough messages to need more than one query
+		db.addGroup(txn, group);
+		Map<MessageId, byte[]> added = new HashMap<>();
+		for (int i = 0; i < MAX_RAW_MESSAGES_PER_QUERY + 3; i++) {
+			MessageId m = new MessageId(getRandomId());
+			byte[] raw = getRandomBytes(size);
+			db.addMessage(txn, new Message(m, groupId, timestamp, raw),
+					DELIVERED, true, null);
+			added.put(m, raw);
+		}
+
+		// All the messages should be returned
+		Map<MessageId, byte[]> messages =
+				db.getRawMessages(txn, added.keySet());
+		assertEquals(added.keySet(), messages.keySet());
+		for (Entry<MessageId, byte[]> e : added.entrySet())
+			assertArrayEquals(e.getValue(), messages.get(e.getKey()));
+
+		// A deleted message should be omitted
+		MessageId deleted = added.keySet().iterator().next();
+		db.deleteMessage(txn, deleted);
+		messages = db.getRawMessages(txn, added.keySet());
+		assertEquals(added.size() - 1, messages.size());
+		assertFalse(messages.containsKey(deleted));
+
+		// Fewer messages than a full query should also be returned
+		List<MessageId> some = new ArrayList<>(messages.keySet()).subList(0, 3);
+		assertEquals(new HashSet<>(some),
+				db.getRawMessages(txn, some).keySet());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGetGroups() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+
+		assertEquals(emptyList(), db.getGroups(txn, clientId, majorVersion));
+		db.addGroup(txn, group);
+		assertEquals(singletonList(group),
+				db.getGroups(txn, clientId, majorVersion));
+		db.removeGroup(txn, groupId);
+		assertEquals(emptyList(), db.getGroups(txn, clientId, majorVersion));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testExceptionHandling() throws Exception {
+		Database<T> db = open(false);
+		T txn = db.startTransaction();
+		try {
+			// Ask for a nonexistent message - an exception should be thrown
+			db.getRawMessage(txn, messageId);
+			fail();
+		} catch (DbException expected) {
+			// It should be possible to abort the transaction without error
+			db.abortTransaction(txn);
+		}
+		// It should be possible to close the database cleanly
+		db.close();
+	}
+
+	private Database<T> open(boolean resume) throws Exception {
+		return open(resume, new SystemClock());
+	}
+
+	private Database<T> open(boolean resume, Clock clock)
+			throws Exception {
+		Database<T> db = createDatabase(
+				new TestDatabaseConfig(testDir, MAX_SIZE), clock);
+		if (!resume) TestUtils.deleteTestDirectory(testDir);
+		db.open(key, null);
+		return db;
+	}
+
+	private TransportKeys createTransportKeys(long rotationPeriod,
+			boolean active) {
+		SecretKey inPrevTagKey = getSecretKey();
+		SecretKey inPrevHeaderKey = getSecretKey();
+		IncomingKeys inPrev = new IncomingKeys(inPrevTagKey, inPrevHeaderKey,
+				rotationPeriod - 1, 123, new byte[4]);
+		SecretKey inCurrTagKey = getSecretKey();
+		SecretKey inCurrHeaderKey = getSecretKey();
+		IncomingKeys inCurr = new IncomingKeys(inCurrTagKey, inCurrHeaderKey,
+				rotationPeriod, 234, new byte[4]);
+		SecretKey inNextTagKey = getSecretKey();
+		SecretKey inNextHeaderKey = getSecretKey();
+		IncomingKeys inNext = new IncomingKeys(inNextTagKey, inNextHeaderKey,
+				rotationPeriod + 1, 345, new byte[4]);
+		SecretKey outCurrTagKey = getSecretKey();
+		SecretKey outCurrHeaderKey = getSecretKey();
+		OutgoingKeys outCurr = new OutgoingKeys(outCurrTagKey, outCurrHeaderKey,
+				rotationPeriod, 456, active);
+		return new TransportKeys(transportId, inPrev, inCurr, inNext, outCurr);
+	}
+
+	@After
+	public void tearDown() {
+		TestUtils.deleteTestDirectory(testDir);
+	}
+
+	private static class StoppedClock implements Clock {
+
+		private final long time;
+
+		private StoppedClock(long time) {
+			this.time = time;
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return time;
+		}
+
+		@Override
+		public void sleep(long milliseconds) throws InterruptedException {
+			Thread.sleep(milliseconds);
+		}
+	}
+}
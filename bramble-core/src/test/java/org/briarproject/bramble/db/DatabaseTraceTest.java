@@ -11,7 +11,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.sql.Connection;
 
 import javax.annotation.Nullable;
 
@@ -20,7 +19,7 @@ import static org.briarproject.bramble.test.TestUtils.getSecretKey;
 
 public abstract class DatabaseTraceTest extends DatabasePerformanceTest {
 
-	abstract Database<Connection> createDatabase(DatabaseConfig databaseConfig,
+	abstract Database<?> createDatabase(DatabaseConfig databaseConfig,
 			Clock clock);
 
 	@Nullable
@@ -28,9 +27,9 @@ public abstract class DatabaseTraceTest extends DatabasePerformanceTest {
 
 	@Override
 	protected void benchmark(String name,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		deleteTestDirectory(testDir);
-		Database<Connection> db = openDatabase();
+		Database<Object> db = openDatabase();
 		populateDatabase(db);
 		db.close();
 		File traceFile = getTraceFile();
@@ -41,9 +40,9 @@ public abstract class DatabaseTraceTest extends DatabasePerformanceTest {
 		if (traceFile != null) copyTraceFile(name, traceFile);
 	}
 
-	private Database<Connection> openDatabase() throws DbException {
-		Database<Connection> db = createDatabase(
-				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock());
+	private Database<Object> openDatabase() throws DbException {
+		Database<Object> db = asObjectDatabase(createDatabase(
+				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock()));
 		db.open(getSecretKey(), null);
 		return db;
 	}
@@ -0,0 +1,141 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiskUsageTrackerTest extends BrambleMockTestCase {
+
+	private static final long MAX_SIZE = 1024 * 1024;
+	private static final long RECONCILE_INTERVAL = 1000;
+
+	private final Clock clock = context.mock(Clock.class);
+	private final File testDir = getTestDirectory();
+	private final long now = System.currentTimeMillis();
+
+	private DiskUsageTracker tracker;
+
+	@Before
+	public void setUp() throws Exception {
+		assertTrue(testDir.mkdirs());
+		writeFile("existing", 1000);
+		tracker = new DiskUsageTracker(testDir, MAX_SIZE, RECONCILE_INTERVAL,
+				clock);
+	}
+
+	@Test
+	public void testUsageIsUpdatedIncrementally() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			exactly(3).of(clock).currentTimeMillis();
+			will(returnValue(now + RECONCILE_INTERVAL - 1));
+		}});
+
+		tracker.reconcile();
+		assertEquals(MAX_SIZE - 1000, tracker.getFreeSpace());
+		// Writes and deletes are accounted for without measuring the disk
+		writeFile("new", 500);
+		tracker.recordWrite(500);
+		assertEquals(MAX_SIZE - 1500, tracker.getFreeSpace());
+		tracker.recordDelete(200);
+		assertEquals(MAX_SIZE - 1300, tracker.getFreeSpace());
+	}
+
+	@Test
+	public void testUsageIsReconciledAfterInterval() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			// The interval has elapsed, so the disk is measured again
+			exactly(2).of(clock).currentTimeMillis();
+			will(returnValue(now + RECONCILE_INTERVAL));
+		}});
+
+		tracker.reconcile();
+		// Write a file without recording it
+		writeFile("new", 500);
+		assertEquals(MAX_SIZE - 1500, tracker.getFreeSpace());
+	}
+
+	@Test
+	public void testDeletesCannotMakeUsageNegative() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+		}});
+
+		tracker.reconcile();
+		tracker.recordDelete(2000);
+		assertEquals(MAX_SIZE, tracker.getFreeSpace());
+	}
+
+	@Test
+	public void testDeletesCreditFreeSpace() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			exactly(3).of(clock).currentTimeMillis();
+			will(returnValue(now));
+		}});
+
+		// Without a size limit, the free space on the device is returned
+		tracker = new DiskUsageTracker(testDir, Long.MAX_VALUE,
+				RECONCILE_INTERVAL, clock);
+		tracker.reconcile();
+		long free = tracker.getFreeSpace();
+		tracker.recordWrite(500);
+		assertEquals(free - 500, tracker.getFreeSpace());
+		tracker.recordDelete(500);
+		assertEquals(free, tracker.getFreeSpace());
+	}
+
+	@Test
+	public void testChangesRecordedWhileMeasuringAreApplied()
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+		}});
+
+		// Record a write while the directory is being measured
+		File dir = new File(testDir.getPath()) {
+			@Override
+			public File[] listFiles() {
+				tracker.recordWrite(500);
+				return super.listFiles();
+			}
+		};
+		tracker = new DiskUsageTracker(dir, MAX_SIZE, RECONCILE_INTERVAL,
+				clock);
+		tracker.reconcile();
+		assertEquals(MAX_SIZE - 1500, tracker.getFreeSpace());
+	}
+
+	private void writeFile(String name, int length) throws Exception {
+		FileOutputStream out = new FileOutputStream(new File(testDir, name));
+		out.write(getRandomBytes(length));
+		out.close();
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+}
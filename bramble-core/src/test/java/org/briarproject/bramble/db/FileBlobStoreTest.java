@@ -0,0 +1,114 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.CryptoComponent;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.db.FileBlobStore.BLOB_KEY_LABEL;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileBlobStoreTest extends BrambleMockTestCase {
+
+	private final CryptoComponent crypto =
+			context.mock(CryptoComponent.class);
+
+	private final File testDir = getTestDirectory();
+	private final SecretKey dbKey = getSecretKey();
+	private final SecretKey blobKey = getSecretKey();
+	private final MessageId messageId = new MessageId(getRandomId());
+	private final byte[] raw = getRandomBytes(123);
+	private final byte[] ciphertext = getRandomBytes(456);
+
+	private final FileBlobStore blobStore = new FileBlobStore(testDir, crypto);
+
+	@Test
+	public void testAddGetAndRemoveBlob() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(BLOB_KEY_LABEL, dbKey);
+			will(returnValue(blobKey));
+			oneOf(crypto).encryptWithKey(blobKey, raw);
+			will(returnValue(ciphertext));
+			oneOf(crypto).decryptWithKey(blobKey, ciphertext);
+			will(returnValue(raw));
+		}});
+
+		blobStore.open(dbKey);
+		assertEquals(emptyList(), blobStore.getBlobIds());
+		blobStore.addBlob(messageId, raw);
+		assertEquals(singletonList(messageId), blobStore.getBlobIds());
+		assertArrayEquals(raw, blobStore.getBlob(messageId));
+		blobStore.removeBlob(messageId);
+		assertEquals(emptyList(), blobStore.getBlobIds());
+		// Removing a blob that doesn't exist is not an error
+		blobStore.removeBlob(messageId);
+	}
+
+	@Test(expected = DbException.class)
+	public void testGettingMissingBlobThrowsException() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(BLOB_KEY_LABEL, dbKey);
+			will(returnValue(blobKey));
+		}});
+
+		blobStore.open(dbKey);
+		blobStore.getBlob(messageId);
+	}
+
+	@Test(expected = DbException.class)
+	public void testGettingInvalidBlobThrowsException() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(BLOB_KEY_LABEL, dbKey);
+			will(returnValue(blobKey));
+			oneOf(crypto).encryptWithKey(blobKey, raw);
+			will(returnValue(ciphertext));
+			oneOf(crypto).decryptWithKey(blobKey, ciphertext);
+			will(returnValue(null));
+		}});
+
+		blobStore.open(dbKey);
+		blobStore.addBlob(messageId, raw);
+		blobStore.getBlob(messageId);
+	}
+
+	@Test
+	public void testTemporaryFilesAreDeletedWhenOpening() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(BLOB_KEY_LABEL, dbKey);
+			will(returnValue(blobKey));
+		}});
+
+		assertTrue(testDir.mkdirs());
+		File temp = new File(testDir, "foo.tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		out.write(ciphertext);
+		out.close();
+		assertTrue(temp.exists());
+
+		blobStore.open(dbKey);
+		assertFalse(temp.exists());
+		assertEquals(emptyList(), blobStore.getBlobIds());
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+}
@@ -0,0 +1,98 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.GroupCommitTask;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.CaptureArgumentAction;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_GROUP_COMMIT_TASKS;
+
+public class GroupCommitterImplTest extends BrambleMockTestCase {
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final Executor dbExecutor = context.mock(Executor.class);
+
+	private final GroupCommitTask task =
+			context.mock(GroupCommitTask.class, "task");
+	private final GroupCommitTask task1 =
+			context.mock(GroupCommitTask.class, "task1");
+	private final GroupCommitTask task2 =
+			context.mock(GroupCommitTask.class, "task2");
+
+	private final GroupCommitterImpl groupCommitter =
+			new GroupCommitterImpl(db, dbExecutor);
+
+	@Test
+	public void testTasksSubmittedBeforeFlushAreCommittedTogether() {
+		AtomicReference<Runnable> flush = new AtomicReference<>();
+
+		context.checking(new Expectations() {{
+			// Only the first task schedules a flush
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(flush, Runnable.class, 0));
+		}});
+
+		groupCommitter.submit(task);
+		groupCommitter.submit(task1);
+		groupCommitter.submit(task2);
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			oneOf(db).runGroupCommit(asList(task, task1, task2));
+		}});
+
+		flush.get().run();
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			// The queue is empty, so the next task schedules another flush
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(flush, Runnable.class, 0));
+			oneOf(db).runGroupCommit(singletonList(task));
+		}});
+
+		groupCommitter.submit(task);
+		flush.get().run();
+	}
+
+	@Test
+	public void testGroupSizeIsLimited() {
+		AtomicReference<Runnable> flush = new AtomicReference<>();
+		List<GroupCommitTask> first = new ArrayList<>();
+		for (int i = 0; i < MAX_GROUP_COMMIT_TASKS; i++) first.add(task);
+
+		context.checking(new Expectations() {{
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(flush, Runnable.class, 0));
+		}});
+
+		for (GroupCommitTask t : first) groupCommitter.submit(t);
+		groupCommitter.submit(task1);
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			oneOf(db).runGroupCommit(first);
+			// The remaining task is flushed after the first group
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(flush, Runnable.class, 0));
+		}});
+
+		flush.get().run();
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			oneOf(db).runGroupCommit(singletonList(task1));
+		}});
+
+		flush.get().run();
+	}
+}
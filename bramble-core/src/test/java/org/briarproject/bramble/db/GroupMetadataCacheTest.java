@@ -0,0 +1,75 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GroupMetadataCacheTest extends BrambleTestCase {
+
+	private final GroupId groupId = new GroupId(getRandomId());
+	private final GroupId groupId1 = new GroupId(getRandomId());
+	private final GroupId groupId2 = new GroupId(getRandomId());
+	private final Metadata metadata = new Metadata();
+
+	public GroupMetadataCacheTest() {
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+	}
+
+	@Test
+	public void testHitsAndMissesAreCounted() {
+		GroupMetadataCache cache = new GroupMetadataCache(2);
+		assertNull(cache.get(groupId));
+		cache.put(groupId, metadata);
+		assertNotNull(cache.get(groupId));
+		assertNotNull(cache.get(groupId));
+		// Peeking doesn't count as a hit or a miss
+		assertNotNull(cache.peek(groupId));
+		assertNull(cache.peek(groupId1));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedGroupIsEvicted() {
+		GroupMetadataCache cache = new GroupMetadataCache(2);
+		cache.put(groupId, metadata);
+		cache.put(groupId1, metadata);
+		// Use the first group so the second becomes the least recently used
+		assertNotNull(cache.get(groupId));
+		cache.put(groupId2, metadata);
+		assertNotNull(cache.get(groupId));
+		assertNull(cache.get(groupId1));
+		assertNotNull(cache.get(groupId2));
+	}
+
+	@Test
+	public void testRemovedGroupIsNotCached() {
+		GroupMetadataCache cache = new GroupMetadataCache(2);
+		cache.put(groupId, metadata);
+		cache.remove(groupId);
+		assertNull(cache.get(groupId));
+	}
+
+	@Test
+	public void testCacheStoresAndReturnsCopies() {
+		GroupMetadataCache cache = new GroupMetadataCache(2);
+		cache.put(groupId, metadata);
+		// Modifying the metadata that was put should not affect the cache
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		Metadata cached = cache.get(groupId);
+		assertNotNull(cached);
+		assertEquals(1, cached.size());
+		// Modifying the metadata that was returned should not affect the cache
+		cached.put("foo", new byte[] {'q', 'u', 'x'});
+		cached = cache.get(groupId);
+		assertNotNull(cached);
+		assertArrayEquals(new byte[] {'b', 'a', 'r'}, cached.get("foo"));
+	}
+}
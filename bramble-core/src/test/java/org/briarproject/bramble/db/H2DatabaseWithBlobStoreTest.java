@@ -0,0 +1,188 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the database tests with raw messages stored in a blob store, plus
+ * some tests specific to the blob store.
+ */
+public class H2DatabaseWithBlobStoreTest extends JdbcDatabaseTest {
+
+	// The blob store outlives each database instance so reopening the
+	// database finds the blobs that were stored before it was closed
+	private final TestBlobStore blobStore = new TestBlobStore();
+	private final File blobTestDir = getTestDirectory();
+	private final SecretKey blobTestKey = getSecretKey();
+	private final Group blobTestGroup = getGroup(getClientId(), 123);
+	private final Message blobTestMessage = getMessage(blobTestGroup.getId());
+
+	public H2DatabaseWithBlobStoreTest() throws Exception {
+		super();
+	}
+
+	@Override
+	protected JdbcDatabase createDatabase(DatabaseConfig config, Clock clock) {
+		return new H2Database(config, clock, blobStore);
+	}
+
+	@Test
+	public void testRawMessageIsStoredInBlobStore() throws Exception {
+		Database<Connection> db = openBlobTestDatabase();
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, blobTestGroup);
+		db.addMessage(txn, blobTestMessage, DELIVERED, true, null);
+		db.commitTransaction(txn);
+
+		MessageId m = blobTestMessage.getId();
+		assertTrue(blobStore.containsBlob(m));
+		txn = db.startTransaction();
+		assertArrayEquals(blobTestMessage.getRaw(), db.getRawMessage(txn, m));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testBlobIsRemovedWhenTransactionCommits() throws Exception {
+		Database<Connection> db = openBlobTestDatabase();
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, blobTestGroup);
+		db.addMessage(txn, blobTestMessage, DELIVERED, true, null);
+		db.commitTransaction(txn);
+
+		// Delete the message and abort - the blob should be kept
+		MessageId m = blobTestMessage.getId();
+		txn = db.startTransaction();
+		db.deleteMessage(txn, m);
+		db.abortTransaction(txn);
+		assertTrue(blobStore.containsBlob(m));
+
+		// Delete the message and roll back to a savepoint set before the
+		// deletion - the blob should be kept
+		txn = db.startTransaction();
+		db.setSavepoint(txn);
+		db.deleteMessage(txn, m);
+		db.rollbackToSavepoint(txn);
+		db.commitTransaction(txn);
+		assertTrue(blobStore.containsBlob(m));
+
+		// Delete the message - the blob should be kept until the
+		// transaction commits
+		txn = db.startTransaction();
+		db.deleteMessage(txn, m);
+		assertTrue(blobStore.containsBlob(m));
+		assertNull(db.getRawMessage(txn, m));
+		db.commitTransaction(txn);
+		assertFalse(blobStore.containsBlob(m));
+		db.close();
+	}
+
+	@Test
+	public void testFailedBlobDoesNotLeaveRowsBehind() throws Exception {
+		Message message1 = getMessage(blobTestGroup.getId());
+		Message message2 = getMessage(blobTestGroup.getId());
+		Database<Connection> db = openBlobTestDatabase();
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, blobTestGroup);
+
+		// Writing the second blob fails
+		blobStore.setFailingBlob(message1.getId());
+		try {
+			db.addMessages(txn, asList(blobTestMessage, message1), DELIVERED,
+					true, null);
+			fail();
+		} catch (DbException expected) {
+			// Expected
+		}
+		blobStore.setFailingBlob(null);
+
+		// Adding another message shouldn't add the first message too
+		db.addMessages(txn, singletonList(message2), DELIVERED, true, null);
+		assertFalse(db.containsMessage(txn, blobTestMessage.getId()));
+		assertFalse(db.containsMessage(txn, message1.getId()));
+		assertTrue(db.containsMessage(txn, message2.getId()));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testRemovingGroupRemovesBlobs() throws Exception {
+		Database<Connection> db = openBlobTestDatabase();
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, blobTestGroup);
+		db.addMessage(txn, blobTestMessage, DELIVERED, true, null);
+		db.commitTransaction(txn);
+
+		MessageId m = blobTestMessage.getId();
+		txn = db.startTransaction();
+		db.removeGroup(txn, blobTestGroup.getId());
+		assertTrue(blobStore.containsBlob(m));
+		db.commitTransaction(txn);
+		assertFalse(blobStore.containsBlob(m));
+		db.close();
+	}
+
+	@Test
+	public void testUnreferencedBlobsAreRemovedWhenOpening()
+			throws Exception {
+		Database<Connection> db = openBlobTestDatabase();
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, blobTestGroup);
+		db.addMessage(txn, blobTestMessage, DELIVERED, true, null);
+		db.commitTransaction(txn);
+		db.close();
+
+		// Add a blob that is not referenced by the database
+		MessageId unreferenced = new MessageId(getRandomId());
+		blobStore.addBlob(unreferenced, new byte[123]);
+
+		// When the database is reopened the unreferenced blob should be
+		// removed and the referenced blob should be kept
+		db = createDatabase(new TestDatabaseConfig(blobTestDir,
+				Long.MAX_VALUE), new SystemClock());
+		db.open(blobTestKey, null);
+		assertFalse(blobStore.containsBlob(unreferenced));
+		assertTrue(blobStore.containsBlob(blobTestMessage.getId()));
+		db.close();
+	}
+
+	@After
+	public void deleteBlobTestDirectory() {
+		deleteTestDirectory(blobTestDir);
+	}
+
+	private Database<Connection> openBlobTestDatabase() throws Exception {
+		Database<Connection> db = createDatabase(new TestDatabaseConfig(
+				blobTestDir, Long.MAX_VALUE), new SystemClock());
+		db.open(blobTestKey, null);
+		return db;
+	}
+}
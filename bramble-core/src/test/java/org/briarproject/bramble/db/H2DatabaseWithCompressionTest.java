@@ -0,0 +1,216 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getAuthor;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getLocalAuthor;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.briarproject.bramble.util.StringUtils.toUtf8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the database tests with compression enabled, plus some tests
+ * specific to compression.
+ */
+public class H2DatabaseWithCompressionTest extends JdbcDatabaseTest {
+
+	private final File compressionTestDir = getTestDirectory();
+	private final SecretKey compressionTestKey = getSecretKey();
+	private final Group compressionTestGroup = getGroup(getClientId(), 123);
+
+	public H2DatabaseWithCompressionTest() throws Exception {
+		super();
+	}
+
+	@Override
+	protected JdbcDatabase createDatabase(DatabaseConfig config, Clock clock) {
+		return new H2Database(new CompressionEnabledConfig(config), clock);
+	}
+
+	@Test
+	public void testCompressibleMessageIsStoredCompressed() throws Exception {
+		Message compressible = createMessage(getCompressibleBody());
+		Message incompressible = createMessage(getRandomBytes(1000));
+
+		Database<Connection> db = openCompressionTestDatabase(true);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, compressionTestGroup);
+		db.addMessage(txn, compressible, DELIVERED, true, null);
+		db.addMessage(txn, incompressible, DELIVERED, true, null);
+
+		// Only the compressible message should be stored compressed
+		assertTrue(isStoredCompressed(txn, compressible.getId()));
+		assertFalse(isStoredCompressed(txn, incompressible.getId()));
+
+		// Both messages should be returned unchanged
+		assertArrayEquals(compressible.getRaw(),
+				db.getRawMessage(txn, compressible.getId()));
+		assertArrayEquals(incompressible.getRaw(),
+				db.getRawMessage(txn, incompressible.getId()));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testCompressedMessagesAreSentUnchanged() throws Exception {
+		Message compressible = createMessage(getCompressibleBody());
+
+		Database<Connection> db = openCompressionTestDatabase(true);
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, getLocalAuthor());
+		ContactId c = db.addContact(txn, getAuthor(),
+				db.getLocalAuthors(txn).iterator().next().getId(), true, true);
+		db.addGroup(txn, compressionTestGroup);
+		db.addGroupVisibility(txn, c, compressionTestGroup.getId(), true);
+		db.addMessage(txn, compressible, DELIVERED, true, null);
+
+		Collection<MessageId> ids =
+				db.getMessagesToSend(txn, c, Integer.MAX_VALUE);
+		assertEquals(singletonList(compressible.getId()), ids);
+		Map<MessageId, byte[]> toSend = db.getRawMessages(txn, ids);
+		assertEquals(1, toSend.size());
+		assertArrayEquals(compressible.getRaw(),
+				toSend.get(compressible.getId()));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testCompressedMessagesCanBeReadAfterDisablingCompression()
+			throws Exception {
+		Message compressible = createMessage(getCompressibleBody());
+
+		Database<Connection> db = openCompressionTestDatabase(true);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, compressionTestGroup);
+		db.addMessage(txn, compressible, DELIVERED, true, null);
+		db.commitTransaction(txn);
+		db.close();
+
+		db = openCompressionTestDatabase(false);
+		txn = db.startTransaction();
+		assertTrue(isStoredCompressed(txn, compressible.getId()));
+		assertArrayEquals(compressible.getRaw(),
+				db.getRawMessage(txn, compressible.getId()));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@After
+	public void deleteCompressionTestDirectory() {
+		deleteTestDirectory(compressionTestDir);
+	}
+
+	private Database<Connection> openCompressionTestDatabase(
+			boolean compressionEnabled) throws Exception {
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(
+				compressionTestDir, Long.MAX_VALUE, compressionEnabled),
+				new SystemClock());
+		db.open(compressionTestKey, null);
+		return db;
+	}
+
+	private Message createMessage(byte[] body) {
+		byte[] raw = new byte[MESSAGE_HEADER_LENGTH + body.length];
+		System.arraycopy(body, 0, raw, MESSAGE_HEADER_LENGTH, body.length);
+		return new Message(new MessageId(getRandomId()),
+				compressionTestGroup.getId(), System.currentTimeMillis(), raw);
+	}
+
+	private byte[] getCompressibleBody() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 20; i++)
+			s.append("Forum posts and blog posts are mostly text. ");
+		return toUtf8(s.toString());
+	}
+
+	private boolean isStoredCompressed(Connection txn, MessageId m)
+			throws Exception {
+		PreparedStatement ps = txn.prepareStatement(
+				"SELECT compressed FROM messages WHERE messageId = ?");
+		ps.setBytes(1, m.getBytes());
+		ResultSet rs = ps.executeQuery();
+		assertTrue(rs.next());
+		boolean compressed = rs.getBoolean(1);
+		rs.close();
+		ps.close();
+		return compressed;
+	}
+
+	@NotNullByDefault
+	private static class CompressionEnabledConfig implements DatabaseConfig {
+
+		private final DatabaseConfig delegate;
+
+		private CompressionEnabledConfig(DatabaseConfig delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public File getDatabaseDirectory() {
+			return delegate.getDatabaseDirectory();
+		}
+
+		@Override
+		public File getDatabaseKeyDirectory() {
+			return delegate.getDatabaseKeyDirectory();
+		}
+
+		@Override
+		public long getMaxSize() {
+			return delegate.getMaxSize();
+		}
+
+		@Override
+		public boolean isBlobStoreEnabled() {
+			return delegate.isBlobStoreEnabled();
+		}
+
+		@Override
+		public boolean isCompressionEnabled() {
+			return true;
+		}
+
+		@Override
+		public boolean isStatementProfilingEnabled() {
+			return delegate.isStatementProfilingEnabled();
+		}
+
+		@Override
+		public boolean isReadCacheEnabled() {
+			return delegate.isReadCacheEnabled();
+		}
+	}
+}
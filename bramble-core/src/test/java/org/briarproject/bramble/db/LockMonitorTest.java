@@ -0,0 +1,144 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.db.LockMonitor.LockStats;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LockMonitorTest extends BrambleTestCase {
+
+	private static final String COMPONENT =
+			LockMonitorTest.class.getSimpleName();
+
+	private final Logger logger =
+			Logger.getLogger(LockMonitor.class.getName());
+
+	private Level oldLevel;
+
+	@Before
+	public void setUp() {
+		oldLevel = logger.getLevel();
+	}
+
+	@Test
+	public void testStatsAreSplitByLockTypeAndComponent() {
+		logger.setLevel(FINE);
+		LockMonitor monitor = new LockMonitor("Lock", 1000);
+
+		monitor.waiting(false);
+		monitor.acquired();
+		monitor.released();
+		for (int i = 0; i < 2; i++) {
+			monitor.waiting(true);
+			monitor.acquired();
+			monitor.released();
+		}
+
+		LockStats read = monitor.getStats(false, COMPONENT);
+		assertNotNull(read);
+		assertEquals(1, read.getWaitCount());
+		assertEquals(1, read.getHoldCount());
+		LockStats write = monitor.getStats(true, COMPONENT);
+		assertNotNull(write);
+		assertEquals(2, write.getWaitCount());
+		assertEquals(2, write.getHoldCount());
+		assertEquals(0, write.getSlowHoldCount());
+
+		String report = monitor.getReport();
+		assertTrue(report.contains("Read lock, " + COMPONENT));
+		assertTrue(report.contains("Write lock, " + COMPONENT));
+	}
+
+	@Test
+	public void testComponentsAreNotIdentifiedWithoutFineLogging() {
+		logger.setLevel(INFO);
+		LockMonitor monitor = new LockMonitor("Lock", 1000);
+
+		monitor.waiting(true);
+		monitor.acquired();
+		monitor.released();
+
+		assertNull(monitor.getStats(true, COMPONENT));
+		LockStats write = monitor.getStats(true, "unknown");
+		assertNotNull(write);
+		assertEquals(1, write.getHoldCount());
+	}
+
+	@Test
+	public void testSlowWriteHoldsAreCounted() throws Exception {
+		logger.setLevel(FINE);
+		LockMonitor monitor = new LockMonitor("Lock", 10);
+
+		// A slow read hold is not counted
+		monitor.waiting(false);
+		monitor.acquired();
+		Thread.sleep(20);
+		monitor.released();
+		// A slow write hold is counted
+		monitor.waiting(true);
+		monitor.acquired();
+		Thread.sleep(20);
+		monitor.released();
+		// A fast write hold is not counted
+		monitor.waiting(true);
+		monitor.acquired();
+		monitor.released();
+
+		LockStats read = monitor.getStats(false, COMPONENT);
+		assertNotNull(read);
+		assertEquals(0, read.getSlowHoldCount());
+		LockStats write = monitor.getStats(true, COMPONENT);
+		assertNotNull(write);
+		assertEquals(2, write.getHoldCount());
+		assertEquals(1, write.getSlowHoldCount());
+	}
+
+	@Test
+	public void testHelpersAreSkippedWhenIdentifyingComponent() {
+		StackTraceElement[] stack = {
+				frame(LockMonitor.class.getName()),
+				frame(DatabaseComponentImpl.class.getName()),
+				frame("org.briarproject.bramble.client.ClientHelperImpl"),
+				frame("org.briarproject.briar.forum.ForumManagerImpl$1"),
+				frame("java.util.concurrent.ThreadPoolExecutor")
+		};
+		assertEquals("ForumManagerImpl", LockMonitor.getComponent(stack));
+	}
+
+	@Test
+	public void testGroupCommitsAreNotAttributedToAComponent() {
+		StackTraceElement[] stack = {
+				frame(LockMonitor.class.getName()),
+				frame(DatabaseComponentImpl.class.getName()),
+				frame(GroupCommitterImpl.class.getName()),
+				frame("java.util.concurrent.ThreadPoolExecutor$Worker"),
+				frame("java.lang.Thread")
+		};
+		assertEquals("unknown", LockMonitor.getComponent(stack));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleasingWithoutAcquiringThrowsException() {
+		new LockMonitor("Lock", 1000).released();
+	}
+
+	@After
+	public void tearDown() {
+		logger.setLevel(oldLevel);
+	}
+
+	private StackTraceElement frame(String className) {
+		return new StackTraceElement(className, "method", null, -1);
+	}
+}
@@ -0,0 +1,17 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.system.Clock;
+
+public class MVStoreDatabaseTest extends DatabaseTest<MVStoreTransaction> {
+
+	public MVStoreDatabaseTest() throws Exception {
+		super();
+	}
+
+	@Override
+	protected Database<MVStoreTransaction> createDatabase(
+			DatabaseConfig config, Clock clock) {
+		return new MVStoreDatabase(config, clock);
+	}
+}
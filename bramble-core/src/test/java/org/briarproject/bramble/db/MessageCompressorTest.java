@@ -0,0 +1,75 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_COMPRESSED_PERCENTAGE;
+import static org.briarproject.bramble.db.DatabaseConstants.MIN_COMPRESSIBLE_MESSAGE_LENGTH;
+import static org.briarproject.bramble.db.MessageCompressor.compress;
+import static org.briarproject.bramble.db.MessageCompressor.decompress;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.util.StringUtils.toUtf8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCompressorTest extends BrambleTestCase {
+
+	private final byte[] text;
+
+	public MessageCompressorTest() {
+		StringBuilder s = new StringBuilder();
+		while (s.length() < 10 * MIN_COMPRESSIBLE_MESSAGE_LENGTH)
+			s.append("Forum posts and blog posts are mostly text. ");
+		text = toUtf8(s.toString());
+	}
+
+	@Test
+	public void testTextIsCompressedAndDecompressed() throws Exception {
+		byte[] compressed = compress(text);
+		assertNotNull(compressed);
+		assertTrue(compressed.length * 100L
+				<= text.length * (long) MAX_COMPRESSED_PERCENTAGE);
+		assertArrayEquals(text, decompress(compressed, text.length));
+	}
+
+	@Test
+	public void testShortMessageIsNotCompressed() {
+		byte[] raw = Arrays.copyOf(text, MIN_COMPRESSIBLE_MESSAGE_LENGTH - 1);
+		assertNull(compress(raw));
+	}
+
+	@Test
+	public void testRandomMessageIsNotCompressed() {
+		byte[] raw = getRandomBytes(10 * MIN_COMPRESSIBLE_MESSAGE_LENGTH);
+		assertNull(compress(raw));
+	}
+
+	@Test(expected = DbException.class)
+	public void testTruncatedMessageIsRejected() throws Exception {
+		byte[] compressed = compress(text);
+		assertNotNull(compressed);
+		decompress(Arrays.copyOf(compressed, compressed.length / 2),
+				text.length);
+	}
+
+	@Test(expected = DbException.class)
+	public void testMessageLongerThanRecordedLengthIsRejected()
+			throws Exception {
+		byte[] compressed = compress(text);
+		assertNotNull(compressed);
+		decompress(compressed, text.length - 1);
+	}
+
+	@Test(expected = DbException.class)
+	public void testMessageShorterThanRecordedLengthIsRejected()
+			throws Exception {
+		byte[] compressed = compress(text);
+		assertNotNull(compressed);
+		decompress(compressed, text.length + 1);
+	}
+}
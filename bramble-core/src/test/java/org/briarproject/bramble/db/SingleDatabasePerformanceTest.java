@@ -1,5 +1,6 @@
 package org.briarproject.bramble.db;
 
+import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.system.Clock;
@@ -7,7 +8,6 @@ import org.briarproject.bramble.system.SystemClock;
 import org.briarproject.bramble.test.TestDatabaseConfig;
 
 import java.io.IOException;
-import java.sql.Connection;
 import java.util.List;
 
 import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
@@ -19,14 +19,17 @@ import static org.briarproject.bramble.test.TestUtils.getStandardDeviation;
 public abstract class SingleDatabasePerformanceTest
 		extends DatabasePerformanceTest {
 
-	abstract Database<Connection> createDatabase(DatabaseConfig databaseConfig,
+	// The same key must be used when the database is reopened
+	private final SecretKey databaseKey = getSecretKey();
+
+	abstract Database<?> createDatabase(DatabaseConfig databaseConfig,
 			Clock clock);
 
 	@Override
 	protected void benchmark(String name,
-			BenchmarkTask<Database<Connection>> task) throws Exception {
+			BenchmarkTask<Database<Object>> task) throws Exception {
 		deleteTestDirectory(testDir);
-		Database<Connection> db = openDatabase();
+		Database<Object> db = openDatabase();
 		populateDatabase(db);
 		db.close();
 		db = openDatabase();
@@ -38,10 +41,10 @@ public abstract class SingleDatabasePerformanceTest
 		writeResult(name, result.blocks, firstDuration, result.durations);
 	}
 
-	private Database<Connection> openDatabase() throws DbException {
-		Database<Connection> db = createDatabase(
-				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock());
-		db.open(getSecretKey(), null);
+	private Database<Object> openDatabase() throws DbException {
+		Database<Object> db = asObjectDatabase(createDatabase(
+				new TestDatabaseConfig(testDir, MAX_SIZE), new SystemClock()));
+		db.open(databaseKey, null);
 		return db;
 	}
 
@@ -0,0 +1,109 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StatementCacheTest extends BrambleMockTestCase {
+
+	private final PreparedStatement ps =
+			context.mock(PreparedStatement.class, "ps");
+	private final PreparedStatement ps1 =
+			context.mock(PreparedStatement.class, "ps1");
+	private final PreparedStatement ps2 =
+			context.mock(PreparedStatement.class, "ps2");
+
+	@Test
+	public void testStatementIsReused() throws Exception {
+		context.checking(new Expectations() {{
+			exactly(2).of(ps).isClosed();
+			will(returnValue(false));
+		}});
+
+		StatementCache cache = new StatementCache(2);
+		assertNull(cache.get("foo"));
+		cache.put("foo", ps);
+		assertSame(ps, cache.get("foo"));
+		assertSame(ps, cache.get("foo"));
+	}
+
+	@Test
+	public void testClosedStatementIsDiscarded() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(ps).isClosed();
+			will(returnValue(true));
+		}});
+
+		StatementCache cache = new StatementCache(2);
+		cache.put("foo", ps);
+		// The caller should prepare the statement again
+		assertNull(cache.get("foo"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedStatementIsClosedAndEvicted()
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(ps).isClosed();
+			will(returnValue(false));
+			// The second statement becomes the least recently used
+			oneOf(ps1).close();
+		}});
+
+		StatementCache cache = new StatementCache(2);
+		cache.put("foo", ps);
+		cache.put("bar", ps1);
+		assertSame(ps, cache.get("foo"));
+		cache.put("baz", ps2);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("bar"));
+	}
+
+	@Test
+	public void testResetClearsBatchesAndParameters() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(ps).isClosed();
+			will(returnValue(false));
+			oneOf(ps).clearBatch();
+			oneOf(ps).clearParameters();
+			// A statement that can't be cleared is closed and discarded
+			oneOf(ps1).isClosed();
+			will(returnValue(false));
+			oneOf(ps1).clearBatch();
+			will(throwException(new SQLException()));
+			oneOf(ps1).close();
+			// A statement that has been closed is discarded
+			oneOf(ps2).isClosed();
+			will(returnValue(true));
+		}});
+
+		StatementCache cache = new StatementCache(3);
+		cache.put("foo", ps);
+		cache.put("bar", ps1);
+		cache.put("baz", ps2);
+		cache.reset();
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCloseClosesAllStatements() throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(ps).close();
+			oneOf(ps1).close();
+		}});
+
+		StatementCache cache = new StatementCache(2);
+		cache.put("foo", ps);
+		cache.put("bar", ps1);
+		cache.close();
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,120 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.db.StatementProfiler.StatementStats;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StatementProfilerTest extends BrambleTestCase {
+
+	private static final String CREATE = "CREATE TABLE foo"
+			+ " (id INT NOT NULL, bar INT NOT NULL, PRIMARY KEY (id))";
+	private static final String INSERT =
+			"INSERT INTO foo (id, bar) VALUES (?, ?)";
+	private static final String SELECT = "SELECT bar FROM foo WHERE id = ?";
+	private static final String UPDATE = "UPDATE foo SET bar = ? WHERE id = ?";
+
+	@Test
+	public void testH2() throws Exception {
+		Class.forName("org.h2.Driver");
+		Connection txn = DriverManager.getConnection(
+				"jdbc:h2:mem:profiler", "user", "");
+		testProfiler(txn, "EXPLAIN ");
+	}
+
+	@Test
+	public void testHyperSql() throws Exception {
+		Class.forName("org.hsqldb.jdbc.JDBCDriver");
+		Connection txn = DriverManager.getConnection(
+				"jdbc:hsqldb:mem:profiler", "user", "");
+		testProfiler(txn, "EXPLAIN PLAN FOR ");
+	}
+
+	private void testProfiler(Connection txn, String explainPrefix)
+			throws Exception {
+		StatementProfiler profiler = new StatementProfiler(explainPrefix);
+		try {
+			txn.setAutoCommit(false);
+			profile(profiler, txn, CREATE).executeUpdate();
+
+			// Insert three rows in a batch
+			PreparedStatement ps = profile(profiler, txn, INSERT);
+			for (int i = 0; i < 3; i++) {
+				ps.setInt(1, i);
+				ps.setInt(2, i * 10);
+				ps.addBatch();
+			}
+			assertEquals(3, ps.executeBatch().length);
+
+			// Select one row twice
+			ps = profile(profiler, txn, SELECT);
+			for (int i = 0; i < 2; i++) {
+				ps.setInt(1, 1);
+				ResultSet rs = ps.executeQuery();
+				assertTrue(rs.next());
+				assertEquals(10, rs.getInt(1));
+				assertFalse(rs.next());
+				rs.close();
+			}
+
+			// Update all rows
+			ps = profile(profiler, txn, UPDATE);
+			for (int i = 0; i < 3; i++) {
+				ps.setInt(1, i);
+				ps.setInt(2, i);
+				assertEquals(1, ps.executeUpdate());
+			}
+
+			// Statements that aren't worth explaining have no plan
+			StatementStats create = profiler.getStats(CREATE);
+			assertNotNull(create);
+			assertEquals(1, create.getCalls());
+			assertNull(create.getPlan());
+
+			StatementStats insert = profiler.getStats(INSERT);
+			assertNotNull(insert);
+			assertEquals(1, insert.getCalls());
+			assertEquals(3, insert.getRows());
+			assertPlanMentionsTable(insert.getPlan());
+
+			StatementStats select = profiler.getStats(SELECT);
+			assertNotNull(select);
+			assertEquals(2, select.getCalls());
+			assertEquals(2, select.getRows());
+			assertPlanMentionsTable(select.getPlan());
+
+			StatementStats update = profiler.getStats(UPDATE);
+			assertNotNull(update);
+			assertEquals(3, update.getCalls());
+			assertEquals(3, update.getRows());
+			assertPlanMentionsTable(update.getPlan());
+
+			String report = profiler.getReport();
+			assertTrue(report.startsWith("4 distinct statements"));
+			assertTrue(report.contains(SELECT));
+			assertTrue(report.contains("2 calls, 2 rows"));
+		} finally {
+			txn.close();
+		}
+	}
+
+	private PreparedStatement profile(StatementProfiler profiler,
+			Connection txn, String sql) throws Exception {
+		return profiler.profile(txn, sql, txn.prepareStatement(sql));
+	}
+
+	private void assertPlanMentionsTable(String plan) {
+		assertNotNull(plan);
+		assertTrue(plan, plan.toUpperCase().contains("FOO"));
+	}
+}
@@ -0,0 +1,63 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.MessageId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlobStore} that keeps blobs in memory.
+ */
+@NotNullByDefault
+class TestBlobStore implements BlobStore {
+
+	private final Map<MessageId, byte[]> blobs = new ConcurrentHashMap<>();
+
+	@Nullable
+	private volatile MessageId failingBlob = null;
+
+	@Override
+	public void open(SecretKey key) {
+	}
+
+	@Override
+	public void addBlob(MessageId m, byte[] raw) throws DbException {
+		if (m.equals(failingBlob)) throw new DbException();
+		blobs.put(m, raw);
+	}
+
+	@Override
+	public byte[] getBlob(MessageId m) throws DbException {
+		byte[] raw = blobs.get(m);
+		if (raw == null) throw new DbException();
+		return raw;
+	}
+
+	@Override
+	public Collection<MessageId> getBlobIds() {
+		return new ArrayList<>(blobs.keySet());
+	}
+
+	@Override
+	public void removeBlob(MessageId m) {
+		blobs.remove(m);
+	}
+
+	boolean containsBlob(MessageId m) {
+		return blobs.containsKey(m);
+	}
+
+	/**
+	 * Makes any attempt to add the blob with the given ID fail.
+	 */
+	void setFailingBlob(@Nullable MessageId m) {
+		failingBlob = m;
+	}
+}
@@ -0,0 +1,111 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.CaptureArgumentAction;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TombstonePurgerTest extends BrambleMockTestCase {
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final Executor dbExecutor = context.mock(Executor.class);
+
+	private final Transaction txn = new Transaction(null, false);
+	private final ContactRemovedEvent event =
+			new ContactRemovedEvent(new ContactId(123));
+
+	private final TombstonePurger purger = new TombstonePurger(db, dbExecutor);
+
+	@Test
+	public void testPurgeContinuesUntilNothingIsLeft() throws Exception {
+		AtomicReference<Runnable> purge = new AtomicReference<>();
+
+		context.checking(new Expectations() {{
+			// Only the first removal schedules a purge
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(purge, Runnable.class, 0));
+		}});
+
+		purger.startService();
+		purger.eventOccurred(event);
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			// The first chunk purges some state, so another is scheduled
+			oneOf(db).startTransaction(false);
+			will(returnValue(txn));
+			oneOf(db).purgeRemovedContactsAndGroups(txn);
+			will(returnValue(true));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(purge, Runnable.class, 0));
+		}});
+
+		purge.get().run();
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			// The second chunk finds nothing left to purge
+			oneOf(db).startTransaction(false);
+			will(returnValue(txn));
+			oneOf(db).purgeRemovedContactsAndGroups(txn);
+			will(returnValue(false));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+
+		purge.get().run();
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			// The next removal schedules a new purge
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+		}});
+
+		purger.eventOccurred(event);
+	}
+
+	@Test
+	public void testRemovalDuringChunkSchedulesAnotherChunk()
+			throws Exception {
+		AtomicReference<Runnable> purge = new AtomicReference<>();
+
+		context.checking(new Expectations() {{
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new CaptureArgumentAction<>(purge, Runnable.class, 0));
+		}});
+
+		purger.eventOccurred(event);
+		context.assertIsSatisfied();
+
+		context.checking(new Expectations() {{
+			oneOf(db).startTransaction(false);
+			will(returnValue(txn));
+			// Another removal is committed while the chunk runs
+			oneOf(db).purgeRemovedContactsAndGroups(txn);
+			will(new CustomAction("remove contact") {
+				@Override
+				public Object invoke(Invocation invocation) {
+					purger.eventOccurred(event);
+					return false;
+				}
+			});
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+			// The chunk didn't see the removal, so another is scheduled
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+		}});
+
+		purge.get().run();
+	}
+}
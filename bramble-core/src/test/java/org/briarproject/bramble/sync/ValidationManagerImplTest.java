@@ -51,6 +51,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			context.mock(IncomingMessageHook.class);
 
 	private final Executor dbExecutor = new ImmediateExecutor();
+	private final Executor dbReadExecutor = new ImmediateExecutor();
 	private final Executor validationExecutor = new ImmediateExecutor();
 	private final ClientId clientId = getClientId();
 	private final int majorVersion = 123;
@@ -84,35 +85,35 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Before
 	public void setUp() {
-		vm = new ValidationManagerImpl(db, dbExecutor, validationExecutor,
-				messageFactory);
+		vm = new ValidationManagerImpl(db, dbExecutor, dbReadExecutor,
+				validationExecutor, messageFactory);
 		vm.registerMessageValidator(clientId, majorVersion, validator);
 		vm.registerIncomingMessageHook(clientId, majorVersion, hook);
 	}
 
 	@Test
 	public void testStartAndStop() throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
+		Transaction txn2 = new Transaction(null, true, true);
 
 		context.checking(new Expectations() {{
 			// validateOutstandingMessages()
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// deliverOutstandingMessages()
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getPendingMessages(txn1);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn1);
 			oneOf(db).endTransaction(txn1);
 			// shareOutstandingMessages()
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn2));
 			oneOf(db).getMessagesToShare(txn2);
 			will(returnValue(Collections.emptyList()));
@@ -126,24 +127,24 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testMessagesAreValidatedAtStartup() throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
 		Transaction txn2 = new Transaction(null, false);
-		Transaction txn3 = new Transaction(null, true);
+		Transaction txn3 = new Transaction(null, true, true);
 		Transaction txn4 = new Transaction(null, false);
-		Transaction txn5 = new Transaction(null, true);
-		Transaction txn6 = new Transaction(null, true);
+		Transaction txn5 = new Transaction(null, true, true);
+		Transaction txn6 = new Transaction(null, true, true);
 
 		context.checking(new Expectations() {{
 			// Get messages to validate
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Arrays.asList(messageId, messageId1)));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// Load the first raw message and group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getRawMessage(txn1, messageId);
 			will(returnValue(raw));
@@ -170,7 +171,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).commitTransaction(txn2);
 			oneOf(db).endTransaction(txn2);
 			// Load the second raw message and group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn3));
 			oneOf(db).getRawMessage(txn3, messageId1);
 			will(returnValue(raw));
@@ -197,14 +198,14 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).commitTransaction(txn4);
 			oneOf(db).endTransaction(txn4);
 			// Get pending messages to deliver
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn5));
 			oneOf(db).getPendingMessages(txn5);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn5);
 			oneOf(db).endTransaction(txn5);
 			// Get messages to share
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn6));
 			oneOf(db).getMessagesToShare(txn6);
 			will(returnValue(Collections.emptyList()));
@@ -217,22 +218,22 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testPendingMessagesAreDeliveredAtStartup() throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
 		Transaction txn2 = new Transaction(null, false);
 		Transaction txn3 = new Transaction(null, false);
-		Transaction txn4 = new Transaction(null, true);
+		Transaction txn4 = new Transaction(null, true, true);
 
 		context.checking(new Expectations() {{
 			// Get messages to validate
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// Get pending messages to deliver
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getPendingMessages(txn1);
 			will(returnValue(Collections.singletonList(messageId)));
@@ -290,7 +291,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).endTransaction(txn3);
 
 			// Get messages to share
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn4));
 			oneOf(db).getMessagesToShare(txn4);
 			will(returnValue(Collections.emptyList()));
@@ -303,22 +304,22 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testMessagesAreSharedAtStartup() throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
+		Transaction txn2 = new Transaction(null, true, true);
 		Transaction txn3 = new Transaction(null, false);
 		Transaction txn4 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// No messages to validate
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// No pending messages to deliver
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getPendingMessages(txn1);
 			will(returnValue(Collections.emptyList()));
@@ -326,7 +327,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).endTransaction(txn1);
 
 			// Get messages to share
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn2));
 			oneOf(db).getMessagesToShare(txn2);
 			will(returnValue(Collections.singletonList(messageId)));
@@ -355,13 +356,13 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testIncomingMessagesAreShared() throws Exception {
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -405,30 +406,30 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testValidationContinuesAfterNoSuchMessageException()
 			throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
+		Transaction txn2 = new Transaction(null, true, true);
 		Transaction txn3 = new Transaction(null, false);
-		Transaction txn4 = new Transaction(null, true);
-		Transaction txn5 = new Transaction(null, true);
+		Transaction txn4 = new Transaction(null, true, true);
+		Transaction txn5 = new Transaction(null, true, true);
 
 		context.checking(new Expectations() {{
 			// Get messages to validate
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Arrays.asList(messageId, messageId1)));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// Load the first raw message - *gasp* it's gone!
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getRawMessage(txn1, messageId);
 			will(throwException(new NoSuchMessageException()));
 			never(db).commitTransaction(txn1);
 			oneOf(db).endTransaction(txn1);
 			// Load the second raw message and group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn2));
 			oneOf(db).getRawMessage(txn2, messageId1);
 			will(returnValue(raw));
@@ -455,14 +456,14 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).commitTransaction(txn3);
 			oneOf(db).endTransaction(txn3);
 			// Get pending messages to deliver
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn4));
 			oneOf(db).getPendingMessages(txn4);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn4);
 			oneOf(db).endTransaction(txn4);
 			// Get messages to share
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn5));
 			oneOf(db).getMessagesToShare(txn5);
 			will(returnValue(Collections.emptyList()));
@@ -476,23 +477,23 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testValidationContinuesAfterNoSuchGroupException()
 			throws Exception {
-		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, true, true);
+		Transaction txn2 = new Transaction(null, true, true);
 		Transaction txn3 = new Transaction(null, false);
-		Transaction txn4 = new Transaction(null, true);
-		Transaction txn5 = new Transaction(null, true);
+		Transaction txn4 = new Transaction(null, true, true);
+		Transaction txn5 = new Transaction(null, true, true);
 
 		context.checking(new Expectations() {{
 			// Get messages to validate
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getMessagesToValidate(txn);
 			will(returnValue(Arrays.asList(messageId, messageId1)));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 			// Load the first raw message
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn1));
 			oneOf(db).getRawMessage(txn1, messageId);
 			will(returnValue(raw));
@@ -504,7 +505,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			never(db).commitTransaction(txn1);
 			oneOf(db).endTransaction(txn1);
 			// Load the second raw message and group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn2));
 			oneOf(db).getRawMessage(txn2, messageId1);
 			will(returnValue(raw));
@@ -531,14 +532,14 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).commitTransaction(txn3);
 			oneOf(db).endTransaction(txn3);
 			// Get pending messages to deliver
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn4));
 			oneOf(db).getPendingMessages(txn4);
 			will(returnValue(Collections.emptyList()));
 			oneOf(db).commitTransaction(txn4);
 			oneOf(db).endTransaction(txn4);
 			// Get messages to share
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn5));
 			oneOf(db).getMessagesToShare(txn5);
 			will(returnValue(Collections.emptyList()));
@@ -551,12 +552,12 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testNonLocalMessagesAreValidatedWhenAdded() throws Exception {
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -591,12 +592,12 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testMessagesWithUndeliveredDependenciesArePending()
 			throws Exception {
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -624,12 +625,12 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testMessagesWithDeliveredDependenciesGetDelivered()
 			throws Exception {
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -663,13 +664,13 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testMessagesWithInvalidDependenciesAreInvalid()
 			throws Exception {
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -721,7 +722,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		Map<MessageId, State> twoDependents = new LinkedHashMap<>();
 		twoDependents.put(messageId1, PENDING);
 		twoDependents.put(messageId2, PENDING);
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
 		Transaction txn3 = new Transaction(null, false);
@@ -731,7 +732,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -831,7 +832,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		Map<MessageId, State> twoDependencies = new LinkedHashMap<>();
 		twoDependencies.put(messageId1, DELIVERED);
 		twoDependencies.put(messageId2, DELIVERED);
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
 		Transaction txn3 = new Transaction(null, false);
@@ -841,7 +842,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -979,13 +980,13 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		Map<MessageId, State> twoDependencies = new LinkedHashMap<>();
 		twoDependencies.put(messageId, DELIVERED);
 		twoDependencies.put(messageId2, UNKNOWN);
-		Transaction txn = new Transaction(null, true);
+		Transaction txn = new Transaction(null, true, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
 			// Load the group
-			oneOf(db).startTransaction(true);
+			oneOf(db).startSnapshotTransaction();
 			will(returnValue(txn));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
@@ -10,11 +10,18 @@ public class TestDatabaseConfig implements DatabaseConfig {
 
 	private final File dbDir, keyDir;
 	private final long maxSize;
+	private final boolean compressionEnabled;
 
 	public TestDatabaseConfig(File testDir, long maxSize) {
+		this(testDir, maxSize, false);
+	}
+
+	public TestDatabaseConfig(File testDir, long maxSize,
+			boolean compressionEnabled) {
 		dbDir = new File(testDir, "db");
 		keyDir = new File(testDir, "key");
 		this.maxSize = maxSize;
+		this.compressionEnabled = compressionEnabled;
 	}
 
 	@Override
@@ -31,4 +38,24 @@ public class TestDatabaseConfig implements DatabaseConfig {
 	public long getMaxSize() {
 		return maxSize;
 	}
+
+	@Override
+	public boolean isBlobStoreEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	@Override
+	public boolean isStatementProfilingEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isReadCacheEnabled() {
+		return true;
+	}
 }
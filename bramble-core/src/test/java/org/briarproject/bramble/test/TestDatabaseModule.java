@@ -2,6 +2,7 @@ package org.briarproject.bramble.test;
 
 import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 
 import java.io.File;
 import java.util.concurrent.Executor;
@@ -35,4 +36,11 @@ public class TestDatabaseModule {
 	Executor provideDatabaseExecutor() {
 		return new ImmediateExecutor();
 	}
+
+	@Provides
+	@Singleton
+	@DatabaseReadExecutor
+	Executor provideDatabaseReadExecutor() {
+		return new ImmediateExecutor();
+	}
 }
@@ -133,7 +133,7 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGetStreamContextForContact() throws Exception {
 		context.checking(new Expectations() {{
-			oneOf(db).startTransaction(false);
+			oneOf(db).startTransportKeyTransaction(false);
 			will(returnValue(txn));
 			oneOf(transportKeyManager).getStreamContext(txn, contactId);
 			will(returnValue(streamContext));
@@ -155,7 +155,7 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGetStreamContextForTag() throws Exception {
 		context.checking(new Expectations() {{
-			oneOf(db).startTransaction(false);
+			oneOf(db).startTransportKeyTransaction(false);
 			will(returnValue(txn));
 			oneOf(transportKeyManager).getStreamContext(txn, tag);
 			will(returnValue(streamContext));
@@ -186,7 +186,7 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 				new ContactStatusChangedEvent(inactiveContactId, true);
 
 		context.checking(new Expectations() {{
-			oneOf(db).startTransaction(false);
+			oneOf(db).startTransportKeyTransaction(false);
 			will(returnValue(txn));
 			oneOf(transportKeyManager).getStreamContext(txn, inactiveContactId);
 			will(returnValue(streamContext));
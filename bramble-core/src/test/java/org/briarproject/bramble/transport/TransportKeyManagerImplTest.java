@@ -342,7 +342,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(dbExecutor).execute(with(any(Runnable.class)));
 			will(new RunAction());
 			// Start a transaction for key rotation
-			oneOf(db).startTransaction(false);
+			oneOf(db).startTransportKeyTransaction(false);
 			will(returnValue(txn1));
 			// Get the current time (the start of rotation period 1001)
 			oneOf(clock).currentTimeMillis();
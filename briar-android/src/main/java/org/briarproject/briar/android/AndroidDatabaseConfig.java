@@ -29,4 +29,24 @@ class AndroidDatabaseConfig implements DatabaseConfig {
 	public long getMaxSize() {
 		return Long.MAX_VALUE;
 	}
+
+	@Override
+	public boolean isBlobStoreEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompressionEnabled() {
+		return true;
+	}
+
+	@Override
+	public boolean isStatementProfilingEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isReadCacheEnabled() {
+		return true;
+	}
 }
@@ -10,6 +10,7 @@ import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.MessageId;
 
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -66,6 +67,12 @@ public interface BlogManager {
 	 */
 	void addLocalPost(Transaction txn, BlogPost p) throws DbException;
 
+	/**
+	 * Stores the given local blog posts in a single batch.
+	 */
+	void addLocalPosts(Transaction txn, Collection<BlogPost> posts)
+			throws DbException;
+
 	/**
 	 * Adds a comment to an existing blog post or reblogs it.
 	 */
@@ -113,6 +120,16 @@ public interface BlogManager {
 	 */
 	Collection<BlogPostHeader> getPostHeaders(GroupId g) throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of the latest posts in
+	 * the given blog that are older than the given post, or of the latest
+	 * posts if the given post is null. The headers are returned in
+	 * descending order of timestamp, so the next page of older posts can be
+	 * loaded by passing the last header.
+	 */
+	List<BlogPostHeader> getPostHeaders(GroupId g,
+			@Nullable BlogPostHeader before, int limit) throws DbException;
+
 	/**
 	 * Marks a blog post as read or unread.
 	 */
@@ -3,10 +3,14 @@ package org.briarproject.briar.api.client;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
 
+import java.util.Collection;
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 @NotNullByDefault
@@ -24,6 +28,22 @@ public interface MessageTracker {
 	 **/
 	GroupCount getGroupCount(Transaction txn, GroupId g) throws DbException;
 
+	/**
+	 * Gets the group counts for all groups belonging to the given client in
+	 * which messages have been tracked, using a single query.
+	 */
+	Map<GroupId, GroupCount> getGroupCounts(Transaction txn, ClientId c,
+			int majorVersion) throws DbException;
+
+	/**
+	 * Moves the group counts that were stored as group metadata by older
+	 * versions into the database, for all groups belonging to the given
+	 * client. This only does any work the first time it's called for each
+	 * client, so it should be called when the client starts.
+	 */
+	void migrateGroupCounts(Transaction txn, ClientId c, int majorVersion)
+			throws DbException;
+
 	/**
 	 * Updates the group count for the given incoming message.
 	 */
@@ -40,6 +60,14 @@ public interface MessageTracker {
 	void trackMessage(Transaction txn, GroupId g, long timestamp, boolean read)
 			throws DbException;
 
+	/**
+	 * Updates the group count for the given messages, which are about to be
+	 * deleted. Messages that were not tracked are ignored. This method must
+	 * be called before the messages' metadata is deleted.
+	 */
+	void untrackMessages(Transaction txn, GroupId g,
+			Collection<MessageId> messages) throws DbException;
+
 	/**
 	 *  Loads the stored message id for the respective group id or returns null
 	 *  if none is available.
@@ -58,6 +86,13 @@ public interface MessageTracker {
 	 */
 	void setReadFlag(GroupId g, MessageId m, boolean read) throws DbException;
 
+	/**
+	 * Marks a message as read or unread and updates the group count within
+	 * the given {@link Transaction}.
+	 */
+	void setReadFlag(Transaction txn, GroupId g, MessageId m, boolean read)
+			throws DbException;
+
 	class GroupCount {
 
 		private final int msgCount, unreadCount;
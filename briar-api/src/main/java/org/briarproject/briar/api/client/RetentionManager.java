@@ -0,0 +1,59 @@
+package org.briarproject.briar.api.client;
+
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.GroupId;
+
+import javax.annotation.Nullable;
+
+/**
+ * Deletes old messages according to per-client and per-group
+ * {@link RetentionPolicy retention policies}. Policies are enforced
+ * periodically in the background. A message is only deleted if all of its
+ * delivered dependents are deleted too, and the group counts kept by the
+ * {@link MessageTracker} are updated accordingly.
+ */
+@NotNullByDefault
+public interface RetentionManager {
+
+	/**
+	 * Sets the retention policy for all groups belonging to the given
+	 * client, except groups that have their own policy.
+	 */
+	void setRetentionPolicy(Transaction txn, ClientId c, int majorVersion,
+			RetentionPolicy p) throws DbException;
+
+	/**
+	 * Returns the retention policy for the given client, or
+	 * {@link RetentionPolicy#UNLIMITED} if no policy has been set.
+	 */
+	RetentionPolicy getRetentionPolicy(Transaction txn, ClientId c,
+			int majorVersion) throws DbException;
+
+	/**
+	 * Sets the retention policy for the given group, which overrides the
+	 * policy of the group's client. If the policy is null, the group's own
+	 * policy is removed.
+	 */
+	void setRetentionPolicy(Transaction txn, GroupId g,
+			@Nullable RetentionPolicy p) throws DbException;
+
+	/**
+	 * Returns the given group's own retention policy, or null if the group
+	 * does not have its own policy.
+	 */
+	@Nullable
+	RetentionPolicy getRetentionPolicy(Transaction txn, GroupId g)
+			throws DbException;
+
+	/**
+	 * Deletes any messages in the given group that are not allowed by the
+	 * group's retention policy. The messages are deleted in bounded chunks,
+	 * each in its own transaction.
+	 *
+	 * @return the number of messages that were deleted.
+	 */
+	int expireMessages(GroupId g) throws DbException;
+}
@@ -0,0 +1,65 @@
+package org.briarproject.briar.api.client;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Limits the age and number of messages that are kept in a group.
+ */
+@Immutable
+@NotNullByDefault
+public class RetentionPolicy {
+
+	public static final long UNLIMITED_AGE = Long.MAX_VALUE;
+
+	public static final int UNLIMITED_COUNT = Integer.MAX_VALUE;
+
+	/**
+	 * A policy that keeps all messages.
+	 */
+	public static final RetentionPolicy UNLIMITED =
+			new RetentionPolicy(UNLIMITED_AGE, UNLIMITED_COUNT);
+
+	private final long maxAge;
+	private final int maxCount;
+
+	/**
+	 * @param maxAge The maximum age of messages in milliseconds, or
+	 * {@link #UNLIMITED_AGE}
+	 * @param maxCount The maximum number of messages, or
+	 * {@link #UNLIMITED_COUNT}
+	 */
+	public RetentionPolicy(long maxAge, int maxCount) {
+		if (maxAge < 0 || maxCount < 0) throw new IllegalArgumentException();
+		this.maxAge = maxAge;
+		this.maxCount = maxCount;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	public boolean isUnlimited() {
+		return maxAge == UNLIMITED_AGE && maxCount == UNLIMITED_COUNT;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object o) {
+		if (o instanceof RetentionPolicy) {
+			RetentionPolicy p = (RetentionPolicy) o;
+			return maxAge == p.maxAge && maxCount == p.maxCount;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (maxAge ^ (maxAge >>> 32)) ^ maxCount;
+	}
+}
@@ -59,6 +59,13 @@ public interface ForumManager {
 	 */
 	ForumPostHeader addLocalPost(ForumPost p) throws DbException;
 
+	/**
+	 * Stores the given local forum posts within the given
+	 * {@link Transaction}, using batched statements.
+	 */
+	void addLocalPosts(Transaction txn, Collection<ForumPost> posts)
+			throws DbException;
+
 	/**
 	 * Returns the forum with the given ID.
 	 */
@@ -80,7 +87,8 @@ public interface ForumManager {
 	String getPostBody(MessageId m) throws DbException;
 
 	/**
-	 * Returns the headers of all posts in the given forum.
+	 * Returns the headers of all posts in the given forum, in ascending
+	 * order of timestamp.
 	 */
 	Collection<ForumPostHeader> getPostHeaders(GroupId g) throws DbException;
 
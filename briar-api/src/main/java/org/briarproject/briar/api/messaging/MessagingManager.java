@@ -9,6 +9,9 @@ import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.briar.api.messaging.ConversationManager.ConversationClient;
 
 import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nullable;
 
 @NotNullByDefault
 public interface MessagingManager extends ConversationClient {
@@ -49,6 +52,17 @@ public interface MessagingManager extends ConversationClient {
 	Collection<PrivateMessageHeader> getMessageHeaders(ContactId c)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of the latest messages
+	 * in the given private conversation that are older than the given
+	 * message, or of the latest messages if the given message is null.
+	 * The headers are returned in ascending order of timestamp, so the
+	 * next page of older messages can be loaded by passing the first header.
+	 */
+	List<PrivateMessageHeader> getMessageHeaders(ContactId c,
+			@Nullable PrivateMessageHeader before, int limit)
+			throws DbException;
+
 	/**
 	 * Returns the body of the private message with the given ID.
 	 */
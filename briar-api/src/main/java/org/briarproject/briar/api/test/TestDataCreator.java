@@ -6,7 +6,7 @@ import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 public interface TestDataCreator {
 
 	/**
-	 * Create fake test data on the DatabaseExecutor
+	 * Create fake test data on the IoExecutor
 	 *
 	 * @param numContacts Number of contacts to create. Must be >= 1
 	 * @param numPrivateMsgs Number of private messages to create for each
@@ -18,4 +18,28 @@ public interface TestDataCreator {
 	void createTestData(int numContacts, int numPrivateMsgs, int numBlogPosts,
 			int numForums, int numForumPosts);
 
+	/**
+	 * Create fake test data on the IoExecutor, using the given seed to
+	 * choose names, texts, thread structures and read flags. Messages are
+	 * signed in parallel on the CryptoExecutor and stored in batches, so
+	 * this is suitable for creating large databases that can be copied and
+	 * reused as fixtures.
+	 * <p/>
+	 * The seed only makes these choices repeatable. It doesn't make the
+	 * database reproducible: signature key pairs are generated randomly and
+	 * timestamps are taken from the clock, so author and message IDs differ
+	 * between runs with the same seed. To run benchmarks against the same
+	 * data, create the database once and copy it.
+	 *
+	 * @param numContacts Number of contacts to create. Must be >= 1
+	 * @param numPrivateMsgs Number of private messages to create for each
+	 * contact.
+	 * @param numBlogPosts Number of blog posts to create.
+	 * @param numForums Number of forums to create.
+	 * @param numForumPosts Number of forum posts to create per forum.
+	 * @param seed The seed for the pseudo-random choices.
+	 */
+	void createTestData(int numContacts, int numPrivateMsgs, int numBlogPosts,
+			int numForums, int numForumPosts, long seed);
+
 }
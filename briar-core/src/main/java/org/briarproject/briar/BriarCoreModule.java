@@ -31,6 +31,7 @@ public class BriarCoreModule {
 
 	public static void initEagerSingletons(BriarCoreEagerSingletons c) {
 		c.inject(new BlogModule.EagerSingletons());
+		c.inject(new BriarClientModule.EagerSingletons());
 		c.inject(new FeedModule.EagerSingletons());
 		c.inject(new ForumModule.EagerSingletons());
 		c.inject(new GroupInvitationModule.EagerSingletons());
@@ -1,6 +1,7 @@
 package org.briarproject.briar.blog;
 
 import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.client.BdfMetadataVisitor;
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.contact.Contact;
 import org.briarproject.bramble.api.contact.ContactManager.ContactHook;
@@ -10,6 +11,7 @@ import org.briarproject.bramble.api.data.BdfList;
 import org.briarproject.bramble.api.data.MetadataParser;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.MetadataRange;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.Author.Status;
@@ -39,16 +41,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
 import static org.briarproject.briar.api.blog.BlogConstants.KEY_AUTHOR;
 import static org.briarproject.briar.api.blog.BlogConstants.KEY_COMMENT;
 import static org.briarproject.briar.api.blog.BlogConstants.KEY_ORIGINAL_MSG_ID;
@@ -87,6 +88,11 @@ class BlogManagerImpl extends BdfIncomingMessageHook implements BlogManager,
 
 	@Override
 	public void createLocalState(Transaction txn) throws DbException {
+		// Index the metadata keys used for building post headers
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				KEY_TYPE, LONG);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				KEY_TIMESTAMP, LONG);
 		// Create our personal blog if necessary
 		LocalAuthor a = identityManager.getLocalAuthor(txn);
 		Blog b = blogFactory.createBlog(a);
@@ -224,12 +230,7 @@ class BlogManagerImpl extends BdfIncomingMessageHook implements BlogManager,
 			GroupId groupId = p.getMessage().getGroupId();
 			Blog b = getBlog(txn, groupId);
 
-			BdfDictionary meta = new BdfDictionary();
-			meta.put(KEY_TYPE, POST.getInt());
-			meta.put(KEY_TIMESTAMP, p.getMessage().getTimestamp());
-			meta.put(KEY_AUTHOR, clientHelper.toList(p.getAuthor()));
-			meta.put(KEY_READ, true);
-			meta.put(KEY_RSS_FEED, b.isRssFeed());
+			BdfDictionary meta = getPostMetadata(b, p);
 			clientHelper.addLocalMessage(txn, p.getMessage(), meta, true);
 
 			// broadcast event about new post
@@ -243,6 +244,49 @@ class BlogManagerImpl extends BdfIncomingMessageHook implements BlogManager,
 		}
 	}
 
+	@Override
+	public void addLocalPosts(Transaction txn, Collection<BlogPost> posts)
+			throws DbException {
+		try {
+			// Look up each blog once, however many posts it has
+			Map<GroupId, Blog> blogs = new HashMap<>();
+			List<Message> messages = new ArrayList<>(posts.size());
+			Map<MessageId, BdfDictionary> metadata = new HashMap<>();
+			for (BlogPost p : posts) {
+				GroupId groupId = p.getMessage().getGroupId();
+				Blog b = blogs.get(groupId);
+				if (b == null) {
+					b = getBlog(txn, groupId);
+					blogs.put(groupId, b);
+				}
+				messages.add(p.getMessage());
+				metadata.put(p.getMessage().getId(), getPostMetadata(b, p));
+			}
+			clientHelper.addLocalMessages(txn, messages, metadata, true);
+
+			// broadcast events about new posts
+			for (Message m : messages) {
+				GroupId groupId = m.getGroupId();
+				BdfDictionary meta = metadata.get(m.getId());
+				BlogPostHeader h = getPostHeaderFromMetadata(txn, groupId,
+						m.getId(), meta);
+				txn.attach(new BlogPostAddedEvent(groupId, h, true));
+			}
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+	}
+
+	private BdfDictionary getPostMetadata(Blog b, BlogPost p) {
+		BdfDictionary meta = new BdfDictionary();
+		meta.put(KEY_TYPE, POST.getInt());
+		meta.put(KEY_TIMESTAMP, p.getMessage().getTimestamp());
+		meta.put(KEY_AUTHOR, clientHelper.toList(p.getAuthor()));
+		meta.put(KEY_READ, true);
+		meta.put(KEY_RSS_FEED, b.isRssFeed());
+		return meta;
+	}
+
 	@Override
 	public void addLocalComment(LocalAuthor author, GroupId groupId,
 			@Nullable String comment, BlogPostHeader parentHeader)
@@ -495,34 +539,62 @@ class BlogManagerImpl extends BdfIncomingMessageHook implements BlogManager,
 		Collection<BlogPostHeader> headers = new ArrayList<>();
 		Transaction txn = db.startTransaction(true);
 		try {
-			Map<MessageId, BdfDictionary> metadata1 =
-					clientHelper.getMessageMetadataAsDictionary(txn, g, query1);
-			Map<MessageId, BdfDictionary> metadata2 =
-					clientHelper.getMessageMetadataAsDictionary(txn, g, query2);
-			Map<MessageId, BdfDictionary> metadata =
-					new HashMap<>(metadata1.size() + metadata2.size());
-			metadata.putAll(metadata1);
-			metadata.putAll(metadata2);
-			// get all authors we need to get the status for
-			Set<AuthorId> authors = new HashSet<>();
-			for (Entry<MessageId, BdfDictionary> entry : metadata.entrySet()) {
-				BdfList authorList = entry.getValue().getList(KEY_AUTHOR);
-				Author a = clientHelper.parseAndValidateAuthor(authorList);
-				authors.add(a.getId());
-			}
-			// get statuses for all authors
+			// get the status of each author the first time it's needed
 			Map<AuthorId, Status> authorStatuses = new HashMap<>();
-			for (AuthorId authorId : authors) {
-				authorStatuses.put(authorId,
-						identityManager.getAuthorStatus(txn, authorId));
-			}
-			// get post headers
-			for (Entry<MessageId, BdfDictionary> entry : metadata.entrySet()) {
-				BdfDictionary meta = entry.getValue();
-				BlogPostHeader h =
-						getPostHeaderFromMetadata(txn, g, entry.getKey(), meta,
-								authorStatuses);
-				headers.add(h);
+			// get post headers one message at a time
+			BdfMetadataVisitor visitor = (m, meta) -> {
+				BdfList authorList = meta.getList(KEY_AUTHOR);
+				Author a = clientHelper.parseAndValidateAuthor(authorList);
+				if (!authorStatuses.containsKey(a.getId())) {
+					authorStatuses.put(a.getId(),
+							identityManager.getAuthorStatus(txn, a.getId()));
+				}
+				headers.add(getPostHeaderFromMetadata(txn, g, m, meta,
+						authorStatuses));
+			};
+			clientHelper.visitMessageMetadataAsDictionary(txn, g, query1,
+					visitor);
+			clientHelper.visitMessageMetadataAsDictionary(txn, g, query2,
+					visitor);
+			db.commitTransaction(txn);
+			return headers;
+		} catch (FormatException e) {
+			throw new DbException(e);
+		} finally {
+			db.endTransaction(txn);
+		}
+	}
+
+	@Override
+	public List<BlogPostHeader> getPostHeaders(GroupId g,
+			@Nullable BlogPostHeader before, int limit) throws DbException {
+		// Select pages newest first from the timestamp index, skipping any
+		// wrapped posts and comments, until enough posts have been found
+		MetadataRange range = new MetadataRange(KEY_TIMESTAMP, true, limit);
+		if (before != null)
+			range = range.after(before.getTimestamp(), before.getId());
+		List<BlogPostHeader> headers = new ArrayList<>();
+		Transaction txn = db.startTransaction(true);
+		try {
+			while (headers.size() < limit) {
+				Map<MessageId, BdfDictionary> page =
+						clientHelper.getMessageMetadataAsDictionary(txn, g,
+								new BdfDictionary(), range);
+				MessageId last = null;
+				long lastTimestamp = 0;
+				for (Entry<MessageId, BdfDictionary> e : page.entrySet()) {
+					BdfDictionary meta = e.getValue();
+					last = e.getKey();
+					lastTimestamp = meta.getLong(KEY_TIMESTAMP);
+					MessageType type = getMessageType(meta);
+					if ((type == POST || type == COMMENT)
+							&& headers.size() < limit) {
+						headers.add(getPostHeaderFromMetadata(txn, g, last,
+								meta));
+					}
+				}
+				if (last == null || page.size() < range.getLimit()) break;
+				range = range.after(lastTimestamp, last);
 			}
 			db.commitTransaction(txn);
 			return headers;
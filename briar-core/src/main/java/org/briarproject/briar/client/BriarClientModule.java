@@ -1,6 +1,11 @@
 package org.briarproject.briar.client;
 
+import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.briar.api.client.MessageTracker;
+import org.briarproject.briar.api.client.RetentionManager;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
@@ -8,8 +13,22 @@ import dagger.Provides;
 @Module
 public class BriarClientModule {
 
+	public static class EagerSingletons {
+		@Inject
+		RetentionManager retentionManager;
+	}
+
 	@Provides
 	MessageTracker provideMessageTracker(MessageTrackerImpl messageTracker) {
 		return messageTracker;
 	}
+
+	@Provides
+	@Singleton
+	RetentionManager provideRetentionManager(
+			RetentionManagerImpl retentionManager,
+			LifecycleManager lifecycleManager) {
+		lifecycleManager.registerService(retentionManager);
+		return retentionManager;
+	}
 }
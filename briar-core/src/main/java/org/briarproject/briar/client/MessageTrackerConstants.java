@@ -3,10 +3,19 @@ package org.briarproject.briar.client;
 public interface MessageTrackerConstants {
 
 	String GROUP_KEY_STORED_MESSAGE_ID = "storedMessageId";
+
+	// Group metadata keys that held the group counts before they were moved
+	// into the database's own table
 	String GROUP_KEY_MSG_COUNT = "messageCount";
 	String GROUP_KEY_UNREAD_COUNT = "unreadCount";
 	String GROUP_KEY_LATEST_MSG = "latestMessageTime";
 
 	String MSG_KEY_READ = "read";
 
+	/**
+	 * The namespace of the settings that record which clients' group counts
+	 * have been migrated.
+	 */
+	String SETTINGS_NAMESPACE = "message-tracker";
+
 }
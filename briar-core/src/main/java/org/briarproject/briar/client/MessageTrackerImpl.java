@@ -6,27 +6,43 @@ import org.briarproject.bramble.api.data.BdfDictionary;
 import org.briarproject.bramble.api.data.BdfEntry;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.GroupCounts;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.briar.api.client.MessageTracker;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.inject.Inject;
 
+import static java.util.logging.Level.INFO;
+import static org.briarproject.bramble.api.data.BdfDictionary.NULL_VALUE;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_LATEST_MSG;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_MSG_COUNT;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_STORED_MESSAGE_ID;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_UNREAD_COUNT;
 import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ;
+import static org.briarproject.briar.client.MessageTrackerConstants.SETTINGS_NAMESPACE;
 
 @Immutable
 @NotNullByDefault
 class MessageTrackerImpl implements MessageTracker {
 
+	private static final Logger LOG =
+			Logger.getLogger(MessageTrackerImpl.class.getName());
+
 	private final DatabaseComponent db;
 	private final ClientHelper clientHelper;
 
@@ -36,6 +52,55 @@ class MessageTrackerImpl implements MessageTracker {
 		this.clientHelper = clientHelper;
 	}
 
+	@Override
+	public void migrateGroupCounts(Transaction txn, ClientId c,
+			int majorVersion) throws DbException {
+		String key = c.getString() + "/" + majorVersion;
+		Settings s = db.getSettings(txn, SETTINGS_NAMESPACE);
+		if (s.getBoolean(key, false)) return;
+		int migrated = 0;
+		try {
+			for (Group g : db.getGroups(txn, c, majorVersion)) {
+				GroupId id = g.getId();
+				BdfDictionary meta =
+						clientHelper.getGroupMetadataAsDictionary(txn, id);
+				Long msgCount = meta.getOptionalLong(GROUP_KEY_MSG_COUNT);
+				Long unreadCount =
+						meta.getOptionalLong(GROUP_KEY_UNREAD_COUNT);
+				Long latestMsgTime =
+						meta.getOptionalLong(GROUP_KEY_LATEST_MSG);
+				if (msgCount == null && unreadCount == null
+						&& latestMsgTime == null) {
+					continue;
+				}
+				// Counts that are out of step are clamped rather than
+				// stopping the client from starting
+				int msgs = msgCount == null ? 0 :
+						(int) Math.max(0, msgCount);
+				int unread = unreadCount == null ? 0 :
+						(int) Math.max(0, Math.min(msgs, unreadCount));
+				db.updateGroupCounts(txn, id, msgs, unread,
+						latestMsgTime == null ? 0 : latestMsgTime);
+				BdfDictionary remove = BdfDictionary.of(
+						new BdfEntry(GROUP_KEY_MSG_COUNT, NULL_VALUE),
+						new BdfEntry(GROUP_KEY_UNREAD_COUNT, NULL_VALUE),
+						new BdfEntry(GROUP_KEY_LATEST_MSG, NULL_VALUE)
+				);
+				clientHelper.mergeGroupMetadata(txn, id, remove);
+				migrated++;
+			}
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+		s = new Settings();
+		s.putBoolean(key, true);
+		db.mergeSettings(txn, s, SETTINGS_NAMESPACE);
+		if (LOG.isLoggable(INFO) && migrated > 0) {
+			LOG.info("Migrated counts for " + migrated + " groups of "
+					+ c.getString());
+		}
+	}
+
 	@Override
 	public void trackIncomingMessage(Transaction txn, Message m)
 			throws DbException {
@@ -51,12 +116,31 @@ class MessageTrackerImpl implements MessageTracker {
 	@Override
 	public void trackMessage(Transaction txn, GroupId g, long time,
 			boolean read) throws DbException {
-		GroupCount c = getGroupCount(txn, g);
-		int msgCount = c.getMsgCount() + 1;
-		int unreadCount = c.getUnreadCount() + (read ? 0 : 1);
-		long latestMsgTime = Math.max(c.getLatestMsgTime(), time);
-		storeGroupCount(txn, g, new GroupCount(msgCount, unreadCount,
-				latestMsgTime));
+		db.updateGroupCounts(txn, g, 1, read ? 0 : 1, time);
+	}
+
+	@Override
+	public void untrackMessages(Transaction txn, GroupId g,
+			Collection<MessageId> messages) throws DbException {
+		int msgCount = 0, unreadCount = 0;
+		try {
+			for (MessageId m : messages) {
+				BdfDictionary meta =
+						clientHelper.getMessageMetadataAsDictionary(txn, m);
+				// Only tracked messages have a read flag
+				if (!meta.containsKey(MSG_KEY_READ)) continue;
+				msgCount++;
+				if (!meta.getBoolean(MSG_KEY_READ)) unreadCount++;
+			}
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+		if (msgCount == 0) return;
+		// Don't let the counts become negative if they're out of step
+		GroupCounts counts = db.getGroupCounts(txn, g);
+		msgCount = Math.min(msgCount, counts.getMsgCount());
+		unreadCount = Math.min(unreadCount, counts.getUnreadCount());
+		db.updateGroupCounts(txn, g, -msgCount, -unreadCount, 0);
 	}
 
 	@Nullable
@@ -99,36 +183,40 @@ class MessageTrackerImpl implements MessageTracker {
 	@Override
 	public GroupCount getGroupCount(Transaction txn, GroupId g)
 			throws DbException {
-		try {
-			BdfDictionary d = clientHelper.getGroupMetadataAsDictionary(txn, g);
-			return new GroupCount(
-					d.getLong(GROUP_KEY_MSG_COUNT, 0L).intValue(),
-					d.getLong(GROUP_KEY_UNREAD_COUNT, 0L).intValue(),
-					d.getLong(GROUP_KEY_LATEST_MSG, 0L)
-			);
-		} catch (FormatException e) {
-			throw new DbException(e);
-		}
+		return toGroupCount(db.getGroupCounts(txn, g));
 	}
 
-	private void storeGroupCount(Transaction txn, GroupId g, GroupCount c)
-			throws DbException {
-		try {
-			BdfDictionary d = BdfDictionary.of(
-					new BdfEntry(GROUP_KEY_MSG_COUNT, c.getMsgCount()),
-					new BdfEntry(GROUP_KEY_UNREAD_COUNT, c.getUnreadCount()),
-					new BdfEntry(GROUP_KEY_LATEST_MSG, c.getLatestMsgTime())
-			);
-			clientHelper.mergeGroupMetadata(txn, g, d);
-		} catch (FormatException e) {
-			throw new DbException(e);
+	@Override
+	public Map<GroupId, GroupCount> getGroupCounts(Transaction txn,
+			ClientId c, int majorVersion) throws DbException {
+		Map<GroupId, GroupCount> counts = new HashMap<>();
+		for (Entry<GroupId, GroupCounts> e :
+				db.getGroupCounts(txn, c, majorVersion).entrySet()) {
+			counts.put(e.getKey(), toGroupCount(e.getValue()));
 		}
+		return counts;
+	}
+
+	private GroupCount toGroupCount(GroupCounts c) {
+		return new GroupCount(c.getMsgCount(), c.getUnreadCount(),
+				c.getLatestMsgTime());
 	}
 
 	@Override
 	public void setReadFlag(GroupId g, MessageId m, boolean read)
 			throws DbException {
 		Transaction txn = db.startTransaction(false);
+		try {
+			setReadFlag(txn, g, m, read);
+			db.commitTransaction(txn);
+		} finally {
+			db.endTransaction(txn);
+		}
+	}
+
+	@Override
+	public void setReadFlag(Transaction txn, GroupId g, MessageId m,
+			boolean read) throws DbException {
 		try {
 			// check current read status of message
 			BdfDictionary old =
@@ -142,18 +230,11 @@ class MessageTrackerImpl implements MessageTracker {
 				meta.put(MSG_KEY_READ, read);
 				clientHelper.mergeMessageMetadata(txn, m, meta);
 
-				// update unread counter in group metadata
-				GroupCount c = getGroupCount(txn, g);
-				int unreadCount = c.getUnreadCount() + (read ? -1 : 1);
-				if (unreadCount < 0) throw new DbException();
-				storeGroupCount(txn, g, new GroupCount(c.getMsgCount(),
-						unreadCount, c.getLatestMsgTime()));
+				// update unread counter, which fails if it would be negative
+				db.updateGroupCounts(txn, g, 0, read ? -1 : 1, 0);
 			}
-			db.commitTransaction(txn);
 		} catch (FormatException e) {
 			throw new DbException(e);
-		} finally {
-			db.endTransaction(txn);
 		}
 	}
 
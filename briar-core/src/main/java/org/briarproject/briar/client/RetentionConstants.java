@@ -0,0 +1,36 @@
+package org.briarproject.briar.client;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+public interface RetentionConstants {
+
+	/**
+	 * The namespace of the settings that hold per-client retention policies.
+	 */
+	String SETTINGS_NAMESPACE = "retention";
+
+	String SETTINGS_KEY_MAX_AGE = "maxAge";
+
+	String SETTINGS_KEY_MAX_COUNT = "maxCount";
+
+	String GROUP_KEY_RETENTION_MAX_AGE = "retentionMaxAge";
+
+	String GROUP_KEY_RETENTION_MAX_COUNT = "retentionMaxCount";
+
+	/**
+	 * The delay in milliseconds before retention policies are first enforced
+	 * after startup.
+	 */
+	long EXPIRY_DELAY_INITIAL = MINUTES.toMillis(5);
+
+	/**
+	 * The interval in milliseconds between enforcing retention policies.
+	 */
+	long EXPIRY_INTERVAL = HOURS.toMillis(1);
+
+	/**
+	 * The maximum number of messages deleted in a single transaction.
+	 */
+	int DELETION_CHUNK_SIZE = 100;
+}
@@ -0,0 +1,378 @@
+package org.briarproject.briar.client;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.data.BdfEntry;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.NoSuchGroupException;
+import org.briarproject.bramble.api.db.NoSuchMessageException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.lifecycle.IoExecutor;
+import org.briarproject.bramble.api.lifecycle.Service;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.system.Scheduler;
+import org.briarproject.briar.api.client.MessageTracker;
+import org.briarproject.briar.api.client.RetentionManager;
+import org.briarproject.briar.api.client.RetentionPolicy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.bramble.api.data.BdfDictionary.NULL_VALUE;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.INVALID;
+import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
+import static org.briarproject.briar.api.client.RetentionPolicy.UNLIMITED;
+import static org.briarproject.briar.api.client.RetentionPolicy.UNLIMITED_AGE;
+import static org.briarproject.briar.api.client.RetentionPolicy.UNLIMITED_COUNT;
+import static org.briarproject.briar.client.RetentionConstants.DELETION_CHUNK_SIZE;
+import static org.briarproject.briar.client.RetentionConstants.EXPIRY_DELAY_INITIAL;
+import static org.briarproject.briar.client.RetentionConstants.EXPIRY_INTERVAL;
+import static org.briarproject.briar.client.RetentionConstants.GROUP_KEY_RETENTION_MAX_AGE;
+import static org.briarproject.briar.client.RetentionConstants.GROUP_KEY_RETENTION_MAX_COUNT;
+import static org.briarproject.briar.client.RetentionConstants.SETTINGS_KEY_MAX_AGE;
+import static org.briarproject.briar.client.RetentionConstants.SETTINGS_KEY_MAX_COUNT;
+import static org.briarproject.briar.client.RetentionConstants.SETTINGS_NAMESPACE;
+
+@ThreadSafe
+@NotNullByDefault
+class RetentionManagerImpl implements RetentionManager, Service {
+
+	private static final Logger LOG =
+			Logger.getLogger(RetentionManagerImpl.class.getName());
+
+	private final DatabaseComponent db;
+	private final ClientHelper clientHelper;
+	private final MessageTracker messageTracker;
+	private final ScheduledExecutorService scheduler;
+	private final Executor ioExecutor;
+	private final Clock clock;
+
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> expiryTask = null;
+
+	@Inject
+	RetentionManagerImpl(DatabaseComponent db, ClientHelper clientHelper,
+			MessageTracker messageTracker,
+			@Scheduler ScheduledExecutorService scheduler,
+			@IoExecutor Executor ioExecutor, Clock clock) {
+		this.db = db;
+		this.clientHelper = clientHelper;
+		this.messageTracker = messageTracker;
+		this.scheduler = scheduler;
+		this.ioExecutor = ioExecutor;
+		this.clock = clock;
+	}
+
+	@Override
+	public void startService() {
+		Runnable expiry = () -> ioExecutor.execute(this::expireAllMessages);
+		synchronized (lock) {
+			expiryTask = scheduler.scheduleWithFixedDelay(expiry,
+					EXPIRY_DELAY_INITIAL, EXPIRY_INTERVAL, MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void stopService() {
+		synchronized (lock) {
+			if (expiryTask != null) expiryTask.cancel(false);
+			expiryTask = null;
+		}
+	}
+
+	@Override
+	public void setRetentionPolicy(Transaction txn, ClientId c,
+			int majorVersion, RetentionPolicy p) throws DbException {
+		Settings s = new Settings();
+		s.putLong(getSettingsKey(c, majorVersion, SETTINGS_KEY_MAX_AGE),
+				p.getMaxAge());
+		s.putInt(getSettingsKey(c, majorVersion, SETTINGS_KEY_MAX_COUNT),
+				p.getMaxCount());
+		db.mergeSettings(txn, s, SETTINGS_NAMESPACE);
+	}
+
+	@Override
+	public RetentionPolicy getRetentionPolicy(Transaction txn, ClientId c,
+			int majorVersion) throws DbException {
+		Settings s = db.getSettings(txn, SETTINGS_NAMESPACE);
+		return getRetentionPolicy(s, c, majorVersion);
+	}
+
+	private RetentionPolicy getRetentionPolicy(Settings s, ClientId c,
+			int majorVersion) {
+		long maxAge = s.getLong(getSettingsKey(c, majorVersion,
+				SETTINGS_KEY_MAX_AGE), UNLIMITED_AGE);
+		int maxCount = s.getInt(getSettingsKey(c, majorVersion,
+				SETTINGS_KEY_MAX_COUNT), UNLIMITED_COUNT);
+		return new RetentionPolicy(maxAge, maxCount);
+	}
+
+	private String getSettingsKey(ClientId c, int majorVersion, String key) {
+		return c.getString() + "/" + majorVersion + "/" + key;
+	}
+
+	@Override
+	public void setRetentionPolicy(Transaction txn, GroupId g,
+			@Nullable RetentionPolicy p) throws DbException {
+		BdfDictionary meta;
+		if (p == null) {
+			meta = BdfDictionary.of(
+					new BdfEntry(GROUP_KEY_RETENTION_MAX_AGE, NULL_VALUE),
+					new BdfEntry(GROUP_KEY_RETENTION_MAX_COUNT, NULL_VALUE));
+		} else {
+			meta = BdfDictionary.of(
+					new BdfEntry(GROUP_KEY_RETENTION_MAX_AGE, p.getMaxAge()),
+					new BdfEntry(GROUP_KEY_RETENTION_MAX_COUNT,
+							p.getMaxCount()));
+			// Make sure the group's client is visited by the expiry task
+			Group group = db.getGroup(txn, g);
+			ClientId c = group.getClientId();
+			int majorVersion = group.getMajorVersion();
+			Settings s = db.getSettings(txn, SETTINGS_NAMESPACE);
+			if (!s.containsKey(getSettingsKey(c, majorVersion,
+					SETTINGS_KEY_MAX_AGE))) {
+				setRetentionPolicy(txn, c, majorVersion, UNLIMITED);
+			}
+		}
+		try {
+			clientHelper.mergeGroupMetadata(txn, g, meta);
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+	}
+
+	@Nullable
+	@Override
+	public RetentionPolicy getRetentionPolicy(Transaction txn, GroupId g)
+			throws DbException {
+		try {
+			BdfDictionary meta =
+					clientHelper.getGroupMetadataAsDictionary(txn, g);
+			Long maxAge = meta.getOptionalLong(GROUP_KEY_RETENTION_MAX_AGE);
+			Long maxCount =
+					meta.getOptionalLong(GROUP_KEY_RETENTION_MAX_COUNT);
+			if (maxAge == null || maxCount == null) return null;
+			return new RetentionPolicy(maxAge, maxCount.intValue());
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+	}
+
+	@IoExecutor
+	private void expireAllMessages() {
+		long start = now();
+		int expired = 0;
+		try {
+			for (GroupId g : getGroupsWithPolicies()) {
+				try {
+					expired += expireMessages(g);
+				} catch (DbException e) {
+					logException(LOG, WARNING, e);
+				}
+			}
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+		if (LOG.isLoggable(INFO))
+			LOG.info("Expired " + expired + " messages");
+		logDuration(LOG, "Enforcing retention policies", start);
+	}
+
+	/**
+	 * Returns the IDs of all groups belonging to clients that have a
+	 * retention policy. Groups with their own policy are included because
+	 * setting a group's policy gives its client a policy if necessary.
+	 */
+	private Collection<GroupId> getGroupsWithPolicies() throws DbException {
+		List<GroupId> groupIds = new ArrayList<>();
+		Transaction txn = db.startTransaction(true);
+		try {
+			Settings s = db.getSettings(txn, SETTINGS_NAMESPACE);
+			String suffix = "/" + SETTINGS_KEY_MAX_AGE;
+			for (String key : s.keySet()) {
+				if (!key.endsWith(suffix)) continue;
+				String prefix = key.substring(0, key.length() -
+						suffix.length());
+				int slash = prefix.lastIndexOf('/');
+				if (slash == -1) continue;
+				ClientId c = new ClientId(prefix.substring(0, slash));
+				int majorVersion;
+				try {
+					majorVersion =
+							Integer.parseInt(prefix.substring(slash + 1));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				for (Group g : db.getGroups(txn, c, majorVersion))
+					groupIds.add(g.getId());
+			}
+			db.commitTransaction(txn);
+		} finally {
+			db.endTransaction(txn);
+		}
+		return groupIds;
+	}
+
+	@Override
+	public int expireMessages(GroupId g) throws DbException {
+		// Choose the messages to delete without blocking writers. The plan
+		// is checked again before each chunk is deleted, so it doesn't
+		// matter if the group changes between the snapshot's queries
+		ExpiryPlan plan;
+		Transaction txn = db.startSnapshotTransaction();
+		try {
+			plan = getExpiryPlan(txn, g);
+			db.commitTransaction(txn);
+		} finally {
+			db.endTransaction(txn);
+		}
+		// Delete the messages in chunks, newest first, so that if we stop
+		// early no remaining message depends on a deleted message
+		int deleted = 0;
+		List<MessageId> expired = plan.expired;
+		for (int i = 0; i < expired.size(); i += DELETION_CHUNK_SIZE) {
+			List<MessageId> chunk = expired.subList(i,
+					Math.min(i + DELETION_CHUNK_SIZE, expired.size()));
+			txn = db.startTransaction(false);
+			try {
+				deleted += deleteMessages(txn, g, chunk, plan.dependents);
+				db.commitTransaction(txn);
+			} catch (NoSuchGroupException | NoSuchMessageException e) {
+				// The group or a message was removed since we looked
+				logException(LOG, INFO, e);
+				break;
+			} finally {
+				db.endTransaction(txn);
+			}
+		}
+		return deleted;
+	}
+
+	private ExpiryPlan getExpiryPlan(Transaction txn, GroupId g)
+			throws DbException {
+		RetentionPolicy p = getRetentionPolicy(txn, g);
+		if (p == null) {
+			Group group = db.getGroup(txn, g);
+			p = getRetentionPolicy(txn, group.getClientId(),
+					group.getMajorVersion());
+		}
+		ExpiryPlan plan = new ExpiryPlan();
+		if (p.isUnlimited()) return plan;
+		// The messages are ordered oldest first, so the messages that are
+		// too old or too many are a prefix of the list
+		Map<MessageId, Long> timestamps = db.getMessageTimestamps(txn, g);
+		List<MessageId> ids = new ArrayList<>(timestamps.keySet());
+		int candidates = Math.max(0, ids.size() - p.getMaxCount());
+		if (p.getMaxAge() != UNLIMITED_AGE) {
+			long cutoff = clock.currentTimeMillis() - p.getMaxAge();
+			while (candidates < ids.size() &&
+					timestamps.get(ids.get(candidates)) < cutoff) {
+				candidates++;
+			}
+		}
+		// Visit the candidates newest first, so dependents are usually
+		// visited before the messages they depend on
+		for (int i = candidates - 1; i >= 0; i--) {
+			MessageId m = ids.get(i);
+			Map<MessageId, State> dependents =
+					db.getMessageDependents(txn, m);
+			if (canExpire(txn, dependents, timestamps.keySet(),
+					plan.dependents.keySet())) {
+				plan.expired.add(m);
+				plan.dependents.put(m, dependents.keySet());
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Returns true if a message with the given dependents can be deleted.
+	 * Dependents that are delivered and not deleted must be deleted too,
+	 * and dependents that have not been delivered yet may need the message,
+	 * so they prevent it from being deleted.
+	 *
+	 * @param undeleted The delivered messages in the group that have not
+	 * been deleted
+	 * @param expired The messages that will be deleted
+	 */
+	private boolean canExpire(Transaction txn,
+			Map<MessageId, State> dependents, Set<MessageId> undeleted,
+			Set<MessageId> expired) throws DbException {
+		for (Entry<MessageId, State> e : dependents.entrySet()) {
+			MessageId dependent = e.getKey();
+			State state = e.getValue();
+			if (state == INVALID) continue;
+			if (state != DELIVERED) return false;
+			if (expired.contains(dependent)) continue;
+			if (undeleted.contains(dependent)) return false;
+			// A dependent that isn't one of the group's undeleted messages
+			// has usually been deleted, but check rather than assume
+			if (db.getRawMessage(txn, dependent) != null) return false;
+		}
+		return true;
+	}
+
+	private int deleteMessages(Transaction txn, GroupId g,
+			List<MessageId> chunk, Map<MessageId, Set<MessageId>> dependents)
+			throws DbException {
+		List<MessageId> toDelete = new ArrayList<>(chunk.size());
+		for (MessageId m : chunk) {
+			// Keep the message if it has gained a dependent since we looked
+			Set<MessageId> known = dependents.get(m);
+			if (known.containsAll(db.getMessageDependents(txn, m).keySet()))
+				toDelete.add(m);
+		}
+		messageTracker.untrackMessages(txn, g, toDelete);
+		for (MessageId m : toDelete) {
+			db.deleteMessage(txn, m);
+			db.deleteMessageMetadata(txn, m);
+		}
+		return toDelete.size();
+	}
+
+	private static class ExpiryPlan {
+
+		/**
+		 * The messages to delete, newest first.
+		 */
+		private final List<MessageId> expired = new ArrayList<>();
+
+		/**
+		 * The dependents of each message to delete when the plan was made.
+		 */
+		private final Map<MessageId, Set<MessageId>> dependents =
+				new HashMap<>();
+	}
+}
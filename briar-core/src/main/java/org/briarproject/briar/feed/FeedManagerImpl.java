@@ -387,6 +387,7 @@ class FeedManagerImpl implements FeedManager, Client, EventListener,
 		Transaction txn = db.startTransaction(false);
 		try {
 			Collections.sort(entries, getEntryComparator());
+			List<BlogPost> posts = new ArrayList<>();
 			for (SyndEntry entry : entries) {
 				long entryTime;
 				if (entry.getPublishedDate() != null) {
@@ -399,10 +400,13 @@ class FeedManagerImpl implements FeedManager, Client, EventListener,
 					continue;
 				}
 				if (entryTime > feed.getLastEntryTime()) {
-					postEntry(txn, feed, entry);
+					BlogPost post = createPost(feed, entry);
+					if (post != null) posts.add(post);
 					if (entryTime > lastEntryTime) lastEntryTime = entryTime;
 				}
 			}
+			// Store the new posts in a single batch
+			blogManager.addLocalPosts(txn, posts);
 			db.commitTransaction(txn);
 		} finally {
 			db.endTransaction(txn);
@@ -410,8 +414,8 @@ class FeedManagerImpl implements FeedManager, Client, EventListener,
 		return lastEntryTime;
 	}
 
-	private void postEntry(Transaction txn, Feed feed, SyndEntry entry)
-			throws DbException {
+	@Nullable
+	private BlogPost createPost(Feed feed, SyndEntry entry) {
 		LOG.info("Adding new entry...");
 
 		// build post body
@@ -456,18 +460,18 @@ class FeedManagerImpl implements FeedManager, Client, EventListener,
 		else time = Math.max(0, Math.min(date.getTime(), now));
 		String body = getPostBody(b.toString());
 		try {
-			// create and store post
+			// create post
 			LocalAuthor localAuthor = feed.getLocalAuthor();
-			BlogPost post = blogPostFactory
+			return blogPostFactory
 					.createBlogPost(groupId, time, null, localAuthor, body);
-			blogManager.addLocalPost(txn, post);
-		} catch (DbException | GeneralSecurityException | FormatException e) {
+		} catch (GeneralSecurityException | FormatException e) {
 			logException(LOG, WARNING, e);
 		} catch (IllegalArgumentException e) {
 			// yes even catch this, so we at least get a stacktrace
 			// and the executor doesn't just die a silent death
 			logException(LOG, WARNING, e);
 		}
+		return null;
 	}
 
 	private String getPostBody(String text) {
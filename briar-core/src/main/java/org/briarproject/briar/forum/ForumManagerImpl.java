@@ -7,6 +7,7 @@ import org.briarproject.bramble.api.data.BdfList;
 import org.briarproject.bramble.api.data.MetadataParser;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.MetadataRange;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.Author.Status;
@@ -14,6 +15,7 @@ import org.briarproject.bramble.api.identity.AuthorId;
 import org.briarproject.bramble.api.identity.IdentityManager;
 import org.briarproject.bramble.api.identity.LocalAuthor;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.Client;
 import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
@@ -34,17 +36,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BOOLEAN;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
+import static org.briarproject.bramble.api.db.MetadataRange.NO_LIMIT;
 import static org.briarproject.bramble.api.identity.Author.Status.OURSELVES;
 import static org.briarproject.briar.api.forum.ForumConstants.KEY_AUTHOR;
 import static org.briarproject.briar.api.forum.ForumConstants.KEY_LOCAL;
@@ -54,7 +56,8 @@ import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ
 
 @ThreadSafe
 @NotNullByDefault
-class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
+class ForumManagerImpl extends BdfIncomingMessageHook
+		implements ForumManager, Client {
 
 	private final IdentityManager identityManager;
 	private final ForumFactory forumFactory;
@@ -75,6 +78,18 @@ class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
 		removeHooks = new CopyOnWriteArrayList<>();
 	}
 
+	@Override
+	public void createLocalState(Transaction txn) throws DbException {
+		// Index the metadata keys used for building post headers
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				KEY_TIMESTAMP, LONG);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				KEY_LOCAL, BOOLEAN);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				MSG_KEY_READ, BOOLEAN);
+		messageTracker.migrateGroupCounts(txn, CLIENT_ID, MAJOR_VERSION);
+	}
+
 	@Override
 	protected boolean incomingMessage(Transaction txn, Message m, BdfList body,
 			BdfDictionary meta) throws DbException, FormatException {
@@ -140,14 +155,8 @@ class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
 	public ForumPostHeader addLocalPost(ForumPost p) throws DbException {
 		Transaction txn = db.startTransaction(false);
 		try {
-			BdfDictionary meta = new BdfDictionary();
-			meta.put(KEY_TIMESTAMP, p.getMessage().getTimestamp());
-			if (p.getParent() != null) meta.put(KEY_PARENT, p.getParent());
-			Author a = p.getAuthor();
-			meta.put(KEY_AUTHOR, clientHelper.toList(a));
-			meta.put(KEY_LOCAL, true);
-			meta.put(MSG_KEY_READ, true);
-			clientHelper.addLocalMessage(txn, p.getMessage(), meta, true);
+			clientHelper.addLocalMessage(txn, p.getMessage(),
+					getPostMetadata(p), true);
 			messageTracker.trackOutgoingMessage(txn, p.getMessage());
 			db.commitTransaction(txn);
 		} catch (FormatException e) {
@@ -159,6 +168,35 @@ class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
 				p.getMessage().getTimestamp(), p.getAuthor(), OURSELVES, true);
 	}
 
+	@Override
+	public void addLocalPosts(Transaction txn, Collection<ForumPost> posts)
+			throws DbException {
+		List<Message> messages = new ArrayList<>(posts.size());
+		Map<MessageId, BdfDictionary> metadata = new HashMap<>();
+		for (ForumPost p : posts) {
+			messages.add(p.getMessage());
+			metadata.put(p.getMessage().getId(), getPostMetadata(p));
+		}
+		try {
+			clientHelper.addLocalMessages(txn, messages, metadata, true);
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+		for (Message m : messages)
+			messageTracker.trackOutgoingMessage(txn, m);
+	}
+
+	private BdfDictionary getPostMetadata(ForumPost p) {
+		BdfDictionary meta = new BdfDictionary();
+		meta.put(KEY_TIMESTAMP, p.getMessage().getTimestamp());
+		if (p.getParent() != null) meta.put(KEY_PARENT, p.getParent());
+		Author a = p.getAuthor();
+		meta.put(KEY_AUTHOR, clientHelper.toList(a));
+		meta.put(KEY_LOCAL, true);
+		meta.put(MSG_KEY_READ, true);
+		return meta;
+	}
+
 	@Override
 	public Forum getForum(GroupId g) throws DbException {
 		Forum forum;
@@ -222,29 +260,27 @@ class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
 	public Collection<ForumPostHeader> getPostHeaders(GroupId g)
 			throws DbException {
 
+		// Threads need every post, so select them all in timestamp order
+		MetadataRange range = new MetadataRange(KEY_TIMESTAMP, false,
+				NO_LIMIT);
 		Collection<ForumPostHeader> headers = new ArrayList<>();
-		Transaction txn = db.startTransaction(true);
+		Transaction txn = db.startSnapshotTransaction();
 		try {
-			Map<MessageId, BdfDictionary> metadata =
-					clientHelper.getMessageMetadataAsDictionary(txn, g);
-			// get all authors we need to get the status for
-			Set<AuthorId> authors = new HashSet<>();
-			for (Entry<MessageId, BdfDictionary> entry : metadata.entrySet()) {
-				BdfList authorList = entry.getValue().getList(KEY_AUTHOR);
-				Author a = clientHelper.parseAndValidateAuthor(authorList);
-				authors.add(a.getId());
-			}
-			// get statuses for all authors
+			// get the status of each author the first time it's needed
 			Map<AuthorId, Status> statuses = new HashMap<>();
-			for (AuthorId id : authors) {
-				statuses.put(id, identityManager.getAuthorStatus(txn, id));
-			}
-			// Parse the metadata
-			for (Entry<MessageId, BdfDictionary> entry : metadata.entrySet()) {
-				BdfDictionary meta = entry.getValue();
-				headers.add(getForumPostHeader(txn, entry.getKey(), meta,
-						statuses));
-			}
+			// Parse the metadata one message at a time
+			clientHelper.visitMessageMetadataAsDictionary(txn, g,
+					new BdfDictionary(), range, (m, meta) -> {
+						BdfList authorList = meta.getList(KEY_AUTHOR);
+						Author a =
+								clientHelper.parseAndValidateAuthor(authorList);
+						if (!statuses.containsKey(a.getId())) {
+							statuses.put(a.getId(), identityManager
+									.getAuthorStatus(txn, a.getId()));
+						}
+						headers.add(getForumPostHeader(txn, m, meta,
+								statuses));
+					});
 			db.commitTransaction(txn);
 			return headers;
 		} catch (FormatException e) {
@@ -2,6 +2,7 @@ package org.briarproject.briar.forum;
 
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.data.MetadataEncoder;
+import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.sync.ValidationManager;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.briar.api.forum.ForumFactory;
@@ -30,7 +31,9 @@ public class ForumModule {
 	@Provides
 	@Singleton
 	ForumManager provideForumManager(ForumManagerImpl forumManager,
+			LifecycleManager lifecycleManager,
 			ValidationManager validationManager) {
+		lifecycleManager.registerClient(forumManager);
 		validationManager.registerIncomingMessageHook(CLIENT_ID, MAJOR_VERSION,
 				forumManager);
 		return forumManager;
@@ -47,10 +47,17 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.inject.Inject;
 
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BOOLEAN;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BYTES;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
 import static org.briarproject.briar.api.introduction.Role.INTRODUCEE;
 import static org.briarproject.briar.api.introduction.Role.INTRODUCER;
 import static org.briarproject.briar.introduction.IntroducerState.START;
 import static org.briarproject.briar.introduction.IntroductionConstants.GROUP_KEY_CONTACT_ID;
+import static org.briarproject.briar.introduction.IntroductionConstants.MSG_KEY_MESSAGE_TYPE;
+import static org.briarproject.briar.introduction.IntroductionConstants.MSG_KEY_SESSION_ID;
+import static org.briarproject.briar.introduction.IntroductionConstants.MSG_KEY_VISIBLE_IN_UI;
+import static org.briarproject.briar.introduction.IntroductionConstants.SESSION_KEY_ROLE;
 import static org.briarproject.briar.introduction.MessageType.ABORT;
 import static org.briarproject.briar.introduction.MessageType.ACCEPT;
 import static org.briarproject.briar.introduction.MessageType.ACTIVATE;
@@ -110,6 +117,17 @@ class IntroductionManagerImpl extends ConversationClientImpl
 
 	@Override
 	public void createLocalState(Transaction txn) throws DbException {
+		// Index the metadata keys used for finding messages and sessions.
+		// Messages and sessions both store the session ID as "sessionId"
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				MSG_KEY_SESSION_ID, BYTES);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				MSG_KEY_MESSAGE_TYPE, LONG);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				MSG_KEY_VISIBLE_IN_UI, BOOLEAN);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				SESSION_KEY_ROLE, LONG);
+		messageTracker.migrateGroupCounts(txn, CLIENT_ID, MAJOR_VERSION);
 		// Create a local group to store protocol sessions
 		if (db.containsGroup(txn, localGroup.getId())) return;
 		db.addGroup(txn, localGroup);
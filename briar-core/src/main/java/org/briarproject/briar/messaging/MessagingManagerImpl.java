@@ -11,6 +11,7 @@ import org.briarproject.bramble.api.data.BdfList;
 import org.briarproject.bramble.api.data.MetadataParser;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.MetadataRange;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.sync.Client;
@@ -31,11 +32,17 @@ import org.briarproject.briar.client.ConversationClientImpl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.inject.Inject;
 
+import static org.briarproject.bramble.api.db.IndexedMetadataType.BOOLEAN;
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
 import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ;
 
 @Immutable
@@ -58,6 +65,14 @@ class MessagingManagerImpl extends ConversationClientImpl
 
 	@Override
 	public void createLocalState(Transaction txn) throws DbException {
+		// Index the metadata keys used for building message headers
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				"timestamp", LONG);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				"local", BOOLEAN);
+		clientHelper.addIndexedMetadataKey(txn, CLIENT_ID, MAJOR_VERSION,
+				MSG_KEY_READ, BOOLEAN);
+		messageTracker.migrateGroupCounts(txn, CLIENT_ID, MAJOR_VERSION);
 		// Create a local group to indicate that we've set this client up
 		Group localGroup = contactGroupFactory.createLocalGroup(CLIENT_ID,
 				MAJOR_VERSION);
@@ -180,39 +195,69 @@ class MessagingManagerImpl extends ConversationClientImpl
 	@Override
 	public Collection<PrivateMessageHeader> getMessageHeaders(ContactId c)
 			throws DbException {
-		Map<MessageId, BdfDictionary> metadata;
-		Collection<MessageStatus> statuses;
-		GroupId g;
-		Transaction txn = db.startTransaction(true);
+		Collection<PrivateMessageHeader> headers = new ArrayList<>();
+		Transaction txn = db.startSnapshotTransaction();
 		try {
-			g = getContactGroup(db.getContact(txn, c)).getId();
-			metadata = clientHelper.getMessageMetadataAsDictionary(txn, g);
-			statuses = db.getMessageStatus(txn, c, g);
+			GroupId g = getContactGroup(db.getContact(txn, c)).getId();
+			Map<MessageId, MessageStatus> statuses = new HashMap<>();
+			for (MessageStatus s : db.getMessageStatus(txn, c, g))
+				statuses.put(s.getMessageId(), s);
+			// Build each header as its metadata is read, rather than loading
+			// the metadata of the whole conversation first
+			clientHelper.visitMessageMetadataAsDictionary(txn, g,
+					(m, meta) -> {
+						MessageStatus s = statuses.get(m);
+						if (s != null) headers.add(getMessageHeader(g, s, meta));
+					});
 			db.commitTransaction(txn);
 		} catch (FormatException e) {
 			throw new DbException(e);
 		} finally {
 			db.endTransaction(txn);
 		}
-		Collection<PrivateMessageHeader> headers = new ArrayList<>();
-		for (MessageStatus s : statuses) {
-			MessageId id = s.getMessageId();
-			BdfDictionary meta = metadata.get(id);
-			if (meta == null) continue;
-			try {
-				long timestamp = meta.getLong("timestamp");
-				boolean local = meta.getBoolean("local");
-				boolean read = meta.getBoolean("read");
-				headers.add(
-						new PrivateMessageHeader(id, g, timestamp, local, read,
-								s.isSent(), s.isSeen()));
-			} catch (FormatException e) {
-				throw new DbException(e);
-			}
+		return headers;
+	}
+
+	@Override
+	public List<PrivateMessageHeader> getMessageHeaders(ContactId c,
+			@Nullable PrivateMessageHeader before, int limit)
+			throws DbException {
+		// Select the page newest first from the timestamp index
+		MetadataRange range = new MetadataRange("timestamp", true, limit);
+		if (before != null)
+			range = range.after(before.getTimestamp(), before.getId());
+		List<PrivateMessageHeader> headers = new ArrayList<>();
+		Transaction txn = db.startSnapshotTransaction();
+		try {
+			GroupId g = getContactGroup(db.getContact(txn, c)).getId();
+			clientHelper.visitMessageMetadataAsDictionary(txn, g,
+					new BdfDictionary(), range, (m, meta) -> {
+						MessageStatus s = db.getMessageStatus(txn, c, m);
+						headers.add(getMessageHeader(g, s, meta));
+					});
+			db.commitTransaction(txn);
+		} catch (FormatException e) {
+			throw new DbException(e);
+		} finally {
+			db.endTransaction(txn);
 		}
+		Collections.reverse(headers);
 		return headers;
 	}
 
+	private PrivateMessageHeader getMessageHeader(GroupId g, MessageStatus s,
+			BdfDictionary meta) throws DbException {
+		try {
+			long timestamp = meta.getLong("timestamp");
+			boolean local = meta.getBoolean("local");
+			boolean read = meta.getBoolean("read");
+			return new PrivateMessageHeader(s.getMessageId(), g, timestamp,
+					local, read, s.isSent(), s.isSeen());
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public String getMessageBody(MessageId m) throws DbException {
 		try {
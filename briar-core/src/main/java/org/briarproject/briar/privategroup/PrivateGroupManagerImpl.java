@@ -18,6 +18,7 @@ import org.briarproject.bramble.api.identity.AuthorId;
 import org.briarproject.bramble.api.identity.IdentityManager;
 import org.briarproject.bramble.api.identity.LocalAuthor;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.sync.Client;
 import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
@@ -43,11 +44,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -78,7 +77,7 @@ import static org.briarproject.briar.privategroup.GroupConstants.KEY_TYPE;
 @ThreadSafe
 @NotNullByDefault
 class PrivateGroupManagerImpl extends BdfIncomingMessageHook
-		implements PrivateGroupManager {
+		implements PrivateGroupManager, Client {
 
 	private final PrivateGroupFactory privateGroupFactory;
 	private final ContactManager contactManager;
@@ -100,6 +99,11 @@ class PrivateGroupManagerImpl extends BdfIncomingMessageHook
 		hooks = new CopyOnWriteArrayList<>();
 	}
 
+	@Override
+	public void createLocalState(Transaction txn) throws DbException {
+		messageTracker.migrateGroupCounts(txn, CLIENT_ID, MAJOR_VERSION);
+	}
+
 	@Override
 	public void addPrivateGroup(PrivateGroup group, GroupMessage joinMsg,
 			boolean creator) throws DbException {
@@ -321,33 +325,25 @@ class PrivateGroupManagerImpl extends BdfIncomingMessageHook
 		Collection<GroupMessageHeader> headers = new ArrayList<>();
 		Transaction txn = db.startTransaction(true);
 		try {
-			Map<MessageId, BdfDictionary> metadata =
-					clientHelper.getMessageMetadataAsDictionary(txn, g);
-			// get all authors we need to get the status for
-			Set<AuthorId> authors = new HashSet<>();
-			for (BdfDictionary meta : metadata.values()) {
-				authors.add(getAuthor(meta).getId());
-			}
-			// get statuses for all authors
-			Map<AuthorId, Status> statuses = new HashMap<>();
-			for (AuthorId id : authors) {
-				statuses.put(id, identityManager.getAuthorStatus(txn, id));
-			}
 			// get current visibilities for join messages
 			Map<Author, Visibility> visibilities = getMembers(txn, g);
-			// parse the metadata
-			for (Entry<MessageId, BdfDictionary> entry : metadata.entrySet()) {
-				BdfDictionary meta = entry.getValue();
+			// get the status of each author the first time it's needed
+			Map<AuthorId, Status> statuses = new HashMap<>();
+			// parse the metadata one message at a time
+			clientHelper.visitMessageMetadataAsDictionary(txn, g, (m, meta) -> {
+				Author member = getAuthor(meta);
+				AuthorId id = member.getId();
+				if (!statuses.containsKey(id))
+					statuses.put(id, identityManager.getAuthorStatus(txn, id));
 				if (meta.getLong(KEY_TYPE) == JOIN.getInt()) {
-					Author member = getAuthor(meta);
 					Visibility v = visibilities.get(member);
-					headers.add(getJoinMessageHeader(txn, g, entry.getKey(),
-							meta, statuses, v));
+					headers.add(getJoinMessageHeader(txn, g, m, meta,
+							statuses, v));
 				} else {
-					headers.add(getGroupMessageHeader(txn, g, entry.getKey(),
-							meta, statuses));
+					headers.add(getGroupMessageHeader(txn, g, m, meta,
+							statuses));
 				}
-			}
+			});
 			db.commitTransaction(txn);
 			return headers;
 		} catch (FormatException e) {
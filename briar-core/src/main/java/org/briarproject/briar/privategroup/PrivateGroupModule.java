@@ -2,6 +2,7 @@ package org.briarproject.briar.privategroup;
 
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.data.MetadataEncoder;
+import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.sync.ValidationManager;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.briar.api.privategroup.GroupMessageFactory;
@@ -32,7 +33,9 @@ public class PrivateGroupModule {
 	@Singleton
 	PrivateGroupManager provideGroupManager(
 			PrivateGroupManagerImpl groupManager,
+			LifecycleManager lifecycleManager,
 			ValidationManager validationManager) {
+		lifecycleManager.registerClient(groupManager);
 		validationManager.registerIncomingMessageHook(CLIENT_ID, MAJOR_VERSION,
 				groupManager);
 		return groupManager;
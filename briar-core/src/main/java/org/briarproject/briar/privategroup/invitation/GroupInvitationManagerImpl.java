@@ -102,6 +102,7 @@ class GroupInvitationManagerImpl extends ConversationClientImpl
 
 	@Override
 	public void createLocalState(Transaction txn) throws DbException {
+		messageTracker.migrateGroupCounts(txn, CLIENT_ID, MAJOR_VERSION);
 		// Create a local group to indicate that we've set this client up
 		Group localGroup = contactGroupFactory.createLocalGroup(CLIENT_ID,
 				MAJOR_VERSION);
@@ -93,6 +93,8 @@ abstract class SharingManagerImpl<S extends Shareable>
 
 	@Override
 	public void createLocalState(Transaction txn) throws DbException {
+		messageTracker.migrateGroupCounts(txn, getClientId(),
+				getMajorVersion());
 		// Create a local group to indicate that we've set this client up
 		Group localGroup = contactGroupFactory.createLocalGroup(getClientId(),
 				getMajorVersion());
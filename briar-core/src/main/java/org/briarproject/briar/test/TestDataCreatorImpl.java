@@ -6,6 +6,7 @@ import org.briarproject.bramble.api.contact.Contact;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.ContactManager;
 import org.briarproject.bramble.api.crypto.CryptoComponent;
+import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.crypto.KeyPair;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.data.BdfDictionary;
@@ -22,8 +23,8 @@ import org.briarproject.bramble.api.plugin.TorConstants;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.properties.TransportProperties;
 import org.briarproject.bramble.api.properties.TransportPropertyManager;
-import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.briar.api.blog.Blog;
@@ -32,6 +33,7 @@ import org.briarproject.briar.api.blog.BlogPost;
 import org.briarproject.briar.api.blog.BlogPostFactory;
 import org.briarproject.briar.api.client.MessageTracker;
 import org.briarproject.briar.api.forum.Forum;
+import org.briarproject.briar.api.forum.ForumFactory;
 import org.briarproject.briar.api.forum.ForumManager;
 import org.briarproject.briar.api.forum.ForumPost;
 import org.briarproject.briar.api.messaging.MessagingManager;
@@ -40,13 +42,20 @@ import org.briarproject.briar.api.messaging.PrivateMessageFactory;
 import org.briarproject.briar.api.test.TestDataCreator;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
@@ -55,7 +64,9 @@ import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.briarproject.bramble.api.plugin.BluetoothConstants.UUID_BYTES;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
-import static org.briarproject.bramble.util.StringUtils.getRandomString;
+import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.util.LogUtils.now;
+import static org.briarproject.briar.api.forum.ForumConstants.FORUM_SALT_LENGTH;
 import static org.briarproject.briar.test.TestData.AUTHOR_NAMES;
 import static org.briarproject.briar.test.TestData.GROUP_NAMES;
 
@@ -64,6 +75,23 @@ public class TestDataCreatorImpl implements TestDataCreator {
 	private final Logger LOG =
 			Logger.getLogger(TestDataCreatorImpl.class.getName());
 
+	/**
+	 * The number of items to create on the crypto executor and store in a
+	 * single transaction.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	/**
+	 * The number of batches that may be created before the oldest batch
+	 * has been stored.
+	 */
+	private static final int MAX_BATCHES_IN_FLIGHT = 8;
+
+	/**
+	 * The maximum number of contacts each forum is shared with.
+	 */
+	private static final int MAX_FORUM_MEMBERS = 100;
+
 	private final AuthorFactory authorFactory;
 	private final Clock clock;
 	private final PrivateMessageFactory privateMessageFactory;
@@ -79,11 +107,13 @@ public class TestDataCreatorImpl implements TestDataCreator {
 	private final MessagingManager messagingManager;
 	private final BlogManager blogManager;
 	private final ForumManager forumManager;
+	private final ForumFactory forumFactory;
 
 	@IoExecutor
 	private final Executor ioExecutor;
+	@CryptoExecutor
+	private final Executor cryptoExecutor;
 
-	private final Random random = new Random();
 	private final Map<Contact, LocalAuthor> localAuthors = new HashMap<>();
 
 	@Inject
@@ -95,7 +125,9 @@ public class TestDataCreatorImpl implements TestDataCreator {
 			ContactManager contactManager,
 			TransportPropertyManager transportPropertyManager,
 			MessagingManager messagingManager, BlogManager blogManager,
-			ForumManager forumManager, @IoExecutor Executor ioExecutor) {
+			ForumManager forumManager, ForumFactory forumFactory,
+			@IoExecutor Executor ioExecutor,
+			@CryptoExecutor Executor cryptoExecutor) {
 		this.authorFactory = authorFactory;
 		this.clock = clock;
 		this.privateMessageFactory = privateMessageFactory;
@@ -110,84 +142,131 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		this.messagingManager = messagingManager;
 		this.blogManager = blogManager;
 		this.forumManager = forumManager;
+		this.forumFactory = forumFactory;
 		this.ioExecutor = ioExecutor;
+		this.cryptoExecutor = cryptoExecutor;
 	}
 
 	@Override
 	public void createTestData(int numContacts, int numPrivateMsgs,
 			int numBlogPosts, int numForums, int numForumPosts) {
+		createTestData(numContacts, numPrivateMsgs, numBlogPosts, numForums,
+				numForumPosts, new Random().nextLong());
+	}
+
+	@Override
+	public void createTestData(int numContacts, int numPrivateMsgs,
+			int numBlogPosts, int numForums, int numForumPosts, long seed) {
 		if (numContacts == 0)
 			throw new IllegalArgumentException(
 					"Number of contacts must be >= 1");
 		ioExecutor.execute(() -> {
 			try {
 				createTestDataOnIoExecutor(numContacts, numPrivateMsgs,
-						numBlogPosts, numForums, numForumPosts);
+						numBlogPosts, numForums, numForumPosts, seed);
 			} catch (DbException e) {
 				LOG.log(WARNING, "Creating test data failed", e);
+			} catch (InterruptedException e) {
+				LOG.warning("Interrupted while creating test data");
+				Thread.currentThread().interrupt();
 			}
 		});
 	}
 
 	@IoExecutor
 	private void createTestDataOnIoExecutor(int numContacts, int numPrivateMsgs,
-			int numBlogPosts, int numForums, int numForumPosts)
-			throws DbException {
-		List<Contact> contacts = createContacts(numContacts);
-		createPrivateMessages(contacts, numPrivateMsgs);
-		createBlogPosts(contacts, numBlogPosts);
-		List<Forum> forums = createForums(contacts, numForums, numForumPosts);
-
-		for (Forum forum : forums) {
-			createRandomForumPosts(forum, contacts, numForumPosts);
-		}
+			int numBlogPosts, int numForums, int numForumPosts, long seed)
+			throws DbException, InterruptedException {
+		long start = now();
+		Random random = new Random(seed);
+		long timestamp = clock.currentTimeMillis();
+		List<Contact> contacts = createContacts(random, numContacts, timestamp);
+		createPrivateMessages(random, contacts, numPrivateMsgs, timestamp);
+		createBlogPosts(random, contacts, numBlogPosts, timestamp);
+		List<TestForum> forums = createForums(random, contacts, numForums);
+		createForumPosts(random, forums, numForumPosts, timestamp);
+		logDuration(LOG, "Creating test data", start);
 	}
 
-	private List<Contact> createContacts(int numContacts) throws DbException {
-		List<Contact> contacts = new ArrayList<>(numContacts);
-		LocalAuthor localAuthor = identityManager.getLocalAuthor();
-		for (int i = 0; i < numContacts; i++) {
-			Contact contact = addRandomContact(localAuthor);
-			contacts.add(contact);
+	/**
+	 * Creates the given number of items in batches on the crypto executor
+	 * and stores each batch in a single transaction on the calling thread.
+	 * Each batch gets its own pseudo-random source, seeded in order from the
+	 * given source, so the choices made for each batch don't depend on the
+	 * order in which the batches are created.
+	 */
+	@IoExecutor
+	private <B> void createInBatches(Random random, int count,
+			BatchCreator<B> creator, BatchStorer<B> storer)
+			throws DbException, InterruptedException {
+		Deque<PendingBatch<B>> pending = new ArrayDeque<>();
+		try {
+			for (int first = 0; first < count; first += BATCH_SIZE) {
+				if (pending.size() == MAX_BATCHES_IN_FLIGHT)
+					storeBatch(pending.poll(), storer);
+				int firstItem = first;
+				int size = Math.min(BATCH_SIZE, count - first);
+				Random batchRandom = new Random(random.nextLong());
+				FutureTask<B> task = new FutureTask<>(() ->
+						creator.create(firstItem, size, batchRandom));
+				cryptoExecutor.execute(task);
+				pending.add(new PendingBatch<>(task, batchRandom));
+			}
+			while (!pending.isEmpty()) storeBatch(pending.poll(), storer);
+		} finally {
+			for (PendingBatch<B> p : pending) p.task.cancel(false);
 		}
-		return contacts;
 	}
 
-	private Contact addRandomContact(LocalAuthor localAuthor)
-			throws DbException {
-
-		// prepare to add contact
-		LocalAuthor author = getRandomAuthor();
-		SecretKey secretKey = getSecretKey();
-		long timestamp = clock.currentTimeMillis();
-		boolean verified = random.nextBoolean();
-
-		// prepare transport properties
-		Map<TransportId, TransportProperties> props =
-				getRandomTransportProperties();
-
-		Contact contact;
+	@IoExecutor
+	private <B> void storeBatch(PendingBatch<B> p, BatchStorer<B> storer)
+			throws DbException, InterruptedException {
+		B batch;
+		try {
+			batch = p.task.get();
+		} catch (ExecutionException e) {
+			// Report the failure to create the batch like a failure to store
+			// it, so creating the test data stops and the cause is logged
+			throw new DbException(e.getCause());
+		}
 		Transaction txn = db.startTransaction(false);
 		try {
-			ContactId contactId = contactManager
-					.addContact(txn, author, localAuthor.getId(), secretKey,
-							timestamp, true, verified, true);
-			transportPropertyManager.addRemoteProperties(txn, contactId, props);
-			contact = db.getContact(txn, contactId);
+			storer.store(txn, batch, p.random);
 			db.commitTransaction(txn);
 		} finally {
 			db.endTransaction(txn);
 		}
+	}
 
-		if (LOG.isLoggable(INFO)) {
-			LOG.info("Added contact " + author.getName());
-			LOG.info("with transport properties: " + props.toString());
-		}
-		localAuthors.put(contact, author);
-		return contact;
+	private List<Contact> createContacts(Random random, int numContacts,
+			long timestamp) throws DbException, InterruptedException {
+		List<Contact> contacts = new ArrayList<>(numContacts);
+		LocalAuthor localAuthor = identityManager.getLocalAuthor();
+		createInBatches(random, numContacts, (first, size, r) -> {
+			List<TestContact> batch = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				batch.add(new TestContact(getRandomAuthor(r), getSecretKey(r),
+						r.nextBoolean(), getRandomTransportProperties(r)));
+			}
+			return batch;
+		}, (txn, batch, r) -> {
+			for (TestContact c : batch) {
+				ContactId contactId = contactManager.addContact(txn, c.author,
+						localAuthor.getId(), c.secretKey, timestamp, true,
+						c.verified, true);
+				transportPropertyManager.addRemoteProperties(txn, contactId,
+						c.properties);
+				Contact contact = db.getContact(txn, contactId);
+				localAuthors.put(contact, c.author);
+				contacts.add(contact);
+			}
+		});
+		if (LOG.isLoggable(INFO))
+			LOG.info("Created " + numContacts + " contacts.");
+		return contacts;
 	}
 
-	private LocalAuthor getRandomAuthor() {
+	private LocalAuthor getRandomAuthor(Random random) {
 		int i = random.nextInt(AUTHOR_NAMES.length);
 		String authorName = AUTHOR_NAMES[i];
 		KeyPair keyPair = cryptoComponent.generateSignatureKeyPair();
@@ -197,19 +276,20 @@ public class TestDataCreatorImpl implements TestDataCreator {
 				privateKey);
 	}
 
-	private SecretKey getSecretKey() {
+	private SecretKey getSecretKey(Random random) {
 		byte[] b = new byte[SecretKey.LENGTH];
 		random.nextBytes(b);
 		return new SecretKey(b);
 	}
 
-	private Map<TransportId, TransportProperties> getRandomTransportProperties() {
+	private Map<TransportId, TransportProperties> getRandomTransportProperties(
+			Random random) {
 		Map<TransportId, TransportProperties> props = new HashMap<>();
 
 		// Bluetooth
 		TransportProperties bt = new TransportProperties();
-		String btAddress = getRandomBluetoothAddress();
-		String uuid = getRandomUUID();
+		String btAddress = getRandomBluetoothAddress(random);
+		String uuid = getRandomUUID(random);
 		bt.put(BluetoothConstants.PROP_ADDRESS, btAddress);
 		bt.put(BluetoothConstants.PROP_UUID, uuid);
 		props.put(BluetoothConstants.ID, bt);
@@ -219,21 +299,21 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < 4; i++) {
 			if (sb.length() > 0) sb.append(',');
-			sb.append(getRandomLanAddress());
+			sb.append(getRandomLanAddress(random));
 		}
 		lan.put(LanTcpConstants.PROP_IP_PORTS, sb.toString());
 		props.put(LanTcpConstants.ID, lan);
 
 		// Tor
 		TransportProperties tor = new TransportProperties();
-		String torAddress = getRandomTorAddress();
+		String torAddress = getRandomTorAddress(random);
 		tor.put(TorConstants.PROP_ONION, torAddress);
 		props.put(TorConstants.ID, tor);
 
 		return props;
 	}
 
-	private String getRandomBluetoothAddress() {
+	private String getRandomBluetoothAddress(Random random) {
 		byte[] mac = new byte[6];
 		random.nextBytes(mac);
 
@@ -245,13 +325,13 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		return sb.toString();
 	}
 
-	private String getRandomUUID() {
+	private String getRandomUUID(Random random) {
 		byte[] uuid = new byte[UUID_BYTES];
 		random.nextBytes(uuid);
 		return UUID.nameUUIDFromBytes(uuid).toString();
 	}
 
-	private String getRandomLanAddress() {
+	private String getRandomLanAddress(Random random) {
 		StringBuilder sb = new StringBuilder();
 		// address
 		if (random.nextInt(5) == 0) {
@@ -270,7 +350,7 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		return sb.toString();
 	}
 
-	private String getRandomTorAddress() {
+	private String getRandomTorAddress(Random random) {
 		StringBuilder sb = new StringBuilder();
 		// address
 		for (int i = 0; i < 16; i++) {
@@ -280,133 +360,175 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		return sb.toString();
 	}
 
-	private void createPrivateMessages(List<Contact> contacts,
-			int numPrivateMsgs) throws DbException {
-		for (Contact contact : contacts) {
-			Group group = messagingManager.getContactGroup(contact);
-			for (int i = 0; i < numPrivateMsgs; i++) {
+	private void createPrivateMessages(Random random, List<Contact> contacts,
+			int numPrivateMsgs, long now)
+			throws DbException, InterruptedException {
+		List<GroupId> groupIds = new ArrayList<>(contacts.size());
+		for (Contact contact : contacts)
+			groupIds.add(messagingManager.getContactGroup(contact).getId());
+		createInBatches(random, contacts.size() * numPrivateMsgs,
+				(first, size, r) -> {
+			PrivateMessageBatch batch = new PrivateMessageBatch(size);
+			for (int i = first; i < first + size; i++) {
+				GroupId groupId = groupIds.get(i / numPrivateMsgs);
+				int num = i % numPrivateMsgs;
+				long timestamp = now - num * 60 * 1000;
+				String body = getRandomText(r);
+				PrivateMessage m;
 				try {
-					createPrivateMessage(group.getId(), i);
+					m = privateMessageFactory.createPrivateMessage(groupId,
+							timestamp, body);
 				} catch (FormatException e) {
 					throw new RuntimeException(e);
 				}
+
+				boolean local = r.nextBoolean();
+				BdfDictionary meta = new BdfDictionary();
+				meta.put("timestamp", timestamp);
+				meta.put("local", local);
+				meta.put("read", local);  // all local messages are read
+
+				batch.messages.add(m.getMessage());
+				batch.metadata.put(m.getMessage().getId(), meta);
+				if (local) batch.localMessages.add(m.getMessage().getId());
 			}
-		}
+			return batch;
+		}, (txn, batch, r) -> {
+			try {
+				clientHelper.addLocalMessages(txn, batch.messages,
+						batch.metadata, true);
+			} catch (FormatException e) {
+				throw new RuntimeException(e);
+			}
+			for (Message m : batch.messages) {
+				if (batch.localMessages.contains(m.getId()))
+					messageTracker.trackOutgoingMessage(txn, m);
+				else messageTracker.trackIncomingMessage(txn, m);
+			}
+		});
 		if (LOG.isLoggable(INFO)) {
 			LOG.info("Created " + numPrivateMsgs +
 					" private messages per contact.");
 		}
 	}
 
-	private void createPrivateMessage(GroupId groupId, int num)
-			throws DbException, FormatException {
-		long timestamp = clock.currentTimeMillis() - num * 60 * 1000;
-		String body = getRandomText();
-		PrivateMessage m = privateMessageFactory
-				.createPrivateMessage(groupId, timestamp, body);
-
-		boolean local = random.nextBoolean();
-		BdfDictionary meta = new BdfDictionary();
-		meta.put("timestamp", timestamp);
-		meta.put("local", local);
-		meta.put("read", local);  // all local messages are read
-
-		Transaction txn = db.startTransaction(false);
-		try {
-			clientHelper.addLocalMessage(txn, m.getMessage(), meta, true);
-			if (local) messageTracker.trackOutgoingMessage(txn, m.getMessage());
-			else messageTracker.trackIncomingMessage(txn, m.getMessage());
-			db.commitTransaction(txn);
-		} finally {
-			db.endTransaction(txn);
-		}
-	}
-
-	private void createBlogPosts(List<Contact> contacts, int numBlogPosts)
-			throws DbException {
-		for (int i = 0; i < numBlogPosts; i++) {
-			Contact contact = contacts.get(random.nextInt(contacts.size()));
-			LocalAuthor author = localAuthors.get(contact);
-			addBlogPost(author, i);
-		}
+	private void createBlogPosts(Random random, List<Contact> contacts,
+			int numBlogPosts, long now)
+			throws DbException, InterruptedException {
+		createInBatches(random, numBlogPosts, (first, size, r) -> {
+			List<BlogPost> posts = new ArrayList<>(size);
+			for (int i = first; i < first + size; i++) {
+				Contact contact = contacts.get(r.nextInt(contacts.size()));
+				LocalAuthor author = localAuthors.get(contact);
+				posts.add(createBlogPost(r, author, now - i * 60 * 1000L));
+			}
+			return posts;
+		}, (txn, posts, r) -> blogManager.addLocalPosts(txn, posts));
 		if (LOG.isLoggable(INFO)) {
 			LOG.info("Created " + numBlogPosts + " blog posts.");
 		}
 	}
 
-	private void addBlogPost(LocalAuthor author, int num) throws DbException {
+	private BlogPost createBlogPost(Random random, LocalAuthor author,
+			long timestamp) {
 		Blog blog = blogManager.getPersonalBlog(author);
-		long timestamp = clock.currentTimeMillis() - num * 60 * 1000;
-		String body = getRandomText();
+		String body = getRandomText(random);
 		try {
-			BlogPost blogPost = blogPostFactory.createBlogPost(blog.getId(),
-					timestamp, null, author, body);
-			blogManager.addLocalPost(blogPost);
+			return blogPostFactory.createBlogPost(blog.getId(), timestamp,
+					null, author, body);
 		} catch (FormatException | GeneralSecurityException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private List<Forum> createForums(List<Contact> contacts, int numForums,
-			int numForumPosts) throws DbException {
-		List<Forum> forums = new ArrayList<>(numForums);
-		for (int i = 0; i < numForums; i++) {
-			// create forum
-			String name = GROUP_NAMES[random.nextInt(GROUP_NAMES.length)];
-			Forum forum = forumManager.addForum(name);
-
-			// share with all contacts
-			Transaction txn = db.startTransaction(false);
-			try {
-				for (Contact c : contacts) {
-					db.setGroupVisibility(txn, c.getId(), forum.getId(),
+	private List<TestForum> createForums(Random random, List<Contact> contacts,
+			int numForums) throws DbException, InterruptedException {
+		List<TestForum> forums = new ArrayList<>(numForums);
+		createInBatches(random, numForums, (first, size, r) -> {
+			List<TestForum> batch = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				String name = GROUP_NAMES[r.nextInt(GROUP_NAMES.length)];
+				byte[] salt = new byte[FORUM_SALT_LENGTH];
+				r.nextBytes(salt);
+				Forum forum = forumFactory.createForum(name, salt);
+				// Share with a random sample of the contacts
+				List<Contact> members = new ArrayList<>(contacts);
+				Collections.shuffle(members, r);
+				members = members.subList(0,
+						Math.min(MAX_FORUM_MEMBERS, members.size()));
+				batch.add(new TestForum(forum, members));
+			}
+			return batch;
+		}, (txn, batch, r) -> {
+			for (TestForum f : batch) {
+				forumManager.addForum(txn, f.forum);
+				for (Contact c : f.members) {
+					db.setGroupVisibility(txn, c.getId(), f.forum.getId(),
 							SHARED);
 				}
-				db.commitTransaction(txn);
-			} finally {
-				db.endTransaction(txn);
+				forums.add(f);
 			}
-			forums.add(forum);
-		}
+		});
 		if (LOG.isLoggable(INFO)) {
-			LOG.info("Created " + numForums + " forums with " +
-					numForumPosts + " posts each.");
+			LOG.info("Created " + numForums + " forums.");
 		}
 		return forums;
 	}
 
-	private void createRandomForumPosts(Forum forum, List<Contact> contacts,
-			int numForumPosts) throws DbException {
-		List<ForumPost> posts = new ArrayList<>();
-		for (int i = 0; i < numForumPosts; i++) {
-			Contact contact = contacts.get(random.nextInt(contacts.size()));
-			LocalAuthor author = localAuthors.get(contact);
-			long timestamp = clock.currentTimeMillis() - i * 60 * 1000;
-			String body = getRandomText();
-			MessageId parent = null;
-			if (random.nextBoolean() && posts.size() > 0) {
-				ForumPost parentPost =
-						posts.get(random.nextInt(posts.size()));
-				parent = parentPost.getMessage().getId();
+	private void createForumPosts(Random random, List<TestForum> forums,
+			int numForumPosts, long now)
+			throws DbException, InterruptedException {
+		createInBatches(random, forums.size() * numForumPosts,
+				(first, size, r) -> {
+			List<ForumPost> posts = new ArrayList<>(size);
+			// Replies are only made to earlier posts in the same batch
+			List<ForumPost> thread = new ArrayList<>();
+			TestForum forum = null;
+			for (int i = first; i < first + size; i++) {
+				TestForum f = forums.get(i / numForumPosts);
+				if (f != forum) {
+					forum = f;
+					thread.clear();
+				}
+				Contact contact =
+						f.members.get(r.nextInt(f.members.size()));
+				LocalAuthor author = localAuthors.get(contact);
+				long timestamp = now - (i % numForumPosts) * 60 * 1000L;
+				String body = getRandomText(r);
+				MessageId parent = null;
+				if (r.nextBoolean() && thread.size() > 0) {
+					ForumPost parentPost = thread.get(r.nextInt(thread.size()));
+					parent = parentPost.getMessage().getId();
+				}
+				ForumPost post = forumManager.createLocalPost(f.forum.getId(),
+						body, timestamp, parent, author);
+				thread.add(post);
+				posts.add(post);
 			}
-			ForumPost post = forumManager.createLocalPost(forum.getId(), body,
-					timestamp, parent, author);
-			posts.add(post);
-			forumManager.addLocalPost(post);
-			if (random.nextBoolean()) {
-				forumManager.setReadFlag(forum.getId(),
-						post.getMessage().getId(), false);
+			return posts;
+		}, (txn, posts, r) -> {
+			forumManager.addLocalPosts(txn, posts);
+			for (ForumPost p : posts) {
+				if (r.nextBoolean()) {
+					Message m = p.getMessage();
+					messageTracker.setReadFlag(txn, m.getGroupId(), m.getId(),
+							false);
+				}
 			}
+		});
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Created " + numForumPosts + " posts per forum.");
 		}
 	}
 
-	private String getRandomText() {
+	private String getRandomText(Random random) {
 		int minLength = 3 + random.nextInt(500);
 		int maxWordLength = 15;
 		StringBuilder sb = new StringBuilder();
 		while (sb.length() < minLength) {
 			if (sb.length() > 0) sb.append(' ');
-			sb.append(getRandomString(random.nextInt(maxWordLength) + 1));
+			sb.append(getRandomWord(random,
+					random.nextInt(maxWordLength) + 1));
 		}
 		if (random.nextBoolean()) {
 			sb.append(" \uD83D\uDC96 \uD83E\uDD84 \uD83C\uDF08");
@@ -414,4 +536,70 @@ public class TestDataCreatorImpl implements TestDataCreator {
 		return sb.toString();
 	}
 
+	private String getRandomWord(Random random, int length) {
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++)
+			c[i] = (char) ('a' + random.nextInt(26));
+		return new String(c);
+	}
+
+	private interface BatchCreator<B> {
+
+		B create(int first, int size, Random random);
+	}
+
+	private interface BatchStorer<B> {
+
+		void store(Transaction txn, B batch, Random random) throws DbException;
+	}
+
+	private static class PendingBatch<B> {
+
+		private final FutureTask<B> task;
+		private final Random random;
+
+		private PendingBatch(FutureTask<B> task, Random random) {
+			this.task = task;
+			this.random = random;
+		}
+	}
+
+	private static class TestContact {
+
+		private final LocalAuthor author;
+		private final SecretKey secretKey;
+		private final boolean verified;
+		private final Map<TransportId, TransportProperties> properties;
+
+		private TestContact(LocalAuthor author, SecretKey secretKey,
+				boolean verified,
+				Map<TransportId, TransportProperties> properties) {
+			this.author = author;
+			this.secretKey = secretKey;
+			this.verified = verified;
+			this.properties = properties;
+		}
+	}
+
+	private static class PrivateMessageBatch {
+
+		private final List<Message> messages;
+		private final Map<MessageId, BdfDictionary> metadata = new HashMap<>();
+		private final Set<MessageId> localMessages = new HashSet<>();
+
+		private PrivateMessageBatch(int size) {
+			messages = new ArrayList<>(size);
+		}
+	}
+
+	private static class TestForum {
+
+		private final Forum forum;
+		private final List<Contact> members;
+
+		private TestForum(Forum forum, List<Contact> members) {
+			this.forum = forum;
+			this.members = members;
+		}
+	}
 }
@@ -29,6 +29,7 @@ import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.junit.Test;
 
+import static org.briarproject.bramble.api.db.IndexedMetadataType.LONG;
 import static org.briarproject.bramble.api.identity.Author.Status.NONE;
 import static org.briarproject.bramble.api.identity.Author.Status.OURSELVES;
 import static org.briarproject.bramble.api.identity.Author.Status.VERIFIED;
@@ -110,6 +111,10 @@ public class BlogManagerImplTest extends BriarTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
+			oneOf(clientHelper).addIndexedMetadataKey(txn, CLIENT_ID,
+					MAJOR_VERSION, KEY_TYPE, LONG);
+			oneOf(clientHelper).addIndexedMetadataKey(txn, CLIENT_ID,
+					MAJOR_VERSION, KEY_TIMESTAMP, LONG);
 			oneOf(identityManager).getLocalAuthor(txn);
 			will(returnValue(blog1.getAuthor()));
 			oneOf(blogFactory).createBlog(blog1.getAuthor());
@@ -4,6 +4,11 @@ import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.data.BdfDictionary;
 import org.briarproject.bramble.api.data.BdfEntry;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.GroupCounts;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.test.BrambleMockTestCase;
@@ -13,7 +18,17 @@ import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+
+import static org.briarproject.bramble.api.data.BdfDictionary.NULL_VALUE;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_LATEST_MSG;
+import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_MSG_COUNT;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_STORED_MESSAGE_ID;
+import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_UNREAD_COUNT;
+import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ;
+import static org.briarproject.briar.client.MessageTrackerConstants.SETTINGS_NAMESPACE;
 
 public class MessageTrackerTest extends BrambleMockTestCase {
 
@@ -47,4 +62,119 @@ public class MessageTrackerTest extends BrambleMockTestCase {
 		Assert.assertTrue(messageId.equals(loadedId));
 	}
 
+	@Test
+	public void testSetReadFlagWithinTransaction() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		BdfDictionary read = BdfDictionary.of(new BdfEntry(MSG_KEY_READ, true));
+		BdfDictionary unread =
+				BdfDictionary.of(new BdfEntry(MSG_KEY_READ, false));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
+					messageId);
+			will(returnValue(read));
+			oneOf(clientHelper).mergeMessageMetadata(txn, messageId, unread);
+			oneOf(db).updateGroupCounts(txn, groupId, 0, 1, 0);
+		}});
+		messageTracker.setReadFlag(txn, groupId, messageId, false);
+	}
+
+	@Test
+	public void testSetReadFlagDoesNothingIfUnchanged() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		BdfDictionary unread =
+				BdfDictionary.of(new BdfEntry(MSG_KEY_READ, false));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
+					messageId);
+			will(returnValue(unread));
+		}});
+		messageTracker.setReadFlag(txn, groupId, messageId, false);
+	}
+
+	@Test
+	public void testUntrackMessages() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		MessageId messageId2 = new MessageId(TestUtils.getRandomId());
+		BdfDictionary read = BdfDictionary.of(new BdfEntry(MSG_KEY_READ, true));
+		BdfDictionary unread =
+				BdfDictionary.of(new BdfEntry(MSG_KEY_READ, false));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
+					messageId);
+			will(returnValue(read));
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
+					messageId1);
+			will(returnValue(unread));
+			// The last message was never tracked
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
+					messageId2);
+			will(returnValue(new BdfDictionary()));
+			oneOf(db).getGroupCounts(txn, groupId);
+			will(returnValue(new GroupCounts(5, 3, 123)));
+			oneOf(db).updateGroupCounts(txn, groupId, -2, -1, 0);
+		}});
+		messageTracker.untrackMessages(txn, groupId,
+				Arrays.asList(messageId, messageId1, messageId2));
+	}
+
+	@Test
+	public void testMigrateGroupCounts() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		ClientId clientId = getClientId();
+		Group group = getGroup(clientId, 123);
+		Group group1 = getGroup(clientId, 123);
+		String key = clientId.getString() + "/123";
+		BdfDictionary counts = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_MSG_COUNT, 5),
+				new BdfEntry(GROUP_KEY_UNREAD_COUNT, 3),
+				new BdfEntry(GROUP_KEY_LATEST_MSG, 456L)
+		);
+		BdfDictionary remove = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_MSG_COUNT, NULL_VALUE),
+				new BdfEntry(GROUP_KEY_UNREAD_COUNT, NULL_VALUE),
+				new BdfEntry(GROUP_KEY_LATEST_MSG, NULL_VALUE)
+		);
+		Settings migrated = new Settings();
+		migrated.putBoolean(key, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).getSettings(txn, SETTINGS_NAMESPACE);
+			will(returnValue(new Settings()));
+			oneOf(db).getGroups(txn, clientId, 123);
+			will(returnValue(Arrays.asList(group, group1)));
+			// The first group has counts stored as metadata
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn,
+					group.getId());
+			will(returnValue(counts));
+			oneOf(db).updateGroupCounts(txn, group.getId(), 5, 3, 456);
+			oneOf(clientHelper).mergeGroupMetadata(txn, group.getId(),
+					remove);
+			// The second group doesn't
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn,
+					group1.getId());
+			will(returnValue(new BdfDictionary()));
+			// Record that the client's counts have been migrated
+			oneOf(db).mergeSettings(txn, migrated, SETTINGS_NAMESPACE);
+		}});
+		messageTracker.migrateGroupCounts(txn, clientId, 123);
+	}
+
+	@Test
+	public void testMigrateGroupCountsOnlyOnce() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		ClientId clientId = getClientId();
+		Settings migrated = new Settings();
+		migrated.putBoolean(clientId.getString() + "/123", true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).getSettings(txn, SETTINGS_NAMESPACE);
+			will(returnValue(migrated));
+		}});
+		messageTracker.migrateGroupCounts(txn, clientId, 123);
+	}
+
 }
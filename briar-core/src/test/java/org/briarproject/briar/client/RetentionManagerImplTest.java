@@ -0,0 +1,356 @@
+package org.briarproject.briar.client;
+
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.data.BdfEntry;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.settings.Settings;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.ValidationManager.State;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.ImmediateExecutor;
+import org.briarproject.briar.api.client.MessageTracker;
+import org.briarproject.briar.api.client.RetentionPolicy;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.DELIVERED;
+import static org.briarproject.bramble.api.sync.ValidationManager.State.PENDING;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.briar.api.client.RetentionPolicy.UNLIMITED_AGE;
+import static org.briarproject.briar.api.client.RetentionPolicy.UNLIMITED_COUNT;
+import static org.briarproject.briar.client.RetentionConstants.GROUP_KEY_RETENTION_MAX_AGE;
+import static org.briarproject.briar.client.RetentionConstants.GROUP_KEY_RETENTION_MAX_COUNT;
+import static org.briarproject.briar.client.RetentionConstants.SETTINGS_NAMESPACE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RetentionManagerImplTest extends BrambleMockTestCase {
+
+	private static final long NOW = 1000 * 1000;
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final ClientHelper clientHelper = context.mock(ClientHelper.class);
+	private final MessageTracker messageTracker =
+			context.mock(MessageTracker.class);
+	private final ScheduledExecutorService scheduler =
+			context.mock(ScheduledExecutorService.class);
+	private final Clock clock = context.mock(Clock.class);
+
+	private final ClientId clientId = getClientId();
+	private final Group group = getGroup(clientId, 123);
+	private final GroupId groupId = group.getId();
+	private final MessageId messageId = new MessageId(getRandomId());
+	private final MessageId messageId1 = new MessageId(getRandomId());
+	private final MessageId messageId2 = new MessageId(getRandomId());
+
+	private final RetentionManagerImpl retentionManager =
+			new RetentionManagerImpl(db, clientHelper, messageTracker,
+					scheduler, new ImmediateExecutor(), clock);
+
+	@Test
+	public void testNothingIsExpiredWithoutPolicy() throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(new BdfDictionary()));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getSettings(txn, SETTINGS_NAMESPACE);
+			will(returnValue(new Settings()));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+
+		assertEquals(0, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testClientPolicyIsUsedIfGroupHasNoPolicy() throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, false);
+		Settings settings = new Settings();
+		settings.putLong(clientId.getString() + "/123/maxAge", 10);
+		settings.putInt(clientId.getString() + "/123/maxCount",
+				UNLIMITED_COUNT);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(new BdfDictionary()));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getSettings(txn, SETTINGS_NAMESPACE);
+			will(returnValue(settings));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(NOW - 11, NOW - 10)));
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(NOW));
+			// Only the first message is older than the maximum age
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(emptyMap()));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+		expectDeleteMessages(txn1, Collections.singletonList(messageId),
+				Collections.singletonList(messageId));
+
+		assertEquals(1, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testOldestMessagesAreExpiredWithTheirDependents()
+			throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, false);
+		Map<MessageId, State> dependents = singletonMap(messageId1, DELIVERED);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 1)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1, 2, 3)));
+			// The newest candidate is visited first
+			oneOf(db).getMessageDependents(txn, messageId1);
+			will(returnValue(emptyMap()));
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(dependents));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+			// The dependents haven't changed when the messages are deleted
+			oneOf(db).getMessageDependents(txn1, messageId);
+			will(returnValue(dependents));
+		}});
+		expectDeleteMessages(txn1, Arrays.asList(messageId1, messageId),
+				Collections.singletonList(messageId1));
+
+		assertEquals(2, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testMessageWithSurvivingDependentIsNotExpired()
+			throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 2)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1, 2, 3)));
+			// The only candidate has a dependent that isn't expired
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(singletonMap(messageId2, DELIVERED)));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+
+		assertEquals(0, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testMessageWithUndeletedDependentOutsideGroupIsNotExpired()
+			throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+		MessageId dependent = new MessageId(getRandomId());
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 0)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1)));
+			// The dependent isn't one of the group's messages, but it
+			// hasn't been deleted
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(singletonMap(dependent, DELIVERED)));
+			oneOf(db).getRawMessage(txn, dependent);
+			will(returnValue(getRandomBytes(123)));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+
+		assertEquals(0, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testMessageWithDeletedDependentIsExpired() throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, false);
+		Map<MessageId, State> dependents = singletonMap(messageId1, DELIVERED);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 0)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1)));
+			// The dependent has already been deleted
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(dependents));
+			oneOf(db).getRawMessage(txn, messageId1);
+			will(returnValue(null));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+			oneOf(db).getMessageDependents(txn1, messageId);
+			will(returnValue(dependents));
+		}});
+		expectDeleteMessages(txn1, Collections.singletonList(messageId),
+				Collections.emptyList());
+
+		assertEquals(1, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testMessageWithPendingDependentIsNotExpired()
+			throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 0)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1)));
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(singletonMap(messageId1, PENDING)));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+
+		assertEquals(0, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testMessageWithNewDependentIsNotDeleted() throws Exception {
+		Transaction txn = new Transaction(null, true, true);
+		Transaction txn1 = new Transaction(null, false);
+
+		context.checking(new Expectations() {{
+			oneOf(db).startSnapshotTransaction();
+			will(returnValue(txn));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(getGroupMetadata(UNLIMITED_AGE, 0)));
+			oneOf(db).getMessageTimestamps(txn, groupId);
+			will(returnValue(getTimestamps(1)));
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(emptyMap()));
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+			// A dependent arrives before the message is deleted
+			oneOf(db).startTransaction(false);
+			will(returnValue(txn1));
+			oneOf(db).getMessageDependents(txn1, messageId);
+			will(returnValue(singletonMap(messageId1, DELIVERED)));
+			oneOf(messageTracker).untrackMessages(txn1, groupId,
+					Collections.emptyList());
+			oneOf(db).commitTransaction(txn1);
+			oneOf(db).endTransaction(txn1);
+		}});
+
+		assertEquals(0, retentionManager.expireMessages(groupId));
+	}
+
+	@Test
+	public void testGroupPolicyCanBeRemoved() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		BdfDictionary meta = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_RETENTION_MAX_AGE,
+						BdfDictionary.NULL_VALUE),
+				new BdfEntry(GROUP_KEY_RETENTION_MAX_COUNT,
+						BdfDictionary.NULL_VALUE));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).mergeGroupMetadata(txn, groupId, meta);
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(new BdfDictionary()));
+		}});
+
+		retentionManager.setRetentionPolicy(txn, groupId, null);
+		assertNull(retentionManager.getRetentionPolicy(txn, groupId));
+	}
+
+	@Test
+	public void testSettingGroupPolicyGivesClientAPolicy() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		RetentionPolicy policy = new RetentionPolicy(10, 20);
+		Settings clientSettings = new Settings();
+		clientSettings.putLong(clientId.getString() + "/123/maxAge",
+				UNLIMITED_AGE);
+		clientSettings.putInt(clientId.getString() + "/123/maxCount",
+				UNLIMITED_COUNT);
+
+		context.checking(new Expectations() {{
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getSettings(txn, SETTINGS_NAMESPACE);
+			will(returnValue(new Settings()));
+			oneOf(db).mergeSettings(txn, clientSettings, SETTINGS_NAMESPACE);
+			oneOf(clientHelper).mergeGroupMetadata(txn, groupId,
+					getGroupMetadata(10, 20));
+		}});
+
+		retentionManager.setRetentionPolicy(txn, groupId, policy);
+	}
+
+	private void expectDeleteMessages(Transaction txn,
+			List<MessageId> deleted, List<MessageId> checkDependents)
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(db).startTransaction(false);
+			will(returnValue(txn));
+			for (MessageId m : checkDependents) {
+				oneOf(db).getMessageDependents(txn, m);
+				will(returnValue(emptyMap()));
+			}
+			oneOf(messageTracker).untrackMessages(txn, groupId, deleted);
+			for (MessageId m : deleted) {
+				oneOf(db).deleteMessage(txn, m);
+				oneOf(db).deleteMessageMetadata(txn, m);
+			}
+			oneOf(db).commitTransaction(txn);
+			oneOf(db).endTransaction(txn);
+		}});
+	}
+
+	private Map<MessageId, Long> getTimestamps(long... timestamps) {
+		List<MessageId> ids = Arrays.asList(messageId, messageId1, messageId2);
+		Map<MessageId, Long> map = new LinkedHashMap<>();
+		for (int i = 0; i < timestamps.length; i++)
+			map.put(ids.get(i), timestamps[i]);
+		return map;
+	}
+
+	private BdfDictionary getGroupMetadata(long maxAge, int maxCount) {
+		return BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_RETENTION_MAX_AGE, maxAge),
+				new BdfEntry(GROUP_KEY_RETENTION_MAX_COUNT, maxCount));
+	}
+}
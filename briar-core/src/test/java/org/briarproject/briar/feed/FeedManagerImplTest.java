@@ -37,6 +37,7 @@ import javax.net.SocketFactory;
 
 import okhttp3.Dns;
 
+import static java.util.Collections.singletonList;
 import static org.briarproject.bramble.test.TestUtils.getGroup;
 import static org.briarproject.bramble.test.TestUtils.getLocalAuthor;
 import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
@@ -122,7 +123,7 @@ public class FeedManagerImplTest extends BrambleMockTestCase {
 					.createBlogPost(feed.getBlogId(), 42L, null, localAuthor,
 							body);
 			will(returnValue(post));
-			oneOf(blogManager).addLocalPost(txn, post);
+			oneOf(blogManager).addLocalPosts(txn, singletonList(post));
 			oneOf(db).commitTransaction(txn);
 			oneOf(db).endTransaction(txn);
 		}});
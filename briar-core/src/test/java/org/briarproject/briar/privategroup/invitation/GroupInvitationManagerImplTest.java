@@ -86,6 +86,8 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 			context.mock(SessionEncoder.class);
 	private final ProtocolEngineFactory engineFactory =
 			context.mock(ProtocolEngineFactory.class);
+	private final MessageTracker messageTracker =
+			context.mock(MessageTracker.class);
 
 	private final CreatorProtocolEngine creatorEngine;
 	private final InviteeProtocolEngine inviteeEngine;
@@ -142,7 +144,6 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 			will(returnValue(peerEngine));
 		}});
 		MetadataParser metadataParser = context.mock(MetadataParser.class);
-		MessageTracker messageTracker = context.mock(MessageTracker.class);
 		groupInvitationManager = new GroupInvitationManagerImpl(db,
 				clientHelper, clientVersioningManager, metadataParser,
 				messageTracker, contactGroupFactory, privateGroupFactory,
@@ -153,6 +154,8 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testCreateLocalStateFirstTime() throws Exception {
 		context.checking(new Expectations() {{
+			oneOf(messageTracker).migrateGroupCounts(txn, CLIENT_ID,
+					MAJOR_VERSION);
 			oneOf(contactGroupFactory).createLocalGroup(CLIENT_ID,
 					MAJOR_VERSION);
 			will(returnValue(localGroup));
@@ -169,6 +172,8 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testCreateLocalStateSubsequentTime() throws Exception {
 		context.checking(new Expectations() {{
+			oneOf(messageTracker).migrateGroupCounts(txn, CLIENT_ID,
+					MAJOR_VERSION);
 			oneOf(contactGroupFactory).createLocalGroup(CLIENT_ID,
 					MAJOR_VERSION);
 			will(returnValue(localGroup));
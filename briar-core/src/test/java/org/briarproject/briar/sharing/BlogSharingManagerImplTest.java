@@ -58,6 +58,8 @@ public class BlogSharingManagerImplTest extends BrambleMockTestCase {
 	private final ContactGroupFactory contactGroupFactory =
 			context.mock(ContactGroupFactory.class);
 	private final BlogManager blogManager = context.mock(BlogManager.class);
+	private final MessageTracker messageTracker =
+			context.mock(MessageTracker.class);
 
 	private final LocalAuthor localAuthor = getLocalAuthor();
 	private final ContactId contactId = new ContactId(0);
@@ -82,7 +84,6 @@ public class BlogSharingManagerImplTest extends BrambleMockTestCase {
 	public BlogSharingManagerImplTest() {
 		MetadataParser metadataParser = context.mock(MetadataParser.class);
 		MessageParser<Blog> messageParser = context.mock(MessageParser.class);
-		MessageTracker messageTracker = context.mock(MessageTracker.class);
 		InvitationFactory<Blog, BlogInvitationResponse> invitationFactory =
 				context.mock(InvitationFactory.class);
 		blogSharingManager = new BlogSharingManagerImpl(db, clientHelper,
@@ -98,6 +99,9 @@ public class BlogSharingManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
+			// Migrate any group counts stored as metadata
+			oneOf(messageTracker).migrateGroupCounts(txn, CLIENT_ID,
+					MAJOR_VERSION);
 			// The local group doesn't exist - we need to set things up
 			oneOf(contactGroupFactory).createLocalGroup(CLIENT_ID,
 					MAJOR_VERSION);
@@ -152,6 +156,9 @@ public class BlogSharingManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
+			// Migrate any group counts stored as metadata
+			oneOf(messageTracker).migrateGroupCounts(txn, CLIENT_ID,
+					MAJOR_VERSION);
 			// The local group exists - everything has been set up
 			oneOf(contactGroupFactory).createLocalGroup(CLIENT_ID,
 					MAJOR_VERSION);